@@ -56,6 +56,8 @@ public class Address implements Comparable<Address> {
 
     protected boolean syncComplete = false;
     private long mSortTime;
+    // when the key was created in seconds, 0 if unknown (e.g. imported)
+    private long createTime;
     private long balance = 0;
     private boolean isFromXRandom;
     private boolean isTrashed = false;
@@ -74,6 +76,15 @@ public class Address implements Comparable<Address> {
 
     }
 
+    /**
+     * For a key generated by this wallet, see {@link ECKey#generateECKey(java.security
+     * .SecureRandom)}, the address keeps the creation time of the key.
+     */
+    public Address(ECKey key, String encryptString) {
+        this(key.toAddress(), key.getPubKey(), encryptString, false, key.isFromXRandom());
+        this.createTime = key.getCreationTimeSeconds();
+    }
+
     public Address(String address, byte[] pubKey, long sortTime, boolean isSyncComplete,
                    boolean isFromXRandom, boolean isTrashed, String encryptPrivKey) {
         this.encryptPrivKey = encryptPrivKey;
@@ -263,6 +274,18 @@ public class Address implements Comparable<Address> {
         this.mSortTime = mSortTime;
     }
 
+    /**
+     * @return when the key was created in seconds, 0 if unknown. Unlike the sort time this is
+     * not reset when the address is added, restored or reordered.
+     */
+    public long getCreateTime() {
+        return createTime;
+    }
+
+    public void setCreateTime(long createTime) {
+        this.createTime = createTime;
+    }
+
     public String getEncryptPrivKeyOfDb() {
         return PrivateKeyUtil.formatEncryptPrivateKeyForDb(this.encryptPrivKey);
     }
@@ -590,6 +590,30 @@ public class AddressManager implements HDMKeychain.HDMAddressChangeDelegate,
         return true;
     }
 
+    /**
+     * The wallet birthday in seconds. Blocks before it can not contain anything of ours, so they
+     * are synced as headers only. Keys without a known creation time (imported or restored) count
+     * as 0, which syncs filtered blocks from the start.
+     */
+    public long getEarliestKeyTime() {
+        long earliestKeyTime = Utils.currentTimeSeconds();
+        for (Address address : getAllAddresses()) {
+            earliestKeyTime = Math.min(earliestKeyTime, address.getCreateTime());
+        }
+        if (hasHDAccountHot()) {
+            earliestKeyTime = Math.min(earliestKeyTime, getHDAccountHot().getCreateTime());
+        }
+        if (hasHDAccountMonitored()) {
+            earliestKeyTime = Math.min(earliestKeyTime, getHDAccountMonitored().getCreateTime());
+        }
+        if (hasDesktopHDMKeychain()) {
+            for (DesktopHDMKeychain keychain : getDesktopHDMKeychains()) {
+                earliestKeyTime = Math.min(earliestKeyTime, keychain.getCreateTime());
+            }
+        }
+        return Math.max(earliestKeyTime, 0);
+    }
+
     private void initHDMKeychain() {
         List<Integer> seeds = AbstractDb.addressProvider.getHDSeeds();
         if (seeds.size() > 0) {
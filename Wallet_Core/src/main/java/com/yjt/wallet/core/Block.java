@@ -20,7 +20,6 @@ import com.google.common.base.Preconditions;
 import com.yjt.wallet.core.contant.BitherjSettings;
 import com.yjt.wallet.core.exception.ProtocolException;
 import com.yjt.wallet.core.exception.VerificationException;
-import com.yjt.wallet.core.message.BlockMessage;
 import com.yjt.wallet.core.message.Message;
 import com.yjt.wallet.core.utils.UnsafeByteArrayOutputStream;
 import com.yjt.wallet.core.utils.Utils;
@@ -74,6 +73,8 @@ public class Block extends Message {
 
     private List<byte[]> txHashes;
     private List<Tx>     transactions;
+    // txs in the block before it was filtered, 0 if unknown
+    private transient int totalTxCount;
 
     public Block() {
 
@@ -114,6 +115,13 @@ public class Block extends Message {
         super(payloadBytes, 0, length);
     }
 
+    /**
+     * Constructs a block object from the length bytes of payloadBytes starting at offset.
+     */
+    public Block(byte[] payloadBytes, int offset, int length) throws ProtocolException {
+        super(payloadBytes, offset, length);
+    }
+
     public Block(long version, String prevBlock, String merkleRoot, int timestamp
             , long target, long nonce, int height) {
         this.blockVer = version;
@@ -219,6 +227,17 @@ public class Block extends Message {
         this.txHashes = txHashes;
     }
 
+    /**
+     * @return the number of txs in the block before it was filtered, 0 if unknown.
+     */
+    public int getTotalTxCount() {
+        return totalTxCount;
+    }
+
+    public void setTotalTxCount(int totalTxCount) {
+        this.totalTxCount = totalTxCount;
+    }
+
     public List<Tx> getTransactions() {
         return this.transactions;
     }
@@ -228,13 +247,14 @@ public class Block extends Message {
     }
 
     public byte[] calculateHash() {
-        try {
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(BlockMessage.HEADER_SIZE);
-            writeHeader(bos);
-            return Utils.doubleDigest(bos.toByteArray());
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Cannot happen.
-        }
+        byte[] header = new byte[HEADER_SIZE];
+        Utils.uint32ToByteArrayLE(this.blockVer, header, 0);
+        System.arraycopy(this.blockPrev, 0, header, 4, 32);
+        System.arraycopy(this.blockRoot, 0, header, 36, 32);
+        Utils.uint32ToByteArrayLE(this.blockTime, header, 68);
+        Utils.uint32ToByteArrayLE(this.blockBits, header, 72);
+        Utils.uint32ToByteArrayLE(this.blockNonce, header, 76);
+        return Utils.doubleDigest(header);
     }
 
     void writeHeader(OutputStream stream) throws IOException {
@@ -631,7 +651,7 @@ public class Block extends Message {
         blockBits = readUint32();
         blockNonce = readUint32();
 
-        blockHash = Utils.doubleDigest(bytes, offset, cursor);
+        blockHash = Utils.doubleDigest(bytes, offset, HEADER_SIZE);
 
         headerParsed = true;
         headerBytesValid = false;
@@ -644,7 +664,7 @@ public class Block extends Message {
 
         cursor = offset + HEADER_SIZE;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (bytes.length == cursor) {
+        if (!hasMoreBytes()) {
             // This message is just a header, it has no transactions.
             transactionsParsed = true;
             transactionBytesValid = false;
@@ -727,7 +747,7 @@ public class Block extends Message {
         // we have completely cached byte array.
         if (headerBytesValid && transactionBytesValid) {
             Preconditions.checkNotNull(bytes, "Bytes should never be null if headerBytesValid && transactionBytesValid");
-            if (length == bytes.length) {
+            if (offset == 0 && length == bytes.length) {
                 return bytes;
             } else {
                 // byte array is offset so copy out the correct range.
@@ -766,7 +786,8 @@ public class Block extends Message {
      */
     private int guessTransactionsLength() {
         if (transactionBytesValid) {
-            return bytes.length - HEADER_SIZE;
+            // only called with an unknown length, the block runs to the end of the array
+            return bytes.length - offset - HEADER_SIZE;
         }
         if (transactions == null) {
             return 0;
@@ -16,6 +16,7 @@
 
 package com.yjt.wallet.core;
 
+import com.yjt.wallet.core.contant.AbstractApp;
 import com.yjt.wallet.core.contant.BitherjSettings;
 import com.yjt.wallet.core.db.AbstractDb;
 import com.yjt.wallet.core.exception.VerificationException;
@@ -26,22 +27,49 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 
 public class BlockChain {
     private static BlockChain uniqueInstance = new BlockChain();
     private static final Logger log = LoggerFactory.getLogger(BlockChain.class);
+    private static final int NO_PENDING_REORG = -1;
     protected HashMap<byte[], Block> singleBlocks;
     protected Block lastBlock;
     protected Block lastOrphanBlock;
+    private final HeaderIndex headerIndex;
 
     BlockChain() {
         AbstractDb.blockProvider.cleanOldBlock();
 
+        this.headerIndex = new HeaderIndex(AbstractDb.blockProvider.getLimitBlocks(BitherjSettings
+                .HEADER_INDEX_WINDOW));
         this.singleBlocks = new HashMap<byte[], Block>();
         this.lastBlock = AbstractDb.blockProvider.getLastBlock();
         this.lastOrphanBlock = AbstractDb.blockProvider.getLastOrphanBlock();
+        int pendingReorgBlockNo = AbstractApp.bitherjSetting.getBitherjPendingReorgBlockNo();
+        if (pendingReorgBlockNo != NO_PENDING_REORG) {
+            finishPendingReorg(pendingReorgBlockNo);
+        }
+    }
+
+    /**
+     * Finishes a reorg or a batch of relayed blocks the app stopped in the middle of. Its blocks
+     * may be stored while its txs are not, and the tx hashes the blocks were relayed with are
+     * gone. So the txs above the fork are unconfirmed and the blocks above it rolled back, the
+     * next sync downloads them again and confirms their txs.
+     */
+    private void finishPendingReorg(int forkBlockNo) {
+        log.warn("finish the reorg pending at No.{}", forkBlockNo);
+        AbstractDb.txProvider.reorganizeTxs(forkBlockNo, new ArrayList<Block>());
+        if (this.lastBlock != null && this.lastBlock.getBlockNo() > forkBlockNo && !this
+                .rollbackBlock(forkBlockNo)) {
+            log.warn("can not roll back to No.{}, the txs above it stay unconfirmed",
+                     forkBlockNo);
+        }
+        AbstractApp.bitherjSetting.setBitherjPendingReorgBlockNo(NO_PENDING_REORG);
     }
 
     public static BlockChain getInstance() {
@@ -61,6 +89,7 @@ public class BlockChain {
 
     public void addBlocks(List<Block> blocks) {
         AbstractDb.blockProvider.addBlocks(blocks);
+        headerIndex.addBlocks(blocks);
     }
 
     public Block getLastBlock() {
@@ -68,7 +97,11 @@ public class BlockChain {
     }
 
     public Block getBlock(byte[] blockHash) {
-        return AbstractDb.blockProvider.getBlock(blockHash);
+        return headerIndex.getBlock(blockHash);
+    }
+
+    public Block getMainChainBlock(byte[] blockHash) {
+        return headerIndex.getMainChainBlock(blockHash);
     }
 
     public int getBlockCount() {
@@ -88,9 +121,7 @@ public class BlockChain {
                 step *= 2;
             }
 
-            for (int i = 0; b != null && i < step; i++) {
-                b = AbstractDb.blockProvider.getMainChainBlock(b.getBlockPrev());
-            }
+            b = headerIndex.getAncestor(b, b.getBlockNo() - step);
         }
         locators.add(BitherjSettings.GENESIS_BLOCK_HASH);
 
@@ -110,12 +141,14 @@ public class BlockChain {
         List<Block> blocks = AbstractDb.blockProvider.getBlocksFrom(blockNo);
         // DDLogWarn(@"roll back block from %d to %d", self.lastBlock.height, blockNo);
 
+        boolean mainBlockRemoved = false;
         for (Block block : blocks) {
             AbstractDb.blockProvider.removeBlock(block.getBlockHash());
-
-            if (block.isMain()) {
-                AbstractDb.txProvider.unConfirmTxByBlockNo(block.getBlockNo());
-            }
+            headerIndex.removeBlock(block.getBlockHash());
+            mainBlockRemoved = mainBlockRemoved || block.isMain();
+        }
+        if (mainBlockRemoved) {
+            AbstractDb.txProvider.unConfirmTxByBlockNo(blockNo + 1);
         }
         this.lastBlock = AbstractDb.blockProvider.getLastBlock();
         return true;
@@ -167,7 +200,7 @@ public class BlockChain {
      * or orphan.
      * */
     public boolean relayedBlock(Block block) throws VerificationException {
-        Block prev = AbstractDb.blockProvider.getBlock(block.getBlockPrev());
+        Block prev = headerIndex.getBlock(block.getBlockPrev());
 
         if (prev == null) {
 
@@ -225,9 +258,8 @@ public class BlockChain {
             }
 
             if (block.getBlockNo() > this.lastBlock.getBlockNo()) {
-                Block b = this.getSameParent(block, this.lastBlock);
-                this.rollbackBlock(b.getBlockNo());
-                log.debug("roll back block from" + b.getBlockNo());
+                block.setMain(true);
+                result = this.reorganize(Collections.singletonList(block));
             }
         }
         if (!result) {
@@ -242,16 +274,18 @@ public class BlockChain {
         }
         Block prev = null;
         Block first = blocks.get(0);
-        int rollbackBlockNo = 0;
+        boolean fork = false;
         if (Arrays.equals(first.getBlockPrev(), this.getLastBlock().getBlockHash())) {
             prev = this.getLastBlock();
-        } else if (AbstractDb.blockProvider.getMainChainBlock(first.getBlockPrev()) != null) {
-            prev = this.getSameParent(first, this.getLastBlock());
-            rollbackBlockNo = prev.getBlockNo();
+        } else {
+            // the blocks fork off the main chain below its head
+            prev = headerIndex.getMainChainBlock(first.getBlockPrev());
+            fork = prev != null;
         }
         if (prev == null) {
             return 0;
         }
+        Block base = prev;
         for (Block block : blocks) {
             if (!Arrays.equals(block.getBlockPrev(), prev.getBlockHash())) {
                 return 0;
@@ -260,23 +294,21 @@ public class BlockChain {
             try {
                 int transitionTime = 0;
                 if (block.getBlockNo() % BitherjSettings.BLOCK_DIFFICULTY_INTERVAL == 0) {
-                    // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-                    // two weeks after the initial block chain download.
-                    long now = System.currentTimeMillis();
-                    Block cursor = first;
-                    for (int i = 0; i < BitherjSettings.BLOCK_DIFFICULTY_INTERVAL - block.getBlockNo() + first.getBlockNo(); i++) {
-                        if (cursor == null) {
-                            // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                            throw new VerificationException(
-                                    "Difficulty transition point but we did not find a way back to the genesis block.");
-                        }
-                        cursor = getBlock(cursor.getBlockPrev());
+                    // the first block of the previous interval, from the header index or from
+                    // the blocks being relayed
+                    int cursorBlockNo = block.getBlockNo() - BitherjSettings
+                            .BLOCK_DIFFICULTY_INTERVAL;
+                    Block cursor;
+                    if (cursorBlockNo >= first.getBlockNo()) {
+                        cursor = blocks.get(cursorBlockNo - first.getBlockNo());
+                    } else {
+                        cursor = headerIndex.getAncestor(base, cursorBlockNo);
                     }
-                    long elapsed = System.currentTimeMillis() - now;
-                    if (elapsed > 50) {
-                        log.info("Difficulty transition traversal took {}msec", elapsed);
+                    if (cursor == null) {
+                        // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                        throw new VerificationException(
+                                "Difficulty transition point but we did not find a way back to the genesis block.");
                     }
-
                     transitionTime = cursor.getBlockTime();
                 }
                 block.verifyDifficultyFromPreviousBlock(prev, transitionTime);
@@ -288,13 +320,14 @@ public class BlockChain {
             block.setMain(true);
             prev = block;
         }
-        if (rollbackBlockNo > 0) {
-            this.rollbackBlock(rollbackBlockNo);
+        if (fork) {
+            return this.reorganize(blocks) ? blocks.size() : 0;
         }
+        // the blocks and their txs are stored in separate transactions
+        AbstractApp.bitherjSetting.setBitherjPendingReorgBlockNo(base.getBlockNo());
         this.addBlocks(blocks);
-        for (Block block : blocks) {
-            AbstractDb.txProvider.confirmTx(block.getBlockNo(), block.getTxHashes());
-        }
+        AbstractDb.txProvider.confirmTxs(blocks);
+        AbstractApp.bitherjSetting.setBitherjPendingReorgBlockNo(NO_PENDING_REORG);
         this.lastBlock = blocks.get(blocks.size() - 1);
         return blocks.size();
     }
@@ -307,16 +340,13 @@ public class BlockChain {
         }
     }
 
-    private boolean inMainChain(Block block) {
-        Block b = this.lastBlock;
-        while (b != null && b.getBlockNo() > block.getBlockNo()) {
-            b = AbstractDb.blockProvider.getBlock(b.getBlockPrev());
-        }
-        return b != null && Arrays.equals(b.getBlockHash(), block.getBlockHash());
+    public boolean inMainChain(Block block) {
+        return headerIndex.isInMainChain(block);
     }
 
     private void addBlock(Block block) {
         AbstractDb.blockProvider.addBlock(block);
+        headerIndex.addBlock(block);
     }
 
     private void addOrphan(Block block) {
@@ -325,41 +355,87 @@ public class BlockChain {
         this.lastOrphanBlock = block;
     }
 
-    private Block getSameParent(Block block1, Block block2) {
-        Block b1 = block1;
-        Block b2 = block2;
-
-        while (b1 != null && b2 != null && !Arrays.equals(b1.getBlockHash(), b2.getBlockHash())) {
-            if (b1.getBlockNo() == 0 || b1.getBlockNo() >= b2.getBlockNo()) {
-                b1 = AbstractDb.blockProvider.getBlock(b1.getBlockPrev());
-            }
-            if (b1.getBlockNo() < b2.getBlockNo()) {
-                b2 = AbstractDb.blockProvider.getBlock(b2.getBlockPrev());
+    /**
+     * Makes the chain ending with the given blocks the main chain. The fork point, the old main
+     * branch and the stored side branch leading to the blocks come from the header index. The
+     * blocks table then switches over in one transaction, the txs in one more, the fork block No.
+     * stored as a pending reorg in between. The old main blocks are kept as orphans.
+     *
+     * @param newBlocks checked and numbered blocks not stored yet, in chain order, continuing a
+     *                  stored block
+     * @return false if the blocks do not connect to the main chain within a difficulty interval
+     */
+    private boolean reorganize(List<Block> newBlocks) {
+        Block branchBlock = headerIndex.getBlock(newBlocks.get(0).getBlockPrev());
+        Block forkBlock   = branchBlock == null ? null : headerIndex.getSameParent(branchBlock,
+                this.lastBlock);
+        if (forkBlock == null || this.lastBlock.getBlockNo() - forkBlock.getBlockNo() >=
+                BitherjSettings.BLOCK_DIFFICULTY_INTERVAL) {
+            log.warn("no fork point found for block No.{}", newBlocks.get(0).getBlockNo());
+            return false;
+        }
+        LinkedList<Block> sideBlocks = branchOf(branchBlock, forkBlock);
+        LinkedList<Block> oldBlocks  = branchOf(this.lastBlock, forkBlock);
+        if (sideBlocks == null || oldBlocks == null) {
+            return false;
+        }
+        // side blocks read back from the blocks table lost the tx hashes they were relayed with,
+        // their wallet txs could not be confirmed. Forget them, the next getblocks from the
+        // main chain downloads the branch again.
+        int filteredBlockNo = AbstractApp.bitherjSetting.getBitherjFastCatchupBlockNo();
+        for (Block block : sideBlocks) {
+            if (block.getTxHashes() == null && block.getBlockNo() >= filteredBlockNo) {
+                log.warn("side block No.{} has no tx hashes, no reorganization onto it", block
+                        .getBlockNo());
+                for (Block sideBlock : sideBlocks) {
+                    AbstractDb.blockProvider.removeBlock(sideBlock.getBlockHash());
+                    headerIndex.removeBlock(sideBlock.getBlockHash());
+                }
+                return false;
             }
         }
-        return b1;
-    }
 
-    private void forkMainChain(Block forkStartBlock, Block lastBlock) {
-        Block b = this.lastBlock;
-        Block next = lastBlock;
-        while (!Arrays.equals(b.getBlockHash(), forkStartBlock.getBlockHash())) {
-            next = AbstractDb.blockProvider.getOrphanBlockByPrevHash(b.getBlockPrev());
-            AbstractDb.blockProvider.updateBlock(b.getBlockHash(), false);
-            b = AbstractDb.blockProvider.getMainChainBlock(b.getBlockPrev());
-            this.lastBlock = b;
+        List<byte[]> oldBlockHashes  = new ArrayList<byte[]>();
+        List<byte[]> sideBlockHashes = new ArrayList<byte[]>();
+        for (Block block : oldBlocks) {
+            oldBlockHashes.add(block.getBlockHash());
+        }
+        for (Block block : sideBlocks) {
+            sideBlockHashes.add(block.getBlockHash());
+        }
+        AbstractApp.bitherjSetting.setBitherjPendingReorgBlockNo(forkBlock.getBlockNo());
+        AbstractDb.blockProvider.reorganize(forkBlock.getBlockNo(), oldBlockHashes,
+                                            sideBlockHashes, newBlocks);
+        for (byte[] blockHash : oldBlockHashes) {
+            headerIndex.setMain(blockHash, false);
         }
-        b = next;
-        AbstractDb.blockProvider.updateBlock(next.getBlockHash(), true);
-        this.lastBlock = next;
-        while (!Arrays.equals(b.getBlockHash(), lastBlock.getBlockPrev())) {
-            AbstractDb.blockProvider.updateBlock(b.getBlockHash(), true);
-            this.lastBlock = b;
-            b = AbstractDb.blockProvider.getOrphanBlockByPrevHash(b.getBlockHash());
+        for (byte[] blockHash : sideBlockHashes) {
+            headerIndex.setMain(blockHash, true);
+        }
+        headerIndex.addBlocks(newBlocks);
+
+        // side blocks relayed in this session still carry their tx hashes
+        List<Block> mainBlocks = new ArrayList<Block>(sideBlocks);
+        mainBlocks.addAll(newBlocks);
+        AbstractDb.txProvider.reorganizeTxs(forkBlock.getBlockNo(), mainBlocks);
+        AbstractApp.bitherjSetting.setBitherjPendingReorgBlockNo(NO_PENDING_REORG);
+        this.lastBlock = newBlocks.get(newBlocks.size() - 1);
+        log.warn("block chain reorganized at No.{}, {} blocks replaced by {}", forkBlock
+                .getBlockNo(), oldBlocks.size(), mainBlocks.size());
+        return true;
+    }
+
+    /**
+     * @return the stored blocks after the fork block up to the given one, in chain order.
+     */
+    private LinkedList<Block> branchOf(Block block, Block forkBlock) {
+        LinkedList<Block> blocks = new LinkedList<Block>();
+        Block b = block;
+        while (b != null && !Arrays.equals(b.getBlockHash(), forkBlock.getBlockHash())) {
+            blocks.addFirst(b);
+            b = headerIndex.getBlock(b.getBlockPrev());
         }
-        lastBlock.setMain(true);
-        this.addBlock(lastBlock);
-        this.lastBlock = lastBlock;
+        return b == null ? null : blocks;
     }
 
     public List<Block> getLimitBlocks(int limit) {
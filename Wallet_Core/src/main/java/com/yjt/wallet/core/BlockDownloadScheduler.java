@@ -0,0 +1,270 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.contant.BitherjSettings;
+import com.yjt.wallet.core.utils.Sha256Hash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Splits the block hashes announced to the downloading peer into ranges which every syncing
+ * peer pulls from, and puts the downloaded blocks back into chain order before they reach
+ * {@link BlockChain}. A range held by a peer for longer than
+ * {@link BitherjSettings#BLOCK_DOWNLOAD_STRAGGLER_TIMEOUT} is handed to the next peer asking for
+ * work, whichever delivers first wins.
+ * <p/>
+ * Peers call in from the network thread, PeerManager from its executor, so all methods are
+ * synchronized.
+ */
+class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    // scheduled but not yet relayed block hashes, in chain order
+    private final LinkedList<Sha256Hash>     pendingBlockHashes;
+    private final HashSet<Sha256Hash>        pendingBlockHashSet;
+    // downloaded blocks waiting for their predecessors
+    private final HashMap<Sha256Hash, Block> downloadedBlocks;
+    private final HashMap<Sha256Hash, Peer>  blockPeers;
+    private final LinkedList<BlockRange>     unassignedRanges;
+    private final List<BlockRange>           assignedRanges;
+
+    private Sha256Hash lastScheduledBlockHash;
+    private int        nextBlockNo;
+    private boolean    blockHashesRequested;
+
+    BlockDownloadScheduler() {
+        pendingBlockHashes = new LinkedList<Sha256Hash>();
+        pendingBlockHashSet = new HashSet<Sha256Hash>();
+        downloadedBlocks = new HashMap<Sha256Hash, Block>();
+        blockPeers = new HashMap<Sha256Hash, Peer>();
+        unassignedRanges = new LinkedList<BlockRange>();
+        assignedRanges = new ArrayList<BlockRange>();
+    }
+
+    synchronized void reset(int lastBlockNo) {
+        pendingBlockHashes.clear();
+        pendingBlockHashSet.clear();
+        downloadedBlocks.clear();
+        blockPeers.clear();
+        unassignedRanges.clear();
+        assignedRanges.clear();
+        lastScheduledBlockHash = null;
+        nextBlockNo = lastBlockNo + 1;
+        blockHashesRequested = false;
+    }
+
+    synchronized void setBlockHashesRequested() {
+        blockHashesRequested = true;
+    }
+
+    /**
+     * Adds the block hashes of an inv sent in response to our getblocks. Unsolicited
+     * announcements are dropped, they would break the chain order and the next getblocks covers
+     * them anyway.
+     */
+    synchronized boolean addBlockHashes(List<Sha256Hash> blockHashes) {
+        if (!blockHashesRequested) {
+            return false;
+        }
+        blockHashesRequested = false;
+        BlockRange range = null;
+        for (Sha256Hash hash : blockHashes) {
+            if (pendingBlockHashSet.contains(hash)) {
+                continue;
+            }
+            if (range == null || range.blockHashes.size() >= BitherjSettings
+                    .BLOCK_DOWNLOAD_RANGE_SIZE) {
+                range = new BlockRange(nextBlockNo);
+                unassignedRanges.add(range);
+            }
+            range.blockHashes.add(hash);
+            pendingBlockHashes.add(hash);
+            pendingBlockHashSet.add(hash);
+            lastScheduledBlockHash = hash;
+            nextBlockNo++;
+        }
+        return true;
+    }
+
+    /**
+     * @return the block hashes the peer should download next, empty if there is nothing to do.
+     */
+    synchronized List<Sha256Hash> takeBlockHashes(Peer peer) {
+        BlockRange range = unassignedRanges.poll();
+        if (range == null) {
+            range = takeStragglingRange(peer);
+        }
+        if (range == null) {
+            return new ArrayList<Sha256Hash>();
+        }
+        range.peer = peer;
+        range.assignedTime = System.currentTimeMillis();
+        assignedRanges.add(range);
+        log.info("Peer {} download blocks No.{} - No.{}", peer.getPeerAddress().getHostAddress(),
+                 range.startBlockNo, range.startBlockNo + range.blockHashes.size() - 1);
+        return range.remainingBlockHashes();
+    }
+
+    private BlockRange takeStragglingRange(Peer peer) {
+        long now = System.currentTimeMillis();
+        BlockRange straggling = null;
+        for (BlockRange range : assignedRanges) {
+            if (!peer.equals(range.peer) && now - range.assignedTime > BitherjSettings
+                    .BLOCK_DOWNLOAD_STRAGGLER_TIMEOUT && (straggling == null || range
+                    .startBlockNo < straggling.startBlockNo)) {
+                straggling = range;
+            }
+        }
+        if (straggling != null) {
+            assignedRanges.remove(straggling);
+            log.info("Peer {} is straggling with blocks No.{}, reassign them", straggling.peer
+                    .getPeerAddress().getHostAddress(), straggling.startBlockNo);
+        }
+        return straggling;
+    }
+
+    /**
+     * @return the height of a scheduled block, -1 if it is not scheduled.
+     */
+    synchronized int getBlockNo(Sha256Hash blockHash) {
+        if (!pendingBlockHashSet.contains(blockHash)) {
+            return -1;
+        }
+        for (BlockRange range : assignedRanges) {
+            int index = range.blockHashes.indexOf(blockHash);
+            if (index >= 0) {
+                return range.startBlockNo + index;
+            }
+        }
+        for (BlockRange range : unassignedRanges) {
+            int index = range.blockHashes.indexOf(blockHash);
+            if (index >= 0) {
+                return range.startBlockNo + index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the hash of the scheduled block before it, null if the block is the first one
+     * scheduled, which follows the chain head, or is not scheduled.
+     */
+    synchronized Sha256Hash getPrevBlockHash(Sha256Hash blockHash) {
+        int index = pendingBlockHashes.indexOf(blockHash);
+        return index > 0 ? pendingBlockHashes.get(index - 1) : null;
+    }
+
+    /**
+     * Puts the ranges of a lost peer back to the front of the queue.
+     */
+    synchronized void peerDisconnected(Peer peer) {
+        Iterator<BlockRange> iterator = assignedRanges.iterator();
+        ArrayList<BlockRange> ranges = new ArrayList<BlockRange>();
+        while (iterator.hasNext()) {
+            BlockRange range = iterator.next();
+            if (peer.equals(range.peer)) {
+                iterator.remove();
+                range.peer = null;
+                ranges.add(range);
+            }
+        }
+        unassignedRanges.addAll(0, ranges);
+    }
+
+    /**
+     * @return the downloaded blocks which now continue the scheduled chain, in chain order.
+     */
+    synchronized List<Block> receivedBlocks(Peer peer, List<Block> blocks) {
+        for (Block block : blocks) {
+            Sha256Hash hash = new Sha256Hash(block.getBlockHash());
+            if (pendingBlockHashSet.contains(hash) && !downloadedBlocks.containsKey(hash)) {
+                downloadedBlocks.put(hash, block);
+                blockPeers.put(hash, peer);
+            }
+        }
+        ArrayList<Block> readyBlocks = new ArrayList<Block>();
+        while (pendingBlockHashes.size() > 0 && downloadedBlocks.containsKey(pendingBlockHashes
+                                                                                     .peek())) {
+            Sha256Hash hash = pendingBlockHashes.poll();
+            pendingBlockHashSet.remove(hash);
+            readyBlocks.add(downloadedBlocks.remove(hash));
+        }
+        Iterator<BlockRange> iterator = assignedRanges.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().remainingBlockHashes().size() == 0) {
+                iterator.remove();
+            }
+        }
+        return readyBlocks;
+    }
+
+    /**
+     * @return the peer which delivered the block, until {@link #relayed(List)} is called.
+     */
+    synchronized Peer getBlockPeer(Block block) {
+        return blockPeers.get(new Sha256Hash(block.getBlockHash()));
+    }
+
+    synchronized void relayed(List<Block> blocks) {
+        for (Block block : blocks) {
+            blockPeers.remove(new Sha256Hash(block.getBlockHash()));
+        }
+    }
+
+    /**
+     * @return the locator hash for the next getblocks once every scheduled block is handed out,
+     * or null if no getblocks is needed now.
+     */
+    synchronized byte[] getBlockHashToContinue(byte[] lastBlockHash) {
+        if (blockHashesRequested || unassignedRanges.size() > 0) {
+            return null;
+        }
+        blockHashesRequested = true;
+        return lastScheduledBlockHash == null ? lastBlockHash : lastScheduledBlockHash.getBytes();
+    }
+
+    private class BlockRange {
+        final int                   startBlockNo;
+        final ArrayList<Sha256Hash> blockHashes;
+        Peer                        peer;
+        long                        assignedTime;
+
+        BlockRange(int startBlockNo) {
+            this.startBlockNo = startBlockNo;
+            this.blockHashes = new ArrayList<Sha256Hash>();
+        }
+
+        List<Sha256Hash> remainingBlockHashes() {
+            ArrayList<Sha256Hash> result = new ArrayList<Sha256Hash>();
+            for (Sha256Hash hash : blockHashes) {
+                if (pendingBlockHashSet.contains(hash) && !downloadedBlocks.containsKey(hash)) {
+                    result.add(hash);
+                }
+            }
+            return result;
+        }
+    }
+}
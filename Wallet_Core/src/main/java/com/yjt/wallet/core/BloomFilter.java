@@ -25,6 +25,7 @@ import com.yjt.wallet.core.utils.VarInt;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.Collection;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -61,7 +62,10 @@ public class BloomFilter extends Message {
         UPDATE_P2PUBKEY_ONLY //2
     }
 
-    private byte[] data;
+    // the filter bytes packed little endian into words, byte i is bits (i % 8) * 8 to
+    // (i % 8) * 8 + 7 of word i / 8, so bit n of the filter is bit n % 64 of word n / 64
+    private long[] bits;
+    private int dataLength;
     private long hashFuncs;
     private long nTweak;
     private byte nFlags;
@@ -136,9 +140,9 @@ public class BloomFilter extends Message {
         // rate
         int size = Math.min((int) (-1 / (Math.pow(Math.log(2),
                 2)) * elements * Math.log(falsePositiveRate)), (int) MAX_FILTER_SIZE * 8) / 8;
-        data = new byte[size <= 0 ? 1 : size];
+        setDataLength(size <= 0 ? 1 : size);
         // Optimal number of hash functions for a given filter size and element count.
-        hashFuncs = Math.min((int) (data.length * 8 / (double) elements * Math.log(2)),
+        hashFuncs = Math.min((int) (dataLength * 8 / (double) elements * Math.log(2)),
                 MAX_HASH_FUNCS);
         this.nTweak = randomNonce;
         this.nFlags = (byte) (0xff & updateFlag.ordinal());
@@ -149,21 +153,27 @@ public class BloomFilter extends Message {
      * number of elements.
      */
     public double getFalsePositiveRate(int elements) {
-        return Math.pow(1 - Math.pow(Math.E, -1.0 * (hashFuncs * elements) / (data.length * 8)),
+        return Math.pow(1 - Math.pow(Math.E, -1.0 * (hashFuncs * elements) / (dataLength * 8)),
                 hashFuncs);
     }
 
     @Override
     public String toString() {
-        return "Bloom Filter of size " + data.length + " with " + hashFuncs + " hash functions.";
+        return "Bloom Filter of size " + dataLength + " with " + hashFuncs + " hash functions.";
     }
 
     @Override
     protected void parse() throws ProtocolException {
-        data = readByteArray();
+        byte[] data = readByteArray();
         if (data.length > MAX_FILTER_SIZE) {
             throw new ProtocolException("Bloom filter out of size range.");
         }
+        setDataLength(data.length);
+        for (int i = 0;
+             i < data.length;
+             i++) {
+            bits[i >>> 3] |= (data[i] & 0xFFL) << ((i & 7) << 3);
+        }
         hashFuncs = readUint32();
         if (hashFuncs > MAX_HASH_FUNCS) {
             throw new ProtocolException("Bloom filter hash function count out of range");
@@ -179,7 +189,13 @@ public class BloomFilter extends Message {
      */
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
-        stream.write(new VarInt(data.length).encode());
+        stream.write(new VarInt(dataLength).encode());
+        byte[] data = new byte[dataLength];
+        for (int i = 0;
+             i < dataLength;
+             i++) {
+            data[i] = (byte) (bits[i >>> 3] >>> ((i & 7) << 3));
+        }
         stream.write(data);
         Utils.uint32ToByteStreamLE(hashFuncs, stream);
         Utils.uint32ToByteStreamLE(nTweak, stream);
@@ -190,16 +206,21 @@ public class BloomFilter extends Message {
         return (x << r) | (x >>> (32 - r));
     }
 
-    private int hash(int hashNum, byte[] object) {
+    private void setDataLength(int dataLength) {
+        this.dataLength = dataLength;
+        this.bits = new long[(dataLength + 7) / 8];
+    }
+
+    private int hash(int hashNum, byte[] object, int offset, int length) {
         // The following is MurmurHash3 (x86_32), see http://code.google
         // .com/p/smhasher/source/browse/trunk/MurmurHash3.cpp
         int h1 = (int) (hashNum * 0xFBA4C795L + nTweak);
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
 
-        int numBlocks = (object.length / 4) * 4;
+        int numBlocks = offset + (length / 4) * 4;
         // body
-        for (int i = 0;
+        for (int i = offset;
              i < numBlocks;
              i += 4) {
             int k1 = (object[i] & 0xFF) |
@@ -217,7 +238,7 @@ public class BloomFilter extends Message {
         }
 
         int k1 = 0;
-        switch (object.length & 3) {
+        switch (length & 3) {
             case 3:
                 k1 ^= (object[numBlocks + 2] & 0xff) << 16;
                 // Fall through.
@@ -237,14 +258,14 @@ public class BloomFilter extends Message {
         }
 
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
         h1 *= 0xc2b2ae35;
         h1 ^= h1 >>> 16;
 
-        return (int) ((h1 & 0xFFFFFFFFL) % (data.length * 8));
+        return (int) ((h1 & 0xFFFFFFFFL) % (dataLength * 8));
     }
 
     /**
@@ -253,10 +274,18 @@ public class BloomFilter extends Message {
      * false-positive.
      */
     public boolean contains(byte[] object) {
+        return contains(object, 0, object.length);
+    }
+
+    /**
+     * Same as {@link #contains(byte[])} for the length bytes of object starting at offset.
+     */
+    public boolean contains(byte[] object, int offset, int length) {
         for (int i = 0;
              i < hashFuncs;
              i++) {
-            if (!Utils.checkBitLE(data, hash(i, object))) {
+            int n = hash(i, object, offset, length);
+            if ((bits[n >>> 6] & (1L << n)) == 0) {
                 return false;
             }
         }
@@ -265,13 +294,45 @@ public class BloomFilter extends Message {
 
     /**
      * Insert the given arbitrary data into the filter
+     *
+     * @return true if the filter did not match the object before, so callers need no
+     * {@link #contains(byte[])} first.
      */
-    public void insert(byte[] object) {
+    public boolean insert(byte[] object) {
+        return insert(object, 0, object.length);
+    }
+
+    /**
+     * Same as {@link #insert(byte[])} for the length bytes of object starting at offset.
+     */
+    public boolean insert(byte[] object, int offset, int length) {
+        boolean added = false;
         for (int i = 0;
              i < hashFuncs;
              i++) {
-            Utils.setBitLE(data, hash(i, object));
+            int n = hash(i, object, offset, length);
+            long mask = 1L << n;
+            if ((bits[n >>> 6] & mask) == 0) {
+                bits[n >>> 6] |= mask;
+                added = true;
+            }
         }
+        return added;
+    }
+
+    /**
+     * Inserts a batch of pubkeys, hash160s, outpoints or any other data.
+     *
+     * @return how many of the objects the filter did not match before.
+     */
+    public int insertAll(Collection<byte[]> objects) {
+        int addedCount = 0;
+        for (byte[] object : objects) {
+            if (insert(object, 0, object.length)) {
+                addedCount++;
+            }
+        }
+        return addedCount;
     }
 
     /**
@@ -286,7 +347,8 @@ public class BloomFilter extends Message {
      * transaction instead of 100-300 bytes as per usual.
      */
     public void setMatchAll() {
-        data = new byte[]{(byte) 0xff};
+        setDataLength(1);
+        bits[0] = 0xffL;
     }
 
     /**
@@ -295,16 +357,16 @@ public class BloomFilter extends Message {
      */
     public void merge(BloomFilter filter) {
         if (!this.matchesAll() && !filter.matchesAll()) {
-            checkArgument(filter.data.length == this.data.length &&
+            checkArgument(filter.dataLength == this.dataLength &&
                     filter.hashFuncs == this.hashFuncs &&
                     filter.nTweak == this.nTweak);
             for (int i = 0;
-                 i < data.length;
+                 i < bits.length;
                  i++) {
-                this.data[i] |= filter.data[i];
+                this.bits[i] |= filter.bits[i];
             }
         } else {
-            this.data = new byte[]{(byte) 0xff};
+            setMatchAll();
         }
     }
 
@@ -314,12 +376,17 @@ public class BloomFilter extends Message {
      * for when this can be a useful thing to do.
      */
     public boolean matchesAll() {
-        for (byte b : data) {
-            if (b != (byte) 0xff) {
+        int fullWords = dataLength / 8;
+        for (int i = 0;
+             i < fullWords;
+             i++) {
+            if (bits[i] != -1L) {
                 return false;
             }
         }
-        return true;
+        // the bytes past dataLength in the last word are always zero
+        int restBits = (dataLength & 7) << 3;
+        return restBits == 0 || bits[fullWords] == (1L << restBits) - 1;
     }
 
     @Override
@@ -327,11 +394,12 @@ public class BloomFilter extends Message {
         return other instanceof BloomFilter &&
                 ((BloomFilter) other).hashFuncs == this.hashFuncs &&
                 ((BloomFilter) other).nTweak == this.nTweak &&
-                Arrays.equals(((BloomFilter) other).data, this.data);
+                ((BloomFilter) other).dataLength == this.dataLength &&
+                Arrays.equals(((BloomFilter) other).bits, this.bits);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(hashFuncs, nTweak, Arrays.hashCode(data));
+        return Objects.hashCode(hashFuncs, nTweak, dataLength, Arrays.hashCode(bits));
     }
 }
@@ -0,0 +1,256 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.contant.BitherjSettings;
+import com.yjt.wallet.core.message.GetCFHeadersMessage;
+import com.yjt.wallet.core.utils.Sha256Hash;
+import com.yjt.wallet.core.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The verified compact filter headers (BIP 157) by block height. It starts from a checkpoint,
+ * the filter header of our chain head once
+ * {@link BitherjSettings#COMPACT_FILTER_CHECKPOINT_PEER_COUNT} peers agree on it, and every later
+ * header is chained from it with filter_header = dsha256(filter_hash || previous_filter_header).
+ * A cfheaders range whose previous header is not verified yet waits until it is, one which
+ * contradicts the verified headers is rejected. A cfilter is only trusted when its hash chains to a verified header.
+ * <p/>
+ * Peers call in from the network thread, so all methods are synchronized.
+ */
+class CompactFilterHeaderChain {
+    private static final Logger log = LoggerFactory.getLogger(CompactFilterHeaderChain.class);
+
+    // the verified headers kept below the highest one
+    private static final int MAX_HEADER_COUNT = GetCFHeadersMessage.MAX_FILTER_HASH_COUNT * 2;
+
+    // block height -> verified filter header, contiguous
+    private final TreeMap<Integer, byte[]>                                    headers;
+    // block height -> hash, for the heights a cfheaders range stopped at
+    private final HashMap<Integer, Sha256Hash>                                blockHashes;
+    // height of the previous header -> the ranges waiting for it
+    private final HashMap<Integer, List<HeaderRange>>                         pendingRanges;
+    // checkpoint height -> filter header -> the peers which sent it
+    private final HashMap<Integer, HashMap<Sha256Hash, HashSet<InetAddress>>> checkpointVotes;
+
+    CompactFilterHeaderChain() {
+        headers = new TreeMap<Integer, byte[]>();
+        blockHashes = new HashMap<Integer, Sha256Hash>();
+        pendingRanges = new HashMap<Integer, List<HeaderRange>>();
+        checkpointVotes = new HashMap<Integer, HashMap<Sha256Hash, HashSet<InetAddress>>>();
+    }
+
+    synchronized boolean hasCheckpoint() {
+        return headers.size() > 0;
+    }
+
+    /**
+     * A peer's filter header of a block of our chain. Before the checkpoint it is a vote for
+     * it, after it the header has to agree with the verified one.
+     *
+     * @return false if the header contradicts the verified one.
+     */
+    synchronized boolean addCheckpointHeader(InetAddress peer, int blockNo, Sha256Hash blockHash,
+                                             byte[] filterHeader) {
+        if (headers.size() > 0) {
+            byte[] verified = headers.get(blockNo);
+            return verified == null || Arrays.equals(verified, filterHeader);
+        }
+        HashMap<Sha256Hash, HashSet<InetAddress>> votes = checkpointVotes.get(blockNo);
+        if (votes == null) {
+            votes = new HashMap<Sha256Hash, HashSet<InetAddress>>();
+            checkpointVotes.put(blockNo, votes);
+        }
+        Sha256Hash header = new Sha256Hash(filterHeader);
+        HashSet<InetAddress> peers = votes.get(header);
+        if (peers == null) {
+            peers = new HashSet<InetAddress>();
+            votes.put(header, peers);
+        }
+        peers.add(peer);
+        if (peers.size() >= BitherjSettings.COMPACT_FILTER_CHECKPOINT_PEER_COUNT) {
+            log.info("compact filter checkpoint at block No.{} agreed by {} peers", blockNo,
+                     peers.size());
+            checkpointVotes.clear();
+            headers.put(blockNo, filterHeader);
+            blockHashes.put(blockNo, blockHash);
+            addPendingRanges();
+        }
+        return true;
+    }
+
+    /**
+     * @return the height a cfheaders request up to the block should start at, so the range
+     * chains from a verified header.
+     */
+    synchronized int getRangeStartBlockNo(int blockNo) {
+        if (headers.size() == 0 || blockNo <= headers.firstKey()) {
+            return blockNo;
+        }
+        int start = Math.min(blockNo, headers.lastKey() + 1);
+        return Math.max(start, blockNo - GetCFHeadersMessage.MAX_FILTER_HASH_COUNT + 1);
+    }
+
+    /**
+     * Adds the filter headers of a cfheaders range, or keeps it until its previous header is
+     * verified.
+     *
+     * @return false if the range contradicts the verified headers.
+     */
+    synchronized boolean addRange(int startBlockNo, byte[] previousFilterHeader, List<byte[]>
+            filterHashes, Sha256Hash stopHash) {
+        HeaderRange range = new HeaderRange(startBlockNo, previousFilterHeader, filterHashes,
+                                            stopHash);
+        if (!headers.containsKey(startBlockNo - 1)) {
+            if (headers.size() == 0 || startBlockNo - 1 > headers.lastKey()) {
+                List<HeaderRange> ranges = pendingRanges.get(startBlockNo - 1);
+                if (ranges == null) {
+                    ranges = new ArrayList<HeaderRange>();
+                    pendingRanges.put(startBlockNo - 1, ranges);
+                }
+                ranges.add(range);
+            }
+            // below the checkpoint there is nothing to check it against
+            return true;
+        }
+        if (!add(range)) {
+            return false;
+        }
+        addPendingRanges();
+        return true;
+    }
+
+    /**
+     * @return true if the filter header of the block and the one before it are verified.
+     */
+    synchronized boolean isVerified(int blockNo) {
+        return headers.containsKey(blockNo) && headers.containsKey(blockNo - 1);
+    }
+
+    /**
+     * @return true if the filter chains to the verified header of the block, see
+     * {@link #isVerified(int)}.
+     */
+    synchronized boolean matchesFilter(int blockNo, byte[] filterBytes) {
+        byte[] header = headers.get(blockNo);
+        byte[] previousHeader = headers.get(blockNo - 1);
+        return header != null && previousHeader != null && Arrays.equals(header,
+                GolombCodedSet.getFilterHeader(GolombCodedSet.getFilterHash(filterBytes),
+                                               previousHeader));
+    }
+
+    private boolean add(HeaderRange range) {
+        int stopBlockNo = range.startBlockNo + range.filterHashes.size() - 1;
+        Sha256Hash knownStopHash = blockHashes.get(stopBlockNo);
+        if (!Arrays.equals(headers.get(range.startBlockNo - 1), range.previousFilterHeader)) {
+            log.warn("cfheaders from block No.{} do not chain to the verified header",
+                     range.startBlockNo);
+            return false;
+        }
+        byte[] header = range.previousFilterHeader;
+        for (int i = 0; i < range.filterHashes.size(); i++) {
+            int blockNo = range.startBlockNo + i;
+            header = GolombCodedSet.getFilterHeader(range.filterHashes.get(i), header);
+            byte[] verified = headers.get(blockNo);
+            if (verified != null && !Arrays.equals(verified, header)) {
+                if (knownStopHash == null || knownStopHash.equals(range.stopHash)) {
+                    log.warn("cfheaders contradict the verified header of block No.{}", blockNo);
+                    return false;
+                }
+                // the range ends in another block than the one we know, the chain forked
+                log.info("compact filter headers fork at block No.{} to {}", blockNo, Utils
+                        .hashToString(range.stopHash.getBytes()));
+                truncate(blockNo);
+                knownStopHash = null;
+            }
+            headers.put(blockNo, header);
+        }
+        blockHashes.put(stopBlockNo, range.stopHash);
+        prune();
+        return true;
+    }
+
+    private void addPendingRanges() {
+        boolean added = true;
+        while (added) {
+            added = false;
+            Iterator<Integer> iterator = pendingRanges.keySet().iterator();
+            while (iterator.hasNext()) {
+                int previousBlockNo = iterator.next();
+                if (headers.containsKey(previousBlockNo)) {
+                    List<HeaderRange> ranges = pendingRanges.get(previousBlockNo);
+                    iterator.remove();
+                    for (HeaderRange range : ranges) {
+                        add(range);
+                    }
+                    added = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void truncate(int fromBlockNo) {
+        headers.tailMap(fromBlockNo).clear();
+        Iterator<Integer> iterator = blockHashes.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() >= fromBlockNo) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void prune() {
+        while (headers.size() > MAX_HEADER_COUNT) {
+            blockHashes.remove(headers.pollFirstEntry().getKey());
+        }
+        int firstBlockNo = headers.firstKey();
+        Iterator<Integer> iterator = pendingRanges.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() < firstBlockNo) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class HeaderRange {
+        final int          startBlockNo;
+        final byte[]       previousFilterHeader;
+        final List<byte[]> filterHashes;
+        final Sha256Hash   stopHash;
+
+        HeaderRange(int startBlockNo, byte[] previousFilterHeader, List<byte[]> filterHashes,
+                    Sha256Hash stopHash) {
+            this.startBlockNo = startBlockNo;
+            this.previousFilterHeader = previousFilterHeader;
+            this.filterHashes = filterHashes;
+            this.stopHash = stopHash;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.utils.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The wallet side of the compact filter mode: the scripts a block has to contain to be
+ * downloaded, and the local filtering of the downloaded block down to the wallet's txs. It is
+ * built from the bloom filter elements of the wallet and immutable, PeerManager replaces it when
+ * the wallet changes.
+ */
+class CompactFilterMatcher {
+    private final List<byte[]>        scripts;
+    private final HashSet<ByteBuffer> scriptSet;
+    private final HashSet<ByteBuffer> outpointSet;
+
+    CompactFilterMatcher(List<byte[]> bloomFilterElements) {
+        scripts = new ArrayList<byte[]>();
+        scriptSet = new HashSet<ByteBuffer>();
+        outpointSet = new HashSet<ByteBuffer>();
+        for (byte[] element : bloomFilterElements) {
+            if (element.length == 20) {
+                // a hash160 is either a pubkey hash or a script hash
+                addScript(new byte[]{0x76, (byte) 0xa9, 0x14}, element, new byte[]{(byte) 0x88,
+                        (byte) 0xac});
+                addScript(new byte[]{(byte) 0xa9, 0x14}, element, new byte[]{(byte) 0x87});
+            } else if (element.length == 33 || element.length == 65) {
+                addScript(new byte[]{(byte) element.length}, element, new byte[]{(byte) 0xac});
+            } else if (element.length == 36) {
+                outpointSet.add(ByteBuffer.wrap(element));
+            }
+        }
+    }
+
+    private void addScript(byte[] prefix, byte[] data, byte[] suffix) {
+        byte[] script = new byte[prefix.length + data.length + suffix.length];
+        System.arraycopy(prefix, 0, script, 0, prefix.length);
+        System.arraycopy(data, 0, script, prefix.length, data.length);
+        System.arraycopy(suffix, 0, script, prefix.length + data.length, suffix.length);
+        if (scriptSet.add(ByteBuffer.wrap(script))) {
+            scripts.add(script);
+        }
+    }
+
+    int getScriptCount() {
+        return scripts.size();
+    }
+
+    /**
+     * A block's basic filter holds its output scripts and the scripts of the outs it spends, so
+     * the wallet scripts cover both receiving and spending.
+     */
+    boolean matches(GolombCodedSet filter) {
+        return filter.matchAny(scripts);
+    }
+
+    /**
+     * @return the txs of the block paying to a wallet script or spending a wallet out, in block
+     * order.
+     */
+    List<Tx> getRelatedTxs(Block block) {
+        List<Tx> relatedTxs = new ArrayList<Tx>();
+        // outs received earlier in the same block can be spent by the later txs
+        HashSet<ByteBuffer> blockOutpoints = new HashSet<ByteBuffer>();
+        byte[] outpoint = new byte[36];
+        for (Tx tx : block.getTransactions()) {
+            boolean related = false;
+            for (In in : tx.getIns()) {
+                System.arraycopy(in.getPrevTxHash(), 0, outpoint, 0, 32);
+                Utils.uint32ToByteArrayLE(in.getPrevOutSn(), outpoint, 32);
+                ByteBuffer key = ByteBuffer.wrap(outpoint);
+                if (outpointSet.contains(key) || blockOutpoints.contains(key)) {
+                    related = true;
+                    break;
+                }
+            }
+            for (Out out : tx.getOuts()) {
+                if (out.getOutScript() != null && scriptSet.contains(ByteBuffer.wrap(out
+                        .getOutScript()))) {
+                    related = true;
+                    blockOutpoints.add(ByteBuffer.wrap(out.getOutpointData()));
+                }
+            }
+            if (related) {
+                relatedTxs.add(tx);
+            }
+        }
+        return relatedTxs;
+    }
+}
@@ -48,6 +48,8 @@ public class DesktopHDMKeychain extends AbstractHD {
 
     public static final String DesktopHDMKeychainPlaceHolder = "DesktopHDMKeychain";
     private long balance = 0;
+    // when the seed was created in seconds, 0 if unknown (e.g. imported)
+    private long createTime;
     private static final int LOOK_AHEAD_SIZE = 100;
 
     private LinkedBlockingQueue<HashMap<String, Long>> sendRequestList = new LinkedBlockingQueue<HashMap<String, Long>>();
@@ -90,6 +92,7 @@ public class DesktopHDMKeychain extends AbstractHD {
 
         try {
             random.nextBytes(mnemonicSeed);
+            createTime = Utils.currentTimeSeconds();
             hdSeed = seedFromMnemonic(mnemonicSeed);
             encryptedHDSeed = new EncryptedData(hdSeed, password, isFromXRandom);
             encryptedMnemonicSeed = new EncryptedData(mnemonicSeed, password, isFromXRandom);
@@ -107,6 +110,7 @@ public class DesktopHDMKeychain extends AbstractHD {
     public DesktopHDMKeychain(int seedId) {
         this.hdSeedId = seedId;
         isFromXRandom = AbstractDb.desktopAddressProvider.isHDSeedFromXRandom(getHdSeedId());
+        createTime = AbstractDb.desktopAddressProvider.getHDSeedCreateTime(getHdSeedId());
         updateBalance();
     }
 
@@ -162,6 +166,9 @@ public class DesktopHDMKeychain extends AbstractHD {
         hdSeedId = AbstractDb.desktopAddressProvider.addHDKey(encryptedMnemonicSeed.toEncryptedString(),
                                                               encryptedHDSeed.toEncryptedString(), firstAddress, isFromXRandom, address, externalKey.getPubKeyExtended(), internalKey
                                                                       .getPubKeyExtended());
+        if (createTime > 0) {
+            AbstractDb.desktopAddressProvider.updateHDSeedCreateTime(hdSeedId, createTime);
+        }
         internalKey.wipe();
         externalKey.wipe();
 
@@ -558,6 +565,13 @@ public class DesktopHDMKeychain extends AbstractHD {
         return isFromXRandom;
     }
 
+    /**
+     * @return when the seed was created in seconds, 0 if unknown.
+     */
+    public long getCreateTime() {
+        return createTime;
+    }
+
 
     public String getFullEncryptPrivKey() {
         String encryptPrivKey = getEncryptedMnemonicSeed();
@@ -721,18 +735,24 @@ public class DesktopHDMKeychain extends AbstractHD {
     }
 
     public void addElementsForBloomFilter(BloomFilter filter) {
+        filter.insertAll(getElementsForBloomFilter());
+    }
+
+    public List<byte[]> getElementsForBloomFilter() {
+        List<byte[]> elements = new ArrayList<byte[]>();
         List<HDMAddress.Pubs> pubses = AbstractDb.desktopTxProvider.getPubs(AbstractHD.PathType.EXTERNAL_ROOT_PATH);
         for (HDMAddress.Pubs pub : pubses) {
             byte[] pubByte = pub.getMultiSigScript().getProgram();
-            filter.insert(pubByte);
-            filter.insert(Utils.sha256hash160(pubByte));
+            elements.add(pubByte);
+            elements.add(Utils.sha256hash160(pubByte));
             // System.out.println("address:" + Utils.toP2SHAddress(Utils.sha256hash160(pubByte)));
         }
         List<Out> outs = AbstractDb.desktopTxProvider.getUnspendOutByHDAccountWithPath
                 (getHdSeedId(), AbstractHD.PathType.INTERNAL_ROOT_PATH);
         for (Out out : outs) {
-            filter.insert(out.getOutpointData());
+            elements.add(out.getOutpointData());
         }
+        return elements;
     }
 
     private long calculateUnconfirmedBalance() {
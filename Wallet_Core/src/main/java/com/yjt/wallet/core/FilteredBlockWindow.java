@@ -0,0 +1,191 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.utils.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The filtered blocks requested from one peer, in chain order, until they are relayed. A
+ * merkleblock is complete once the tx messages of all its matched txs arrived, and the blocks
+ * leave the window in the order they were requested.
+ * <p/>
+ * When the filter of the peer changes, {@link #refetch()} asks for every block of the window
+ * once more. The copy which answers the last request replaces the ones before it, so a block
+ * filtered with the old filter is never relayed in place of the new one.
+ * <p/>
+ * The peer calls in from its network thread, PeerManager refetches from its executor, so all
+ * methods are synchronized.
+ */
+class FilteredBlockWindow {
+    private final LinkedHashMap<Sha256Hash, Slot> slots;
+    // tx hash -> the slot waiting for it
+    private final HashMap<Sha256Hash, Slot>       txSlots;
+
+    FilteredBlockWindow() {
+        slots = new LinkedHashMap<Sha256Hash, Slot>();
+        txSlots = new HashMap<Sha256Hash, Slot>();
+    }
+
+    synchronized int size() {
+        return slots.size();
+    }
+
+    synchronized boolean contains(Sha256Hash blockHash) {
+        return slots.containsKey(blockHash);
+    }
+
+    /**
+     * Adds a block about to be requested behind the others, unless it is in the window already.
+     */
+    synchronized void add(Sha256Hash blockHash) {
+        if (!slots.containsKey(blockHash)) {
+            slots.put(blockHash, new Slot(blockHash));
+        }
+    }
+
+    /**
+     * @return the hashes of all blocks in the window, each of which has to be requested again.
+     */
+    synchronized List<Sha256Hash> refetch() {
+        return refetch(Collections.<Sha256Hash>emptySet());
+    }
+
+    /**
+     * @return the hashes of the blocks in the window but the excluded ones, each of which has to
+     * be requested again.
+     */
+    synchronized List<Sha256Hash> refetch(Set<Sha256Hash> excludedBlockHashes) {
+        List<Sha256Hash> blockHashes = new ArrayList<Sha256Hash>(slots.size());
+        for (Slot slot : slots.values()) {
+            if (excludedBlockHashes.contains(slot.blockHash)) {
+                continue;
+            }
+            slot.requestedCopies++;
+            blockHashes.add(slot.blockHash);
+        }
+        return blockHashes;
+    }
+
+    /**
+     * Puts a received block in its slot, replacing an earlier copy and the txs it waited for. A
+     * block which was not requested is queued behind the others.
+     *
+     * @param txsReceived the block came with its txs, as a full block does, and waits for no tx
+     *                    messages.
+     * @return the nanos since the block was first requested, 0 if it was not requested, or -1 if
+     * no more copies of the block were expected and it has to be dropped.
+     */
+    synchronized long blockReceived(Block block, boolean txsReceived) {
+        Sha256Hash blockHash = new Sha256Hash(block.getBlockHash());
+        Slot slot = slots.get(blockHash);
+        long latency;
+        if (slot == null) {
+            // not requested by the window (e.g. relayed after refetch)
+            slot = new Slot(blockHash);
+            slots.put(blockHash, slot);
+            latency = 0;
+        } else if (slot.receivedCopies >= slot.requestedCopies) {
+            return -1;
+        } else {
+            latency = slot.receivedCopies == 0 ? Math.max(System.nanoTime() - slot.requestTime,
+                    1) : 0;
+        }
+        slot.receivedCopies++;
+        slot.block = block;
+        for (Sha256Hash txHash : slot.remainingTxHashes) {
+            txSlots.remove(txHash);
+        }
+        slot.remainingTxHashes.clear();
+        if (!txsReceived && block.getTxHashes() != null) {
+            for (byte[] txHash : block.getTxHashes()) {
+                Sha256Hash hash = new Sha256Hash(txHash);
+                slot.remainingTxHashes.add(hash);
+                txSlots.put(hash, slot);
+            }
+        }
+        return latency;
+    }
+
+    /**
+     * @return true if a block of the window waits for the tx.
+     */
+    synchronized boolean txReceived(Sha256Hash txHash) {
+        Slot slot = txSlots.remove(txHash);
+        if (slot == null) {
+            return false;
+        }
+        slot.remainingTxHashes.remove(txHash);
+        return true;
+    }
+
+    synchronized boolean isWaitingForTxs() {
+        return txSlots.size() > 0;
+    }
+
+    /**
+     * @return the complete blocks at the head of the window, in chain order. They leave the
+     * window.
+     */
+    synchronized List<Block> takeCompleteBlocks() {
+        List<Block> blocks = new ArrayList<Block>();
+        Iterator<Slot> iterator = slots.values().iterator();
+        while (iterator.hasNext()) {
+            Slot slot = iterator.next();
+            if (!slot.isComplete()) {
+                break;
+            }
+            iterator.remove();
+            blocks.add(slot.block);
+        }
+        return blocks;
+    }
+
+    synchronized void clear() {
+        slots.clear();
+        txSlots.clear();
+    }
+
+    private static class Slot {
+        final Sha256Hash          blockHash;
+        final HashSet<Sha256Hash> remainingTxHashes;
+        final long                requestTime;
+        int                       requestedCopies;
+        int                       receivedCopies;
+        Block                     block;
+
+        Slot(Sha256Hash blockHash) {
+            this.blockHash = blockHash;
+            this.remainingTxHashes = new HashSet<Sha256Hash>();
+            this.requestTime = System.nanoTime();
+            this.requestedCopies = 1;
+        }
+
+        boolean isComplete() {
+            return block != null && receivedCopies == requestedCopies && remainingTxHashes
+                    .size() == 0;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.exception.ProtocolException;
+import com.yjt.wallet.core.utils.Utils;
+import com.yjt.wallet.core.utils.VarInt;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A BIP 158 basic block filter. The scripts of a block are hashed with SipHash-2-4 keyed by the
+ * block hash, mapped into [0, N * M) and stored as the Golomb-Rice coded deltas of the sorted
+ * values. Unlike a {@link BloomFilter} it is built by the peer from the block alone, so matching
+ * it reveals nothing about the wallet.
+ * <p/>
+ * Matching hashes the queries the same way, sorts them and walks the coded set once, the set is
+ * never decoded into memory.
+ */
+public class GolombCodedSet {
+    private static final int  P = 19;
+    private static final long M = 784931;
+
+    private final byte[] filterBytes;
+    private final long   k0;
+    private final long   k1;
+    private final long   n;
+    private final int    dataOffset;
+
+    public GolombCodedSet(byte[] blockHash, byte[] filterBytes) throws ProtocolException {
+        if (blockHash == null || blockHash.length != 32 || filterBytes == null || filterBytes
+                .length == 0) {
+            throw new ProtocolException("Invalid compact filter");
+        }
+        VarInt count;
+        try {
+            count = new VarInt(filterBytes, 0);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+        if (count.value < 0 || count.value > Integer.MAX_VALUE) {
+            throw new ProtocolException("Compact filter element count out of range");
+        }
+        this.filterBytes = filterBytes;
+        this.n = count.value;
+        this.dataOffset = count.getOriginalSizeInBytes();
+        // the key is the first 16 bytes of the block hash
+        this.k0 = Utils.readInt64(blockHash, 0);
+        this.k1 = Utils.readInt64(blockHash, 8);
+    }
+
+    public long getElementCount() {
+        return n;
+    }
+
+    /**
+     * @return true if any of the scripts is in the set, or is a false positive with a rate of
+     * 1 / M per script.
+     */
+    public boolean matchAny(List<byte[]> scripts) {
+        if (n == 0 || scripts.size() == 0) {
+            return false;
+        }
+        long f = n * M;
+        long[] v = new long[4];
+        long[] queries = new long[scripts.size()];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = multiplyHighUnsigned(sipHash(v, scripts.get(i)), f);
+        }
+        Arrays.sort(queries);
+
+        int bitIndex = dataOffset * 8;
+        int bitLimit = filterBytes.length * 8;
+        int queryIndex = 0;
+        long value = 0;
+        for (long i = 0; i < n; i++) {
+            // quotient in unary, then P bits of remainder
+            long quotient = 0;
+            while (true) {
+                if (bitIndex >= bitLimit) {
+                    return false;
+                }
+                if (!readBit(bitIndex++)) {
+                    break;
+                }
+                quotient++;
+            }
+            if (bitIndex + P > bitLimit) {
+                return false;
+            }
+            long remainder = 0;
+            for (int j = 0; j < P; j++) {
+                remainder = (remainder << 1) | (readBit(bitIndex++) ? 1 : 0);
+            }
+            value += (quotient << P) | remainder;
+            while (queries[queryIndex] < value) {
+                queryIndex++;
+                if (queryIndex == queries.length) {
+                    return false;
+                }
+            }
+            if (queries[queryIndex] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean readBit(int bitIndex) {
+        // bits are written most significant first
+        return (filterBytes[bitIndex >>> 3] & (0x80 >>> (bitIndex & 7))) != 0;
+    }
+
+    /**
+     * The hash committed to by the filter headers of cfheaders.
+     */
+    public static byte[] getFilterHash(byte[] filterBytes) {
+        return Utils.doubleDigest(filterBytes);
+    }
+
+    public static byte[] getFilterHeader(byte[] filterHash, byte[] previousFilterHeader) {
+        return Utils.doubleDigestTwoBuffers(filterHash, 0, filterHash.length,
+                previousFilterHeader, 0, previousFilterHeader.length);
+    }
+
+    // SipHash-2-4 with the key of this filter, v is scratch space for the state
+    private long sipHash(long[] v, byte[] data) {
+        v[0] = 0x736f6d6570736575L ^ k0;
+        v[1] = 0x646f72616e646f6dL ^ k1;
+        v[2] = 0x6c7967656e657261L ^ k0;
+        v[3] = 0x7465646279746573L ^ k1;
+        int end = data.length - (data.length & 7);
+        for (int i = 0; i < end; i += 8) {
+            long m = Utils.readInt64(data, i);
+            v[3] ^= m;
+            sipRounds(v, 2);
+            v[0] ^= m;
+        }
+        long b = ((long) data.length) << 56;
+        for (int i = end; i < data.length; i++) {
+            b |= (data[i] & 0xFFL) << ((i - end) * 8);
+        }
+        v[3] ^= b;
+        sipRounds(v, 2);
+        v[0] ^= b;
+        v[2] ^= 0xFF;
+        sipRounds(v, 4);
+        return v[0] ^ v[1] ^ v[2] ^ v[3];
+    }
+
+    private static void sipRounds(long[] v, int rounds) {
+        long v0 = v[0], v1 = v[1], v2 = v[2], v3 = v[3];
+        for (int i = 0; i < rounds; i++) {
+            v0 += v1;
+            v1 = Long.rotateLeft(v1, 13);
+            v1 ^= v0;
+            v0 = Long.rotateLeft(v0, 32);
+            v2 += v3;
+            v3 = Long.rotateLeft(v3, 16);
+            v3 ^= v2;
+            v0 += v3;
+            v3 = Long.rotateLeft(v3, 21);
+            v3 ^= v0;
+            v2 += v1;
+            v1 = Long.rotateLeft(v1, 17);
+            v1 ^= v2;
+            v2 = Long.rotateLeft(v2, 32);
+        }
+        v[0] = v0;
+        v[1] = v1;
+        v[2] = v2;
+        v[3] = v3;
+    }
+
+    // the high 64 bits of the unsigned 128 bit product, maps a hash uniformly into [0, b)
+    private static long multiplyHighUnsigned(long a, long b) {
+        long aHigh = a >>> 32;
+        long aLow = a & 0xFFFFFFFFL;
+        long bHigh = b >>> 32;
+        long bLow = b & 0xFFFFFFFFL;
+        long lowLow = aLow * bLow;
+        long highLow = aHigh * bLow;
+        long lowHigh = aLow * bHigh;
+        long cross = (lowLow >>> 32) + (highLow & 0xFFFFFFFFL) + lowHigh;
+        return aHigh * bHigh + (highLow >>> 32) + (cross >>> 32);
+    }
+}
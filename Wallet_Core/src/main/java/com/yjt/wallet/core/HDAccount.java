@@ -95,6 +95,7 @@ public class HDAccount extends Address {
         isFromXRandom = random.getClass().getCanonicalName().indexOf("XRandom") >= 0;
         mnemonicSeed = new byte[16];
         random.nextBytes(mnemonicSeed);
+        setCreateTime(Utils.currentTimeSeconds());
         hdSeed = seedFromMnemonic(mnemonicSeed);
         EncryptedData encryptedHDSeed = new EncryptedData(hdSeed, password, isFromXRandom);
         EncryptedData encryptedMnemonicSeed = new EncryptedData(mnemonicSeed, password,
@@ -212,6 +213,9 @@ public class HDAccount extends Address {
                                                                          .getPubKeyExtended());
             hasSeed = true;
         }
+        if (getCreateTime() > 0) {
+            AbstractDb.hdAccountProvider.updateHDAccountCreateTime(hdSeedId, getCreateTime());
+        }
         for (HDAccountAddress addr : externalAddresses) {
             addr.setHdAccountId(hdSeedId);
         }
@@ -228,6 +232,7 @@ public class HDAccount extends Address {
         this.hdSeedId = seedId;
         this.isFromXRandom = AbstractDb.hdAccountProvider.hdAccountIsXRandom(seedId);
         hasSeed = AbstractDb.hdAccountProvider.hasMnemonicSeed(this.hdSeedId);
+        setCreateTime(AbstractDb.hdAccountProvider.getHDAccountCreateTime(seedId));
         updateBalance();
     }
 
@@ -613,22 +618,28 @@ public class HDAccount extends Address {
     }
 
     public void addElementsForBloomFilter(BloomFilter filter) {
+        filter.insertAll(getElementsForBloomFilter());
+    }
+
+    public List<byte[]> getElementsForBloomFilter() {
+        List<byte[]> elements = new ArrayList<byte[]>();
         List<byte[]> pubs = AbstractDb.hdAccountAddressProvider.getPubs(this.hdSeedId, AbstractHD
                 .PathType.EXTERNAL_ROOT_PATH);
         for (byte[] pub : pubs) {
-            filter.insert(pub);
-            filter.insert(Utils.sha256hash160(pub));
+            elements.add(pub);
+            elements.add(Utils.sha256hash160(pub));
         }
         List<Out> outs = AbstractDb.hdAccountAddressProvider.getUnspendOutByHDAccountWithPath
                 (getHdSeedId(), AbstractHD.PathType.INTERNAL_ROOT_PATH);
         for (Out out : outs) {
-            filter.insert(out.getOutpointData());
+            elements.add(out.getOutpointData());
         }
         outs = AbstractDb.hdAccountAddressProvider.getUnconfirmedSpentOutByHDAccountWithPath
                 (getHdSeedId(), AbstractHD.PathType.INTERNAL_ROOT_PATH);
         for (Out out : outs) {
-            filter.insert(out.getOutpointData());
+            elements.add(out.getOutpointData());
         }
+        return elements;
     }
 
     @Override
@@ -44,6 +44,11 @@ public class HDMAddress extends Address {
         this.keychain = keychain;
     }
 
+    @Override
+    public long getCreateTime() {
+        return keychain == null ? 0 : keychain.getCreateTime();
+    }
+
     @Override
     public List<byte[]> signHashes(List<byte[]> unsignedInHashes, CharSequence passphrase) throws
             PasswordException {
@@ -51,6 +51,8 @@ public class HDMKeychain extends AbstractHD {
     protected ArrayList<HDMAddress> allCompletedAddresses;
     private Collection<HDMAddress> addressesInUse;
     private Collection<HDMAddress> addressesTrashed;
+    // when the seed was created in seconds, 0 if unknown (e.g. imported)
+    private long createTime;
 
 
     private HDMAddressChangeDelegate addressChangeDelegate;
@@ -102,6 +104,8 @@ public class HDMKeychain extends AbstractHD {
         wipeMnemonicSeed();
         hdSeedId = AbstractDb.addressProvider.addHDKey(encryptedMnemonicSeed.toEncryptedString(),
                 encryptedHDSeed.toEncryptedString(), firstAddress, isFromXRandom, address);
+        createTime = Utils.currentTimeSeconds();
+        AbstractDb.addressProvider.updateHDSeedCreateTime(hdSeedId, createTime);
         allCompletedAddresses = new ArrayList<HDMAddress>();
     }
 
@@ -340,6 +344,7 @@ public class HDMKeychain extends AbstractHD {
 
     private void initFromDb() {
         isFromXRandom = AbstractDb.addressProvider.isHDSeedFromXRandom(getHdSeedId());
+        createTime = AbstractDb.addressProvider.getHDSeedCreateTime(getHdSeedId());
         initAddressesFromDb();
     }
 
@@ -370,6 +375,13 @@ public class HDMKeychain extends AbstractHD {
         return isFromXRandom;
     }
 
+    /**
+     * @return when the seed was created in seconds, 0 if unknown.
+     */
+    public long getCreateTime() {
+        return createTime;
+    }
+
 
     public String getFullEncryptPrivKey() {
         String encryptPrivKey = getEncryptedMnemonicSeed();
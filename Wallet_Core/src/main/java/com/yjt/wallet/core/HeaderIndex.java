@@ -0,0 +1,197 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.contant.BitherjSettings;
+import com.yjt.wallet.core.db.AbstractDb;
+import com.yjt.wallet.core.utils.Sha256Hash;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * In memory index of the block headers of the blocks table, keyed by hash and, for the main
+ * chain, by height. It covers the last {@link BitherjSettings#HEADER_INDEX_WINDOW} blocks and
+ * every retarget point, so ancestor, locator and fork point lookups of {@link BlockChain} do not
+ * query the database. A block missing from the index is read from the database and kept.
+ * <p/>
+ * BlockChain writes the blocks table and then updates the index, nothing else may write the
+ * table behind its back. All methods are synchronized.
+ */
+class HeaderIndex {
+    private final HashMap<Sha256Hash, Block> blocksByHash;
+    private final HashMap<Integer, Block>    mainBlocksByNo;
+
+    private int lastBlockNo;
+    // blocks below this height, retarget points excepted, were dropped from the index
+    private int trimmedBlockNo;
+
+    HeaderIndex(List<Block> blocks) {
+        blocksByHash = new HashMap<Sha256Hash, Block>();
+        mainBlocksByNo = new HashMap<Integer, Block>();
+        lastBlockNo = 0;
+        trimmedBlockNo = 0;
+        addBlocks(blocks);
+    }
+
+    synchronized Block getBlock(byte[] blockHash) {
+        Sha256Hash hash = new Sha256Hash(blockHash);
+        Block block = blocksByHash.get(hash);
+        if (block == null) {
+            block = AbstractDb.blockProvider.getBlock(blockHash);
+            if (block != null) {
+                put(block);
+            }
+        }
+        return block;
+    }
+
+    synchronized Block getMainChainBlock(byte[] blockHash) {
+        Block block = getBlock(blockHash);
+        return block != null && block.isMain() ? block : null;
+    }
+
+    /**
+     * @return the block at the height in the chain ending with the given block, null if it is
+     * not in the blocks table.
+     */
+    synchronized Block getAncestor(Block block, int blockNo) {
+        if (blockNo < 0) {
+            return null;
+        }
+        Block b = block;
+        while (b != null && b.getBlockNo() > blockNo) {
+            if (isMain(b)) {
+                Block ancestor = mainBlocksByNo.get(blockNo);
+                if (ancestor != null) {
+                    return ancestor;
+                }
+            }
+            b = getBlock(b.getBlockPrev());
+        }
+        return b != null && b.getBlockNo() == blockNo ? b : null;
+    }
+
+    synchronized boolean isInMainChain(Block block) {
+        Block b = mainBlocksByNo.get(block.getBlockNo());
+        if (b == null && block.getBlockNo() <= lastBlockNo) {
+            b = getAncestor(mainBlocksByNo.get(lastBlockNo), block.getBlockNo());
+        }
+        return b != null && Arrays.equals(b.getBlockHash(), block.getBlockHash());
+    }
+
+    /**
+     * @return the last block both chains share, null if it is not in the blocks table.
+     */
+    synchronized Block getSameParent(Block block1, Block block2) {
+        Block b1 = block1;
+        Block b2 = block2;
+        while (b1 != null && b2 != null && !Arrays.equals(b1.getBlockHash(), b2.getBlockHash())) {
+            if (b1.getBlockNo() > b2.getBlockNo()) {
+                b1 = getAncestor(b1, b2.getBlockNo());
+            } else if (b2.getBlockNo() > b1.getBlockNo()) {
+                b2 = getAncestor(b2, b1.getBlockNo());
+            } else {
+                b1 = getBlock(b1.getBlockPrev());
+                b2 = getBlock(b2.getBlockPrev());
+            }
+        }
+        return b2 != null ? b1 : null;
+    }
+
+    synchronized void addBlock(Block block) {
+        put(block);
+        trim();
+    }
+
+    synchronized void addBlocks(List<Block> blocks) {
+        for (Block block : blocks) {
+            put(block);
+        }
+        trim();
+    }
+
+    synchronized void setMain(byte[] blockHash, boolean isMain) {
+        Block block = blocksByHash.get(new Sha256Hash(blockHash));
+        if (block == null) {
+            return;
+        }
+        if (block.isMain() && !isMain) {
+            removeMain(block);
+        }
+        block.setMain(isMain);
+        if (isMain) {
+            putMain(block);
+        }
+    }
+
+    synchronized void removeBlock(byte[] blockHash) {
+        Block block = blocksByHash.remove(new Sha256Hash(blockHash));
+        if (block != null && block.isMain()) {
+            removeMain(block);
+        }
+    }
+
+    private boolean isMain(Block block) {
+        Block main = mainBlocksByNo.get(block.getBlockNo());
+        return main != null && Arrays.equals(main.getBlockHash(), block.getBlockHash());
+    }
+
+    private void put(Block block) {
+        blocksByHash.put(new Sha256Hash(block.getBlockHash()), block);
+        if (block.isMain()) {
+            putMain(block);
+        }
+    }
+
+    private void putMain(Block block) {
+        mainBlocksByNo.put(block.getBlockNo(), block);
+        if (block.getBlockNo() > lastBlockNo) {
+            lastBlockNo = block.getBlockNo();
+        }
+    }
+
+    private void removeMain(Block block) {
+        if (isMain(block)) {
+            mainBlocksByNo.remove(block.getBlockNo());
+        }
+        while (lastBlockNo > 0 && !mainBlocksByNo.containsKey(lastBlockNo)) {
+            lastBlockNo--;
+        }
+    }
+
+    private void trim() {
+        int windowBlockNo = lastBlockNo - BitherjSettings.HEADER_INDEX_WINDOW;
+        if (windowBlockNo - trimmedBlockNo < BitherjSettings.BLOCK_DIFFICULTY_INTERVAL) {
+            return;
+        }
+        Iterator<Block> iterator = blocksByHash.values().iterator();
+        while (iterator.hasNext()) {
+            Block block = iterator.next();
+            if (block.getBlockNo() < windowBlockNo && block.getBlockNo() % BitherjSettings
+                    .BLOCK_DIFFICULTY_INTERVAL != 0) {
+                iterator.remove();
+                if (isMain(block)) {
+                    mainBlocksByNo.remove(block.getBlockNo());
+                }
+            }
+        }
+        trimmedBlockNo = windowBlockNo;
+    }
+}
@@ -24,9 +24,14 @@ import com.yjt.wallet.core.exception.ScriptException;
 import com.yjt.wallet.core.exception.VerificationException;
 import com.yjt.wallet.core.message.AlertMessage;
 import com.yjt.wallet.core.message.BlockMessage;
+import com.yjt.wallet.core.message.CFHeadersMessage;
+import com.yjt.wallet.core.message.CFilterMessage;
+import com.yjt.wallet.core.message.FilterAddMessage;
 import com.yjt.wallet.core.message.FilteredBlockMessage;
 import com.yjt.wallet.core.message.GetAddrMessage;
 import com.yjt.wallet.core.message.GetBlocksMessage;
+import com.yjt.wallet.core.message.GetCFHeadersMessage;
+import com.yjt.wallet.core.message.GetCFiltersMessage;
 import com.yjt.wallet.core.message.GetDataMessage;
 import com.yjt.wallet.core.message.GetHeadersMessage;
 import com.yjt.wallet.core.message.HeadersMessage;
@@ -40,9 +45,12 @@ import com.yjt.wallet.core.message.RejectMessage;
 import com.yjt.wallet.core.message.VersionAck;
 import com.yjt.wallet.core.message.VersionMessage;
 import com.yjt.wallet.core.net.NioClientManager;
+import com.yjt.wallet.core.net.PeerMetrics;
 import com.yjt.wallet.core.net.PeerSocketHandler;
 import com.yjt.wallet.core.script.Script;
+import com.yjt.wallet.core.utils.BoundedLinkedHashMap;
 import com.yjt.wallet.core.utils.InventoryItem;
+import com.yjt.wallet.core.utils.RollingHashSet;
 import com.yjt.wallet.core.utils.Sha256Hash;
 import com.yjt.wallet.core.utils.Utils;
 
@@ -53,28 +61,29 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Peer extends PeerSocketHandler {
     private static final int MAX_GETDATA_HASHES = 50000;
 
     private static final int MAX_UNRELATED_TX_RELAY_COUNT = 1000;
 
-    private static final int BLOOMFILTER_UPDATE_BLOCK_INTERVAL = 100;
+    private static final int MAX_KNOWN_TX_HASH_COUNT = 10000;
+    // txs waiting for their parents, the oldest are relayed unchecked beyond these
+    private static final int  MAX_ORPHAN_TX_COUNT = 100;
+    private static final long ORPHAN_TX_EXPIRY    = 10 * 60 * 1000;
 
-    private static final int GET_BLOCK_DATA_PIECE_SIZE = 1;
-
-    private static final int MAX_PEER_MANAGER_WAITING_TASK_COUNT = 1;
-
-    private static final int RELAY_BLOCK_COUNT_WHEN_SYNC = 1;
-
-    private static final int PEER_MANAGER_MAX_TASK_CHECKING_INTERVAL = 100;
+    private static final int MAX_PEER_SCORE = 1000;
 
     private static final Logger log          = LoggerFactory.getLogger(Peer.class);
     private static final int    TimeOutDelay = 7000;
@@ -88,12 +97,17 @@ public class Peer extends PeerSocketHandler {
     }
 
     public State state;
+    // set on the PeerManager executor when PeerManager drops this dial for enough connected
+    // peers, it then ignores the disconnects of this dial
+    boolean dialCancelled;
 
     protected InetAddress peerAddress;
     protected int         peerTimestamp;
     protected int         peerPort;
     protected long        peerServices;
     protected int         peerConnectedCnt;
+    // persisted, moves towards calculateScore() on every updatePeerScore()
+    protected int         peerScore;
     protected long        versionLastBlockHeight;
     // This may be wrong. Do not rely on it.
     private   int         incrementalBlockHeight;
@@ -104,17 +118,40 @@ public class Peer extends PeerSocketHandler {
     public  long pingTime;
     private long pingStartTime;
     private int  timestamp;
-    private int  filterBlockCount;
 
     private boolean sentVerAck, gotVerAck;
 
-    private final HashSet<Sha256Hash> currentTxHashes, knownTxHashes, requestedBlockHashes;
-    private final LinkedHashSet<Sha256Hash>        currentBlockHashes;
-    private final HashMap<Sha256Hash, HashSet<Tx>> needToRequestDependencyDict;
-    private final ArrayList<Sha256Hash>            invBlockHashes;
-    private       Block                            currentFilteredBlock;
-    private       VersionMessage                   versionMessage;
-    private       boolean                          bloomFilterSent;
+    // the tx hashes of the inv messages, the latest MAX_KNOWN_TX_HASH_COUNT of them
+    private final RollingHashSet<Sha256Hash>                   knownTxHashes;
+    // also written by refetchBlocks on the PeerManager executor
+    private final Set<Sha256Hash>                              requestedBlockHashes;
+    private final Set<Sha256Hash>                              currentBlockHashes;
+    // missing parent tx hash -> the orphan txs waiting on it
+    private final HashMap<Sha256Hash, HashSet<Tx>>             needToRequestDependencyDict;
+    private final LinkedHashMap<Sha256Hash, OrphanTx>          orphanTxs;
+    private final LinkedHashSet<Sha256Hash>                    dependencyTxHashesToRequest;
+    private final ArrayList<Sha256Hash>                        invBlockHashes;
+    // filtered blocks requested from this peer, in chain order, until they are relayed
+    private final FilteredBlockWindow                          inFlightBlocks;
+    private       long                                         blockIntervalTime;
+    private       long                                         lastFilteredBlockTime;
+    private       VersionMessage                               versionMessage;
+    private       boolean                                      bloomFilterSent;
+    // out of PeerManager credit, reading is paused until creditGranted()
+    private       boolean                                      creditWaiting;
+    // orders the pause on a credit refusal before the resume of the grant
+    private final Object                                       creditLock;
+    // compact filter mode: blocks whose cfilter is requested -> their height, the height the
+    // cfheaders request up to them starts at, and the cfilters waiting for a verified header
+    private final ConcurrentHashMap<Sha256Hash, Integer>       compactFilterBlockNos;
+    private final ConcurrentHashMap<Sha256Hash, Integer>       compactFilterHeaderStartNos;
+    private final ConcurrentHashMap<Sha256Hash, CFilterMessage> unverifiedCompactFilters;
+    // blocks whose compact filter matched nothing -> the getheaders sent for their header
+    private final HashMap<Sha256Hash, Integer>                 compactFilterHeaderRequests;
+    // the chain head whose filter header we sent as a checkpoint vote
+    private volatile Sha256Hash                                compactFilterCheckpointHash;
+    private volatile int                                       compactFilterCheckpointBlockNo;
+    private       byte[]                                       creditWaitingBlockHash;
 
     private int     unrelatedTxRelayCount;
     private boolean synchronising;
@@ -122,7 +159,7 @@ public class Peer extends PeerSocketHandler {
     private long    syncStartPeerBlockNo;
     private int     synchronisingBlockCount;
 
-    private List<Block>      syncBlocks; // todo: this cache is no use
+    private List<Block>      syncBlocks;
     private List<Sha256Hash> syncBlockHashes;
 
 
@@ -132,12 +169,21 @@ public class Peer extends PeerSocketHandler {
         peerPort = BitherjSettings.port;
         state = State.Disconnected;
         peerServices = 1;
-        currentTxHashes = new HashSet<Sha256Hash>();
-        currentBlockHashes = new LinkedHashSet<Sha256Hash>();
-        knownTxHashes = new HashSet<Sha256Hash>();
-        requestedBlockHashes = new HashSet<Sha256Hash>();
+        currentBlockHashes = Collections.newSetFromMap(new BoundedLinkedHashMap<Sha256Hash,
+                Boolean>(MAX_GETDATA_HASHES));
+        knownTxHashes = new RollingHashSet<Sha256Hash>(MAX_KNOWN_TX_HASH_COUNT);
+        requestedBlockHashes = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash,
+                Boolean>());
         needToRequestDependencyDict = new HashMap<Sha256Hash, HashSet<Tx>>();
+        orphanTxs = new LinkedHashMap<Sha256Hash, OrphanTx>();
+        dependencyTxHashesToRequest = new LinkedHashSet<Sha256Hash>();
         invBlockHashes = new ArrayList<Sha256Hash>();
+        inFlightBlocks = new FilteredBlockWindow();
+        creditLock = new Object();
+        compactFilterBlockNos = new ConcurrentHashMap<Sha256Hash, Integer>();
+        compactFilterHeaderStartNos = new ConcurrentHashMap<Sha256Hash, Integer>();
+        unverifiedCompactFilters = new ConcurrentHashMap<Sha256Hash, CFilterMessage>();
+        compactFilterHeaderRequests = new HashMap<Sha256Hash, Integer>();
         incrementalBlockHeight = 0;
         unrelatedTxRelayCount = 0;
         nonce = new Random().nextLong();
@@ -165,6 +211,19 @@ public class Peer extends PeerSocketHandler {
             setTimeoutEnabled(true);
             setSocketTimeout(TimeOutDelay);
             bloomFilterSent = false;
+            metrics = new PeerMetrics(PeerManager.instance().getMetrics());
+            compactFilterBlockNos.clear();
+            compactFilterHeaderStartNos.clear();
+            unverifiedCompactFilters.clear();
+            synchronized (compactFilterHeaderRequests) {
+                compactFilterHeaderRequests.clear();
+            }
+            compactFilterCheckpointHash = null;
+            needToRequestDependencyDict.clear();
+            orphanTxs.clear();
+            dependencyTxHashesToRequest.clear();
+            creditWaiting = false;
+            creditWaitingBlockHash = null;
             try {
                 NioClientManager.instance().openConnection(new InetSocketAddress(getPeerAddress(),
                                                                                  BitherjSettings.port), this);
@@ -191,9 +250,8 @@ public class Peer extends PeerSocketHandler {
             return;
         }
 
-        if (currentFilteredBlock != null && !(m instanceof Tx)) {
-            currentFilteredBlock = null;
-            currentTxHashes.clear();
+        if (inFlightBlocks.isWaitingForTxs() && !(m instanceof Tx)) {
+            clearInFlightBlocks();
             exceptionCaught(new ProtocolException("Expect more tx for current filtering block, but got a " + m.getClass().getSimpleName() + " message"));
         }
 
@@ -209,6 +267,10 @@ public class Peer extends PeerSocketHandler {
             processBlock((BlockMessage) m);
         } else if (m instanceof FilteredBlockMessage) {
             startFilteredBlock((FilteredBlockMessage) m);
+        } else if (m instanceof CFHeadersMessage) {
+            processCFHeaders((CFHeadersMessage) m);
+        } else if (m instanceof CFilterMessage) {
+            processCFilter((CFilterMessage) m);
         } else if (m instanceof Tx) {
             processTransaction((Tx) m);
         } else if (m instanceof GetDataMessage) {
@@ -280,6 +342,7 @@ public class Peer extends PeerSocketHandler {
                 }
             }
             if (!stillNeedDependency) {
+                orphanTxs.remove(new Sha256Hash(eachTx.getTxHash()));
                 PeerManager.instance().relayedTransaction(this, eachTx, false);
                 checkedTxs.add(eachTx);
             }
@@ -304,10 +367,10 @@ public class Peer extends PeerSocketHandler {
             for (int i = 0;
                  i < eachTx.getIns().size();
                  i++) {
-                if (Arrays.equals(eachTx.getIns().get(i).getTxHash(), tx.getTxHash())) {
+                if (Arrays.equals(eachTx.getIns().get(i).getPrevTxHash(), tx.getTxHash())) {
                     valid = false;
                     for (Out out : tx.getOuts()) {
-                        if (out.getOutSn() == eachTx.getIns().get(i).getInSn()) {
+                        if (out.getOutSn() == eachTx.getIns().get(i).getPrevOutSn()) {
                             byte[] outScript = out
                                     .getOutScript();
                             Script pubKeyScript = new Script(outScript);
@@ -335,6 +398,7 @@ public class Peer extends PeerSocketHandler {
                     }
                 }
                 if (!stillNeedDependency) {
+                    orphanTxs.remove(new Sha256Hash(eachTx.getTxHash()));
                     PeerManager.instance().relayedTransaction(this, eachTx, false);
                     checkedTxs.add(eachTx);
                 }
@@ -353,6 +417,7 @@ public class Peer extends PeerSocketHandler {
     }
 
     private void clearInvalidTxFromDependencyDict(Tx tx) {
+        orphanTxs.remove(new Sha256Hash(tx.getTxHash()));
         for (HashSet<Tx> set : needToRequestDependencyDict.values()) {
             if (set.contains(tx)) {
                 set.remove(tx);
@@ -417,10 +482,24 @@ public class Peer extends PeerSocketHandler {
             return;
         }
 
-        invBlockHashes.addAll(blockHashSha256Hashs);
+        if (this.synchronising) {
+            // blocks of a sync are spread over all syncing peers by PeerManager
+            if (getDownloadData() && blockHashSha256Hashs.size() > 0) {
+                PeerManager.instance().relayedBlockHashes(this, blockHashSha256Hashs);
+            }
+            pullBlockHashesToDownload();
+        } else {
+            invBlockHashes.addAll(blockHashSha256Hashs);
+        }
 
-        txHashSha256Hashs.removeAll(knownTxHashes);
-        knownTxHashes.addAll(txHashSha256Hashs);
+        Iterator<Sha256Hash> txHashIterator = txHashSha256Hashs.iterator();
+        while (txHashIterator.hasNext()) {
+            Sha256Hash txHash = txHashIterator.next();
+            // our own txs being broadcast echo back, no need to download them
+            if (PeerManager.instance().txInvReceived(this, txHash) || !knownTxHashes.add(txHash)) {
+                txHashIterator.remove();
+            }
+        }
 
         sendGetBlocksDataNextPiece(txHashSha256Hashs);
 
@@ -439,11 +518,16 @@ public class Peer extends PeerSocketHandler {
     }
 
     private void sendGetBlocksDataNextPiece(List<Sha256Hash> withTxHashes) {
+        int pieceSize = Math.max(getBlockDataWindowSize() - inFlightBlocks.size(), 0);
         List<Sha256Hash> blockHashesPiece = new ArrayList<Sha256Hash>(invBlockHashes.subList(0,
-                                                                                             Math.min(invBlockHashes.size(), GET_BLOCK_DATA_PIECE_SIZE)));
+                                                                                             Math.min(invBlockHashes.size(), pieceSize)));
         invBlockHashes.removeAll(blockHashesPiece);
 
-        if (PeerManager.instance().getDownloadingPeer() == null || getDownloadData()) {
+        if (PeerManager.instance().getDownloadingPeer() == null || getDownloadData() || this
+                .synchronising) {
+            for (Sha256Hash hash : blockHashesPiece) {
+                inFlightBlocks.add(hash);
+            }
             sendGetDataMessageWithTxHashesAndBlockHashes(withTxHashes, blockHashesPiece);
         } else if (withTxHashes.size() > 0) {
             sendGetDataMessageWithTxHashesAndBlockHashes(withTxHashes, new
@@ -453,12 +537,6 @@ public class Peer extends PeerSocketHandler {
         if (blockHashesPiece.size() > 0) {
             //remember blockHashes in case we need to refetch them with an updated bloom filter
             currentBlockHashes.addAll(blockHashesPiece);
-            if (currentBlockHashes.size() > MAX_GETDATA_HASHES) {
-                Iterator iterator = currentBlockHashes.iterator();
-                while (iterator.hasNext() && currentBlockHashes.size() > MAX_GETDATA_HASHES / 2) {
-                    iterator.remove();
-                }
-            }
             if (this.synchronising) {
                 this.syncBlockHashes.addAll(blockHashesPiece);
             }
@@ -477,116 +555,405 @@ public class Peer extends PeerSocketHandler {
         // we don't need to process block message after we send our awesome bloom filters.
         log.info("peer[{}:{}] receive block {}", this.peerAddress.getHostAddress(),
                  this.peerPort, Utils.hashToString(m.getBlock().getBlockHash()));
+        Block block = m.getBlock();
+        Sha256Hash blockHash = new Sha256Hash(block.getBlockHash());
+        if (!PeerManager.instance().isCompactFilterMode() || !requestedBlockHashes.contains
+                (blockHash)) {
+            return;
+        }
+        // a block whose compact filter matched the wallet, keep only the wallet's txs
+        block.verify();
+        List<Tx> relatedTxs = PeerManager.instance().getCompactFilterMatcher().getRelatedTxs
+                (block);
+        List<byte[]> txHashes = new ArrayList<byte[]>();
+        for (Tx tx : relatedTxs) {
+            txHashes.add(tx.getTxHash());
+        }
+        block.setTxHashes(txHashes);
+        block.setTransactions(null);
+        if (!receiveBlock(block, true)) {
+            return;
+        }
+        for (Tx tx : relatedTxs) {
+            PeerManager.instance().relayedTransaction(this, tx, true);
+        }
+
+        relayCompletedFilteredBlocks();
+        fillBlockDataWindow(block.getBlockHash());
     }
 
     private void startFilteredBlock(FilteredBlockMessage m) {
         Block block = m.getBlock();
         block.verifyHeader();
+        block.setTotalTxCount(m.getTransactionCount());
 
         log.info("peer[{}:{}] receive filtered block {} with {} tx",
                  this.peerAddress.getHostAddress(), this.peerPort,
                  Utils.hashToString(block.getBlockHash()), block.getTxHashes().size());
 
-        currentBlockHashes.remove(new Sha256Hash(block.getBlockHash()));
-        requestedBlockHashes.remove(new Sha256Hash(block.getBlockHash()));
-        if (requestedBlockHashes.contains(new Sha256Hash(block.getBlockHash()))) {
+        if (!receiveBlock(block, false)) {
             return;
         }
-        ArrayList<Sha256Hash> txHashes = new ArrayList<Sha256Hash>();
         for (byte[] txHash : block.getTxHashes()) {
-            txHashes.add(new Sha256Hash(txHash));
             log.info("peer[{}:{}] receive filtered block {} tx {}",
                      this.peerAddress.getHostAddress(), this.peerPort,
                      Utils.hashToString(m.getBlock().getBlockHash()), Utils.hashToString(txHash));
         }
-//        txHashes.removeAll(knownTxHashes);
 
-        // wait util we get all the tx messages before processing the block
-        if (txHashes.size() > 0) {
-            currentFilteredBlock = block;
-            currentTxHashes.clear();
-            currentTxHashes.addAll(txHashes);
+        // blocks are relayed in the order we requested them, once all their tx messages arrived
+        relayCompletedFilteredBlocks();
+        fillBlockDataWindow(block.getBlockHash());
+    }
+
+    /**
+     * Puts the block in its window slot.
+     *
+     * @return false if the block is a copy the window does not wait for, it is dropped.
+     */
+    private boolean receiveBlock(Block block, boolean txsReceived) {
+        Sha256Hash blockHash = new Sha256Hash(block.getBlockHash());
+        boolean requested = currentBlockHashes.remove(blockHash);
+        requestedBlockHashes.remove(blockHash);
+        if (requested) {
+            updateBlockIntervalTime();
+        }
+
+        long latency = inFlightBlocks.blockReceived(block, txsReceived);
+        if (latency < 0) {
+            log.info("peer[{}:{}] receive duplicated filtered block {}",
+                     this.peerAddress.getHostAddress(), this.peerPort,
+                     Utils.hashToString(block.getBlockHash()));
+            return false;
+        }
+        if (latency > 0) {
+            metrics.blockReceived(latency);
+        }
+        return true;
+    }
+
+    private void processCFHeaders(CFHeadersMessage m) throws ProtocolException {
+        List<byte[]> filterHashes = m.getFilterHashes();
+        if (m.getFilterType() != CFilterMessage.FILTER_TYPE_BASIC || filterHashes.size() == 0) {
+            return;
+        }
+        CompactFilterHeaderChain chain = PeerManager.instance().getCompactFilterHeaderChain();
+        Sha256Hash stopHash = new Sha256Hash(m.getStopHash());
+        boolean valid;
+        if (stopHash.equals(compactFilterCheckpointHash)) {
+            byte[] filterHeader = m.getPreviousFilterHeader();
+            for (byte[] filterHash : filterHashes) {
+                filterHeader = GolombCodedSet.getFilterHeader(filterHash, filterHeader);
+            }
+            valid = chain.addCheckpointHeader(getPeerAddress(), compactFilterCheckpointBlockNo,
+                                              stopHash, filterHeader);
         } else {
-            if (this.synchronising && this.syncBlockHashes.contains(new Sha256Hash(block.getBlockHash()))) {
-                this.syncBlockHashes.remove(new Sha256Hash(block.getBlockHash()));
-                this.syncBlocks.add(block);
+            Integer startBlockNo = compactFilterHeaderStartNos.remove(stopHash);
+            if (startBlockNo == null) {
+                return;
+            }
+            // the range ends at the block, which gives its height even if we had to guess it
+            int blockNo = startBlockNo + filterHashes.size() - 1;
+            if (compactFilterBlockNos.containsKey(stopHash)) {
+                compactFilterBlockNos.put(stopHash, blockNo);
+            }
+            valid = chain.addRange(startBlockNo, m.getPreviousFilterHeader(), filterHashes,
+                                   stopHash);
+        }
+        if (!valid) {
+            throw new ProtocolException("cfheaders up to block " + Utils.hashToString(m
+                    .getStopHash()) + " contradict the verified filter headers");
+        }
+        // they may verify the headers other peers' cfilters wait for
+        PeerManager.instance().compactFilterHeadersAdded();
+    }
 
-                if (this.syncBlockHashes.size() == 0 && this.syncBlocks.size() > 0) {
-                    PeerManager.instance().relayedBlocks(this, this.syncBlocks);
-                    this.syncBlocks.clear();
-                } else if (this.syncBlocks.size() >= RELAY_BLOCK_COUNT_WHEN_SYNC) {
-                    PeerManager.instance().relayedBlocks(this, this.syncBlocks);
-                    this.syncBlocks.clear();
+    private void processCFilter(CFilterMessage m) throws ProtocolException {
+        Sha256Hash blockHash = new Sha256Hash(m.getBlockHash());
+        Integer blockNo = compactFilterBlockNos.get(blockHash);
+        if (m.getFilterType() != CFilterMessage.FILTER_TYPE_BASIC || blockNo == null) {
+            // the other filters of a range we had to start lower than the block
+            return;
+        }
+        if (!PeerManager.instance().getCompactFilterHeaderChain().isVerified(blockNo)) {
+            // a filter is only used once it chains to a verified filter header
+            unverifiedCompactFilters.put(blockHash, m);
+            return;
+        }
+        processVerifiedCFilter(blockNo, m);
+    }
+
+    /**
+     * Uses the cfilters whose filter headers got verified since they arrived. Called by
+     * PeerManager from its executor.
+     */
+    void processUnverifiedCompactFilters() {
+        if (unverifiedCompactFilters.size() == 0) {
+            return;
+        }
+        CompactFilterHeaderChain chain = PeerManager.instance().getCompactFilterHeaderChain();
+        for (CFilterMessage m : new ArrayList<CFilterMessage>(unverifiedCompactFilters.values())) {
+            Sha256Hash blockHash = new Sha256Hash(m.getBlockHash());
+            Integer blockNo = compactFilterBlockNos.get(blockHash);
+            if (blockNo == null) {
+                unverifiedCompactFilters.remove(blockHash);
+            } else if (chain.isVerified(blockNo) && unverifiedCompactFilters.remove(blockHash)
+                    != null) {
+                try {
+                    processVerifiedCFilter(blockNo, m);
+                } catch (ProtocolException e) {
+                    exceptionCaught(e);
+                    return;
                 }
+            }
+        }
+    }
+
+    private void processVerifiedCFilter(int blockNo, CFilterMessage m) throws ProtocolException {
+        Sha256Hash blockHash = new Sha256Hash(m.getBlockHash());
+        if (compactFilterBlockNos.remove(blockHash) == null) {
+            return;
+        }
+        if (!PeerManager.instance().getCompactFilterHeaderChain().matchesFilter(blockNo, m
+                .getFilterBytes())) {
+            throw new ProtocolException("Compact filter of block " + Utils.hashToString(m
+                    .getBlockHash()) + " does not match its filter header");
+        }
+        GolombCodedSet filter = new GolombCodedSet(m.getBlockHash(), m.getFilterBytes());
+        if (PeerManager.instance().getCompactFilterMatcher().matches(filter)) {
+            log.info("Peer {} compact filter of block {} matches", getPeerAddress()
+                    .getHostAddress(), Utils.hashToString(m.getBlockHash()));
+            GetDataMessage getData = new GetDataMessage();
+            getData.addBlock(m.getBlockHash());
+            sendMessage(getData);
+        } else {
+            // the header is all we need, ask for the headers from the block before it
+            synchronized (compactFilterHeaderRequests) {
+                Integer requests = compactFilterHeaderRequests.get(blockHash);
+                compactFilterHeaderRequests.put(blockHash, requests == null ? 1 : requests + 1);
+            }
+            ArrayList<byte[]> locators = new ArrayList<byte[]>();
+            Sha256Hash prevHash = PeerManager.instance().getPrevBlockHashToDownload(blockHash);
+            if (prevHash != null) {
+                locators.add(prevHash.getBytes());
+            }
+            Block lastBlock = BlockChain.getInstance().getLastBlock();
+            if (lastBlock != null) {
+                locators.add(lastBlock.getBlockHash());
+            }
+            sendGetHeadersMessage(locators, m.getBlockHash());
+        }
+    }
+
+    /**
+     * Completes the blocks waiting for their header after their compact filter matched nothing,
+     * they carry no txs.
+     */
+    private void processCompactFilterHeaders(List<Block> headers) {
+        Block lastReceived = null;
+        for (Block header : headers) {
+            Sha256Hash blockHash = new Sha256Hash(header.getBlockHash());
+            Integer requests;
+            synchronized (compactFilterHeaderRequests) {
+                requests = compactFilterHeaderRequests.remove(blockHash);
+                if (requests != null && requests > 1) {
+                    compactFilterHeaderRequests.put(blockHash, requests - 1);
+                }
+            }
+            if (requests != null) {
+                header.setTxHashes(new ArrayList<byte[]>());
+                if (receiveBlock(header, true)) {
+                    lastReceived = header;
+                }
+            }
+        }
+        if (lastReceived != null) {
+            relayCompletedFilteredBlocks();
+            fillBlockDataWindow(lastReceived.getBlockHash());
+        }
+    }
+
+    private void sendGetCompactFilterMessages(List<Sha256Hash> blockHashes) {
+        // blocks not scheduled by the sync follow our chain head, a range starting lower than
+        // the block is answered with some filters too many
+        int fallbackBlockNo = (int) PeerManager.instance().getLastBlockHeight() + 1;
+        CompactFilterHeaderChain chain = PeerManager.instance().getCompactFilterHeaderChain();
+        if (!chain.hasCheckpoint()) {
+            sendGetCompactFilterCheckpoint();
+        }
+        for (Sha256Hash hash : blockHashes) {
+            int blockNo = PeerManager.instance().getBlockNoToDownload(hash);
+            if (blockNo < 0) {
+                blockNo = fallbackBlockNo;
+            }
+            compactFilterBlockNos.put(hash, blockNo);
+            // the filter headers from the verified ones up to the block
+            int headerStartNo = chain.getRangeStartBlockNo(blockNo);
+            compactFilterHeaderStartNos.put(hash, headerStartNo);
+            sendMessage(new GetCFHeadersMessage(CFilterMessage.FILTER_TYPE_BASIC, headerStartNo,
+                                                hash.getBytes()));
+            sendMessage(new GetCFiltersMessage(CFilterMessage.FILTER_TYPE_BASIC, blockNo, hash
+                    .getBytes()));
+        }
+        log.info("Peer {} send get compact filters for {} block", getPeerAddress()
+                .getHostAddress(), blockHashes.size());
+    }
+
+    /**
+     * Asks for the filter header of our chain head, our vote for the checkpoint of the filter
+     * headers, see {@link CompactFilterHeaderChain}.
+     */
+    private void sendGetCompactFilterCheckpoint() {
+        Block lastBlock = BlockChain.getInstance().getLastBlock();
+        if (state != State.Connected || lastBlock == null || new Sha256Hash(lastBlock
+                .getBlockHash()).equals(compactFilterCheckpointHash)) {
+            return;
+        }
+        compactFilterCheckpointBlockNo = lastBlock.getBlockNo();
+        compactFilterCheckpointHash = new Sha256Hash(lastBlock.getBlockHash());
+        sendMessage(new GetCFHeadersMessage(CFilterMessage.FILTER_TYPE_BASIC, lastBlock
+                .getBlockNo(), lastBlock.getBlockHash()));
+    }
+
+    private void relayCompletedFilteredBlocks() {
+        for (Block block : inFlightBlocks.takeCompleteBlocks()) {
+            Sha256Hash blockHash = new Sha256Hash(block.getBlockHash());
+            if (this.synchronising && this.syncBlockHashes.contains(blockHash)) {
+                this.syncBlockHashes.remove(blockHash);
+                this.syncBlocks.add(block);
             } else {
+                flushSyncBlocks();
                 PeerManager.instance().relayedBlock(this, block);
             }
         }
-        if (currentBlockHashes.size() == 0) {
-            boolean waitingLoged = false;
-            while (PeerManager.instance().waitingTaskCount() >
-                    MAX_PEER_MANAGER_WAITING_TASK_COUNT) {
-                try {
-                    if (!waitingLoged) {
-                        if (BitherjSettings.LOG_DEBUG) {
-                            log.info("Peer {} waiting for PeerManager task count {}", peerAddress
-                                    .getHostAddress(), PeerManager.instance().waitingTaskCount());
-                        }
-                        waitingLoged = true;
-                    }
-                    Thread.sleep(PEER_MANAGER_MAX_TASK_CHECKING_INTERVAL);
-                } catch (InterruptedException e) {
+        flushSyncBlocks();
+    }
+
+    private void flushSyncBlocks() {
+        if (this.syncBlocks.size() > 0) {
+            PeerManager.instance().relayedBlocks(this, this.syncBlocks);
+            this.syncBlocks.clear();
+        }
+    }
+
+    private void pullBlockHashesToDownload() {
+        if (this.synchronising && invBlockHashes.size() == 0) {
+            invBlockHashes.addAll(PeerManager.instance().takeBlockHashesToDownload(this));
+        }
+    }
+
+    private void fillBlockDataWindow(byte[] lastBlockHash) {
+        pullBlockHashesToDownload();
+        boolean needMoreBlocks = invBlockHashes.size() > 0 && inFlightBlocks.size() <
+                getBlockDataWindowSize();
+        boolean needMoreBlockHashes = invBlockHashes.size() == 0 && (this.synchronising ||
+                (currentBlockHashes.size() == 0 && lastBlockHash != null));
+        if (!needMoreBlocks && !needMoreBlockHashes) {
+            return;
+        }
+        synchronized (creditLock) {
+            // the executor may grant the credit as soon as it is refused, so pause before a
+            // grant can resume us, or the grant is lost and the sync stalls until it times out
+            if (!PeerManager.instance().requestCredit(this)) {
+                // PeerManager is behind, stop reading until it grants us credit again
+                if (BitherjSettings.LOG_DEBUG) {
+                    log.info("Peer {} waiting for PeerManager task count {}", peerAddress
+                            .getHostAddress(), PeerManager.instance().waitingTaskCount());
                 }
+                creditWaiting = true;
+                creditWaitingBlockHash = lastBlockHash;
+                setReadingPaused(true);
+                return;
             }
+        }
+
+        if (needMoreBlocks) {
+            sendGetBlocksDataNextPiece();
+            return;
+        }
+        byte[] locatorHash = lastBlockHash;
+        if (this.synchronising) {
+            // everything scheduled is handed out, the downloading peer asks for more
+            locatorHash = PeerManager.instance().getBlockHashToContinueSync(this);
+        }
+        if (locatorHash != null) {
+            sendGetBlocksMessage(Arrays.asList(new byte[][]{locatorHash, BlockChain
+                    .getInstance().getBlockLocatorArray().get(0)}), null);
+        }
+    }
+
+    /**
+     * Called by PeerManager once it caught up, the pong continues the block download from the
+     * peer's own thread.
+     */
+    void creditGranted() {
+        synchronized (creditLock) {
+            setReadingPaused(false);
+        }
+        ping();
+    }
 
-            if (invBlockHashes.size() > 0) {
-                sendGetBlocksDataNextPiece();
+    /**
+     * The number of filtered blocks kept outstanding. Roughly the round trip time divided by the
+     * time we need for one block, so the peer always has the next getdata before we run dry.
+     */
+    private int getBlockDataWindowSize() {
+        int size = BitherjSettings.MIN_BLOCK_DATA_WINDOW_SIZE;
+        if (pingTime > 0 && blockIntervalTime > 0) {
+            size = Math.max(size, (int) Math.min(pingTime / blockIntervalTime + 1, Integer.MAX_VALUE));
+        }
+        return Math.min(size, BitherjSettings.MAX_BLOCK_DATA_WINDOW_SIZE);
+    }
+
+    private void updateBlockIntervalTime() {
+        long now = System.currentTimeMillis();
+        // only measure while the pipeline is busy, otherwise we measure our own idle time
+        if (lastFilteredBlockTime > 0) {
+            long interval = Math.max(now - lastFilteredBlockTime, 1);
+            if (blockIntervalTime > 0) {
+                blockIntervalTime = (long) (blockIntervalTime * 0.5f + interval * 0.5f);
             } else {
-                sendGetBlocksMessage(Arrays.asList(new byte[][]{block.getBlockHash(), BlockChain
-                        .getInstance().getBlockLocatorArray().get(0)}), null);
+                blockIntervalTime = interval;
             }
         }
+        lastFilteredBlockTime = currentBlockHashes.size() > 0 ? now : 0;
+    }
+
+    private void clearInFlightBlocks() {
+        inFlightBlocks.clear();
+        lastFilteredBlockTime = 0;
     }
 
     private void processTransaction(Tx tx) throws VerificationException {
-        if (currentFilteredBlock != null) { // we're collecting tx messages for a merkleblock
+        // we can't we byte array hash or BigInteger as the key.
+        // byte array can't be compared
+        // BigInteger can't be cast back to byte array
+        // so we use Sha256Hash class here as key
+        if (inFlightBlocks.txReceived(new Sha256Hash(tx.getTxHash()))) {
+            // we're collecting tx messages for a merkleblock
             PeerManager.instance().relayedTransaction(this, tx, true);
-            // we can't we byte array hash or BigInteger as the key.
-            // byte array can't be compared
-            // BigInteger can't be cast back to byte array
-            // so we use Sha256Hash class here as key
-            boolean removed = currentTxHashes.remove(new Sha256Hash(tx.getTxHash()));
-            log.info("peer[{}:{}] receive tx {} filtering block: {}, remaining tx {}, remove {}",
+            log.info("peer[{}:{}] receive tx {} of filtering block, waiting for more tx {}",
                      this.peerAddress.getHostAddress(), this.peerPort,
-                     Utils.hashToString(tx.getTxHash()), Utils.hashToString(currentFilteredBlock
-                                                                                    .getBlockHash()), currentTxHashes.size(),
-                     removed ? "success" : "failed");
-            if (currentTxHashes.size() == 0) { // we received the entire block including all
-                // matched tx
-                Block block = currentFilteredBlock;
-                currentFilteredBlock = null;
-                currentTxHashes.clear();
-                if (this.synchronising && this.syncBlockHashes.contains(new Sha256Hash(block.getBlockHash()))) {
-                    this.syncBlockHashes.remove(new Sha256Hash(block.getBlockHash()));
-                    this.syncBlocks.add(block);
-
-                    if (this.syncBlockHashes.size() == 0 && this.syncBlocks.size() > 0) {
-                        PeerManager.instance().relayedBlocks(this, this.syncBlocks);
-                        this.syncBlocks.clear();
-                    } else if (this.syncBlocks.size() >= RELAY_BLOCK_COUNT_WHEN_SYNC) {
-                        PeerManager.instance().relayedBlocks(this, this.syncBlocks);
-                        this.syncBlocks.clear();
-                    }
-                } else {
-                    PeerManager.instance().relayedBlock(this, block);
-                }
+                     Utils.hashToString(tx.getTxHash()), inFlightBlocks.isWaitingForTxs());
+            if (!inFlightBlocks.isWaitingForTxs()) { // we received the entire block including
+                // all matched tx
+                relayCompletedFilteredBlocks();
+                fillBlockDataWindow(null);
             }
         } else {
             log.info("peer[{}:{}] receive tx {}", this.peerAddress.getHostAddress(),
                      this.peerPort, Utils.hashToString(tx.getTxHash()));
+            boolean isDependency = needToRequestDependencyDict.containsKey(new Sha256Hash(tx
+                    .getTxHash()));
+            if (isDependency) {
+                // a parent we asked for, it settles the txs waiting on it
+                checkDependencyWith(tx);
+            }
             if (AddressManager.getInstance().isTxRelated(tx, tx.getInAddresses())) {
                 unrelatedTxRelayCount = 0;
             } else {
+                if (isDependency) {
+                    return;
+                }
                 unrelatedTxRelayCount++;
                 if (unrelatedTxRelayCount > MAX_UNRELATED_TX_RELAY_COUNT) {
                     exceptionCaught(new Exception("Peer " + getPeerAddress().getHostAddress() + " is junking us. Drop it."));
@@ -604,77 +971,90 @@ public class Peer extends PeerSocketHandler {
                 valid = false;
             }
             if (valid && !tx.hasDustOut()) {
-                PeerManager.instance().relayedTransaction(this, tx, false);
-            }
-            /*
-            log.info("peer[{}:{}] receive tx {}", this.peerAddress.getHostAddress(),
-                    this.peerPort, Utils.hashToString(tx.getTxHash()));
-            if (needToRequestDependencyDict.get(new Sha256Hash(tx.getTxHash())) == null || needToRequestDependencyDict.get(new Sha256Hash(tx.getTxHash())).size() == 0) {
-                if (AddressManager.getInstance().isTxRelated(tx)) {
-                    unrelatedTxRelayCount = 0;
-                } else {
-                    unrelatedTxRelayCount++;
-                    if (unrelatedTxRelayCount > MAX_UNRELATED_TX_RELAY_COUNT) {
-                        exceptionCaught(new Exception("Peer " + getPeerAddress().getHostAddress() + " is junking us. Drop it."));
-                        return;
+                HashSet<Sha256Hash> missingTxHashes = new HashSet<Sha256Hash>();
+                for (In in : tx.getIns()) {
+                    if (!AbstractDb.txProvider.isExist(in.getPrevTxHash())) {
+                        missingTxHashes.add(new Sha256Hash(in.getPrevTxHash()));
                     }
                 }
-            }
-
-            // check dependency
-            HashMap<Sha256Hash, Tx> dependency = AbstractDb.txProvider.getTxDependencies(tx);
-            HashSet<Sha256Hash> needToRequest = new HashSet<Sha256Hash>();
-            boolean valid = true;
-            for (int i = 0;
-                 i < tx.getIns().size();
-                 i++) {
-                Tx prevTx = dependency.get(new Sha256Hash(tx.getIns().get(i).getPrevTxHash()));
-                if (prevTx == null) {
-                    needToRequest.add(new Sha256Hash(tx.getIns().get(i).getPrevTxHash()));
+                if (missingTxHashes.size() == 0) {
+                    PeerManager.instance().relayedTransaction(this, tx, false);
                 } else {
-                    if (prevTx.getOuts().size() <= tx.getIns().get(i).getInSn()) {
-                        valid = false;
-                        break;
-                    }
-                    byte[] outScript = prevTx.getOuts().get(tx.getIns().get(i).getInSn())
-                            .getOutScript();
-                    Script pubKeyScript = new Script(outScript);
-                    Script script = new Script(tx.getIns().get(i).getInSignature());
-                    try {
-                        script.correctlySpends(tx, i, pubKeyScript, true);
-                        valid &= true;
-                    } catch (ScriptException e) {
-                        valid &= false;
-                    }
-                    if (!valid) {
-                        break;
-                    }
+                    addOrphanTx(tx, missingTxHashes);
                 }
             }
-            try {
-                tx.verify();
-                valid &= true;
-            } catch (VerificationException e) {
-                valid &= false;
+        }
+    }
+
+    /**
+     * Parks the tx until its parents arrive, they are requested in one getdata with the parents
+     * of all txs received in the same read, see {@link #messagesProcessed()}.
+     */
+    private void addOrphanTx(Tx tx, Set<Sha256Hash> missingTxHashes) {
+        Sha256Hash txHash = new Sha256Hash(tx.getTxHash());
+        if (orphanTxs.containsKey(txHash)) {
+            return;
+        }
+        // make room for it
+        expireOrphanTxs(MAX_ORPHAN_TX_COUNT - 1);
+        orphanTxs.put(txHash, new OrphanTx(tx, System.currentTimeMillis()));
+        for (Sha256Hash hash : missingTxHashes) {
+            HashSet<Tx> txs = needToRequestDependencyDict.get(hash);
+            if (txs == null) {
+                txs = new HashSet<Tx>();
+                needToRequestDependencyDict.put(hash, txs);
+                dependencyTxHashesToRequest.add(hash);
             }
-            if (valid && needToRequest.size() == 0) {
-                PeerManager.instance().relayedTransaction(this, tx);
-                checkDependencyWith(tx);
-            } else if (valid && needToRequest.size() > 0) {
-                for (Sha256Hash txHash : needToRequest) {
-                    if (needToRequestDependencyDict.get(txHash) == null) {
-                        HashSet<Tx> txs = new HashSet<Tx>();
-                        txs.add(tx);
-                        needToRequestDependencyDict.put(txHash, txs);
-                    } else {
-                        HashSet<Tx> txs = needToRequestDependencyDict.get(txHash);
-                        txs.add(tx);
-                    }
-                }
-                sendGetDataMessageWithTxHashesAndBlockHashes(new ArrayList<Sha256Hash>
-                        (needToRequest), null);
+            txs.add(tx);
+        }
+    }
+
+    /**
+     * Releases the orphans older than ORPHAN_TX_EXPIRY and the oldest ones above maxCount. The
+     * orphans are in arrival order, so this stops at the first one to keep.
+     */
+    private void expireOrphanTxs(int maxCount) {
+        long now = System.currentTimeMillis();
+        Iterator<OrphanTx> iterator = orphanTxs.values().iterator();
+        while (iterator.hasNext()) {
+            OrphanTx orphan = iterator.next();
+            if (orphanTxs.size() <= maxCount && now - orphan.time < ORPHAN_TX_EXPIRY) {
+                break;
+            }
+            iterator.remove();
+            releaseOrphanTx(orphan.tx);
+        }
+    }
+
+    /**
+     * Relays an orphan whose parents did not arrive in time without checking them, as if they
+     * were not found.
+     */
+    private void releaseOrphanTx(Tx tx) {
+        Iterator<HashSet<Tx>> iterator = needToRequestDependencyDict.values().iterator();
+        while (iterator.hasNext()) {
+            HashSet<Tx> set = iterator.next();
+            set.remove(tx);
+            if (set.size() == 0) {
+                iterator.remove();
             }
-            */
+        }
+        log.info("peer[{}:{}] parents of tx {} timed out", this.peerAddress.getHostAddress(),
+                 this.peerPort, Utils.hashToString(tx.getTxHash()));
+        PeerManager.instance().relayedTransaction(this, tx, false);
+    }
+
+    @Override
+    protected void messagesProcessed() {
+        // after every read and not only when the next orphan comes, so an orphan whose parents
+        // never arrive is released once a block or any other message is received
+        expireOrphanTxs(MAX_ORPHAN_TX_COUNT);
+        if (dependencyTxHashesToRequest.size() > 0) {
+            ArrayList<Sha256Hash> txHashes = new ArrayList<Sha256Hash>(dependencyTxHashesToRequest);
+            dependencyTxHashesToRequest.clear();
+            log.info("peer[{}:{}] request {} parent txs", this.peerAddress.getHostAddress(),
+                     this.peerPort, txHashes.size());
+            sendGetDataMessageWithTxHashesAndBlockHashes(txHashes, null);
         }
     }
 
@@ -725,45 +1105,42 @@ public class Peer extends PeerSocketHandler {
         }
 
         try {
-            int    lastBlockTime = 0;
-            byte[] firstHash     = m.getBlockHeaders().get(0).getBlockHash();
-            byte[] lastHash      = m.getBlockHeaders().get(m.getBlockHeaders().size() - 1).getBlockHash();
-//            ArrayList<Block> blocksToRelay = new ArrayList<Block>();
-//            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
-//                blocksToRelay.add(m.getBlockHeaders().get(i));
-//            }
-//            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
-//                BlockMessage header = m.getBlockHeaders().get(i);
-//                // Process headers until we pass the fast catchup time,
-//                // or are about to catch up with the head
-//                // of the chain - always process the last block as a full/filtered block to kick
-//                // us out of the
-//                // fast catchup mode (in which we ignore new blocks).
-//
-//                boolean passedTime = header.getBlock().getBlockTime() >= PeerManager.instance()
-//                        .earliestKeyTime;
-//                boolean reachedTop = PeerManager.instance().getLastBlockHeight() >= this
-//                        .versionLastBlockHeight;
-//                if (!passedTime && !reachedTop) {
-//                    if (header.getBlock().getBlockTime() > lastBlockTime) {
-//                        lastBlockTime = header.getBlock().getBlockTime();
-//                        if (lastBlockTime + 7 * 24 * 60 * 60 >= PeerManager.instance()
-//                                .earliestKeyTime - 2 * 60 * 60) {
-//                            lastHash = header.getBlock().getBlockHash();
-//                        }
-//                    }
-//                    if(!blocksToRelay.contains(header.getBlock())){
-//                        blocksToRelay.add(header.getBlock());
-//                    }
-//                }
-//            }
-            PeerManager.instance().relayedBlockHeadersForMainChain(this, m.getBlockHeaders());
-//            if (lastBlockTime + 7 * 24 * 60 * 60 >= PeerManager.instance().earliestKeyTime - 2 *
-//                    60 * 60) {
-//                sendGetBlocksMessage(Arrays.asList(new byte[][]{lastHash, firstHash}), null);
-//            } else {
-            sendGetHeadersMessage(Arrays.asList(new byte[][]{lastHash, firstHash}), null);
-//            }
+            List<Block> headers   = m.getBlockHeaders();
+            byte[]      firstHash = headers.get(0).getBlockHash();
+            byte[]      lastHash  = headers.get(headers.size() - 1).getBlockHash();
+            // proof of work and timestamps, linkage and difficulty are checked by BlockChain
+            for (Block header : headers) {
+                header.verifyHeader();
+            }
+            if (PeerManager.instance().isCompactFilterMode() && PeerManager.instance()
+                    .isSyncingFilteredBlocks()) {
+                // past the fast catchup we only ask for the headers of unmatched blocks
+                processCompactFilterHeaders(headers);
+                return;
+            }
+            // Headers are all we need until the wallet birthday, from there on we need the
+            // filtered blocks. The headers before it are relayed first, PeerManager then
+            // continues with getblocks from the new chain head.
+            long fastCatchupTime = PeerManager.instance().getFastCatchupTime();
+            int  passedIndex     = -1;
+            if (getDownloadData() && !PeerManager.instance().isSyncingFilteredBlocks()) {
+                for (int i = 0; i < headers.size(); i++) {
+                    if (headers.get(i).getBlockTime() >= fastCatchupTime) {
+                        passedIndex = i;
+                        break;
+                    }
+                }
+            }
+            if (passedIndex < 0) {
+                PeerManager.instance().relayedBlockHeadersForMainChain(this, headers);
+                sendGetHeadersMessage(Arrays.asList(new byte[][]{lastHash, firstHash}), null);
+            } else {
+                if (passedIndex > 0) {
+                    PeerManager.instance().relayedBlockHeadersForMainChain(this, new
+                            ArrayList<Block>(headers.subList(0, passedIndex)));
+                }
+                PeerManager.instance().fastCatchupPassed(this);
+            }
         } catch (VerificationException e) {
             log.warn("Block header verification failed", e);
         }
@@ -782,6 +1159,13 @@ public class Peer extends PeerSocketHandler {
             close();
             return;
         }
+        if (PeerManager.instance().isCompactFilterMode() && (version.localServices &
+                VersionMessage.NODE_COMPACT_FILTERS) == 0) {
+            log.info("Peer " + getPeerAddress().getHostAddress() + " serves no compact filters, " +
+                             "give up.");
+            close();
+            return;
+        }
         peerServices = version.localServices;
         peerTimestamp = (int) version.time;
         userAgent = version.subVer;
@@ -811,10 +1195,19 @@ public class Peer extends PeerSocketHandler {
                 pingStartTime = 0;
             }
             log.info("Peer " + getPeerAddress().getHostAddress() + " receive pong, ping time: " + pingTime);
+            if (creditWaiting) {
+                byte[] lastBlockHash = creditWaitingBlockHash;
+                creditWaiting = false;
+                creditWaitingBlockHash = null;
+                fillBlockDataWindow(lastBlockHash);
+            } else if (this.synchronising) {
+                // PeerManager pings syncing peers when there are new blocks to download
+                fillBlockDataWindow(null);
+            }
         }
     }
 
-    private void ping() {
+    void ping() {
         if (state != State.Connected) {
             return;
         }
@@ -855,14 +1248,26 @@ public class Peer extends PeerSocketHandler {
         if (state != State.Connected) {
             return;
         }
-        filterBlockCount = 0;
+        if (PeerManager.instance().isCompactFilterMode()) {
+            // nothing to load, the peer is ready for our block requests all the same
+            bloomFilterSent = true;
+            return;
+        }
         log.info("Peer {} send bloom filter", getPeerAddress().getHostAddress());
         bloomFilterSent = true;
         sendMessage(filter);
     }
 
+    public void sendFilterAddMessage(byte[] data) {
+        if (state != State.Connected || !bloomFilterSent) {
+            return;
+        }
+        sendMessage(new FilterAddMessage(data));
+    }
+
     public void sendMemPoolMessage() {
-        if (state != State.Connected) {
+        if (state != State.Connected || PeerManager.instance().isCompactFilterMode()) {
+            // without a bloom filter the mempool would be the whole of it
             return;
         }
         sendMessage(new MemoryPoolMessage());
@@ -876,37 +1281,35 @@ public class Peer extends PeerSocketHandler {
     }
 
     public void sendInvMessageWithTxHash(Sha256Hash txHash) {
-        if (state != State.Connected) {
+        sendInvMessageWithTxHashes(Collections.singletonList(txHash));
+    }
+
+    public void sendInvMessageWithTxHashes(List<Sha256Hash> txHashes) {
+        if (state != State.Connected || txHashes.size() == 0) {
             return;
         }
-        InventoryMessage m  = new InventoryMessage();
-        Tx               tx = AbstractDb.txProvider.getTxDetailByTxHash(txHash.getBytes());
-        if (tx == null) {
-            tx = AbstractDb.txProvider.getTxDetailByTxHash(txHash.getBytes());
-        }
-        if (tx == null) {
-            return;
+        InventoryMessage m = new InventoryMessage();
+        for (Sha256Hash txHash : txHashes) {
+            m.addItem(new InventoryItem(InventoryItem.Type.Transaction, txHash.getBytes()));
         }
-        m.addTransaction(tx);
-        log.info("Peer {} send inv with tx {}", getPeerAddress().getHostAddress(),
-                 Utils.hashToString(txHash.getBytes()));
+        log.info("Peer {} send inv with {} tx, first {}", getPeerAddress().getHostAddress(),
+                 txHashes.size(), Utils.hashToString(txHashes.get(0).getBytes()));
         sendMessage(m);
     }
 
-    public void refetchBlocksFrom(Sha256Hash blockHash) {
-        if (!currentBlockHashes.contains(blockHash)) {
+    /**
+     * Requests every block of the window again after the filter changed, the copies requested
+     * with the old filter are replaced by the new ones when they arrive.
+     */
+    public void refetchBlocks() {
+        // a compact filter still on its way is matched with the new filter already
+        List<Sha256Hash> blockHashes = inFlightBlocks.refetch(compactFilterBlockNos.keySet());
+        if (blockHashes.size() == 0) {
             return;
         }
-        Iterator<Sha256Hash> iterator = currentBlockHashes.iterator();
-        while (iterator.hasNext()) {
-            Sha256Hash hash = iterator.next();
-            iterator.remove();
-            if (blockHash.equals(hash)) {
-                break;
-            }
-        }
-        log.info("Peer {} refetch {} blocks from {}", getPeerAddress().getHostAddress(), currentBlockHashes.size(), Utils.hashToString(blockHash.getBytes()));
-        sendGetDataMessageWithTxHashesAndBlockHashes(null, new ArrayList<Sha256Hash>(currentBlockHashes));
+        log.info("Peer {} refetch {} blocks from {}", getPeerAddress().getHostAddress(),
+                 blockHashes.size(), Utils.hashToString(blockHashes.get(0).getBytes()));
+        sendGetDataMessageWithTxHashesAndBlockHashes(null, blockHashes);
     }
 
     public void sendGetHeadersMessage(List<byte[]> locators, byte[] hashStop) {
@@ -950,6 +1353,16 @@ public class Peer extends PeerSocketHandler {
         if (state != State.Connected) {
             return;
         }
+        if (PeerManager.instance().isCompactFilterMode() && blockHashes != null && blockHashes
+                .size() > 0) {
+            // the compact filters decide between the full block and just the header
+            requestedBlockHashes.addAll(blockHashes);
+            sendGetCompactFilterMessages(blockHashes);
+            if (txHashes == null || txHashes.size() == 0) {
+                return;
+            }
+            blockHashes = null;
+        }
         GetDataMessage m = new GetDataMessage();
         if (blockHashes != null) {
             for (Sha256Hash hash : blockHashes) {
@@ -967,14 +1380,6 @@ public class Peer extends PeerSocketHandler {
             blochHashCount = blockHashes.size();
         }
 
-        if (filterBlockCount + blochHashCount > BLOOMFILTER_UPDATE_BLOCK_INTERVAL) {
-            log.info("{} rebuilding bloom filter after {} blocks",
-                     getPeerAddress().getHostAddress(), filterBlockCount);
-            PeerManager.instance().requestBloomFilterRecalculate();
-            sendFilterLoadMessage(PeerManager.instance().bloomFilterForPeer(this));
-        }
-
-        filterBlockCount += blochHashCount;
         log.info("Peer {} send get data message with {} tx and & {} block",
                  getPeerAddress().getHostAddress(), txHashes == null ? 0 : txHashes.size(),
                  blochHashCount);
@@ -983,7 +1388,9 @@ public class Peer extends PeerSocketHandler {
 
 
     public void connectFail() {
-        AbstractDb.peerProvider.removePeer(getPeerAddress());
+        // keep it in the address book, a lost network should not cost us the peers we know
+        peerConnectedCnt = peerConnectedCnt == 0 ? 2 : peerConnectedCnt + 1;
+        AbstractDb.peerProvider.connectFail(getPeerAddress());
     }
 
     public void connectError() {
@@ -996,6 +1403,9 @@ public class Peer extends PeerSocketHandler {
         peerTimestamp = (int) (System.currentTimeMillis() / 1000);
         AbstractDb.peerProvider.connectSucceed(getPeerAddress());
         sendFilterLoadMessage(PeerManager.instance().bloomFilterForPeer(this));
+        if (PeerManager.instance().isCompactFilterMode()) {
+            sendGetCompactFilterCheckpoint();
+        }
     }
 
     @Override
@@ -1084,6 +1494,40 @@ public class Peer extends PeerSocketHandler {
         this.peerConnectedCnt = peerConnectedCnt;
     }
 
+    public int getPeerScore() {
+        return peerScore;
+    }
+
+    public void setPeerScore(int peerScore) {
+        this.peerScore = peerScore;
+    }
+
+    /**
+     * Scores what we measured of the peer in this session, higher is better. Slow pings, slow
+     * merkleblocks, connect failures and a height behind bestBlockHeight all cost points.
+     */
+    public int calculateScore(long bestBlockHeight) {
+        int score = MAX_PEER_SCORE;
+        // up to 500 points each for the round trip and the time per merkleblock
+        score -= pingTime > 0 ? Math.min(pingTime, 2000) / 4 : 250;
+        if (blockIntervalTime > 0) {
+            score -= Math.min(blockIntervalTime, 2000) / 4;
+        }
+        score -= Math.max(peerConnectedCnt - 1, 0) * 100;
+        if (bestBlockHeight > versionLastBlockHeight) {
+            score -= Math.min(bestBlockHeight - versionLastBlockHeight, 10) * 50;
+        }
+        return score;
+    }
+
+    /**
+     * Moves the persisted score halfway towards {@link #calculateScore(long)} and saves it.
+     */
+    public void updatePeerScore(long bestBlockHeight) {
+        peerScore = (peerScore + calculateScore(bestBlockHeight)) / 2;
+        AbstractDb.peerProvider.updatePeerScore(getPeerAddress(), peerScore);
+    }
+
     public long getVersionLastBlockHeight() {
         return versionLastBlockHeight;
     }
@@ -1121,4 +1565,14 @@ public class Peer extends PeerSocketHandler {
             this.synchronising = synchronising;
         }
     }
+
+    private static class OrphanTx {
+        final Tx   tx;
+        final long time;
+
+        OrphanTx(Tx tx, long time) {
+            this.tx = tx;
+            this.time = time;
+        }
+    }
 }
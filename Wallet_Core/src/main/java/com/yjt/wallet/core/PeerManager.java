@@ -20,9 +20,14 @@ import com.yjt.wallet.core.contant.AbstractApp;
 import com.yjt.wallet.core.contant.BitherjSettings;
 import com.yjt.wallet.core.db.AbstractDb;
 import com.yjt.wallet.core.exception.ProtocolException;
+import com.yjt.wallet.core.message.FilterAddMessage;
 import com.yjt.wallet.core.net.NioClientManager;
+import com.yjt.wallet.core.net.PeerMetrics;
+import com.yjt.wallet.core.utils.BoundedLinkedHashMap;
 import com.yjt.wallet.core.utils.DnsDiscovery;
+import com.yjt.wallet.core.utils.LatencyHistogram;
 import com.yjt.wallet.core.utils.Sha256Hash;
+import com.yjt.wallet.core.utils.TimerWheel;
 import com.yjt.wallet.core.utils.Utils;
 
 import org.slf4j.Logger;
@@ -33,19 +38,23 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class PeerManager {
 
@@ -57,6 +66,24 @@ public class PeerManager {
     private static final int MaxPeerCount      = 100;
     private static final int MaxConnectFailure = 20;
 
+    // block times may be off, so filtered blocks start a while before the earliest key time
+    private static final int FAST_CATCHUP_TIME_MARGIN = 7 * 24 * 60 * 60;
+
+    // filters are reloaded instead of extended with filteradd once they match more than this
+    private static final double MAX_BLOOM_FILTER_FP_RATE = BloomFilter
+            .DEFAULT_BLOOM_FILTER_FP_RATE * 10;
+
+    // peers may request more data while no more tasks than this are queued
+    private static final int MAX_CREDIT_WAITING_TASK_COUNT = 1;
+
+    // peer scores are updated this often during sync, a syncing peer below SLOW_PEER_SCORE is
+    // then replaced by the next best one
+    private static final int PEER_SCORE_INTERVAL = 60 * 1000;
+    private static final int SLOW_PEER_SCORE     = 0;
+
+    // relay counts are kept for the latest wallet txs only, confirmation removes them earlier
+    private static final int MAX_TX_RELAY_COUNT = 5000;
+
     private static Object newInstanceLock = new Object();
 
     private static PeerManager instance;
@@ -66,25 +93,48 @@ public class PeerManager {
     private AtomicBoolean running;
     private AtomicBoolean connected;
 
-    private long tweak, syncStartHeight, filterUpdateHeight;
+    private long tweak, syncStartHeight;
     private long lastRelayTime;
-//    public long earliestKeyTime;
-
-    private BloomFilter bloomFilter;
-    private int         bloomFilterElementCount;
-    private double      filterFpRate;
+    private long lastPeerScoreTime;
+
+    // every peer gets a filter with its own tweak
+    private final ConcurrentHashMap<Peer, BloomFilter> bloomFilters;
+    // the false positive rate measured for the filter of each peer, see updateFilterFpRate()
+    private final ConcurrentHashMap<Peer, Double>      filterFpRates;
+    // the filter state is read and written from the peers' decoder threads
+    private volatile int                               bloomFilterElementCount;
+    private volatile long                              filterUpdateHeight;
+    // outpoints of the non HD wallet outs, loaded from the db once and then kept up to date by
+    // relayedTransaction, guarded by itself
+    private final List<byte[]>                         walletOutpoints;
+    private       boolean                              walletOutpointsLoaded;
+    private volatile CompactFilterMatcher              compactFilterMatcher;
+    private final    CompactFilterHeaderChain          compactFilterHeaderChain;
 
     private       int                                connectFailure;
     private final HashSet<Peer>                      connectedPeers;
     private final HashSet<Peer>                      abandonPeers;
     private final HashMap<Sha256Hash, HashSet<Peer>> txRelays;
-    private final HashMap<Sha256Hash, Tx>            publishedTx;
+    // read by the peers' decoder threads
+    private final ConcurrentHashMap<Sha256Hash, Tx>  publishedTx;
+    private final TxBroadcaster                      txBroadcaster;
+    private final HashSet<Peer>                      creditWaitingPeers;
+    // candidates to dial next
+    private final LinkedList<Peer>                   dialCandidates;
+    private       TimerWheel.Timeout                 dialTimer;
 
     private boolean synchronizing;
     private Peer    downloadingPeer;
 
-    private Timer                      syncTimeOutTimer;
-    private HashMap<Sha256Hash, Timer> publishTxTimeoutTimers;
+    private final BlockDownloadScheduler blockDownloadScheduler;
+
+    private TimerWheel.Timeout syncTimeOutTimer;
+    private TimerWheel.Timeout broadcastTimer;
+
+    // sum of the metrics of all peers ever connected
+    private final PeerMetrics                   metrics;
+    private final List<MetricsListener>         metricsListeners;
+    private       TimerWheel.Timeout            metricsSnapshotTimer;
 
     private boolean onlyBroadcasting = false;
 
@@ -104,11 +154,25 @@ public class PeerManager {
         connected = new AtomicBoolean(false);
         connectedPeers = new HashSet<Peer>();
         abandonPeers = new HashSet<Peer>();
-        txRelays = new HashMap<Sha256Hash, HashSet<Peer>>();
-        publishedTx = new HashMap<Sha256Hash, Tx>();
+        txRelays = new BoundedLinkedHashMap<Sha256Hash, HashSet<Peer>>(MAX_TX_RELAY_COUNT);
+        publishedTx = new ConcurrentHashMap<Sha256Hash, Tx>();
+        txBroadcaster = new TxBroadcaster();
+        bloomFilters = new ConcurrentHashMap<Peer, BloomFilter>();
+        filterFpRates = new ConcurrentHashMap<Peer, Double>();
+        walletOutpoints = new ArrayList<byte[]>();
+        blockDownloadScheduler = new BlockDownloadScheduler();
+        compactFilterHeaderChain = new CompactFilterHeaderChain();
         tweak = new Random().nextLong();
-//        earliestKeyTime = new Date().getTime() / 1000;//TODO how to set this field
-        executor = new PeerManagerExecutorService();
+        creditWaitingPeers = new HashSet<Peer>();
+        dialCandidates = new LinkedList<Peer>();
+        metrics = new PeerMetrics();
+        metricsListeners = new CopyOnWriteArrayList<MetricsListener>();
+        executor = new PeerManagerExecutorService(new Runnable() {
+            @Override
+            public void run() {
+                grantCredits();
+            }
+        });
         initPublishedTx();
     }
 
@@ -132,7 +196,7 @@ public class PeerManager {
     public void start() {
         if (!running.getAndSet(true)) {
             log.info("peer manager start");
-            bloomFilter = null;
+            bloomFilters.clear();
             if (this.connectFailure >= MAX_CONNECT_FAILURE_COUNT) {
                 this.connectFailure = 0;
             }
@@ -144,6 +208,7 @@ public class PeerManager {
                 }
                 connectedPeers.clear();
             }
+            scheduleMetricsSnapshot();
             reconnect();
         } else {
             log.info("peer manager call start, but it is connected already");
@@ -153,9 +218,10 @@ public class PeerManager {
     public void stop() {
         if (running.getAndSet(false)) {
             log.info("peer manager stop");
+            cancelMetricsSnapshot();
             if (connected.getAndSet(false)) {
                 AbstractApp.notificationService.removeBroadcastPeerState();
-                bloomFilter = null;
+                bloomFilters.clear();
                 sendConnectedChangeBroadcast();
                 executor.getQueue().clear();
                 executor.submit(new Runnable() {
@@ -206,16 +272,22 @@ public class PeerManager {
                 if (connectedPeers.size() >= getMaxPeerConnect()) {
                     return;
                 }
-                HashSet<Peer> peers = bestPeers();
-                for (Peer p : peers) {
-                    if (connectedPeers.size() >= getMaxPeerConnect()) {
-                        break;
-                    }
+                dialCandidates.clear();
+                for (Peer p : bestPeers()) {
                     if (!connectedPeers.contains(p)) {
-                        connectedPeers.add(p);
-                        p.connect();
+                        dialCandidates.add(p);
                     }
                 }
+                // the missing peers at once, more candidates staggered by the dial timer
+                int dialCount = Math.min(getMaxPeerConnect() - countPeers(Peer.State.Connected),
+                        BitherjSettings.MAX_HALF_OPEN_CONNECTIONS) - countPeers(Peer.State
+                        .Connecting);
+                for (int i = 0;
+                     i < dialCount && dialCandidates.size() > 0;
+                     i++) {
+                    dialNextCandidate();
+                }
+                scheduleDialTimer();
                 sendPeerCountChangeNotification();
                 if (connectedPeers.size() == 0) {
                     stop();
@@ -228,25 +300,101 @@ public class PeerManager {
         return new ArrayList<Peer>(connectedPeers);
     }
 
+    private int countPeers(Peer.State state) {
+        int count = 0;
+        for (Peer p : connectedPeers) {
+            if (p.state == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void dialNextCandidate() {
+        Peer p = dialCandidates.poll();
+        if (!connectedPeers.contains(p)) {
+            connectedPeers.add(p);
+            p.dialCancelled = false;
+            p.connect();
+        }
+    }
+
+    private void scheduleDialTimer() {
+        cancelDialTimer();
+        if (dialCandidates.size() == 0) {
+            return;
+        }
+        dialTimer = TimerWheel.instance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        dialTimer = null;
+                        if (!running.get() || countPeers(Peer.State.Connected) >=
+                                getMaxPeerConnect()) {
+                            return;
+                        }
+                        if (countPeers(Peer.State.Connecting) < BitherjSettings
+                                .MAX_HALF_OPEN_CONNECTIONS && dialCandidates.size() > 0) {
+                            dialNextCandidate();
+                            sendPeerCountChangeNotification();
+                        }
+                        scheduleDialTimer();
+                    }
+                });
+            }
+        }, BitherjSettings.CONNECT_STAGGER_DELAY);
+    }
+
+    private void cancelDialTimer() {
+        if (dialTimer != null) {
+            dialTimer.cancel();
+            dialTimer = null;
+        }
+    }
+
+    /**
+     * Drops the dials still in progress once enough peers completed their handshake.
+     */
+    private void cancelSurplusDials() {
+        if (countPeers(Peer.State.Connected) < getMaxPeerConnect()) {
+            return;
+        }
+        dialCandidates.clear();
+        cancelDialTimer();
+        Iterator<Peer> iterator = connectedPeers.iterator();
+        while (iterator.hasNext()) {
+            Peer p = iterator.next();
+            if (p.state == Peer.State.Connecting) {
+                iterator.remove();
+                p.dialCancelled = true;
+                // its handshake timeout would report it again once its socket is closed
+                p.setTimeoutEnabled(false);
+                p.disconnect();
+            }
+        }
+    }
+
     private HashSet<Peer> bestPeers() {
-        HashSet<Peer> peers = new HashSet<Peer>();
-        peers.addAll(AbstractDb.peerProvider.getPeersWithLimit(getMaxPeerConnect()));
+        // keeps the order of the address book
+        HashSet<Peer> peers = new LinkedHashSet<Peer>();
+        // the connected peers come back from the address book too
+        int limit = getMaxPeerConnect() + connectedPeers.size();
+        peers.addAll(AbstractDb.peerProvider.getPeersWithLimit(limit));
         log.info("{} dbpeers", peers.size());
-        if (peers.size() < getMaxPeerConnect()) {
-            AbstractDb.peerProvider.recreate();
-            AbstractDb.peerProvider.addPeers(new ArrayList<Peer>(peers));
-            if (getPeersFromDns().size() > 0) {
-                peers.clear();
-                peers.addAll(AbstractDb.peerProvider.getPeersWithLimit(getMaxPeerConnect()));
-            }
+        if (peers.size() < limit && getPeersFromDns(limit - peers.size()).size() > 0) {
+            peers.clear();
+            peers.addAll(AbstractDb.peerProvider.getPeersWithLimit(limit));
         }
         log.info("{} totalpeers", peers.size());
         return peers;
     }
 
-    private HashSet<Peer> getPeersFromDns() {
+    private HashSet<Peer> getPeersFromDns(int wantedCount) {
         HashSet<Peer> peers = new HashSet<Peer>();
-        Peer[]        ps    = DnsDiscovery.instance().getPeers(5, TimeUnit.SECONDS);
+        Peer[]        ps    = DnsDiscovery.instance().getPeers(wantedCount, BitherjSettings
+                .DNS_SEED_TIMEOUT, TimeUnit.MILLISECONDS);
         Collections.addAll(peers, ps);
         AbstractDb.peerProvider.addPeers(new ArrayList<Peer>(peers));
         return peers;
@@ -300,6 +448,19 @@ public class PeerManager {
                 publishedTx.remove(new Sha256Hash(hash));
                 txRelays.remove(new Sha256Hash(hash));
             }
+            txBroadcaster.remove(txHashes);
+        }
+    }
+
+    /**
+     * One balance refresh per address for a whole reorg, however many blocks and txs it
+     * switched.
+     */
+    private void notifyChainReorganized(Block oldLastBlock) {
+        log.info("Main chain reorganized, old head No.{} replaced by No.{}", oldLastBlock
+                .getBlockNo(), getLastBlockHeight());
+        for (Address address : AddressManager.getInstance().getAllAddresses()) {
+            address.setBlockHeight(null, (int) getLastBlockHeight());
         }
     }
 
@@ -320,17 +481,14 @@ public class PeerManager {
             }
             log.info("Peer {} connected", peer.getPeerAddress().getHostAddress());
             connectFailure = 0;
-            bloomFilter = null;
+            requestBloomFilterRecalculate(peer);
             executor.submit(new Runnable() {
                 @Override
                 public void run() {
+                    cancelSurplusDials();
                     peer.connectSucceed();
                     if (isOnlyBroadcasting()) {
-                        for (Tx tx : publishedTx.values()) {
-                            if (tx.getSource() > 0 && tx.getSource() <= MaxPeerCount) {
-                                peer.sendInvMessageWithTxHash(new Sha256Hash(tx.getTxHash()));
-                            }
-                        }
+                        announcePublishedTxs(peer);
                         return;
                     }
                     if (!doneSyncFromSPV() && getLastBlockHeight() >= peer.getVersionLastBlockHeight()) {
@@ -341,22 +499,25 @@ public class PeerManager {
                             getLastBlockHeight() >= peer.getVersionLastBlockHeight())) {
                         if (downloadingPeer != null && getLastBlockHeight() < downloadingPeer
                                 .getVersionLastBlockHeight()) {
+                            addSyncPeer(peer);
                             return; // don't load bloom filter yet if we're syncing
                         }
                         peer.sendFilterLoadMessage(bloomFilterForPeer(peer));
-                        for (Tx tx : publishedTx.values()) {
-                            if (tx.getSource() > 0 && tx.getSource() <= MaxPeerCount) {
-                                peer.sendInvMessageWithTxHash(new Sha256Hash(tx.getTxHash()));
-                            }
-                        }
+                        announcePublishedTxs(peer);
                         peer.sendMemPoolMessage();
                         return; // we're already connected to a download peer
                     }
+                    // the best scoring of the peers with the highest chain
                     Peer dp = peer;
+                    long bestHeight = peer.getVersionLastBlockHeight();
                     for (Peer p : connectedPeers) {
-                        if ((p.pingTime < dp.pingTime && p.getVersionLastBlockHeight() >= dp
-                                .getVersionLastBlockHeight()) || p.getVersionLastBlockHeight() >
-                                dp.getVersionLastBlockHeight()) {
+                        bestHeight = Math.max(bestHeight, p.getVersionLastBlockHeight());
+                    }
+                    for (Peer p : connectedPeers) {
+                        if (p.getVersionLastBlockHeight() > dp.getVersionLastBlockHeight() || (p
+                                .getVersionLastBlockHeight() == dp.getVersionLastBlockHeight() &&
+                                getExpectedScore(p, bestHeight) > getExpectedScore(dp,
+                                                                                   bestHeight))) {
                             dp = p;
                         }
                     }
@@ -374,9 +535,8 @@ public class PeerManager {
                     // the external gap limit for both
                     // address chains)
 
-                    bloomFilter = null; // make sure the bloom filter is updated with any newly
-                    // generated addresses
-                    dp.sendFilterLoadMessage(bloomFilterForPeer(dp));
+                    // make sure the bloom filter is updated with any newly generated addresses
+                    reloadBloomFilter(dp);
 
                     if (getLastBlockHeight() < dp.getVersionLastBlockHeight()) {
 
@@ -384,15 +544,22 @@ public class PeerManager {
                         synchronizing = true;
 
                         scheduleTimeoutTimer(BitherjSettings.PROTOCOL_TIMEOUT);
-                        if (doneSyncFromSPV()) {
+                        downloadingPeer.setSynchronising(true);
+                        if (isSyncingFilteredBlocks()) {
+                            blockDownloadScheduler.reset((int) getLastBlockHeight());
+                            blockDownloadScheduler.setBlockHashesRequested();
                             dp.sendGetBlocksMessage(BlockChain.getInstance().getBlockLocatorArray
                                     (), null);
                         } else {
                             dp.sendGetHeadersMessage(BlockChain.getInstance()
                                                              .getBlockLocatorArray(), null);
                         }
-                        downloadingPeer.setSynchronising(true);
                         syncStartHeight = getLastBlockHeight();
+                        for (Peer p : connectedPeers) {
+                            if (p != dp && p.state == Peer.State.Connected) {
+                                addSyncPeer(p);
+                            }
+                        }
                         sendSyncProgress();
                     } else { // we're already synced
                         downloadingPeer.setSynchronising(false);
@@ -415,17 +582,15 @@ public class PeerManager {
     private void syncStopped() {
         synchronizing = false;
         syncStartHeight = 0;
+        blockDownloadScheduler.reset((int) getLastBlockHeight());
 
         for (Peer p : connectedPeers) { // after syncing, load filters and get mempools from the
             // other peers
             if (p != downloadingPeer) {
+                p.setSynchronising(false);
                 p.sendFilterLoadMessage(bloomFilterForPeer(p));
             }
-            for (Tx tx : publishedTx.values()) {
-                if (tx.getSource() > 0 && tx.getSource() <= MaxPeerCount) {
-                    p.sendInvMessageWithTxHash(new Sha256Hash(tx.getTxHash()));
-                }
-            }
+            announcePublishedTxs(p);
             p.sendMemPoolMessage();
         }
         cancelTimeoutTimer();
@@ -436,6 +601,11 @@ public class PeerManager {
         executor.submit(new Runnable() {
             @Override
             public void run() {
+                if (peer.dialCancelled) {
+                    // we dropped it ourselves, it did nothing wrong, whichever of its socket,
+                    // timeout and errors reports it
+                    return;
+                }
                 if (reason == null || reason == Peer.DisconnectReason.Normal) {
                     peer.connectFail();
                 } else if (reason == Peer.DisconnectReason.Timeout) {
@@ -460,8 +630,24 @@ public class PeerManager {
 
                 sendPeerCountChangeNotification();
 
-                for (Sha256Hash txHash : txRelays.keySet()) {
-                    txRelays.get(txHash).remove(peer);
+                for (HashSet<Peer> relayPeers : txRelays.values()) {
+                    relayPeers.remove(peer);
+                }
+                bloomFilters.remove(peer);
+                filterFpRates.remove(peer);
+                synchronized (creditWaitingPeers) {
+                    creditWaitingPeers.remove(peer);
+                }
+
+                if (peer.getSynchronising() && synchronizing) {
+                    // hand its blocks to the other syncing peers
+                    blockDownloadScheduler.peerDisconnected(peer);
+                    peer.setSynchronising(false);
+                    for (Peer p : connectedPeers) {
+                        if (p.getSynchronising()) {
+                            p.ping();
+                        }
+                    }
                 }
 
                 if (downloadingPeer != null && downloadingPeer.equals(peer)) {
@@ -517,34 +703,28 @@ public class PeerManager {
                         publishedTx.put(new Sha256Hash(tx.getTxHash()), tx);
                     }
 
-                    // keep track of how many peers relay a tx, this indicates how likely it is
-                    // to be
-                    // confirmed in future blocks
-                    if (txRelays.get(new Sha256Hash(tx.getTxHash())) == null) {
-                        txRelays.put(new Sha256Hash(tx.getTxHash()), new HashSet<Peer>());
-                    }
-
-                    long count = txRelays.get(new Sha256Hash(tx.getTxHash())).size();
-                    txRelays.get(new Sha256Hash(tx.getTxHash())).add(fromPeer);
-                    if (txRelays.get(new Sha256Hash(tx.getTxHash())).size() > count) {
-                        tx.sawByPeer();
-                    }
+                    addTxRelay(fromPeer, tx);
 
+                    int addedCount = 0;
                     if (!isAlreadyInDb) {
-                        bloomFilter = null; // reset the filter so a new one will be created with
-                        // the new
-                        // wallet addresses
-
-                        for (Peer p : connectedPeers) {
-                            p.sendFilterLoadMessage(bloomFilterForPeer(p));
+                        addWalletOutpoints(tx);
+                        addedCount = updateBloomFilters();
+                        if (addedCount < 0) {
+                            // new filters are created with the new wallet addresses
+                            for (Peer p : connectedPeers) {
+                                reloadBloomFilter(p);
+                            }
                         }
                     }
 
                     // after adding addresses to the filter, re-request upcoming blocks that were
                     // requested using the old one
-                    if (downloadingPeer != null && BlockChain.getInstance().lastBlock != null) {
-                        downloadingPeer.refetchBlocksFrom(new Sha256Hash(BlockChain.getInstance()
-                                                                                 .lastBlock.getBlockHash()));
+                    if (addedCount != 0) {
+                        for (Peer p : connectedPeers) {
+                            if (p == downloadingPeer || p.getSynchronising()) {
+                                p.refetchBlocks();
+                            }
+                        }
                     }
                 }
             }
@@ -633,26 +813,25 @@ public class PeerManager {
 //            return;
 //        }
 
-        // track the observed bloom filter false positive rate using a low pass filter to smooth
-        // out variance
-        if (fromPeer == downloadingPeer && block.getTxHashes() != null && block.getTxHashes()
-                .size() > 0) {
-            // 1% low pass filter, also weights each block by total transactions,
-            // using 400 tx per block as typical
-            filterFpRate = filterFpRate * (1.0 - 0.01 * block.getTxHashes().size() / 400) + 0.01
-                    * block.getTxHashes().size() / 400;
-
-            // todo: do not check bloom filter now. may be it's useful
-        }
+        final boolean trackFpRate = block.getTxHashes() != null && block.getTotalTxCount() > 0;
 
         executor.submit(new Runnable() {
             @Override
             public void run() {
+                // the txs of the block were registered before, as they were relayed before it
+                if (trackFpRate && updateFilterFpRate(fromPeer, block) >
+                        MAX_BLOOM_FILTER_FP_RATE && updateBloomFilters() < 0) {
+                    reloadBloomFilter(fromPeer);
+                }
                 Block oldLastBlock = BlockChain.getInstance().lastBlock;
                 try {
                     if (BlockChain.getInstance().relayedBlock(block)) {
-                        if (block.getTxHashes() != null) {
+                        if (block.getTxHashes() != null && block.getTxHashes().size() > 0) {
+                            // notifies every address, a reorg included
                             setBlockHeightForTxs(block.getBlockNo(), block.getTxHashes());
+                        } else if (oldLastBlock != null && !BlockChain.getInstance()
+                                .inMainChain(oldLastBlock)) {
+                            notifyChainReorganized(oldLastBlock);
                         }
                     } else {
                         abandonPeer(fromPeer);
@@ -708,7 +887,7 @@ public class PeerManager {
         final List<Block> blockList = new ArrayList<Block>();
         blockList.addAll(blocks);
 
-        if (fromPeer == downloadingPeer) {
+        if (fromPeer == downloadingPeer || fromPeer.getSynchronising()) {
             lastRelayTime = System.currentTimeMillis();
         } else {
             return;
@@ -720,19 +899,49 @@ public class PeerManager {
                 // track the observed bloom filter false positive rate using a low pass filter to
                 // smooth out variance
 
+                // blocks of all syncing peers are put back into chain order first
+                List<Block> readyBlocks = blockDownloadScheduler.receivedBlocks(fromPeer,
+                                                                                blockList);
+                if (readyBlocks.size() == 0) {
+                    return;
+                }
+                Peer relayPeer = blockDownloadScheduler.getBlockPeer(readyBlocks.get(0));
+                blockDownloadScheduler.relayed(readyBlocks);
+                if (relayPeer == null) {
+                    relayPeer = fromPeer;
+                }
+                if (BlockChain.getInstance().getMainChainBlock(readyBlocks.get(0).getBlockPrev())
+                        == null) {
+                    // not the peer's fault, the scheduled hashes do not continue our chain
+                    log.warn("Scheduled blocks do not continue the main chain, restart download " +
+                                     "from block No.{}", getLastBlockHeight());
+                    blockDownloadScheduler.reset((int) getLastBlockHeight());
+                    if (downloadingPeer != null) {
+                        downloadingPeer.ping();
+                    }
+                    return;
+                }
+
                 try {
-                    int relayedCnt = BlockChain.getInstance().relayedBlocks(blockList);
+                    Block oldLastBlock = BlockChain.getInstance().getLastBlock();
+                    int relayedCnt = BlockChain.getInstance().relayedBlocks(readyBlocks);
                     if (relayedCnt > 0) {
+                        if (oldLastBlock != null && !BlockChain.getInstance().inMainChain
+                                (oldLastBlock)) {
+                            notifyChainReorganized(oldLastBlock);
+                        }
                         log.info("Peer {} relay {} block OK, last block No.{}, total block: {}",
-                                 fromPeer.getPeerAddress().getHostAddress(), relayedCnt,
+                                 relayPeer.getPeerAddress().getHostAddress(), relayedCnt,
                                  BlockChain.getInstance().getLastBlock().getBlockNo(),
                                  BlockChain.getInstance().getBlockCount());
                         sendSyncProgress();
-                        if (BlockChain.getInstance().getLastBlock().getBlockNo() >= fromPeer
-                                .getVersionLastBlockHeight()) {
-                            fromPeer.setSynchronising(false);
+                        if (downloadingPeer != null && BlockChain.getInstance().getLastBlock()
+                                .getBlockNo() >= downloadingPeer.getVersionLastBlockHeight()) {
+                            Peer dp = downloadingPeer;
+                            updatePeerScores(dp.getVersionLastBlockHeight());
+                            dp.setSynchronising(false);
                             syncStopped();
-                            fromPeer.sendGetAddrMessage(); // request a list of other bitcoin peers
+                            dp.sendGetAddrMessage(); // request a list of other bitcoin peers
                         }
 
                         if (BlockChain.getInstance().singleBlocks.get(BlockChain.getInstance()
@@ -741,185 +950,583 @@ public class PeerManager {
                                                                                         .getInstance().getLastBlock().getBlockHash());
                             BlockChain.getInstance().singleBlocks.remove(BlockChain.getInstance()
                                                                                  .getLastBlock().getBlockHash());
-                            relayedBlock(fromPeer, b);
+                            relayedBlock(relayPeer, b);
                         }
 
                         log.info("Peer {} relay new best block No.{}, hash: {}, txs: {}",
-                                 fromPeer.getPeerAddress().getHostAddress(),
+                                 relayPeer.getPeerAddress().getHostAddress(),
                                  BlockChain.getInstance().getLastBlock().getBlockNo(),
                                  Utils.hashToString(BlockChain.getInstance().getLastBlock()
                                                             .getBlockHash()), BlockChain.getInstance().getLastBlock()
                                          .getTxHashes() == null ? 0 : BlockChain.getInstance()
                                         .getLastBlock().getTxHashes().size());
                         AbstractApp.notificationService.sendLastBlockChange();
+                        rotateSlowSyncPeers();
                     } else {
-                        abandonPeer(fromPeer);
+                        abandonPeer(relayPeer);
                         log.info("Peer {} relay {}/{} block. drop this peer",
-                                 fromPeer.getPeerAddress().getHostAddress(), relayedCnt,
-                                 blocks.size());
+                                 relayPeer.getPeerAddress().getHostAddress(), relayedCnt,
+                                 readyBlocks.size());
                     }
                 } catch (Exception e) {
-                    abandonPeer(fromPeer);
+                    abandonPeer(relayPeer);
                     log.warn("Peer {} relay block Error. Drop it",
-                             fromPeer.getPeerAddress().getHostAddress());
+                             relayPeer.getPeerAddress().getHostAddress());
                 }
             }
         });
     }
 
+    private int getExpectedScore(Peer peer, long bestHeight) {
+        return (peer.getPeerScore() + peer.calculateScore(bestHeight)) / 2;
+    }
+
+    private void updatePeerScores(long bestHeight) {
+        for (Peer p : connectedPeers) {
+            if (p.state == Peer.State.Connected) {
+                p.updatePeerScore(bestHeight);
+            }
+        }
+    }
+
+    /**
+     * Updates the scores of the connected peers every PEER_SCORE_INTERVAL during sync, and
+     * disconnects the slowest syncing peer if it fell below SLOW_PEER_SCORE. It loses its
+     * blocks to the other syncing peers and reconnect() brings in the best stored peer.
+     */
+    private void rotateSlowSyncPeers() {
+        long now = System.currentTimeMillis();
+        if (!synchronizing || downloadingPeer == null || now - lastPeerScoreTime <
+                PEER_SCORE_INTERVAL) {
+            return;
+        }
+        lastPeerScoreTime = now;
+        updatePeerScores(downloadingPeer.getVersionLastBlockHeight());
+        Peer slowestPeer = null;
+        for (Peer p : connectedPeers) {
+            if (p.state == Peer.State.Connected && p != downloadingPeer && p.getSynchronising()
+                    && p.getPeerScore() < SLOW_PEER_SCORE && (slowestPeer == null || p
+                    .getPeerScore() < slowestPeer.getPeerScore())) {
+                slowestPeer = p;
+            }
+        }
+        if (slowestPeer != null) {
+            log.info("Peer {} is too slow with score {}, replace it", slowestPeer
+                    .getPeerAddress().getHostAddress(), slowestPeer.getPeerScore());
+            slowestPeer.disconnect();
+        }
+    }
+
+    /**
+     * Called by the downloading peer with the block hashes it got in response to getblocks.
+     */
+    public void relayedBlockHashes(final Peer fromPeer, List<Sha256Hash> blockHashes) {
+        if (!isRunning() || fromPeer != downloadingPeer) {
+            return;
+        }
+        lastRelayTime = System.currentTimeMillis();
+        if (blockDownloadScheduler.addBlockHashes(blockHashes)) {
+            // idle syncing peers pull their share once they receive the pong, connectedPeers
+            // is only read on the executor
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (Peer p : connectedPeers) {
+                        if (p != fromPeer && p.getSynchronising()) {
+                            p.ping();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    public List<Sha256Hash> takeBlockHashesToDownload(Peer peer) {
+        if (!isRunning() || !isSyncingFilteredBlocks()) {
+            return new ArrayList<Sha256Hash>();
+        }
+        return blockDownloadScheduler.takeBlockHashes(peer);
+    }
+
+    /**
+     * @return the locator hash of the next getblocks the downloading peer should send, null if
+     * none is needed now.
+     */
+    public byte[] getBlockHashToContinueSync(Peer peer) {
+        if (!isRunning() || !isSyncingFilteredBlocks() || peer != downloadingPeer) {
+            return null;
+        }
+        Block lastBlock = BlockChain.getInstance().getLastBlock();
+        return blockDownloadScheduler.getBlockHashToContinue(lastBlock == null ? null : lastBlock
+                .getBlockHash());
+    }
+
+    private void addSyncPeer(Peer peer) {
+        if (!synchronizing || !isSyncingFilteredBlocks() || downloadingPeer == null || peer
+                .getVersionLastBlockHeight() < downloadingPeer.getVersionLastBlockHeight()) {
+            return;
+        }
+        int syncPeerCount = 0;
+        for (Peer p : connectedPeers) {
+            if (p.getSynchronising()) {
+                syncPeerCount++;
+            }
+        }
+        if (syncPeerCount >= BitherjSettings.MAX_SYNC_PEER_COUNT) {
+            return;
+        }
+        log.info("Peer {} helps to download blocks", peer.getPeerAddress().getHostAddress());
+        peer.sendFilterLoadMessage(bloomFilterForPeer(peer));
+        peer.setSynchronising(true);
+        peer.ping(); // it pulls blocks to download when the pong arrives
+    }
+
     public Tx requestedTransaction(final Peer byPeer, final byte[] txHash) {
         if (!isRunning()) {
             return null;
         }
         final Tx tx = publishedTx.get(new Sha256Hash(txHash));
         if (tx != null) {
-            bloomFilter = null;
+            txBroadcaster.txRequested(byPeer, new Sha256Hash(txHash));
             executor.submit(new Runnable() {
                 @Override
                 public void run() {
-                    if (txRelays.get(new Sha256Hash(txHash)) == null) {
-                        txRelays.put(new Sha256Hash(txHash), new HashSet<Peer>());
-                    }
-                    long count = txRelays.get(new Sha256Hash(txHash)).size();
-                    txRelays.get(new Sha256Hash(txHash)).add(byPeer);
-                    if (txRelays.get(new Sha256Hash(txHash)).size() > count) {
-                        tx.sawByPeer();
-                    }
+                    addTxRelay(byPeer, tx);
                 }
             });
         }
         return tx;
     }
 
+    /**
+     * Called by a peer for every tx hash of its invs.
+     *
+     * @return true if it is our tx being broadcast, which the peer need not download.
+     */
+    public boolean txInvReceived(final Peer fromPeer, Sha256Hash txHash) {
+        if (!isRunning() || !txBroadcaster.invReceived(fromPeer, txHash)) {
+            return false;
+        }
+        final Tx tx = publishedTx.get(txHash);
+        if (tx != null) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    addTxRelay(fromPeer, tx);
+                }
+            });
+        }
+        return true;
+    }
+
+    // keep track of how many peers relay a tx, this indicates how likely it is to be confirmed
+    // in future blocks
+    private void addTxRelay(Peer peer, Tx tx) {
+        Sha256Hash hash = new Sha256Hash(tx.getTxHash());
+        HashSet<Peer> relayPeers = txRelays.get(hash);
+        if (relayPeers == null) {
+            relayPeers = new HashSet<Peer>();
+            txRelays.put(hash, relayPeers);
+        }
+        if (relayPeers.add(peer)) {
+            tx.sawByPeer();
+        }
+    }
+
+    private void announcePublishedTxs(Peer peer) {
+        ArrayList<Sha256Hash> txHashes = new ArrayList<Sha256Hash>();
+        for (Tx tx : publishedTx.values()) {
+            if (tx.getSource() > 0 && tx.getSource() <= MaxPeerCount) {
+                txHashes.add(new Sha256Hash(tx.getTxHash()));
+            }
+        }
+        peer.sendInvMessageWithTxHashes(txHashes);
+    }
+
     public BloomFilter bloomFilterForPeer(Peer peer) {
-        if (!isRunning()) {
+        if (!isRunning() || isCompactFilterMode()) {
+            // blocks are matched against compact filters, no bip37 filter is loaded
             return null;
         }
-        BloomFilter filter = getBloomFilter();
-        filterFpRate = filter.getFalsePositiveRate(bloomFilterElementCount);
+        BloomFilter filter = bloomFilters.get(peer);
+        if (filter == null) {
+            filter = buildBloomFilter(peer);
+            bloomFilters.put(peer, filter);
+        }
         filterUpdateHeight = getLastBlockHeight();
         return filter;
     }
 
     public void publishTransaction(final Tx tx) throws PublishUnsignedTxException {
-        if (!tx.isSigned()) {
-            throw new PublishUnsignedTxException();
-        }
+        publishTransactions(Collections.singletonList(tx), null);
+    }
 
-        AddressManager.getInstance().registerTx(tx, Tx.TxNotificationType.txSend, false);
+    /**
+     * Broadcasts the txs together, see {@link TxBroadcaster}. The listener, which may be null,
+     * gets the progress of each tx.
+     */
+    public void publishTransactions(final List<Tx> txs, final BroadcastListener listener) throws
+            PublishUnsignedTxException {
+        for (Tx tx : txs) {
+            if (!tx.isSigned()) {
+                throw new PublishUnsignedTxException();
+            }
+        }
 
-        publishedTx.put(new Sha256Hash(tx.getTxHash()), tx);
+        for (Tx tx : txs) {
+            AddressManager.getInstance().registerTx(tx, Tx.TxNotificationType.txSend, false);
+            publishedTx.put(new Sha256Hash(tx.getTxHash()), tx);
+        }
 
         executor.submit(new Runnable() {
             @Override
             public void run() {
-//                bloomFilter = null;
-//                for (Peer p : connectedPeers) {
-//                    p.sendFilterLoadMessage(getBloomFilter());
-//                }
-                if (connectedPeers.size() > 0) {
-                    Iterator<Peer> iterator = connectedPeers.iterator();
-                    Sha256Hash     hash     = new Sha256Hash(tx.getTxHash());
-                    if (iterator.hasNext()) {
-                        iterator.next();
-                    }
-                    while (iterator.hasNext()) {
-                        iterator.next().sendInvMessageWithTxHash(hash);
+                ArrayList<Peer> peers = new ArrayList<Peer>();
+                for (Peer p : connectedPeers) {
+                    if (p.state == Peer.State.Connected) {
+                        peers.add(p);
                     }
                 }
-                schedulePublishTxTimeoutTimer(BitherjSettings.PROTOCOL_TIMEOUT, tx.getTxHash());
+                txBroadcaster.broadcast(txs, peers, listener);
+                scheduleBroadcastTimer();
+
+                // watch the change outs of the published txs
+                for (Tx tx : txs) {
+                    addWalletOutpoints(tx);
+                }
+                if (updateBloomFilters() < 0) {
+                    reloadBloomFilters();
+                }
             }
         });
     }
 
+    /**
+     * @return the share of the target peers which saw the tx, 1 if it is not being broadcast.
+     */
+    public double getBroadcastProgress(byte[] txHash) {
+        return txBroadcaster.getProgress(new Sha256Hash(txHash));
+    }
+
+    /**
+     * Reloads the filters of the peers which have one, for wallet addresses added or removed.
+     * The outpoints of the addresses are loaded from the db again.
+     */
     public void requestBloomFilterRecalculate() {
-        bloomFilter = null;
+        synchronized (walletOutpoints) {
+            walletOutpoints.clear();
+            walletOutpointsLoaded = false;
+            compactFilterMatcher = null;
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                reloadBloomFilters();
+            }
+        });
     }
 
-    private BloomFilter getBloomFilter() {
-        if (bloomFilter == null) {
+    /**
+     * Drops the filter of the peer, the next {@link #bloomFilterForPeer(Peer)} builds a new one.
+     * The other peers keep theirs.
+     */
+    public void requestBloomFilterRecalculate(Peer peer) {
+        bloomFilters.remove(peer);
+    }
 
-            filterUpdateHeight = getLastBlockHeight();
-            filterFpRate = BloomFilter.DEFAULT_BLOOM_FILTER_FP_RATE;
+    private void reloadBloomFilter(Peer peer) {
+        bloomFilters.remove(peer);
+        peer.sendFilterLoadMessage(bloomFilterForPeer(peer));
+    }
 
-            if (downloadingPeer != null && filterUpdateHeight + 500 < downloadingPeer.getVersionLastBlockHeight()) {
-                filterFpRate = BloomFilter.BLOOM_REDUCED_FALSEPOSITIVE_RATE; // lower false
-                // positive rate during chain sync
-            } else if (downloadingPeer != null && filterUpdateHeight < downloadingPeer
-                    .getVersionLastBlockHeight()) { // partially
-                // lower fp rate if we're nearly synced
-                filterFpRate -= (BloomFilter.DEFAULT_BLOOM_FILTER_FP_RATE - BloomFilter
-                        .BLOOM_REDUCED_FALSEPOSITIVE_RATE) * (downloadingPeer
-                        .getVersionLastBlockHeight() - filterUpdateHeight) / BitherjSettings
-                        .BLOCK_DIFFICULTY_INTERVAL;
+    // the peers without a filter get a new one when they load it
+    private void reloadBloomFilters() {
+        for (Peer p : connectedPeers) {
+            if (bloomFilters.containsKey(p)) {
+                reloadBloomFilter(p);
             }
+        }
+    }
+
+    private BloomFilter buildBloomFilter(Peer peer) {
+        // computed in locals, other peers may build their filters at the same time
+        long updateHeight = getLastBlockHeight();
+        double fpRate = BloomFilter.DEFAULT_BLOOM_FILTER_FP_RATE;
+        Peer syncPeer = downloadingPeer;
+
+        if (syncPeer != null && updateHeight + 500 < syncPeer.getVersionLastBlockHeight()) {
+            fpRate = BloomFilter.BLOOM_REDUCED_FALSEPOSITIVE_RATE; // lower false
+            // positive rate during chain sync
+        } else if (syncPeer != null && updateHeight < syncPeer.getVersionLastBlockHeight()) {
+            // partially lower fp rate if we're nearly synced
+            fpRate -= (BloomFilter.DEFAULT_BLOOM_FILTER_FP_RATE - BloomFilter
+                    .BLOOM_REDUCED_FALSEPOSITIVE_RATE) * (syncPeer.getVersionLastBlockHeight() -
+                    updateHeight) / BitherjSettings.BLOCK_DIFFICULTY_INTERVAL;
+        }
+
+        List<byte[]> elements = getBloomFilterElements();
+        // leave room for the elements added with filteradd later
+        int elementCount = elements.size() + 100;
+        filterUpdateHeight = updateHeight;
+        // a new filter starts at the rate it was built for
+        filterFpRates.put(peer, fpRate);
+        bloomFilterElementCount = elementCount;
+
+        BloomFilter filter = new BloomFilter(elementCount, fpRate, tweak ^ Utils
+                .parseLongFromAddress(peer.getPeerAddress()), BloomFilter.BloomUpdate.UPDATE_ALL);
+        filter.insertAll(elements);
+        return filter;
+    }
 
-            List<Out> outs = new ArrayList<Out>();
-            for (Out out : AbstractDb.txProvider.getOuts()) {
-                if (AddressManager.getInstance().getAddressHashSet().contains(out.getOutAddress()
-                )) {
-                    outs.add(out);
+    // everything the filters have to match for the wallet
+    private List<byte[]> getBloomFilterElements() {
+        List<byte[]> elements = new ArrayList<byte[]>();
+        for (Address address : AddressManager.getInstance().getAllAddresses()) {
+            // add addresses to watch for any tx receiveing money to the wallet
+            byte[] pub = address.getPubKey();
+            if (pub != null) {
+                elements.add(pub);
+                byte[] hash = Utils.sha256hash160(pub);
+                if (hash != null) {
+                    elements.add(hash);
                 }
             }
-            List<Address> addresses              = AddressManager.getInstance().getAllAddresses();
-            int           desktopHDMElementCount = 0;
-            if (AddressManager.getInstance().hasDesktopHDMKeychain()) {
-                DesktopHDMKeychain desktopHDMKeychain =
-                        AddressManager.getInstance().getDesktopHDMKeychains().get(0);
-                desktopHDMElementCount = desktopHDMKeychain.elementCountForBloomFilter();
+        }
 
-            }
-            bloomFilterElementCount = addresses.size() * 2 + outs.size() + (AddressManager
-                    .getInstance().hasHDAccountHot() ? AddressManager.getInstance().getHDAccountHot()
-                    .elementCountForBloomFilter() : 0) + (AddressManager.getInstance()
-                    .hasHDAccountMonitored() ? AddressManager.getInstance().getHDAccountMonitored
-                    ().elementCountForBloomFilter() : 0) + desktopHDMElementCount + 100;
-
-            BloomFilter filter = new BloomFilter(bloomFilterElementCount, filterFpRate, tweak,
-                                                 BloomFilter.BloomUpdate.UPDATE_ALL);
-
-            for (Address address : addresses) { // add addresses to watch for any tx receiveing
-                // money to the wallet
-                byte[] pub = address.getPubKey();
-                if (pub != null && !filter.contains(pub)) {
-                    filter.insert(pub);
+        synchronized (walletOutpoints) {
+            if (!walletOutpointsLoaded) {
+                for (String address : AddressManager.getInstance().getAddressHashSet()) {
+                    walletOutpoints.addAll(AbstractDb.txProvider.getUnspentOutpointsWithAddress
+                            (address));
                 }
-                if (pub != null) {
-                    byte[] hash = Utils.sha256hash160(pub);
-                    if (hash != null && !filter.contains(hash)) {
-                        filter.insert(hash);
-                    }
+                walletOutpointsLoaded = true;
+            }
+            elements.addAll(walletOutpoints);
+        }
+
+        if (AddressManager.getInstance().hasHDAccountHot()) {
+            elements.addAll(AddressManager.getInstance().getHDAccountHot()
+                                    .getElementsForBloomFilter());
+        }
+
+        if (AddressManager.getInstance().hasHDAccountMonitored()) {
+            elements.addAll(AddressManager.getInstance().getHDAccountMonitored()
+                                    .getElementsForBloomFilter());
+        }
+
+        if (AddressManager.getInstance().hasDesktopHDMKeychain()) {
+            DesktopHDMKeychain desktopHDMKeychain = AddressManager.getInstance()
+                    .getDesktopHDMKeychains().get(0);
+            elements.addAll(desktopHDMKeychain.getElementsForBloomFilter());
+        }
+        return elements;
+    }
+
+    public boolean isCompactFilterMode() {
+        return BitherjSettings.BLOCK_FILTER_MODE == BitherjSettings.BlockFilterMode
+                .COMPACT_FILTER;
+    }
+
+    /**
+     * The wallet scripts the compact filters of the blocks are matched against.
+     */
+    CompactFilterMatcher getCompactFilterMatcher() {
+        CompactFilterMatcher matcher = compactFilterMatcher;
+        if (matcher == null) {
+            synchronized (walletOutpoints) {
+                matcher = compactFilterMatcher;
+                if (matcher == null) {
+                    matcher = new CompactFilterMatcher(getBloomFilterElements());
+                    compactFilterMatcher = matcher;
                 }
             }
+        }
+        return matcher;
+    }
+
+    /**
+     * The verified compact filter headers, shared by the peers.
+     */
+    CompactFilterHeaderChain getCompactFilterHeaderChain() {
+        return compactFilterHeaderChain;
+    }
 
-            for (Out out : outs) {
-                byte[] outpoint = out.getOutpointData();
-                if (!filter.contains(outpoint)) {
-                    filter.insert(outpoint);
+    /**
+     * Called by a peer after cfheaders were added, the cfilters the peers received before their
+     * headers were verified may be usable now.
+     */
+    void compactFilterHeadersAdded() {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (Peer p : connectedPeers) {
+                    p.processUnverifiedCompactFilters();
                 }
             }
+        });
+    }
+
+    /**
+     * @return the number of scripts the wallet gained, the blocks matched without them have to
+     * be fetched again.
+     */
+    private int updateCompactFilterMatcher() {
+        int scriptCount;
+        synchronized (walletOutpoints) {
+            scriptCount = compactFilterMatcher == null ? 0 : compactFilterMatcher
+                    .getScriptCount();
+            compactFilterMatcher = null;
+        }
+        return Math.max(getCompactFilterMatcher().getScriptCount() - scriptCount, 0);
+    }
 
-            if (AddressManager.getInstance().hasHDAccountHot()) {
-                AddressManager.getInstance().getHDAccountHot().addElementsForBloomFilter(filter);
+    /**
+     * @return the height of a block scheduled for download, -1 if it is not scheduled.
+     */
+    public int getBlockNoToDownload(Sha256Hash blockHash) {
+        return blockDownloadScheduler.getBlockNo(blockHash);
+    }
+
+    /**
+     * @return the hash of the block to download before it, null if it follows the chain head.
+     */
+    public Sha256Hash getPrevBlockHashToDownload(Sha256Hash blockHash) {
+        return blockDownloadScheduler.getPrevBlockHash(blockHash);
+    }
+
+    // a tx just stored for the wallet brings new outs to watch for their spending
+    private void addWalletOutpoints(Tx tx) {
+        synchronized (walletOutpoints) {
+            if (!walletOutpointsLoaded) {
+                return;
             }
+            for (Out out : tx.getOuts()) {
+                if (AddressManager.getInstance().getAddressHashSet().contains(out.getOutAddress())) {
+                    walletOutpoints.add(out.getOutpointData());
+                }
+            }
+        }
+    }
 
-            if (AddressManager.getInstance().hasHDAccountMonitored()) {
-                AddressManager.getInstance().getHDAccountMonitored().addElementsForBloomFilter(filter);
+    /**
+     * Updates the measured false positive rate of the peer's filter with a filtered block. The
+     * matched txs which are not in the wallet are false positives. A 1% low pass filter smooths
+     * out the variance, weighting each block by its tx count with 400 txs as typical.
+     *
+     * @return the new rate, 0 if the peer has no filter.
+     */
+    private double updateFilterFpRate(Peer peer, Block block) {
+        Double fpRate = filterFpRates.get(peer);
+        if (fpRate == null || !bloomFilters.containsKey(peer)) {
+            return 0;
+        }
+        int fpCount = 0;
+        for (byte[] txHash : block.getTxHashes()) {
+            if (!AbstractDb.txProvider.isExist(txHash)) {
+                fpCount++;
             }
+        }
+        double weight = Math.min(0.01 * block.getTotalTxCount() / 400, 1.0);
+        fpRate = fpRate * (1.0 - weight) + weight * fpCount / block.getTotalTxCount();
+        filterFpRates.put(peer, fpRate);
+        return fpRate;
+    }
 
-            if (AddressManager.getInstance().hasDesktopHDMKeychain()) {
-                DesktopHDMKeychain desktopHDMKeychain = AddressManager.getInstance().getDesktopHDMKeychains().get(0);
-                desktopHDMKeychain.addElementsForBloomFilter(filter);
+    /**
+     * Sends the elements the loaded filters do not match yet with filteradd, a filter which
+     * already matches an element is left alone as the peer's copy matches it too.
+     *
+     * @return the number of elements added, or -1 if the filters have to be reloaded because
+     * their false positive rate drifted past MAX_BLOOM_FILTER_FP_RATE.
+     */
+    private int updateBloomFilters() {
+        if (isCompactFilterMode()) {
+            return updateCompactFilterMatcher();
+        }
+        if (bloomFilters.size() == 0) {
+            return -1;
+        }
+        List<byte[]> elements = getBloomFilterElements();
+        for (Map.Entry<Peer, BloomFilter> entry : bloomFilters.entrySet()) {
+            Double fpRate = filterFpRates.get(entry.getKey());
+            if (Math.max(fpRate == null ? 0 : fpRate, entry.getValue().getFalsePositiveRate
+                    (elements.size())) > MAX_BLOOM_FILTER_FP_RATE) {
+                log.info("bloom filter false positive rate of peer {} drifted, reload it",
+                         entry.getKey().getPeerAddress().getHostAddress());
+                return -1;
+            }
+        }
+        int addedCount = 0;
+        for (Map.Entry<Peer, BloomFilter> entry : bloomFilters.entrySet()) {
+            BloomFilter filter = entry.getValue();
+            int peerAddedCount = 0;
+            for (byte[] element : elements) {
+                if (element.length > FilterAddMessage.MAX_DATA_SIZE && !filter.contains(element)) {
+                    return -1;
+                }
+                if (!filter.insert(element)) {
+                    continue;
+                }
+                entry.getKey().sendFilterAddMessage(element);
+                peerAddedCount++;
             }
-            bloomFilter = filter;
+            addedCount = Math.max(addedCount, peerAddedCount);
         }
-        return bloomFilter;
+        if (addedCount > 0) {
+            log.info("add {} elements to bloom filters", addedCount);
+        }
+        return addedCount;
     }
 
     public boolean doneSyncFromSPV() {
         return AbstractApp.bitherjSetting.getBitherjDoneSyncFromSpv();
     }
 
+    /**
+     * Blocks before this time (in seconds) are synced as headers only.
+     */
+    public long getFastCatchupTime() {
+        return AddressManager.getInstance().getEarliestKeyTime() - FAST_CATCHUP_TIME_MARGIN;
+    }
+
+    /**
+     * @return true once the chain passed the fast catchup time, from then on we download
+     * filtered blocks instead of headers.
+     */
+    public boolean isSyncingFilteredBlocks() {
+        if (doneSyncFromSPV()) {
+            return true;
+        }
+        int fastCatchupBlockNo = AbstractApp.bitherjSetting.getBitherjFastCatchupBlockNo();
+        // the block store may have been recreated since we passed it
+        return fastCatchupBlockNo > 0 && fastCatchupBlockNo <= getLastBlockHeight() + 1;
+    }
+
+    /**
+     * Called by the downloading peer when the headers reached the fast catchup time. Runs after
+     * the headers before it are relayed, so the getblocks continues from them.
+     */
+    public void fastCatchupPassed(final Peer peer) {
+        if (!isRunning()) {
+            return;
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (peer != downloadingPeer || isSyncingFilteredBlocks()) {
+                    return;
+                }
+                int fastCatchupBlockNo = (int) getLastBlockHeight() + 1;
+                AbstractApp.bitherjSetting.setBitherjFastCatchupBlockNo(fastCatchupBlockNo);
+                log.info("Peer {} passed fast catchup time, download filtered blocks from No.{}",
+                         peer.getPeerAddress().getHostAddress(), fastCatchupBlockNo);
+                blockDownloadScheduler.reset((int) getLastBlockHeight());
+                blockDownloadScheduler.setBlockHashesRequested();
+                peer.sendGetBlocksMessage(BlockChain.getInstance().getBlockLocatorArray(), null);
+            }
+        });
+    }
+
     private void sendConnectedChangeBroadcast() {
         AbstractApp.notificationService.sendConnectedChangeBroadcast(ConnectedChangeBroadcast,
                                                                      isConnected());
@@ -934,6 +1541,35 @@ public class PeerManager {
         return downloadingPeer;
     }
 
+    /**
+     * Peers ask for credit before they request more data. Without credit the peer pauses and is
+     * resumed by {@link Peer#creditGranted()} once the executor caught up.
+     */
+    public boolean requestCredit(Peer peer) {
+        synchronized (creditWaitingPeers) {
+            if (waitingTaskCount() <= MAX_CREDIT_WAITING_TASK_COUNT) {
+                return true;
+            }
+            creditWaitingPeers.add(peer);
+            return false;
+        }
+    }
+
+    private void grantCredits() {
+        ArrayList<Peer> peers;
+        synchronized (creditWaitingPeers) {
+            if (creditWaitingPeers.size() == 0 || waitingTaskCount() >
+                    MAX_CREDIT_WAITING_TASK_COUNT) {
+                return;
+            }
+            peers = new ArrayList<Peer>(creditWaitingPeers);
+            creditWaitingPeers.clear();
+        }
+        for (Peer peer : peers) {
+            peer.creditGranted();
+        }
+    }
+
     public int waitingTaskCount() {
         if (executor == null || executor.getQueue() == null) {
             return 0;
@@ -941,39 +1577,78 @@ public class PeerManager {
         return executor.getQueue().size();
     }
 
-    static class PeerManagerExecutorService extends ThreadPoolExecutor {
-        private static final int           TaskCapacity            = 5000;
-        private static final int           TaskCapacityWaitForRoom = 2000;
-        private              ReentrantLock executeLock             = new ReentrantLock();
-        private              Condition     fullCondition           = executeLock.newCondition();
-        private              boolean       isWaiting               = false;
+    /**
+     * Gets the progress of a broadcast, on the network or PeerManager thread, it must return
+     * quickly.
+     */
+    public interface BroadcastListener {
+        /**
+         * @param progress the share of the target peers which saw the tx, 1 once the broadcast is
+         *                 done, -1 if it was given up.
+         */
+        void onBroadcastProgress(Tx tx, double progress);
+    }
 
-        public PeerManagerExecutorService() {
+    /**
+     * Gets the network metrics every {@link BitherjSettings#METRICS_SNAPSHOT_INTERVAL} ms while
+     * PeerManager runs, on the PeerManager executor.
+     */
+    public interface MetricsListener {
+        void onMetricsSnapshot(PeerMetrics total, Map<Peer, PeerMetrics> peers, LatencyHistogram
+                executorQueueLatency);
+    }
+
+    static class PeerManagerExecutorService extends ThreadPoolExecutor {
+        // run after every task, on the executor thread
+        private final Runnable         afterTask;
+        private final LatencyHistogram queueLatency;
+        private final LatencyHistogram runTime;
+        // only touched by the single executor thread
+        private       long             taskStartTime;
+
+        public PeerManagerExecutorService(Runnable afterTask) {
             super(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+            this.afterTask = afterTask;
+            this.queueLatency = new LatencyHistogram();
+            this.runTime = new LatencyHistogram();
+        }
+
+        LatencyHistogram getQueueLatency() {
+            return queueLatency;
+        }
+
+        LatencyHistogram getRunTime() {
+            return runTime;
         }
 
         @Override
         public void execute(Runnable command) {
-            int waiting = getQueue().size();
-            if (getQueue().size() >= TaskCapacity) {
-                isWaiting = true;
-                try {
-                    log.info("PeerManagerExecutor full capacity with " + waiting + " waiting");
-                    executeLock.lockInterruptibly();
-                    fullCondition.await();
-                    log.info("PeerManagerExecutor execute again with " + getQueue().size() + " " +
-                                     "waiting");
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } finally {
-                    executeLock.unlock();
-                }
+            super.execute(command instanceof QueuedTask ? command : new QueuedTask<Void>(command,
+                    null));
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            return new QueuedTask<T>(runnable, value);
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return new QueuedTask<T>(callable);
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            super.beforeExecute(t, r);
+            if (r instanceof QueuedTask) {
+                queueLatency.record(System.nanoTime() - ((QueuedTask<?>) r).queuedTime);
             }
-            super.execute(command);
+            taskStartTime = System.nanoTime();
         }
 
         protected void afterExecute(Runnable r, Throwable t) {
             super.afterExecute(r, t);
+            runTime.record(System.nanoTime() - taskStartTime);
             long completed = getCompletedTaskCount();
             int  waiting   = getQueue().size();
 //            log.info("PeerManagerExecutor finished " + completed + " " +
@@ -995,21 +1670,25 @@ public class PeerManager {
             if (t != null && t.getMessage() != null && t.getMessage().length() > 0) {
                 log.error("exception in PeerManager: " + t.getMessage());
             }
-            if (isWaiting && waiting < TaskCapacity - TaskCapacityWaitForRoom) {
-                try {
-                    executeLock.lock();
-                    fullCondition.signal();
-                } finally {
-                    executeLock.unlock();
-                }
-                isWaiting = false;
-            }
+            afterTask.run();
         }
 
         @Override
         protected void finalize() {
             super.shutdown();
         }
+
+        private static class QueuedTask<T> extends FutureTask<T> {
+            final long queuedTime = System.nanoTime();
+
+            QueuedTask(Runnable runnable, T value) {
+                super(runnable, value);
+            }
+
+            QueuedTask(Callable<T> callable) {
+                super(callable);
+            }
+        }
     }
 
     public static final class PublishUnsignedTxException extends Exception {
@@ -1040,52 +1719,48 @@ public class PeerManager {
 
     private void scheduleTimeoutTimer(long delay) {
         cancelTimeoutTimer();
-        syncTimeOutTimer = new Timer();
-        syncTimeOutTimer.schedule(new TimerTask() {
+        syncTimeOutTimer = TimerWheel.instance().schedule(new Runnable() {
             @Override
             public void run() {
-                syncTimeout();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        syncTimeout();
+                    }
+                });
             }
         }, delay);
     }
 
 
-    private void publishTxTimeout(final byte[] txHash) {
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                cancelPublishTxTimeoutTimer(txHash);
-                for (Peer peer : connectedPeers) {
-                    peer.disconnect();
-                }
-            }
-        });
-    }
-
-    private void cancelPublishTxTimeoutTimer(byte[] txHash) {
-        Sha256Hash hash = new Sha256Hash(txHash);
-        if (publishTxTimeoutTimers != null && publishTxTimeoutTimers.containsKey(hash)) {
-            Timer publishTxTimeoutTimer = publishTxTimeoutTimers.get(hash);
-            publishTxTimeoutTimers.remove(hash);
-            publishTxTimeoutTimer.cancel();
-            publishTxTimeoutTimer = null;
-        }
-    }
-
-    private void schedulePublishTxTimeoutTimer(long delay, final byte[] txHash) {
-        cancelPublishTxTimeoutTimer(txHash);
-        if (publishTxTimeoutTimers == null) {
-            publishTxTimeoutTimers = new HashMap<Sha256Hash, Timer>();
+    private void scheduleBroadcastTimer() {
+        if (broadcastTimer != null) {
+            return;
         }
-
-        Timer publishTxTimeoutTimer = new Timer();
-        publishTxTimeoutTimers.put(new Sha256Hash(txHash), publishTxTimeoutTimer);
-        publishTxTimeoutTimer.schedule(new TimerTask() {
+        broadcastTimer = TimerWheel.instance().schedule(new Runnable() {
             @Override
             public void run() {
-                publishTxTimeout(txHash);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        broadcastTimer = null;
+                        ArrayList<Peer> peers = new ArrayList<Peer>();
+                        for (Peer p : connectedPeers) {
+                            if (p.state == Peer.State.Connected) {
+                                peers.add(p);
+                            }
+                        }
+                        // the peers announced a tx given up did not relay it, try others
+                        for (Peer peer : txBroadcaster.retry(peers)) {
+                            peer.disconnect();
+                        }
+                        if (txBroadcaster.hasPendingBroadcasts()) {
+                            scheduleBroadcastTimer();
+                        }
+                    }
+                });
             }
-        }, delay);
+        }, BitherjSettings.BROADCAST_TIMER_TICK);
     }
 
     private void sendSyncProgress() {
@@ -1112,6 +1787,81 @@ public class PeerManager {
         return synchronizing;
     }
 
+    /**
+     * @return the network metrics summed over all peers ever connected.
+     */
+    public PeerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return how long tasks wait in the PeerManager executor queue before they run.
+     */
+    public LatencyHistogram getExecutorQueueLatency() {
+        return executor.getQueueLatency();
+    }
+
+    /**
+     * @return how long the PeerManager executor tasks run, where the chain and the txs are stored.
+     */
+    public LatencyHistogram getExecutorRunTime() {
+        return executor.getRunTime();
+    }
+
+    /**
+     * @return the network metrics of the connected peers, from their current connection.
+     */
+    public Map<Peer, PeerMetrics> getPeerMetrics() {
+        HashMap<Peer, PeerMetrics> result = new HashMap<Peer, PeerMetrics>();
+        for (Peer peer : getConnectedPeers()) {
+            result.put(peer, peer.getMetrics());
+        }
+        return result;
+    }
+
+    public void addMetricsListener(MetricsListener listener) {
+        metricsListeners.add(listener);
+    }
+
+    public void removeMetricsListener(MetricsListener listener) {
+        metricsListeners.remove(listener);
+    }
+
+    private void scheduleMetricsSnapshot() {
+        cancelMetricsSnapshot();
+        metricsSnapshotTimer = TimerWheel.instance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendMetricsSnapshot();
+                        if (running.get()) {
+                            scheduleMetricsSnapshot();
+                        }
+                    }
+                });
+            }
+        }, BitherjSettings.METRICS_SNAPSHOT_INTERVAL);
+    }
+
+    private void cancelMetricsSnapshot() {
+        if (metricsSnapshotTimer != null) {
+            metricsSnapshotTimer.cancel();
+            metricsSnapshotTimer = null;
+        }
+    }
+
+    private void sendMetricsSnapshot() {
+        if (metricsListeners.size() == 0) {
+            return;
+        }
+        Map<Peer, PeerMetrics> peerMetrics = getPeerMetrics();
+        for (MetricsListener listener : metricsListeners) {
+            listener.onMetricsSnapshot(metrics, peerMetrics, executor.getQueueLatency());
+        }
+    }
+
     public boolean isOnlyBroadcasting() {
         return this.onlyBroadcasting;
     }
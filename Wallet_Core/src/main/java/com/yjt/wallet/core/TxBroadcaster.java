@@ -0,0 +1,228 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.contant.BitherjSettings;
+import com.yjt.wallet.core.utils.Sha256Hash;
+import com.yjt.wallet.core.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Broadcasts our txs. A tx is announced to about half of the connected peers, an inv of it
+ * coming back from the other half is evidence it propagates, as is a getdata of it. Once
+ * {@link BitherjSettings#BROADCAST_SEEN_TARGET} peers, or all peers if fewer, saw it the
+ * broadcast is done, until then
+ * it is announced again to more peers with an exponential backoff, and given up after
+ * {@link BitherjSettings#MAX_BROADCAST_ATTEMPTS}.
+ * <p/>
+ * Many txs are announced together in one inv per peer, a single timer of PeerManager drives the
+ * retries of all of them. Peers call in from the network thread, PeerManager from its executor,
+ * so all methods are synchronized.
+ */
+class TxBroadcaster {
+    private static final Logger log = LoggerFactory.getLogger(TxBroadcaster.class);
+
+    private final LinkedHashMap<Sha256Hash, Broadcast> broadcasts;
+
+    TxBroadcaster() {
+        broadcasts = new LinkedHashMap<Sha256Hash, Broadcast>();
+    }
+
+    /**
+     * Announces the txs to a share of the peers.
+     */
+    synchronized void broadcast(List<Tx> txs, List<Peer> peers, PeerManager.BroadcastListener
+            listener) {
+        List<Peer> announcePeers = new ArrayList<Peer>(peers);
+        Collections.shuffle(announcePeers);
+        // keep the others silent, their invs show the tx propagates
+        announcePeers = announcePeers.subList(0, (announcePeers.size() + 1) / 2);
+        long now = System.currentTimeMillis();
+        ArrayList<Sha256Hash> txHashes = new ArrayList<Sha256Hash>();
+        for (Tx tx : txs) {
+            Sha256Hash hash = new Sha256Hash(tx.getTxHash());
+            if (broadcasts.containsKey(hash)) {
+                continue;
+            }
+            Broadcast broadcast = new Broadcast(tx, listener, now, Math.max(1, Math.min
+                    (BitherjSettings.BROADCAST_SEEN_TARGET, peers.size())));
+            broadcast.announcedPeers.addAll(announcePeers);
+            broadcasts.put(hash, broadcast);
+            txHashes.add(hash);
+        }
+        if (txHashes.size() > 0) {
+            for (Peer peer : announcePeers) {
+                peer.sendInvMessageWithTxHashes(txHashes);
+            }
+            log.info("Broadcast {} txs to {} of {} peers", txHashes.size(), announcePeers.size(),
+                     peers.size());
+        }
+    }
+
+    /**
+     * Records an inv of the tx from the peer.
+     *
+     * @return true if the tx is ours being broadcast, no need to request it.
+     */
+    synchronized boolean invReceived(Peer peer, Sha256Hash txHash) {
+        Broadcast broadcast = broadcasts.get(txHash);
+        if (broadcast == null) {
+            return false;
+        }
+        if (!broadcast.announcedPeers.contains(peer)) {
+            seen(broadcast, peer);
+        }
+        return true;
+    }
+
+    /**
+     * Records a getdata of the tx from the peer.
+     */
+    synchronized void txRequested(Peer peer, Sha256Hash txHash) {
+        Broadcast broadcast = broadcasts.get(txHash);
+        if (broadcast != null) {
+            seen(broadcast, peer);
+        }
+    }
+
+    private void seen(Broadcast broadcast, Peer peer) {
+        if (!broadcast.seenPeers.add(peer)) {
+            return;
+        }
+        double progress = broadcast.getProgress();
+        if (progress >= 1) {
+            broadcasts.remove(new Sha256Hash(broadcast.tx.getTxHash()));
+            log.info("Broadcast of tx {} done", Utils.hashToString(broadcast.tx.getTxHash()));
+        }
+        if (broadcast.listener != null) {
+            broadcast.listener.onBroadcastProgress(broadcast.tx, progress);
+        }
+    }
+
+    /**
+     * Stops tracking the txs, e.g. once they are in a block.
+     */
+    synchronized void remove(List<byte[]> txHashes) {
+        for (byte[] hash : txHashes) {
+            broadcasts.remove(new Sha256Hash(hash));
+        }
+    }
+
+    synchronized boolean hasPendingBroadcasts() {
+        return broadcasts.size() > 0;
+    }
+
+    /**
+     * @return the progress of the broadcast as passed to the listener, 1 if the tx is not being
+     * broadcast.
+     */
+    synchronized double getProgress(Sha256Hash txHash) {
+        Broadcast broadcast = broadcasts.get(txHash);
+        return broadcast == null ? 1 : broadcast.getProgress();
+    }
+
+    /**
+     * Announces the txs whose retry is due to more peers, and gives up those out of attempts.
+     *
+     * @return the peers the given up txs were announced to, they did not relay them.
+     */
+    synchronized HashSet<Peer> retry(List<Peer> peers) {
+        long now = System.currentTimeMillis();
+        HashMap<Peer, ArrayList<Sha256Hash>> announcements = new HashMap<Peer,
+                ArrayList<Sha256Hash>>();
+        HashSet<Peer> failedPeers = new HashSet<Peer>();
+        Iterator<Map.Entry<Sha256Hash, Broadcast>> iterator = broadcasts.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Sha256Hash, Broadcast> entry = iterator.next();
+            Broadcast broadcast = entry.getValue();
+            if (now < broadcast.nextRetryTime) {
+                continue;
+            }
+            if (broadcast.attempts >= BitherjSettings.MAX_BROADCAST_ATTEMPTS) {
+                iterator.remove();
+                failedPeers.addAll(broadcast.announcedPeers);
+                log.warn("Broadcast of tx {} given up", Utils.hashToString(entry.getKey()
+                        .getBytes()));
+                if (broadcast.listener != null) {
+                    broadcast.listener.onBroadcastProgress(broadcast.tx, -1);
+                }
+                continue;
+            }
+            broadcast.attempts++;
+            broadcast.nextRetryTime = now + (BitherjSettings.BROADCAST_RETRY_DELAY << broadcast
+                    .attempts);
+            // the peers not announced to yet, or all again once every peer was
+            ArrayList<Peer> retryPeers = new ArrayList<Peer>();
+            for (Peer peer : peers) {
+                if (!broadcast.announcedPeers.contains(peer)) {
+                    retryPeers.add(peer);
+                }
+            }
+            if (retryPeers.size() == 0) {
+                retryPeers.addAll(peers);
+            }
+            Collections.shuffle(retryPeers);
+            for (Peer peer : retryPeers.subList(0, (retryPeers.size() + 1) / 2)) {
+                broadcast.announcedPeers.add(peer);
+                ArrayList<Sha256Hash> txHashes = announcements.get(peer);
+                if (txHashes == null) {
+                    txHashes = new ArrayList<Sha256Hash>();
+                    announcements.put(peer, txHashes);
+                }
+                txHashes.add(entry.getKey());
+            }
+        }
+        for (Map.Entry<Peer, ArrayList<Sha256Hash>> entry : announcements.entrySet()) {
+            entry.getKey().sendInvMessageWithTxHashes(entry.getValue());
+        }
+        return failedPeers;
+    }
+
+    private static class Broadcast {
+        final Tx                            tx;
+        final PeerManager.BroadcastListener listener;
+        final int                           seenTarget;
+        final HashSet<Peer>                 announcedPeers;
+        final HashSet<Peer>                 seenPeers;
+        int                                 attempts;
+        long                                nextRetryTime;
+
+        Broadcast(Tx tx, PeerManager.BroadcastListener listener, long now, int seenTarget) {
+            this.tx = tx;
+            this.listener = listener;
+            this.seenTarget = seenTarget;
+            this.announcedPeers = new HashSet<Peer>();
+            this.seenPeers = new HashSet<Peer>();
+            this.attempts = 0;
+            this.nextRetryTime = now + BitherjSettings.BROADCAST_RETRY_DELAY;
+        }
+
+        double getProgress() {
+            return Math.min(1.0, (double) seenPeers.size() / seenTarget);
+        }
+    }
+}
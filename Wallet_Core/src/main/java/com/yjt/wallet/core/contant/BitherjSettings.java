@@ -52,7 +52,11 @@ public class BitherjSettings {
     public static final String ID_MAINNET = "org.bitcoin.production";
 
 
-    public static final BigInteger proofOfWorkLimit       = Utils.decodeCompactBits(0x1d00ffffL);
+    /**
+     * The easiest target a block may claim, not final so a generated test chain can be mined at
+     * the regtest limit 0x207fffff.
+     */
+    public static       BigInteger proofOfWorkLimit       = Utils.decodeCompactBits(0x1d00ffffL);
     public static final int        port                   = 8333;
     public static final long       packetMagic            = 0xf9beb4d9L;
     public static final int        addressHeader          = 0;
@@ -90,6 +94,94 @@ public class BitherjSettings {
     public static final int    MaxPeerConnections             = 6;
     public static final int    MaxPeerBackgroundConnections   = 2;
 
+    /**
+     * Bounds of the number of merkleblocks a peer keeps requested ahead during sync. The actual
+     * window adapts between them to the measured round trip time.
+     */
+    public static final int MIN_BLOCK_DATA_WINDOW_SIZE = 4;
+    public static final int MAX_BLOCK_DATA_WINDOW_SIZE = 64;
+
+    /**
+     * Number of connected peers, the downloading peer included, sharing the block download of a
+     * sync. Each of them pulls ranges of BLOCK_DOWNLOAD_RANGE_SIZE blocks, a range not finished
+     * within BLOCK_DOWNLOAD_STRAGGLER_TIMEOUT ms is reassigned to another peer.
+     */
+    public static final int MAX_SYNC_PEER_COUNT              = 3;
+    public static final int BLOCK_DOWNLOAD_RANGE_SIZE        = 50;
+    public static final int BLOCK_DOWNLOAD_STRAGGLER_TIMEOUT = 20000;
+
+    /**
+     * Number of selector threads of NioClientManager, new connections are spread over them round
+     * robin. Received bytes are decoded on a pool of NIO_DECODER_THREAD_COUNT threads, one batch
+     * per connection at a time.
+     */
+    public static final int NIO_SELECTOR_THREAD_COUNT = 2;
+    public static final int NIO_DECODER_THREAD_COUNT  = 2;
+
+    /**
+     * How the blocks of the wallet are found. BLOOM_FILTER loads a bloom filter on the peers and
+     * downloads merkleblocks (BIP 37). COMPACT_FILTER downloads the compact filter of every block
+     * (BIP 157/158), matches it locally against the wallet scripts and downloads the full block
+     * only on a match, the peers learn nothing about the wallet. It needs peers serving compact
+     * filters, and unconfirmed txs of others are only seen once they are in a block.
+     */
+    public static final BlockFilterMode BLOCK_FILTER_MODE = BlockFilterMode.BLOOM_FILTER;
+
+    public static enum BlockFilterMode {
+        BLOOM_FILTER, COMPACT_FILTER
+    }
+
+    /**
+     * Number of peers which have to agree on the compact filter header of our chain head before
+     * the filter headers after it are trusted. Every later filter header is chained from it.
+     */
+    public static final int COMPACT_FILTER_CHECKPOINT_PEER_COUNT = 2;
+
+    /**
+     * Interval in ms of the network metrics snapshots PeerManager hands to its metrics listeners.
+     */
+    public static final int METRICS_SNAPSHOT_INTERVAL = 60000;
+
+    /**
+     * Size of the peer address book buckets: tried peers, which we once connected to, and new
+     * peers, only heard of from dns seeds or addr messages. Dns seeds are only asked when the book
+     * runs short, resolved in parallel for at most DNS_SEED_TIMEOUT ms.
+     */
+    public static final int TRIED_PEER_BUCKET_SIZE = 64;
+    public static final int NEW_PEER_BUCKET_SIZE   = 256;
+    public static final int DNS_SEED_TIMEOUT       = 5000;
+
+    /**
+     * Peers are dialed happy eyeballs style: the missing peers at once, then one more candidate
+     * every CONNECT_STAGGER_DELAY ms until enough handshakes completed, with at most
+     * MAX_HALF_OPEN_CONNECTIONS connections in progress. The dials left are cancelled.
+     */
+    public static final int MAX_HALF_OPEN_CONNECTIONS = 8;
+    public static final int CONNECT_STAGGER_DELAY     = 250;
+
+    /**
+     * A broadcast tx is done once BROADCAST_SEEN_TARGET peers announced or requested it. Until
+     * then it is announced to more peers after BROADCAST_RETRY_DELAY ms, doubled on every attempt,
+     * and given up after MAX_BROADCAST_ATTEMPTS. Pending broadcasts are checked every
+     * BROADCAST_TIMER_TICK ms.
+     */
+    public static final int BROADCAST_SEEN_TARGET  = 2;
+    public static final int BROADCAST_RETRY_DELAY  = 5000;
+    public static final int MAX_BROADCAST_ATTEMPTS = 4;
+    public static final int BROADCAST_TIMER_TICK   = 1000;
+
+    /**
+     * Number of recent blocks BlockChain keeps indexed in memory, besides every retarget point.
+     * cleanOldBlock keeps the blocks table below 5000 blocks, so the whole table fits.
+     */
+    public static final int HEADER_INDEX_WINDOW = 5000;
+
+    /**
+     * Number of main chain slots of a FileBlockProvider ring file, a block takes the slot of its
+     * height modulo the capacity. Must stay well above BLOCK_DIFFICULTY_INTERVAL.
+     */
+    public static final int BLOCK_FILE_CAPACITY = 8192;
+
     public static enum AppMode {
         COLD, HOT
     }
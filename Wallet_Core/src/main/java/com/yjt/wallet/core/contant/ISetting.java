@@ -35,6 +35,22 @@ public abstract class ISetting {
 
     public abstract void setBitherjDoneSyncFromSpv(boolean isDone);
 
+    /**
+     * The block No. from which on filtered blocks are synced instead of headers only,
+     * 0 if we have not passed the wallet birthday yet.
+     */
+    public abstract int getBitherjFastCatchupBlockNo();
+
+    public abstract void setBitherjFastCatchupBlockNo(int blockNo);
+
+    /**
+     * The fork block No. of a reorg, or of a batch of relayed blocks, whose blocks may be stored
+     * while its txs are not, -1 if none. It has to be stored before the setter returns.
+     */
+    public abstract int getBitherjPendingReorgBlockNo();
+
+    public abstract void setBitherjPendingReorgBlockNo(int blockNo);
+
     public abstract boolean getDownloadSpvFinish();
 
     public abstract void setDownloadSpvFinish(boolean finish);
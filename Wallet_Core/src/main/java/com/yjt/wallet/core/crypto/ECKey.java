@@ -811,6 +811,14 @@ public class ECKey implements Serializable {
     }
 
 
+    /**
+     * Returns the creation time of this key or zero if the key was deserialized from a version
+     * that did not store that data.
+     */
+    public long getCreationTimeSeconds() {
+        return creationTimeSeconds;
+    }
+
     /**
      * Sets the creation time of this key. Zero is a convention to mean "unavailable". This method can be useful when
      * you have a raw key you are importing from somewhere else.
@@ -22,7 +22,9 @@ public abstract class AbstractDb {
             ", peer_port integer not null" +
             ", peer_services integer not null" +
             ", peer_timestamp integer not null" +
-            ", peer_connected_cnt integer not null);";
+            ", peer_connected_cnt integer not null" +
+            ", peer_score integer not null default 0" +
+            ", peer_last_success integer not null default 0);";
 
     public static final String CREATE_OUTS_SQL = "create table if not exists outs " +
             "(tx_hash text not null" +
@@ -74,14 +76,16 @@ public abstract class AbstractDb {
             ", is_xrandom integer not null" +
             ", is_trash integer not null" +
             ", is_synced integer not null" +
-            ", sort_time integer not null);";
+            ", sort_time integer not null" +
+            ", create_time integer not null default 0);";
     public static final String CREATE_HD_SEEDS_SQL = "create table if not exists hd_seeds " +
             "(hd_seed_id integer not null primary key autoincrement" +
             ", encrypt_seed text not null" +
             ", encrypt_hd_seed text" +
             ", hdm_address text not null" +
             ", is_xrandom integer not null" +
-            ", singular_mode_backup text);";
+            ", singular_mode_backup text" +
+            ", create_time integer not null default 0);";
     public static final String CREATE_HDM_ADDRESSES_SQL = "create table if not exists " +
             "hdm_addresses " +
             "(hd_seed_id integer not null" +
@@ -127,7 +131,8 @@ public abstract class AbstractDb {
             ", hd_address text not null" +
             ", external_pub text not null" +
             ", internal_pub text not null" +
-            ", is_xrandom integer not null);";
+            ", is_xrandom integer not null" +
+            ", create_time integer not null default 0);";
 
     public static final String CREATE_HD_ACCOUNT_ADDRESSES = "create table if not exists " +
             "hd_account_addresses " +
@@ -152,6 +157,26 @@ public abstract class AbstractDb {
     public static final String ADD_HD_ACCOUNT_ID_FOR_OUTS = "alter table outs add column " +
             "hd_account_id integer;";
 
+    //add peer_score for peers
+    public static final String ADD_PEER_SCORE_FOR_PEERS = "alter table peers add column " +
+            "peer_score integer not null default 0;";
+
+    //add peer_last_success for peers
+    public static final String ADD_PEER_LAST_SUCCESS_FOR_PEERS = "alter table peers add column " +
+            "peer_last_success integer not null default 0;";
+
+    //add create_time for addresses
+    public static final String ADD_CREATE_TIME_FOR_ADDRESSES = "alter table addresses add " +
+            "column create_time integer not null default 0;";
+
+    //add create_time for hd_seeds
+    public static final String ADD_CREATE_TIME_FOR_HD_SEEDS = "alter table hd_seeds add " +
+            "column create_time integer not null default 0;";
+
+    //add create_time for hd_account
+    public static final String ADD_CREATE_TIME_FOR_HD_ACCOUNT = "alter table hd_account add " +
+            "column create_time integer not null default 0;";
+
     //enterprise hdm
     public static final String CREATE_ENTERPRISE_HD_ACCOUNT = "create table if not exists " +
             "enterprise_hd_account " +
@@ -304,6 +329,8 @@ public abstract class AbstractDb {
         public static final String PEER_SERVICES = "peer_services";
         public static final String PEER_TIMESTAMP = "peer_timestamp";
         public static final String PEER_CONNECTED_CNT = "peer_connected_cnt";
+        public static final String PEER_SCORE = "peer_score";
+        public static final String PEER_LAST_SUCCESS = "peer_last_success";
     }
 
     public interface PasswordSeedColumns {
@@ -320,6 +347,7 @@ public abstract class AbstractDb {
         public static final String IS_TRASH = "is_trash";
         public static final String IS_SYNCED = "is_synced";
         public static final String SORT_TIME = "sort_time";
+        public static final String CREATE_TIME = "create_time";
     }
 
     public interface HDSeedsColumns {
@@ -329,6 +357,7 @@ public abstract class AbstractDb {
         public static final String IS_XRANDOM = "is_xrandom";
         public static final String HDM_ADDRESS = "hdm_address";
         public static final String SINGULAR_MODE_BACKUP = "singular_mode_backup";
+        public static final String CREATE_TIME = "create_time";
     }
 
     public interface HDMAddressesColumns {
@@ -360,6 +389,7 @@ public abstract class AbstractDb {
         public static final String HD_ADDRESS = "hd_address";
         public static final String EXTERNAL_PUB = "external_pub";
         public static final String INTERNAL_PUB = "internal_pub";
+        public static final String CREATE_TIME = "create_time";
     }
 
     public interface HDAccountAddressesColumns {
@@ -31,6 +31,13 @@ public interface IAddressProvider {
 
     boolean isHDSeedFromXRandom(int hdSeedId);
 
+    /**
+     * @return when the hdm seed was created in seconds, 0 if unknown.
+     */
+    long getHDSeedCreateTime(int hdSeedId);
+
+    void updateHDSeedCreateTime(int hdSeedId, long createTime);
+
     String getHDMFristAddress(int hdSeedId);
 
     String getSingularModeBackup(int hdSeedId);
@@ -51,6 +51,13 @@ public interface IBlockProvider {
 
     void removeBlock(byte[] blockHash);
 
+    /**
+     * Switches the main chain above the fork block in one go: the old main blocks become
+     * orphans, the stored side blocks become main and the new blocks are added.
+     */
+    void reorganize(int forkBlockNo, List<byte[]> oldBlockHashes, List<byte[]> sideBlockHashes,
+                    List<Block> newBlocks);
+
     void cleanOldBlock();
 
 
@@ -34,6 +34,13 @@ public interface IDesktopAddressProvider {
 
     boolean isHDSeedFromXRandom(int hdSeedId);
 
+    /**
+     * @return when the seed was created in seconds, 0 if unknown.
+     */
+    long getHDSeedCreateTime(int hdSeedId);
+
+    void updateHDSeedCreateTime(int hdSeedId, long createTime);
+
     String getEncryptMnemonicSeed(int hdSeedId);
 
     String getEncryptHDSeed(int hdSeedId);
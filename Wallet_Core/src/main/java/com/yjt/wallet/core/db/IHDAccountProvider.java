@@ -40,6 +40,13 @@ public interface IHDAccountProvider {
 
     boolean hdAccountIsXRandom(int seedId);
 
+    /**
+     * @return when the seed of the account was created in seconds, 0 if unknown.
+     */
+    long getHDAccountCreateTime(int hdAccountId);
+
+    void updateHDAccountCreateTime(int hdAccountId, long createTime);
+
     List<Integer> getHDAccountSeeds();
 
     boolean isPubExist(byte[] externalPub, byte[] internalPub);
@@ -32,8 +32,19 @@ public interface IPeerProvider {
 
     void connectSucceed(InetAddress address);
 
+    void connectFail(InetAddress address);
+
+    void updatePeerScore(InetAddress address, int score);
+
+    /**
+     * @return the tried peers first, the fewest failures since the last success, best score and
+     * latest success first, then the new peers, most recently heard of first.
+     */
     List<Peer> getPeersWithLimit(int limit);
 
+    /**
+     * Bounds the tried and the new bucket to their sizes, dropping the stalest peers.
+     */
     void cleanPeers();
 
     void recreate();
@@ -16,6 +16,7 @@
 
 package com.yjt.wallet.core.db;
 
+import com.yjt.wallet.core.Block;
 import com.yjt.wallet.core.In;
 import com.yjt.wallet.core.Out;
 import com.yjt.wallet.core.Tx;
@@ -52,6 +53,14 @@ public interface ITxProvider {
 
     void confirmTx(int blockNo, List<byte[]> txHashes);
 
+    void confirmTxs(List<Block> blocks);
+
+    /**
+     * Unconfirms the txs above the fork block and confirms the txs of the new branch blocks, in
+     * one transaction.
+     */
+    void reorganizeTxs(int forkBlockNo, List<Block> blocks);
+
     void unConfirmTxByBlockNo(int blockNo);
 
     List<Tx> getUnspendTxWithAddress(String address);
@@ -71,6 +80,9 @@ public interface ITxProvider {
 
     List<Out> getOuts();
 
+    // outpoint data of the outs of the address which are unspent or spent by an unconfirmed tx
+    List<byte[]> getUnspentOutpointsWithAddress(String address);
+
 //    List<In> getRelatedIn(String address);
 
     List<Tx> getRecentlyTxsByAddress(String address, int greateThanBlockNo, int limit);
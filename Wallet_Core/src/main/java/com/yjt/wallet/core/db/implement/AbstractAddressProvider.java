@@ -387,6 +387,29 @@ public abstract class AbstractAddressProvider extends AbstractProvider implement
         return isXRandom[0];
     }
 
+    @Override
+    public long getHDSeedCreateTime(int hdSeedId) {
+        String       sql        = "select create_time from hd_seeds where hd_seed_id=?";
+        final long[] createTime = {0};
+        this.execQueryOneRecord(sql, new String[]{Integer.toString(hdSeedId)}, new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                int idColumn = c.getColumnIndex(AbstractDb.HDSeedsColumns.CREATE_TIME);
+                if (idColumn != -1) {
+                    createTime[0] = c.getLong(idColumn);
+                }
+                return null;
+            }
+        });
+        return createTime[0];
+    }
+
+    @Override
+    public void updateHDSeedCreateTime(int hdSeedId, long createTime) {
+        String sql = "update hd_seeds set create_time=? where hd_seed_id=?";
+        this.execUpdate(sql, new String[]{Long.toString(createTime), Integer.toString(hdSeedId)});
+    }
 
     @Override
     public String getHDMFristAddress(int hdSeedId) {
@@ -699,7 +722,7 @@ public abstract class AbstractAddressProvider extends AbstractProvider implement
     //normal
     @Override
     public List<Address> getAddresses() {
-        String sql = "select address,encrypt_private_key,pub_key,is_xrandom,is_trash,is_synced,sort_time " +
+        String sql = "select address,encrypt_private_key,pub_key,is_xrandom,is_trash,is_synced,sort_time,create_time " +
                 "from addresses  order by sort_time desc";
         final List<Address> addressList = new ArrayList<Address>();
         this.execQueryLoop(sql, null, new Function<ICursor, Void>() {
@@ -744,6 +767,11 @@ public abstract class AbstractAddressProvider extends AbstractProvider implement
         IDb writeDb = this.getWriteDb();
         writeDb.beginTransaction();
         this.insertAddressToDb(writeDb, address);
+        if (address.getCreateTime() > 0) {
+            String sql = "update addresses set create_time=? where address=?";
+            this.execUpdate(writeDb, sql, new String[]{Long.toString(address.getCreateTime()),
+                    address.getAddress()});
+        }
         if (address.hasPrivKey()) {
             if (!hasPasswordSeed(writeDb)) {
                 PasswordSeed passwordSeed = new PasswordSeed(address.getAddress(), address.getFullEncryptPrivKeyOfDb());
@@ -969,6 +997,10 @@ public abstract class AbstractAddressProvider extends AbstractProvider implement
             sortTime = c.getLong(idColumn);
         }
         address = new Address(addressStr, pubKey, sortTime, isSynced, isXRandom, isTrash, encryptPrivateKey);
+        idColumn = c.getColumnIndex(AbstractDb.AddressesColumns.CREATE_TIME);
+        if (idColumn != -1) {
+            address.setCreateTime(c.getLong(idColumn));
+        }
 
         return address;
     }
@@ -197,23 +197,58 @@ public abstract class AbstractBlockProvider extends AbstractProvider implements
         }
         IDb writeDb = this.getWriteDb();
         writeDb.beginTransaction();
-        String sql = "insert into blocks(block_no,block_hash,block_root,block_ver,block_bits,block_nonce,block_time,block_prev,is_main) values(?,?,?,?,?,?,?,?,?)";
         for (Block item : addBlockList) {
-            this.execUpdate(writeDb, sql, new String[]{
-                    Integer.toString(item.getBlockNo())
-                    , Base58.encode(item.getBlockHash())
-                    , Base58.encode(item.getBlockRoot())
-                    , Long.toString(item.getBlockVer())
-                    , Long.toString(item.getBlockBits())
-                    , Long.toString(item.getBlockNonce())
-                    , Long.toString(item.getBlockTime())
-                    , Base58.encode(item.getBlockPrev())
-                    , item.isMain() ? "1" : "0"
-            });
+            insertBlock(writeDb, item);
+        }
+        writeDb.endTransaction();
+    }
+
+    @Override
+    public void reorganize(int forkBlockNo, List<byte[]> oldBlockHashes, List<byte[]> sideBlockHashes,
+                           List<Block> newBlocks) {
+        List<Block> addBlockList = new ArrayList<Block>();
+        // new blocks relayed again after they were stored as orphans
+        List<byte[]> storedBlockHashes = new ArrayList<byte[]>();
+        for (Block item : newBlocks) {
+            if (!this.blockExists(item.getBlockHash())) {
+                addBlockList.add(item);
+            } else if (item.isMain()) {
+                storedBlockHashes.add(item.getBlockHash());
+            }
+        }
+        String sql     = "update blocks set is_main=? where block_hash=?";
+        IDb    writeDb = this.getWriteDb();
+        writeDb.beginTransaction();
+        for (byte[] blockHash : oldBlockHashes) {
+            this.execUpdate(writeDb, sql, new String[]{"0", Base58.encode(blockHash)});
+        }
+        for (byte[] blockHash : sideBlockHashes) {
+            this.execUpdate(writeDb, sql, new String[]{"1", Base58.encode(blockHash)});
+        }
+        for (byte[] blockHash : storedBlockHashes) {
+            this.execUpdate(writeDb, sql, new String[]{"1", Base58.encode(blockHash)});
+        }
+        for (Block item : addBlockList) {
+            insertBlock(writeDb, item);
         }
         writeDb.endTransaction();
     }
 
+    private void insertBlock(IDb writeDb, Block item) {
+        String sql = "insert into blocks(block_no,block_hash,block_root,block_ver,block_bits,block_nonce,block_time,block_prev,is_main) values(?,?,?,?,?,?,?,?,?)";
+        this.execUpdate(writeDb, sql, new String[]{
+                Integer.toString(item.getBlockNo())
+                , Base58.encode(item.getBlockHash())
+                , Base58.encode(item.getBlockRoot())
+                , Long.toString(item.getBlockVer())
+                , Long.toString(item.getBlockBits())
+                , Long.toString(item.getBlockNonce())
+                , Long.toString(item.getBlockTime())
+                , Base58.encode(item.getBlockPrev())
+                , item.isMain() ? "1" : "0"
+        });
+    }
+
     @Override
     public void addBlock(Block item) {
         boolean blockExists = blockExists(item.getBlockHash());
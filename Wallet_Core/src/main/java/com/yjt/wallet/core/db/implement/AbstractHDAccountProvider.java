@@ -340,6 +340,30 @@ public abstract class AbstractHDAccountProvider extends AbstractProvider impleme
 //        return hdAccountMnmonicEncryptSeed;
     }
 
+    @Override
+    public long getHDAccountCreateTime(int hdAccountId) {
+        final long[] result = {0};
+        String       sql    = "select create_time from hd_account where hd_account_id=?";
+        this.execQueryOneRecord(sql, new String[]{Integer.toString(hdAccountId)}, new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                int idColumn = c.getColumnIndex(AbstractDb.HDAccountColumns.CREATE_TIME);
+                if (idColumn != -1) {
+                    result[0] = c.getLong(idColumn);
+                }
+                return null;
+            }
+        });
+        return result[0];
+    }
+
+    @Override
+    public void updateHDAccountCreateTime(int hdAccountId, long createTime) {
+        String sql = "update hd_account set create_time=? where hd_account_id=?";
+        this.execUpdate(sql, new String[]{Long.toString(createTime), Integer.toString(hdAccountId)});
+    }
+
     @Override
     public boolean hdAccountIsXRandom(int seedId) {
         final boolean[] result = {false};
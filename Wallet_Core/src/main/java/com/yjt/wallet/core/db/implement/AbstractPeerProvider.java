@@ -18,6 +18,7 @@ package com.yjt.wallet.core.db.implement;
 
 import com.google.common.base.Function;
 import com.yjt.wallet.core.Peer;
+import com.yjt.wallet.core.contant.BitherjSettings;
 import com.yjt.wallet.core.db.AbstractDb;
 import com.yjt.wallet.core.db.IPeerProvider;
 import com.yjt.wallet.core.db.base.ICursor;
@@ -65,18 +66,12 @@ public abstract class AbstractPeerProvider extends AbstractProvider implements I
 
     @Override
     public void addPeers(List<Peer> items) {
-        List<Peer> addItems = new ArrayList<Peer>();
-        List<Peer> allItems = getAllPeers();
-        for (Peer peerItem : items) {
-            if (!allItems.contains(peerItem) && !addItems.contains(peerItem)) {
-                addItems.add(peerItem);
-            }
-        }
-        if (addItems.size() > 0) {
-            String sql     = "insert into peers(peer_address,peer_port,peer_services,peer_timestamp,peer_connected_cnt) values(?,?,?,?,?)";
+        if (items.size() > 0) {
+            // known peers keep their bucket and history
+            String sql     = "insert or ignore into peers(peer_address,peer_port,peer_services,peer_timestamp,peer_connected_cnt) values(?,?,?,?,?)";
             IDb    writeDb = this.getWriteDb();
             writeDb.beginTransaction();
-            for (Peer item : addItems) {
+            for (Peer item : items) {
                 this.execUpdate(writeDb, sql, new String[]{
                         Long.toString(Utils.parseLongFromAddress(item.getPeerAddress()))
                         , Integer.toString(item.getPeerPort())
@@ -94,7 +89,8 @@ public abstract class AbstractPeerProvider extends AbstractProvider implements I
         this.execUpdate(sql, new String[]{Long.toString(Utils.parseLongFromAddress(address))});
     }
 
-    public void conncetFail(InetAddress address) {
+    @Override
+    public void connectFail(InetAddress address) {
         long        addressLong = Utils.parseLongFromAddress(address);
         String      sql         = "select count(0) cnt from peers where peer_address=? and peer_connected_cnt=0";
         final int[] cnt         = {0};
@@ -120,14 +116,22 @@ public abstract class AbstractPeerProvider extends AbstractProvider implements I
 
     @Override
     public void connectSucceed(InetAddress address) {
-        String sql         = "update peers set peer_connected_cnt=?,peer_timestamp=? where peer_address=?";
+        String sql         = "update peers set peer_connected_cnt=?,peer_timestamp=?,peer_last_success=? where peer_address=?";
         long   addressLong = Utils.parseLongFromAddress(address);
-        this.execUpdate(sql, new String[]{"1", Long.toString(System.currentTimeMillis()), Long.toString(addressLong)});
+        String now         = Long.toString(System.currentTimeMillis() / 1000);
+        this.execUpdate(sql, new String[]{"1", now, now, Long.toString(addressLong)});
+    }
+
+    @Override
+    public void updatePeerScore(InetAddress address, int score) {
+        String sql = "update peers set peer_score=? where peer_address=?";
+        this.execUpdate(sql, new String[]{Integer.toString(score), Long.toString(Utils
+                .parseLongFromAddress(address))});
     }
 
     @Override
     public List<Peer> getPeersWithLimit(int limit) {
-        String           sql          = "select * from peers order by peer_address limit ?";
+        String           sql          = "select * from peers order by peer_last_success>0 desc,peer_connected_cnt,peer_score desc,peer_last_success desc,peer_timestamp desc limit ?";
         final List<Peer> peerItemList = new ArrayList<Peer>();
         this.execQueryLoop(sql, new String[]{Integer.toString(limit)}, new Function<ICursor, Void>() {
             @Nullable
@@ -150,40 +154,30 @@ public abstract class AbstractPeerProvider extends AbstractProvider implements I
 
     @Override
     public void cleanPeers() {
-        int         maxPeerSaveCnt          = 12;
-        String      disconnectingPeerCntSql = "select count(0) cnt from peers where peer_connected_cnt<>1";
-        final int[] disconnectingPeerCnt    = {0};
-        this.execQueryOneRecord(disconnectingPeerCntSql, null, new Function<ICursor, Void>() {
+        trimBucket("peer_last_success>0", AbstractDb.PeersColumns.PEER_LAST_SUCCESS,
+                   BitherjSettings.TRIED_PEER_BUCKET_SIZE);
+        trimBucket("peer_last_success=0", AbstractDb.PeersColumns.PEER_TIMESTAMP,
+                   BitherjSettings.NEW_PEER_BUCKET_SIZE);
+    }
+
+    private void trimBucket(String bucket, final String column, int size) {
+        String       sql   = "select " + column + " from peers where " + bucket + " order by " +
+                column + " desc limit 1 offset ?";
+        final long[] value = {0};
+        this.execQueryOneRecord(sql, new String[]{Integer.toString(size)}, new Function<ICursor, Void>() {
             @Nullable
             @Override
             public Void apply(@Nullable ICursor c) {
-                int idColumn = c.getColumnIndex("cnt");
+                int idColumn = c.getColumnIndex(column);
                 if (idColumn != -1) {
-                    disconnectingPeerCnt[0] = c.getInt(idColumn);
+                    value[0] = c.getLong(idColumn);
                 }
                 return null;
             }
         });
-
-        if (disconnectingPeerCnt[0] > maxPeerSaveCnt) {
-            String sql = "select peer_timestamp from peers where peer_connected_cnt<>1 " +
-                    " limit 1 offset ?";
-            final long[] timestamp = {0};
-            this.execQueryOneRecord(sql, new String[]{Integer.toString(maxPeerSaveCnt)}, new Function<ICursor, Void>() {
-                @Nullable
-                @Override
-                public Void apply(@Nullable ICursor c) {
-                    int idColumn = c.getColumnIndex(AbstractDb.PeersColumns.PEER_TIMESTAMP);
-                    if (idColumn != -1) {
-                        timestamp[0] = c.getLong(idColumn);
-                    }
-                    return null;
-                }
-            });
-            if (timestamp[0] > 0) {
-                sql = "delete from peers where peer_connected_cnt<>1 and peer_timestamp<=?";
-                this.execUpdate(sql, new String[]{Long.toString(timestamp[0])});
-            }
+        if (value[0] > 0) {
+            sql = "delete from peers where " + bucket + " and " + column + "<=?";
+            this.execUpdate(sql, new String[]{Long.toString(value[0])});
         }
     }
 
@@ -226,6 +220,10 @@ public abstract class AbstractPeerProvider extends AbstractProvider implements I
         if (idColumn != -1) {
             peerItem.setPeerTimestamp(c.getInt(idColumn));
         }
+        idColumn = c.getColumnIndex(AbstractDb.PeersColumns.PEER_SCORE);
+        if (idColumn != -1) {
+            peerItem.setPeerScore(c.getInt(idColumn));
+        }
         return peerItem;
     }
 
@@ -18,6 +18,7 @@ package com.yjt.wallet.core.db.implement;
 
 import com.google.common.base.Function;
 
+import com.yjt.wallet.core.Block;
 import com.yjt.wallet.core.In;
 import com.yjt.wallet.core.Out;
 import com.yjt.wallet.core.Tx;
@@ -34,11 +35,15 @@ import com.yjt.wallet.core.utils.Utils;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
 public abstract class AbstractTxProvider extends AbstractProvider implements ITxProvider {
+    // sqlite allows 999 parameters per statement
+    private static final int MAX_SQL_PARAM_COUNT = 500;
 
     @Override
     public List<Tx> getTxAndDetailByAddress(String address) {
@@ -485,30 +490,113 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         if (blockNo == Tx.TX_UNCONFIRMED || txHashes == null) {
             return;
         }
-        String updateBlockNoSql = "update txs set block_no=? where tx_hash=?";
-        String existSql         = "select count(0) from txs where block_no=? and tx_hash=?";
-        String doubleSpendSql = "select a.tx_hash from ins a, ins b where a.prev_tx_hash=b.prev_tx_hash " +
-                "and a.prev_out_sn=b.prev_out_sn and a.tx_hash<>b.tx_hash and b.tx_hash=?";
-        String blockTimeSql                      = "select block_time from blocks where block_no=?";
-        String updateTxTimeThatMoreThanBlockTime = "update txs set tx_time=? where block_no=? and tx_time>?";
-        IDb    db                                = this.getWriteDb();
-        db.beginTransaction();
-        for (byte[] txHash : txHashes) {
-            final int[] cnt = {0};
-            this.execQueryOneRecord(db, existSql, new String[]{Integer.toString(blockNo), Base58.encode(txHash)}, new Function<ICursor, Void>() {
+        String      blockTimeSql = "select block_time from blocks where block_no=?";
+        final int[] blockTime    = {-1};
+        this.execQueryOneRecord(blockTimeSql, new String[]{Integer.toString(blockNo)}, new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                int idColumn = c.getColumnIndex("block_time");
+                if (idColumn != -1) {
+                    blockTime[0] = c.getInt(idColumn);
+                }
+                return null;
+            }
+        });
+        HashMap<Integer, List<byte[]>> txHashesByBlockNo = new HashMap<Integer, List<byte[]>>();
+        txHashesByBlockNo.put(blockNo, txHashes);
+        HashMap<Integer, Integer> blockTimes = new HashMap<Integer, Integer>();
+        blockTimes.put(blockNo, blockTime[0]);
+        confirmTxs(txHashesByBlockNo, blockTimes, Tx.TX_UNCONFIRMED);
+    }
+
+    @Override
+    public void confirmTxs(List<Block> blocks) {
+        confirmTxs(blocks, Tx.TX_UNCONFIRMED);
+    }
+
+    @Override
+    public void reorganizeTxs(int forkBlockNo, List<Block> blocks) {
+        confirmTxs(blocks, forkBlockNo);
+    }
+
+    private void confirmTxs(List<Block> blocks, int forkBlockNo) {
+        HashMap<Integer, List<byte[]>> txHashesByBlockNo = new HashMap<Integer, List<byte[]>>();
+        HashMap<Integer, Integer>      blockTimes        = new HashMap<Integer, Integer>();
+        for (Block block : blocks) {
+            if (block.getBlockNo() != Tx.TX_UNCONFIRMED && block.getTxHashes() != null) {
+                txHashesByBlockNo.put(block.getBlockNo(), block.getTxHashes());
+                blockTimes.put(block.getBlockNo(), block.getBlockTime());
+            }
+        }
+        confirmTxs(txHashesByBlockNo, blockTimes, forkBlockNo);
+    }
+
+    /**
+     * Confirms the txs of a batch of blocks in one transaction. The stored block no of the txs,
+     * their updates and their double spends are queried per chunk of tx hashes instead of per tx.
+     * Unless forkBlockNo is TX_UNCONFIRMED, the txs confirmed above it are unconfirmed first in
+     * the same transaction, the batch then being the new branch of a reorg.
+     */
+    private void confirmTxs(Map<Integer, List<byte[]>> txHashesByBlockNo, Map<Integer, Integer> blockTimes,
+                            final int forkBlockNo) {
+        final HashMap<String, Integer> blockNos = new HashMap<String, Integer>();
+        for (Map.Entry<Integer, List<byte[]>> entry : txHashesByBlockNo.entrySet()) {
+            for (byte[] txHash : entry.getValue()) {
+                blockNos.put(Base58.encode(txHash), entry.getKey());
+            }
+        }
+        if (blockNos.size() == 0 && forkBlockNo == Tx.TX_UNCONFIRMED) {
+            return;
+        }
+        // most tx hashes of filtered blocks are bloom filter false positives we do not have
+        final HashMap<Integer, List<String>> confirmedTxHashes = new HashMap<Integer, List<String>>();
+        final HashSet<String>                confirmedTxHashSet = new HashSet<String>();
+        for (List<String> chunk : chunks(new ArrayList<String>(blockNos.keySet()))) {
+            String sql = "select tx_hash,block_no from txs where tx_hash in (" + placeholders(chunk.size()) + ")";
+            this.execQueryLoop(sql, chunk.toArray(new String[chunk.size()]), new Function<ICursor, Void>() {
                 @Nullable
                 @Override
                 public Void apply(@Nullable ICursor c) {
-                    cnt[0] = c.getInt(0);
+                    String  txHash      = c.getString(0);
+                    Integer blockNo     = blockNos.get(txHash);
+                    int     storedBlock = c.isNull(1) || c.getInt(1) > forkBlockNo ? Tx.TX_UNCONFIRMED : c.getInt(1);
+                    if (blockNo != null && storedBlock != blockNo && confirmedTxHashSet.add(txHash)) {
+                        List<String> txHashes = confirmedTxHashes.get(blockNo);
+                        if (txHashes == null) {
+                            txHashes = new ArrayList<String>();
+                            confirmedTxHashes.put(blockNo, txHashes);
+                        }
+                        txHashes.add(txHash);
+                    }
                     return null;
                 }
             });
-            if (cnt[0] > 0) {
-                continue;
+        }
+        if (confirmedTxHashSet.size() == 0 && forkBlockNo == Tx.TX_UNCONFIRMED) {
+            return;
+        }
+        IDb db = this.getWriteDb();
+        db.beginTransaction();
+        if (forkBlockNo != Tx.TX_UNCONFIRMED) {
+            this.execUpdate(db, "update txs set block_no=null where block_no>?", new String[]{Integer.toString(forkBlockNo)});
+        }
+        for (Map.Entry<Integer, List<String>> entry : confirmedTxHashes.entrySet()) {
+            for (List<String> chunk : chunks(entry.getValue())) {
+                String       sql    = "update txs set block_no=? where tx_hash in (" + placeholders(chunk.size()) + ")";
+                List<String> params = new ArrayList<String>();
+                params.add(Integer.toString(entry.getKey()));
+                params.addAll(chunk);
+                this.execUpdate(db, sql, params.toArray(new String[params.size()]));
             }
-            this.execUpdate(db, updateBlockNoSql, new String[]{Integer.toString(blockNo), Base58.encode(txHash)});
-            final List<String> txHashes1 = new ArrayList<String>();
-            this.execQueryLoop(db, doubleSpendSql, new String[]{Base58.encode(txHash)}, new Function<ICursor, Void>() {
+        }
+        // the txs double spending any of the confirmed txs, and the txs spending them, go away
+        final List<String> txHashes1 = new ArrayList<String>();
+        for (List<String> chunk : chunks(new ArrayList<String>(confirmedTxHashSet))) {
+            String doubleSpendSql = "select distinct a.tx_hash from ins a, ins b where a.prev_tx_hash=b.prev_tx_hash " +
+                    "and a.prev_out_sn=b.prev_out_sn and a.tx_hash<>b.tx_hash and b.tx_hash in (" +
+                    placeholders(chunk.size()) + ")";
+            this.execQueryLoop(db, doubleSpendSql, chunk.toArray(new String[chunk.size()]), new Function<ICursor, Void>() {
                 @Nullable
                 @Override
                 public Void apply(@Nullable ICursor c) {
@@ -519,37 +607,44 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
                     return null;
                 }
             });
-            List<String> needRemoveTxHashes = new ArrayList<String>();
-            while (txHashes1.size() > 0) {
-                String thisHash = txHashes1.get(0);
-                txHashes1.remove(0);
-                needRemoveTxHashes.add(thisHash);
-                List<String> temp = getRelayTx(thisHash);
-                txHashes1.addAll(temp);
-            }
-            for (String each : needRemoveTxHashes) {
-                removeSingleTx(db, each);
+        }
+        LinkedHashSet<String> needRemoveTxHashes = new LinkedHashSet<String>();
+        while (txHashes1.size() > 0) {
+            String thisHash = txHashes1.remove(0);
+            if (!confirmedTxHashSet.contains(thisHash) && needRemoveTxHashes.add(thisHash)) {
+                txHashes1.addAll(getRelayTx(thisHash));
             }
         }
-        final int[] blockTime = {-1};
-        this.execQueryOneRecord(db, blockTimeSql, new String[]{Integer.toString(blockNo)}, new Function<ICursor, Void>() {
-            @Nullable
-            @Override
-            public Void apply(@Nullable ICursor c) {
-                int idColumn = c.getColumnIndex("block_time");
-                if (idColumn != -1) {
-                    blockTime[0] = c.getInt(idColumn);
-                }
-                return null;
+        for (String each : needRemoveTxHashes) {
+            removeSingleTx(db, each);
+        }
+        String updateTxTimeThatMoreThanBlockTime = "update txs set tx_time=? where block_no=? and tx_time>?";
+        for (Integer blockNo : confirmedTxHashes.keySet()) {
+            Integer blockTime = blockTimes.get(blockNo);
+            if (blockTime != null && blockTime > 0) {
+                this.execUpdate(db, updateTxTimeThatMoreThanBlockTime, new String[]{Integer.toString(blockTime)
+                        , Integer.toString(blockNo), Integer.toString(blockTime)});
             }
-        });
-        if (blockTime[0] > 0) {
-            this.execUpdate(db, updateTxTimeThatMoreThanBlockTime, new String[]{Integer.toString(blockTime[0])
-                    , Integer.toString(blockNo), Integer.toString(blockTime[0])});
         }
         db.endTransaction();
     }
 
+    private static List<List<String>> chunks(List<String> list) {
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        for (int i = 0; i < list.size(); i += MAX_SQL_PARAM_COUNT) {
+            chunks.add(list.subList(i, Math.min(list.size(), i + MAX_SQL_PARAM_COUNT)));
+        }
+        return chunks;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(i == 0 ? "?" : ",?");
+        }
+        return builder.toString();
+    }
+
     @Override
     public void unConfirmTxByBlockNo(int blockNo) {
         String sql = "update txs set block_no=null where block_no>=?";
@@ -736,6 +831,34 @@ public abstract class AbstractTxProvider extends AbstractProvider implements ITx
         return outItemList;
     }
 
+    @Override
+    public List<byte[]> getUnspentOutpointsWithAddress(String address) {
+        final List<byte[]> outpoints = new ArrayList<byte[]>();
+        // an out spent by an unconfirmed tx stays in, the spending tx may never confirm
+        String sql = "select o.tx_hash,o.out_sn from outs o where o.out_address=?" +
+                " and (o.out_status=? or exists (select 1 from ins i,txs t" +
+                " where i.prev_tx_hash=o.tx_hash and i.prev_out_sn=o.out_sn" +
+                " and t.tx_hash=i.tx_hash and t.block_no is null))";
+        this.execQueryLoop(sql, new String[]{address, Integer.toString(Out.OutStatus.unspent
+                .getValue())}, new Function<ICursor, Void>() {
+            @Nullable
+            @Override
+            public Void apply(@Nullable ICursor c) {
+                try {
+                    byte[] txHash = Base58.decode(c.getString(0));
+                    byte[] outpoint = new byte[36];
+                    System.arraycopy(txHash, 0, outpoint, 0, 32);
+                    Utils.uint32ToByteArrayLE(c.getInt(1), outpoint, 32);
+                    outpoints.add(outpoint);
+                } catch (AddressFormatException e) {
+                    e.printStackTrace();
+                }
+                return null;
+            }
+        });
+        return outpoints;
+    }
+
 //    public List<In> getRelatedIn(String address) {
 //        final List<In> list = new ArrayList<In>();
 //        String sql = "select ins.* from ins,addresses_txs " +
@@ -0,0 +1,614 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.yjt.wallet.core.db.implement;
+
+import com.yjt.wallet.core.Block;
+import com.yjt.wallet.core.contant.BitherjSettings;
+import com.yjt.wallet.core.db.IBlockProvider;
+import com.yjt.wallet.core.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the block headers in a memory mapped ring file instead of the blocks table. Main chain
+ * blocks take the slot of their height modulo {@link BitherjSettings#BLOCK_FILE_CAPACITY}, so a
+ * height is found in O(1) and old blocks are overwritten as the chain grows, orphans go to a
+ * small separate area. An open addressing hash index in a second file, name.idx, finds a block
+ * by hash.
+ * <p/>
+ * Records carry a crc and the main chain tip is a single 8 byte word written after the records
+ * it covers are forced to disk. On open, torn records and main chain records above the tip are
+ * dropped, the hash index is rebuilt unless it was closed cleanly.
+ * <p/>
+ * To use it, return it from {@link com.yjt.wallet.core.db.AbstractDb#initBlockProvider()}.
+ */
+public class FileBlockProvider implements IBlockProvider {
+    private static final Logger log = LoggerFactory.getLogger(FileBlockProvider.class);
+
+    private static final int MAGIC        = 0x42484452;
+    private static final int INDEX_MAGIC  = 0x42484458;
+    private static final int VERSION      = 1;
+    private static final int ORPHAN_SLOTS = 256;
+
+    // data file: magic, version, main slot count, tip, then the records
+    private static final int FILE_HEADER_SIZE = 32;
+    private static final int TIP_OFFSET       = 16;
+
+    // record: flags, block no, block hash, 80 byte header, crc of the bytes before it
+    private static final int RECORD_SIZE   = 128;
+    private static final int NO_OFFSET     = 4;
+    private static final int HASH_OFFSET   = 8;
+    private static final int HEADER_OFFSET = 40;
+    private static final int CRC_OFFSET    = HEADER_OFFSET + Block.HEADER_SIZE;
+    private static final int FLAG_USED     = 1;
+    private static final int FLAG_MAIN     = 2;
+
+    // index file: magic, clean flag, used entries, entry count, then entries of slot + 1 and
+    // a fingerprint of the block hash, 0 marks a free entry
+    private static final int INDEX_HEADER_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE  = 8;
+
+    private final RandomAccessFile dataFile;
+    private final RandomAccessFile indexFile;
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer index;
+    private final int              mainSlots;
+    private final int              slots;
+    private final int              indexSize;
+
+    private int tipBlockNo;
+    private int blockCount;
+    private int usedIndexEntries;
+    private int nextOrphanSlot;
+
+    public FileBlockProvider(File file) throws IOException {
+        mainSlots = BitherjSettings.BLOCK_FILE_CAPACITY;
+        slots = mainSlots + ORPHAN_SLOTS;
+        indexSize = Integer.highestOneBit(slots * 2 - 1) << 1;
+
+        dataFile = new RandomAccessFile(file, "rw");
+        boolean created = dataFile.length() == 0;
+        data = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE +
+                (long) slots * RECORD_SIZE);
+        if (created) {
+            data.putInt(0, MAGIC);
+            data.putInt(4, VERSION);
+            data.putInt(8, mainSlots);
+            writeTip(-1);
+            data.force();
+        } else if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getInt(8) !=
+                mainSlots) {
+            dataFile.close();
+            throw new IOException("Not a block file of this version: " + file);
+        }
+        indexFile = new RandomAccessFile(new File(file.getPath() + ".idx"), "rw");
+        index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                INDEX_HEADER_SIZE + (long) indexSize * INDEX_ENTRY_SIZE);
+        recover();
+    }
+
+    /**
+     * Forces everything to disk and marks the hash index clean, so the next open skips the
+     * rebuild.
+     */
+    public synchronized void close() throws IOException {
+        data.force();
+        index.putInt(8, usedIndexEntries);
+        index.putInt(4, 1);
+        index.force();
+        dataFile.close();
+        indexFile.close();
+    }
+
+    @Override
+    public synchronized List<Block> getAllBlocks() {
+        List<Block> blocks = new ArrayList<Block>();
+        for (int slot = 0; slot < slots; slot++) {
+            if (isUsed(slot)) {
+                blocks.add(readBlock(slot));
+            }
+        }
+        sortDescending(blocks);
+        return blocks;
+    }
+
+    @Override
+    public synchronized List<Block> getBlocksFrom(int blockNo) {
+        List<Block> blocks = new ArrayList<Block>();
+        for (int no = tipBlockNo; no > blockNo && no >= 0 && no > tipBlockNo - mainSlots; no--) {
+            int slot = mainSlot(no);
+            if (slot >= 0) {
+                blocks.add(readBlock(slot));
+            }
+        }
+        for (int slot = mainSlots; slot < slots; slot++) {
+            if (isUsed(slot) && blockNo(slot) > blockNo) {
+                blocks.add(readBlock(slot));
+            }
+        }
+        sortDescending(blocks);
+        return blocks;
+    }
+
+    @Override
+    public synchronized List<Block> getLimitBlocks(int limit) {
+        List<Block> blocks = new ArrayList<Block>();
+        for (int no = tipBlockNo; no >= 0 && no > tipBlockNo - mainSlots && blocks.size() <
+                limit; no--) {
+            int slot = mainSlot(no);
+            if (slot >= 0) {
+                blocks.add(readBlock(slot));
+            }
+        }
+        for (int slot = mainSlots; slot < slots; slot++) {
+            if (isUsed(slot)) {
+                blocks.add(readBlock(slot));
+            }
+        }
+        sortDescending(blocks);
+        return blocks.size() > limit ? new ArrayList<Block>(blocks.subList(0, limit)) : blocks;
+    }
+
+    @Override
+    public synchronized int getBlockCount() {
+        return blockCount;
+    }
+
+    @Override
+    public synchronized Block getLastBlock() {
+        int slot = tipBlockNo < 0 ? -1 : mainSlot(tipBlockNo);
+        return slot < 0 ? null : readBlock(slot);
+    }
+
+    @Override
+    public synchronized Block getLastOrphanBlock() {
+        int lastSlot = -1;
+        for (int slot = mainSlots; slot < slots; slot++) {
+            if (isUsed(slot) && (lastSlot < 0 || blockNo(slot) > blockNo(lastSlot))) {
+                lastSlot = slot;
+            }
+        }
+        return lastSlot < 0 ? null : readBlock(lastSlot);
+    }
+
+    @Override
+    public synchronized Block getBlock(byte[] blockHash) {
+        int slot = find(blockHash);
+        return slot < 0 ? null : readBlock(slot);
+    }
+
+    @Override
+    public synchronized Block getOrphanBlockByPrevHash(byte[] prevHash) {
+        for (int slot = mainSlots; slot < slots; slot++) {
+            if (isUsed(slot)) {
+                Block block = readBlock(slot);
+                if (Arrays.equals(block.getBlockPrev(), prevHash)) {
+                    return block;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized Block getMainChainBlock(byte[] blockHash) {
+        int slot = find(blockHash);
+        return slot < 0 || !isMain(slot) ? null : readBlock(slot);
+    }
+
+    @Override
+    public synchronized void addBlocks(List<Block> blockItemList) {
+        int newTipBlockNo = tipBlockNo;
+        for (Block block : blockItemList) {
+            if (write(block) && block.isMain()) {
+                newTipBlockNo = Math.max(newTipBlockNo, block.getBlockNo());
+            }
+        }
+        commitTip(newTipBlockNo);
+    }
+
+    @Override
+    public synchronized void addBlock(Block item) {
+        if (write(item) && item.isMain()) {
+            commitTip(Math.max(tipBlockNo, item.getBlockNo()));
+        } else {
+            data.force();
+        }
+    }
+
+    @Override
+    public synchronized void updateBlock(byte[] blockHash, boolean isMain) {
+        int slot = find(blockHash);
+        if (slot < 0 || isMain(slot) == isMain) {
+            return;
+        }
+        if (!isMain && blockNo(slot) == tipBlockNo) {
+            commitTip(previousTipBlockNo());
+        }
+        int blockNo = move(slot, isMain);
+        if (isMain) {
+            commitTip(Math.max(tipBlockNo, blockNo));
+        } else {
+            data.force();
+        }
+    }
+
+    @Override
+    public synchronized void reorganize(int forkBlockNo, List<byte[]> oldBlockHashes,
+                                        List<byte[]> sideBlockHashes, List<Block> newBlocks) {
+        // the old branch is above the tip from here on, a crash leaves the chain at the fork
+        commitTip(forkBlockNo);
+        for (byte[] blockHash : oldBlockHashes) {
+            int slot = find(blockHash);
+            if (slot >= 0 && isMain(slot)) {
+                move(slot, false);
+            }
+        }
+        int newTipBlockNo = forkBlockNo;
+        for (byte[] blockHash : sideBlockHashes) {
+            int slot = find(blockHash);
+            if (slot >= 0) {
+                newTipBlockNo = Math.max(newTipBlockNo, isMain(slot) ? blockNo(slot) : move(slot,
+                        true));
+            }
+        }
+        for (Block block : newBlocks) {
+            if (!block.isMain()) {
+                write(block);
+                continue;
+            }
+            int slot = find(block.getBlockHash());
+            if (slot < 0) {
+                write(block);
+            } else if (!isMain(slot)) {
+                // relayed again after it was stored as an orphan
+                move(slot, true);
+            }
+            newTipBlockNo = Math.max(newTipBlockNo, block.getBlockNo());
+        }
+        commitTip(newTipBlockNo);
+    }
+
+    /**
+     * Moves a block between the main chain slots and the orphan area, without forcing.
+     *
+     * @return the block no of the block.
+     */
+    private int move(int slot, boolean isMain) {
+        Block block = readBlock(slot);
+        block.setMain(isMain);
+        // the block is written to its new slot before the old one is freed, a crash in
+        // between leaves a duplicate rather than nothing
+        int newSlot = isMain ? mainSlot(block) : takeOrphanSlot();
+        if (isUsed(newSlot)) {
+            blockCount--;
+        }
+        writeRecord(newSlot, block);
+        insertIndex(block.getBlockHash(), newSlot);
+        data.putInt(recordOffset(slot), 0);
+        return block.getBlockNo();
+    }
+
+    @Override
+    public synchronized void removeBlock(byte[] blockHash) {
+        int slot = find(blockHash);
+        if (slot < 0) {
+            return;
+        }
+        if (isMain(slot) && blockNo(slot) == tipBlockNo) {
+            commitTip(previousTipBlockNo());
+        }
+        clear(slot);
+    }
+
+    @Override
+    public synchronized void cleanOldBlock() {
+        if (blockCount <= 5000 || tipBlockNo < 0) {
+            return;
+        }
+        int blockNo = (tipBlockNo - BitherjSettings.BLOCK_DIFFICULTY_INTERVAL) - tipBlockNo %
+                BitherjSettings.BLOCK_DIFFICULTY_INTERVAL;
+        for (int slot = 0; slot < slots; slot++) {
+            if (isUsed(slot) && blockNo(slot) < blockNo) {
+                clear(slot);
+            }
+        }
+        data.force();
+    }
+
+    private boolean write(Block block) {
+        if (find(block.getBlockHash()) >= 0) {
+            return false;
+        }
+        int slot = block.isMain() ? mainSlot(block) : takeOrphanSlot();
+        if (isUsed(slot)) {
+            // the ring wrapped around or the orphan area is full, the old block is dropped
+            blockCount--;
+        }
+        writeRecord(slot, block);
+        insertIndex(block.getBlockHash(), slot);
+        blockCount++;
+        return true;
+    }
+
+    private void commitTip(int newTipBlockNo) {
+        data.force();
+        if (newTipBlockNo != tipBlockNo) {
+            tipBlockNo = newTipBlockNo;
+            writeTip(newTipBlockNo);
+            data.force();
+        }
+    }
+
+    private void writeTip(int blockNo) {
+        // the block no and its complement in one aligned word, a torn write is detected on open
+        data.putLong(TIP_OFFSET, ((long) blockNo << 32) | (~blockNo & 0xffffffffL));
+    }
+
+    private int previousTipBlockNo() {
+        for (int no = tipBlockNo - 1; no >= 0 && no > tipBlockNo - mainSlots; no--) {
+            if (mainSlot(no) >= 0) {
+                return no;
+            }
+        }
+        return -1;
+    }
+
+    private void recover() {
+        long tip = data.getLong(TIP_OFFSET);
+        int committedTipBlockNo = (int) (tip >>> 32);
+        boolean tipValid = (int) tip == ~committedTipBlockNo;
+        int droppedCount = 0;
+        int maxMainBlockNo = -1;
+        blockCount = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (!isUsed(slot)) {
+                continue;
+            }
+            if (!checkRecord(slot) || (tipValid && isMain(slot) && blockNo(slot) >
+                    committedTipBlockNo)) {
+                data.putInt(recordOffset(slot), 0);
+                droppedCount++;
+                continue;
+            }
+            if (isMain(slot)) {
+                maxMainBlockNo = Math.max(maxMainBlockNo, blockNo(slot));
+            }
+            blockCount++;
+        }
+        if (droppedCount > 0) {
+            log.warn("Block file dropped {} uncommitted blocks", droppedCount);
+        }
+        tipBlockNo = maxMainBlockNo;
+        writeTip(tipBlockNo);
+        nextOrphanSlot = mainSlots;
+        data.force();
+
+        if (index.getInt(0) == INDEX_MAGIC && index.getInt(4) == 1 && index.getInt(12) ==
+                indexSize && droppedCount == 0) {
+            usedIndexEntries = index.getInt(8);
+        } else {
+            rebuildIndex();
+        }
+        // until close() a crash leaves the index dirty
+        index.putInt(4, 0);
+        index.force();
+    }
+
+    private void rebuildIndex() {
+        for (int i = 0; i < indexSize; i++) {
+            index.putLong(INDEX_HEADER_SIZE + i * INDEX_ENTRY_SIZE, 0);
+        }
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(12, indexSize);
+        usedIndexEntries = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (isUsed(slot)) {
+                insertIndex(readHash(slot), slot);
+            }
+        }
+    }
+
+    private int find(byte[] blockHash) {
+        int fingerprint = fingerprint(blockHash);
+        int mask = indexSize - 1;
+        int i = bucket(blockHash) & mask;
+        for (int probe = 0; probe < indexSize; probe++) {
+            int offset = INDEX_HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+            int entry = index.getInt(offset);
+            if (entry == 0) {
+                return -1;
+            }
+            int slot = entry - 1;
+            if (index.getInt(offset + 4) == fingerprint && isUsed(slot) && hashEquals(slot,
+                    blockHash)) {
+                return slot;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insertIndex(byte[] blockHash, int slot) {
+        if (usedIndexEntries >= indexSize * 3 / 4) {
+            // the entries of overwritten blocks only go away in a rebuild
+            rebuildIndex();
+        }
+        int mask = indexSize - 1;
+        int i = bucket(blockHash) & mask;
+        while (true) {
+            int offset = INDEX_HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+            int entry = index.getInt(offset);
+            if (entry == 0 || isStale(entry - 1, index.getInt(offset + 4))) {
+                if (entry == 0) {
+                    usedIndexEntries++;
+                }
+                index.putInt(offset, slot + 1);
+                index.putInt(offset + 4, fingerprint(blockHash));
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private boolean isStale(int slot, int fingerprint) {
+        return !isUsed(slot) || data.getInt(recordOffset(slot) + HASH_OFFSET + 4) != fingerprint;
+    }
+
+    private int takeOrphanSlot() {
+        for (int i = 0; i < ORPHAN_SLOTS; i++) {
+            int slot = mainSlots + (nextOrphanSlot - mainSlots + i) % ORPHAN_SLOTS;
+            if (!isUsed(slot)) {
+                nextOrphanSlot = slot;
+                break;
+            }
+        }
+        int slot = nextOrphanSlot;
+        nextOrphanSlot = mainSlots + (slot - mainSlots + 1) % ORPHAN_SLOTS;
+        return slot;
+    }
+
+    /**
+     * @return the slot of the main chain block at the height, -1 if it is not in the file.
+     */
+    private int mainSlot(int blockNo) {
+        int slot = blockNo % mainSlots;
+        return isUsed(slot) && isMain(slot) && blockNo(slot) == blockNo ? slot : -1;
+    }
+
+    private int mainSlot(Block block) {
+        return block.getBlockNo() % mainSlots;
+    }
+
+    private void clear(int slot) {
+        data.putInt(recordOffset(slot), 0);
+        blockCount--;
+    }
+
+    private int recordOffset(int slot) {
+        return FILE_HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private boolean isUsed(int slot) {
+        return (data.getInt(recordOffset(slot)) & FLAG_USED) != 0;
+    }
+
+    private boolean isMain(int slot) {
+        return (data.getInt(recordOffset(slot)) & FLAG_MAIN) != 0;
+    }
+
+    private int blockNo(int slot) {
+        return data.getInt(recordOffset(slot) + NO_OFFSET);
+    }
+
+    private boolean hashEquals(int slot, byte[] blockHash) {
+        int offset = recordOffset(slot) + HASH_OFFSET;
+        for (int i = 0; i < blockHash.length; i++) {
+            if (data.get(offset + i) != blockHash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] readHash(int slot) {
+        byte[] hash = new byte[32];
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(recordOffset(slot) + HASH_OFFSET);
+        buffer.get(hash);
+        return hash;
+    }
+
+    private void writeRecord(int slot, Block block) {
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(block.isMain() ? FLAG_USED | FLAG_MAIN : FLAG_USED);
+        buffer.putInt(block.getBlockNo());
+        buffer.put(block.getBlockHash());
+        Utils.uint32ToByteArrayLE(block.getBlockVer(), record, HEADER_OFFSET);
+        System.arraycopy(block.getBlockPrev(), 0, record, HEADER_OFFSET + 4, 32);
+        System.arraycopy(block.getBlockRoot(), 0, record, HEADER_OFFSET + 36, 32);
+        Utils.uint32ToByteArrayLE(block.getBlockTime(), record, HEADER_OFFSET + 68);
+        Utils.uint32ToByteArrayLE(block.getBlockBits(), record, HEADER_OFFSET + 72);
+        Utils.uint32ToByteArrayLE(block.getBlockNonce(), record, HEADER_OFFSET + 76);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, CRC_OFFSET);
+        buffer.putInt(CRC_OFFSET, (int) crc.getValue());
+        ByteBuffer target = data.duplicate();
+        target.position(recordOffset(slot));
+        target.put(record);
+    }
+
+    private byte[] readRecord(int slot) {
+        byte[] record = new byte[RECORD_SIZE];
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(recordOffset(slot));
+        buffer.get(record);
+        return record;
+    }
+
+    private boolean checkRecord(int slot) {
+        byte[] record = readRecord(slot);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, CRC_OFFSET);
+        return ByteBuffer.wrap(record).getInt(CRC_OFFSET) == (int) crc.getValue();
+    }
+
+    private Block readBlock(int slot) {
+        byte[] record = readRecord(slot);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        return new Block(Arrays.copyOfRange(record, HASH_OFFSET, HEADER_OFFSET),
+                         Utils.readUint32(record, HEADER_OFFSET),
+                         Arrays.copyOfRange(record, HEADER_OFFSET + 4, HEADER_OFFSET + 36),
+                         Arrays.copyOfRange(record, HEADER_OFFSET + 36, HEADER_OFFSET + 68),
+                         (int) Utils.readUint32(record, HEADER_OFFSET + 68),
+                         Utils.readUint32(record, HEADER_OFFSET + 72),
+                         Utils.readUint32(record, HEADER_OFFSET + 76), buffer.getInt(NO_OFFSET),
+                         (buffer.getInt(0) & FLAG_MAIN) != 0);
+    }
+
+    private static int bucket(byte[] blockHash) {
+        return ByteBuffer.wrap(blockHash).getInt(0);
+    }
+
+    private static int fingerprint(byte[] blockHash) {
+        return ByteBuffer.wrap(blockHash).getInt(4);
+    }
+
+    private static void sortDescending(List<Block> blocks) {
+        Collections.sort(blocks, new Comparator<Block>() {
+            @Override
+            public int compare(Block lhs, Block rhs) {
+                return rhs.getBlockNo() - lhs.getBlockNo();
+            }
+        });
+    }
+}
@@ -30,6 +30,9 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -48,9 +51,14 @@ import java.util.Map;
 public class BitcoinSerializer {
     private static final Logger log = LoggerFactory.getLogger(BitcoinSerializer.class);
     private static final int COMMAND_LEN = 12;
+    public static final int HEADER_SIZE = 4 + COMMAND_LEN + 4 + 4 /* checksum */;
 
     private static Map<Class<? extends Message>, String> names = new HashMap<Class<? extends Message>, String>();
 
+    // Every connection has its own serializer, so received payloads are hashed without
+    // contending for the shared digest of Utils, and may be hashed piece by piece as they arrive.
+    private final MessageDigest payloadDigest;
+
     static {
         names.put(VersionMessage.class, "version");
         names.put(InventoryMessage.class, "inv");
@@ -66,10 +74,15 @@ public class BitcoinSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
         names.put(FilteredBlockMessage.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
         names.put(RejectMessage.class, "reject");
+        names.put(GetCFiltersMessage.class, "getcfilters");
+        names.put(CFilterMessage.class, "cfilter");
+        names.put(GetCFHeadersMessage.class, "getcfheaders");
+        names.put(CFHeadersMessage.class, "cfheaders");
     }
 
     /**
@@ -78,14 +91,68 @@ public class BitcoinSerializer {
      * //     * @param params           networkParams used to create Messages instances and termining packetMagic
      */
     public BitcoinSerializer() {
-
+        try {
+            payloadDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
     }
 
     /**
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
+        byte[] header = new byte[HEADER_SIZE];
+        writeHeader(name, message.length, Utils.doubleDigest(message), header);
+        out.write(header);
+        out.write(message);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Sending {} message: {}", name, Utils.bytesToHexString(header) + Utils.bytesToHexString(message));
+        }
+    }
+
+    /**
+     * @return the message with its header, ready to be written to the wire.
+     */
+    public byte[] serialize(Message message) {
+        String name = getName(message);
+        byte[] payload = message.unsafeBitcoinSerialize();
+        byte[] bytes = new byte[HEADER_SIZE + payload.length];
+        writeHeader(name, payload.length, Utils.doubleDigest(payload), bytes);
+        System.arraycopy(payload, 0, bytes, HEADER_SIZE, payload.length);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Sending {} message: {}", name, Utils.bytesToHexString(bytes));
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the header of message at headerStart in buffer, its payload already serialized from
+     * headerStart + {@link #HEADER_SIZE} up to payloadEnd. The position and limit of buffer are
+     * left as they were. Only reads shared state, so it may be called on any thread.
+     */
+    public void writeHeader(Message message, ByteBuffer buffer, int headerStart, int payloadEnd) {
+        String name = getName(message);
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(payloadEnd);
+        payload.position(headerStart + HEADER_SIZE);
+        byte[] header = new byte[HEADER_SIZE];
+        writeHeader(name, payloadEnd - headerStart - HEADER_SIZE, Utils.doubleDigest(payload),
+                    header);
+        payload.position(headerStart);
+        payload.put(header);
+
+        if (log.isDebugEnabled()) {
+            byte[] bytes = new byte[payloadEnd - headerStart];
+            payload.position(headerStart);
+            payload.get(bytes);
+            log.debug("Sending {} message: {}", name, Utils.bytesToHexString(bytes));
+        }
+    }
+
+    private void writeHeader(String name, int length, byte[] hash, byte[] header) {
         Utils.uint32ToByteArrayBE((BitherjSettings.packetMagic), header, 0);
 
         // The header array is initialized to zero by Java so we don't have to worry about
@@ -94,27 +161,32 @@ public class BitcoinSerializer {
             header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
         }
 
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
+        Utils.uint32ToByteArrayLE(length, header, 4 + COMMAND_LEN);
 
-        byte[] hash = Utils.doubleDigest(message);
         System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
-
-        if (log.isDebugEnabled()) {
-            log.debug("Sending {} message: {}", name, Utils.bytesToHexString(header) + Utils.bytesToHexString(message));
-        }
     }
 
     /**
-     * Writes message to to the output stream.
+     * @return the command name of the message, "unknown" for messages we can not send.
      */
-    public void serialize(Message message, OutputStream out) throws IOException {
+    public static String getCommand(Message message) {
+        String name = names.get(message.getClass());
+        return name == null ? "unknown" : name;
+    }
+
+    private String getName(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        return name;
+    }
+
+    /**
+     * Writes message to to the output stream.
+     */
+    public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(getName(message), message.bitcoinSerialize(), out);
     }
 
     /**
@@ -154,12 +226,34 @@ public class BitcoinSerializer {
      * {@link BitcoinSerializer#deserializeHeader}.
      */
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        byte[] payloadBytes;
+        int offset;
+        if (in.hasArray()) {
+            // parsed where it was read, the buffer is not touched until the message is processed
+            if (in.remaining() < header.size) {
+                throw new BufferUnderflowException();
+            }
+            payloadBytes = in.array();
+            offset = in.arrayOffset() + in.position();
+            in.position(in.position() + header.size);
+        } else {
+            payloadBytes = new byte[header.size];
+            offset = 0;
+            in.get(payloadBytes, 0, header.size);
+        }
+        resetPayloadChecksum();
+        updatePayloadChecksum(payloadBytes, offset, header.size);
+        return deserializePayload(header, payloadBytes, offset, finishPayloadChecksum());
+    }
 
+    /**
+     * Deserialize a payload of header.size bytes which has already been read into payloadBytes
+     * at offset. The message is parsed from the array without another copy, and keeps no
+     * reference to it, so the array may be reused once this returns. Hash is the double SHA-256
+     * of the payload, see {@link #finishPayloadChecksum()}.
+     */
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, int offset, byte[] hash) throws ProtocolException {
         // Verify the checksum.
-        byte[] hash;
-        hash = Utils.doubleDigest(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -169,39 +263,88 @@ public class BitcoinSerializer {
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    Utils.bytesToHexString(payloadBytes));
+                    Utils.bytesToHexString(Arrays.copyOfRange(payloadBytes, offset, offset + header.size)));
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header.command, header.size, payloadBytes, offset, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + Utils.bytesToHexString(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " +
+                    Utils.bytesToHexString(Arrays.copyOfRange(payloadBytes, offset, offset + header.size)) + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
+    /**
+     * Starts the checksum of a payload which is fed by {@link #updatePayloadChecksum} as its
+     * bytes arrive.
+     */
+    public void resetPayloadChecksum() {
+        payloadDigest.reset();
+    }
+
+    public void updatePayloadChecksum(byte[] bytes, int offset, int length) {
+        payloadDigest.update(bytes, offset, length);
+    }
+
+    /**
+     * @return the double SHA-256 of the bytes fed since {@link #resetPayloadChecksum()}.
+     */
+    public byte[] finishPayloadChecksum() {
+        return payloadDigest.digest(payloadDigest.digest());
+    }
+
+    private Message makeMessage(String command, int length, byte[] bytes, int offset, byte[] hash, byte[] checksum) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
+        // The messages of a sync are parsed in place, the others from a copy of their payload.
         Message message;
-        if (command.equals("version")) {
-            return new VersionMessage(payloadBytes);
+        if (command.equals("merkleblock")) {
+            message = new FilteredBlockMessage(bytes, offset, length);
+        } else if (command.equals("tx")) {
+            Tx tx = new Tx(bytes, offset, length);
+            if (hash != null) {
+                tx.setTxHash(hash);
+            }
+            message = tx;
         } else if (command.equals("inv")) {
-            message = new InventoryMessage(payloadBytes, length);
+            message = new InventoryMessage(bytes, offset, length);
+        } else if (command.equals("headers")) {
+            message = new HeadersMessage(bytes, offset, length);
         } else if (command.equals("block")) {
-            message = new BlockMessage(payloadBytes, length);
-        } else if (command.equals("merkleblock")) {
-            message = new FilteredBlockMessage(payloadBytes);
+            message = new BlockMessage(bytes, offset, length);
         } else if (command.equals("getdata")) {
-            message = new GetDataMessage(payloadBytes, length);
+            message = new GetDataMessage(bytes, offset, length);
+        } else if (command.equals("notfound")) {
+            message = new NotFoundMessage(bytes, offset, length);
+        } else if (command.equals("cfilter")) {
+            message = new CFilterMessage(bytes, offset, length);
+        } else if (command.equals("cfheaders")) {
+            message = new CFHeadersMessage(bytes, offset, length);
+        } else {
+            byte[] payloadBytes = offset == 0 && length == bytes.length ? bytes : Arrays
+                    .copyOfRange(bytes, offset, offset + length);
+            return makeMessage(command, length, payloadBytes, checksum);
+        }
+        // parsed in place, a malformed message could read into the bytes of the next one
+        int parsedLength = message instanceof BlockMessage ? ((BlockMessage) message).getBlock()
+                .getMessageSize() : message.length;
+        if (parsedLength > length) {
+            throw new ProtocolException("'" + command + "' message of " + length +
+                    " bytes parsed as " + parsedLength + " bytes");
+        }
+        if (checksum != null) {
+            message.setChecksum(checksum);
+        }
+        return message;
+    }
+
+    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] checksum) throws ProtocolException {
+        Message message;
+        if (command.equals("version")) {
+            return new VersionMessage(payloadBytes);
         } else if (command.equals("getblocks")) {
             message = new GetBlocksMessage(payloadBytes);
         } else if (command.equals("getheaders")) {
             message = new GetHeadersMessage(payloadBytes);
-        } else if (command.equals("tx")) {
-            Tx tx = new Tx(payloadBytes, 0, length);
-            if (hash != null) {
-                tx.setTxHash(hash);
-            }
-            message = tx;
         } else if (command.equals("addr")) {
             message = new AddressMessage(payloadBytes, length);
         } else if (command.equals("ping")) {
@@ -210,18 +353,18 @@ public class BitcoinSerializer {
             message = new PongMessage(payloadBytes);
         } else if (command.equals("verack")) {
             return new VersionAck(payloadBytes);
-        } else if (command.equals("headers")) {
-            return new HeadersMessage(payloadBytes);
         } else if (command.equals("alert")) {
             return new AlertMessage(payloadBytes);
         } else if (command.equals("filterload")) {
             return new BloomFilter(payloadBytes);
-        } else if (command.equals("notfound")) {
-            return new NotFoundMessage(payloadBytes);
         } else if (command.equals("mempool")) {
             return new MemoryPoolMessage();
         } else if (command.equals("reject")) {
             return new RejectMessage(payloadBytes);
+        } else if (command.equals("getcfilters")) {
+            return new GetCFiltersMessage(payloadBytes);
+        } else if (command.equals("getcfheaders")) {
+            return new GetCFHeadersMessage(payloadBytes);
         } else {
             log.warn("No support for deserializing message with name {}", command);
             return new UnknownMessage(command, payloadBytes);
@@ -148,6 +148,15 @@ public class BlockMessage extends Message {
         block = new Block(payloadBytes, length);
     }
 
+    /**
+     * Deserializes the length bytes of payloadBytes starting at offset, which may be followed by
+     * other messages.
+     */
+    public BlockMessage(byte[] payloadBytes, int offset, int length) throws ProtocolException {
+        super(payloadBytes, offset, length);
+        block = new Block(payloadBytes, offset, length);
+    }
+
     /**
      * Construct a block initialized with all the given fields.
      * //     * @param params Which network the block is for.
@@ -0,0 +1,99 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.yjt.wallet.core.message;
+
+import com.yjt.wallet.core.exception.ProtocolException;
+import com.yjt.wallet.core.utils.VarInt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The filter hashes of the blocks up to stopHash (BIP 157). Each filter header is the double
+ * sha256 of the filter hash and the previous filter header, starting from previousFilterHeader.
+ */
+public class CFHeadersMessage extends Message {
+    private byte         filterType;
+    private byte[]       stopHash;
+    private byte[]       previousFilterHeader;
+    private List<byte[]> filterHashes;
+
+    public CFHeadersMessage(byte filterType, byte[] stopHash, byte[] previousFilterHeader,
+                            List<byte[]> filterHashes) {
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.previousFilterHeader = previousFilterHeader;
+        this.filterHashes = filterHashes;
+        length = 1 + 32 + 32 + VarInt.sizeOf(filterHashes.size()) + filterHashes.size() * 32;
+    }
+
+    public CFHeadersMessage(byte[] payloadBytes) throws ProtocolException {
+        super(payloadBytes, 0);
+    }
+
+    /**
+     * Deserializes the length bytes of payloadBytes starting at offset, which may be followed by
+     * other messages.
+     */
+    public CFHeadersMessage(byte[] payloadBytes, int offset, int length) throws ProtocolException {
+        super(payloadBytes, offset, length);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0];
+        stopHash = readHash();
+        previousFilterHeader = readHash();
+        long count = readVarInt();
+        if (count > GetCFHeadersMessage.MAX_FILTER_HASH_COUNT) {
+            throw new ProtocolException("Too many filter hashes: " + count);
+        }
+        filterHashes = new ArrayList<byte[]>((int) count);
+        for (int i = 0; i < count; i++) {
+            filterHashes.add(readHash());
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash);
+        stream.write(previousFilterHeader);
+        stream.write(new VarInt(filterHashes.size()).encode());
+        for (byte[] filterHash : filterHashes) {
+            stream.write(filterHash);
+        }
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    public byte[] getStopHash() {
+        return stopHash;
+    }
+
+    public byte[] getPreviousFilterHeader() {
+        return previousFilterHeader;
+    }
+
+    public List<byte[]> getFilterHashes() {
+        return filterHashes;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.yjt.wallet.core.message;
+
+import com.yjt.wallet.core.exception.ProtocolException;
+import com.yjt.wallet.core.utils.VarInt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The compact filter of one block (BIP 157), the filter bytes are a Golomb coded set, see
+ * {@link com.yjt.wallet.core.GolombCodedSet}.
+ */
+public class CFilterMessage extends Message {
+    // BIP 158 basic filter
+    public static final byte FILTER_TYPE_BASIC = 0;
+
+    private byte   filterType;
+    private byte[] blockHash;
+    private byte[] filterBytes;
+
+    public CFilterMessage(byte filterType, byte[] blockHash, byte[] filterBytes) {
+        this.filterType = filterType;
+        this.blockHash = blockHash;
+        this.filterBytes = filterBytes;
+        length = 1 + 32 + VarInt.sizeOf(filterBytes.length) + filterBytes.length;
+    }
+
+    public CFilterMessage(byte[] payloadBytes) throws ProtocolException {
+        super(payloadBytes, 0);
+    }
+
+    /**
+     * Deserializes the length bytes of payloadBytes starting at offset, which may be followed by
+     * other messages.
+     */
+    public CFilterMessage(byte[] payloadBytes, int offset, int length) throws ProtocolException {
+        super(payloadBytes, offset, length);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0];
+        blockHash = readHash();
+        filterBytes = readByteArray();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(blockHash);
+        stream.write(new VarInt(filterBytes.length).encode());
+        stream.write(filterBytes);
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    public byte[] getBlockHash() {
+        return blockHash;
+    }
+
+    public byte[] getFilterBytes() {
+        return filterBytes;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.yjt.wallet.core.message;
+
+import com.yjt.wallet.core.exception.ProtocolException;
+import com.yjt.wallet.core.utils.VarInt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Adds one element to the bloom filter loaded on the peer (BIP 37).
+ */
+public class FilterAddMessage extends Message {
+    public static final int MAX_DATA_SIZE = 520;
+
+    private byte[] data;
+
+    public FilterAddMessage(byte[] data) {
+        this.data = data;
+        length = VarInt.sizeOf(data.length) + data.length;
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > MAX_DATA_SIZE) {
+            throw new ProtocolException("Filteradd data out of size range.");
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -55,6 +55,15 @@ public class FilteredBlockMessage extends Message {
         super(payloadBytes, 0);
     }
 
+    /**
+     * Deserializes the length bytes of payloadBytes starting at offset, which may be followed by
+     * other messages.
+     */
+    public FilteredBlockMessage(byte[] payloadBytes, int offset, int length) throws
+            ProtocolException {
+        super(payloadBytes, offset, length);
+    }
+
     @Override
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         if (block.getTransactions() == null) {
@@ -70,9 +79,9 @@ public class FilteredBlockMessage extends Message {
     @Override
     protected void parse() throws ProtocolException {
         byte[] headerBytes = new byte[BlockMessage.HEADER_SIZE];
-        System.arraycopy(bytes, 0, headerBytes, 0, BlockMessage.HEADER_SIZE);
+        System.arraycopy(bytes, offset, headerBytes, 0, BlockMessage.HEADER_SIZE);
         block = new Block(headerBytes);
-        merkleTree = new PartialMerkleTree(bytes, BlockMessage.HEADER_SIZE);
+        merkleTree = new PartialMerkleTree(bytes, offset + BlockMessage.HEADER_SIZE);
         length = BlockMessage.HEADER_SIZE + merkleTree.getMessageSize();
         block.setTxHashes(this.getTransactionHashes());
     }
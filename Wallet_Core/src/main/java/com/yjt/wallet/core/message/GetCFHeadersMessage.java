@@ -0,0 +1,72 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.yjt.wallet.core.message;
+
+import com.yjt.wallet.core.exception.ProtocolException;
+import com.yjt.wallet.core.utils.Utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Requests the compact filter hashes of the blocks from startHeight up to stopHash (BIP 157),
+ * the peer answers with one cfheaders message chaining them to the previous filter header.
+ */
+public class GetCFHeadersMessage extends Message {
+    public static final int MAX_FILTER_HASH_COUNT = 2000;
+
+    private byte   filterType;
+    private long   startHeight;
+    private byte[] stopHash;
+
+    public GetCFHeadersMessage(byte filterType, long startHeight, byte[] stopHash) {
+        this.filterType = filterType;
+        this.startHeight = startHeight;
+        this.stopHash = stopHash;
+        length = 1 + 4 + 32;
+    }
+
+    public GetCFHeadersMessage(byte[] payloadBytes) throws ProtocolException {
+        super(payloadBytes, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readBytes(1)[0];
+        startHeight = readUint32();
+        stopHash = readHash();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        Utils.uint32ToByteStreamLE(startHeight, stream);
+        stream.write(stopHash);
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    public long getStartHeight() {
+        return startHeight;
+    }
+
+    public byte[] getStopHash() {
+        return stopHash;
+    }
+}
@@ -49,6 +49,14 @@ public class GetDataMessage extends ListMessage {
         super(msg, length);
     }
 
+    /**
+     * Deserializes the length bytes of msg starting at offset, which may be followed by
+     * other messages.
+     */
+    public GetDataMessage(byte[] msg, int offset, int length) throws ProtocolException {
+        super(msg, offset, length);
+    }
+
     public GetDataMessage() {
         super();
     }
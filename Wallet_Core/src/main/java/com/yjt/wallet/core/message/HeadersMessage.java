@@ -46,6 +46,14 @@ public class HeadersMessage extends Message {
         super(payload, 0);
     }
 
+    /**
+     * Deserializes the length bytes of payload starting at offset, which may be followed by
+     * other messages.
+     */
+    public HeadersMessage(byte[] payload, int offset, int length) throws ProtocolException {
+        super(payload, offset, length);
+    }
+
     public HeadersMessage(Block... headers) throws ProtocolException {
         super();
         blockHeaders = Arrays.asList(headers);
@@ -66,15 +74,7 @@ public class HeadersMessage extends Message {
 
     @Override
     protected void parse() throws ProtocolException {
-        if (length == UNKNOWN_LENGTH) {
-            int saveCursor = cursor;
-            long numHeaders = readVarInt();
-            cursor = saveCursor;
-
-            // Each header has 80 bytes and one more byte for transactions number which is 00.
-            length = 81 * (int) numHeaders;
-        }
-
+        int end = length == UNKNOWN_LENGTH ? bytes.length : offset + length;
         long numHeaders = readVarInt();
         if (numHeaders > MAX_HEADERS) {
             throw new ProtocolException("Too many headers: got " + numHeaders + " which is larger than " +
@@ -86,13 +86,18 @@ public class HeadersMessage extends Message {
         for (int i = 0; i < numHeaders; ++i) {
             // Read 80 bytes of the header and one more byte for the transaction list, which is always a 00 because the
             // transaction list is empty.
-            byte[] blockHeader = readBytes(81);
-            if (blockHeader[80] != 0) {
+            if (cursor + 81 > end) {
+                throw new ProtocolException("Ran off the end of the headers");
+            }
+            if (bytes[cursor + 80] != 0) {
                 throw new ProtocolException("Block header does not end with a null byte");
             }
-            Block newBlockHeader = new Block(blockHeader, 81);
+            // parsed in place, the block copies what it keeps
+            Block newBlockHeader = new Block(bytes, cursor, 81);
+            cursor += 81;
             blockHeaders.add(newBlockHeader);
         }
+        length = cursor - offset;
 
         if (log.isDebugEnabled()) {
             for (int i = 0; i < numHeaders; ++i) {
@@ -52,6 +52,14 @@ public class InventoryMessage extends ListMessage {
         super(msg, length);
     }
 
+    /**
+     * Deserializes the length bytes of msg starting at offset, which may be followed by
+     * other messages.
+     */
+    public InventoryMessage(byte[] msg, int offset, int length) throws ProtocolException {
+        super(msg, offset, length);
+    }
+
     public InventoryMessage() {
         super();
     }
@@ -369,8 +369,12 @@ public abstract class Message {
         }
     }
 
+    /**
+     * @return true if the cursor has not reached the end of this message, which may be followed
+     * by other bytes in the array when the length is known.
+     */
     protected boolean hasMoreBytes() {
-        return cursor < bytes.length;
+        return cursor < (length == UNKNOWN_LENGTH ? bytes.length : offset + length);
     }
 
 }
@@ -37,6 +37,14 @@ public class NotFoundMessage extends InventoryMessage {
         super(payloadBytes);
     }
 
+    /**
+     * Deserializes the length bytes of payloadBytes starting at offset, which may be followed by
+     * other messages.
+     */
+    public NotFoundMessage(byte[] payloadBytes, int offset, int length) throws ProtocolException {
+        super(payloadBytes, offset, length);
+    }
+
     public NotFoundMessage(List<InventoryItem> items) {
         super();
         this.items = new ArrayList<InventoryItem>(items);
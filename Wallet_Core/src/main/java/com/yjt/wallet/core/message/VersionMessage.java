@@ -49,6 +49,10 @@ public class VersionMessage extends Message {
      * A services flag that denotes whether the peer has a copy of the block chain or not.
      */
     public static final int NODE_NETWORK = 1;
+    /**
+     * A services flag that denotes whether the peer serves compact block filters (BIP 157).
+     */
+    public static final int NODE_COMPACT_FILTERS = 1 << 6;
 
     /**
      * The version number of the protocol spoken.
@@ -16,8 +16,7 @@
 
 package com.yjt.wallet.core.net;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import com.yjt.wallet.core.utils.TimerWheel;
 
 /**
  * <p>A base class which provides basic support for socket timeouts. It is used instead of integrating timeouts into the
@@ -25,13 +24,12 @@ import java.util.TimerTask;
  * </p>
  */
 public abstract class AbstractTimeoutHandler {
-    // TimerTask and timeout value which are added to a timer to kill the connection on timeout
-    private TimerTask timeoutTask;
+    // Timeout and timeout value which are added to the timer wheel to kill the connection on timeout
+    private TimerWheel.Timeout timeoutTask;
     private long timeoutMillis = 0;
     private boolean timeoutEnabled = true;
-
-    // A timer which manages expiring channels as their timeouts occur (if configured).
-    private static final Timer timeoutTimer = new Timer("AbstractTimeoutHandler timeouts", true);
+    // Bumped by every reset, a task taken off the wheel before the last reset does not fire
+    private int timeoutResets = 0;
 
     /**
      * <p>Enables or disables the timeout entirely. This may be useful if you want to store the timeout value but wish
@@ -39,7 +37,8 @@ public abstract class AbstractTimeoutHandler {
      * <p/>
      * <p>The default is for timeoutEnabled to be true but timeoutMillis to be set to 0 (ie disabled).</p>
      * <p/>
-     * <p>This call will reset the current progress towards the timeout.</p>
+     * <p>This call will reset the current progress towards the timeout. Once disabling returns,
+     * {@link #timeoutOccurred()} is not called until timeouts are enabled again.</p>
      */
     public synchronized void setTimeoutEnabled(boolean timeoutEnabled) {
         this.timeoutEnabled = timeoutEnabled;
@@ -67,15 +66,23 @@ public abstract class AbstractTimeoutHandler {
     protected synchronized void resetTimeout() {
         if (timeoutTask != null)
             timeoutTask.cancel();
+        final int resets = ++timeoutResets;
         if (timeoutMillis == 0 || !timeoutEnabled)
             return;
-        timeoutTask = new TimerTask() {
+        // Only set, enabled or disabled resets it, receiving messages does not. Peer uses it as
+        // a handshake timeout and disables it on verack.
+        timeoutTask = TimerWheel.instance().schedule(new Runnable() {
             @Override
             public void run() {
-                timeoutOccurred();
+                // cancel() can not stop a task the wheel already started, so it checks for a
+                // reset itself, and fires holding the lock a reset waits for
+                synchronized (AbstractTimeoutHandler.this) {
+                    if (resets == timeoutResets) {
+                        timeoutOccurred();
+                    }
+                }
             }
-        };
-        timeoutTimer.schedule(timeoutTask, timeoutMillis);
+        }, timeoutMillis);
     }
 
     protected abstract void timeoutOccurred();
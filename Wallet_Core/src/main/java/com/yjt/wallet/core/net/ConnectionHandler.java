@@ -17,20 +17,21 @@
 package com.yjt.wallet.core.net;
 
 import com.google.common.base.Throwables;
+import com.yjt.wallet.core.message.BitcoinSerializer;
 import com.yjt.wallet.core.message.Message;
 import com.yjt.wallet.core.utils.Threading;
 
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nullable;
@@ -53,6 +54,13 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte
     // message header
 
+    // Outbound messages up to this size are serialized together into pooled direct buffers,
+    // larger ones into a heap buffer of their own
+    private static final int OUTBOUND_CHUNK_SIZE      = 8192;
+    private static final int OUTBOUND_CHUNK_POOL_SIZE = 64;
+
+    private static final LinkedList<ByteBuffer> outboundChunkPool = new LinkedList<ByteBuffer>();
+
     // We lock when touching local flags and when writing data, but NEVER when calling any
     // methods which leave this
     // class into non-Java classes.
@@ -67,16 +75,65 @@ class ConnectionHandler implements MessageWriteTarget {
     StreamParser parser;
     @GuardedBy("lock")
     private boolean closeCalled = false;
+    // readingPaused is set by the parser, decoding while decodeTask owns readBuff
+    @GuardedBy("lock")
+    private boolean readingPaused = false;
+    @GuardedBy("lock")
+    private boolean decoding      = false;
 
     @GuardedBy("lock")
     private       long                   bytesToWriteRemaining = 0;
     @GuardedBy("lock")
     private final LinkedList<ByteBuffer> bytesToWrite          = new LinkedList<ByteBuffer>();
+    // The pooled buffer at the tail of bytesToWrite which later messages can be appended to
+    @GuardedBy("lock")
+    private       ByteBuffer             lastChunk;
+    @GuardedBy("lock")
+    private       ByteBuffer[]           buffsToWrite          = new ByteBuffer[8];
+    @GuardedBy("lock")
+    private final OutboundStream         outboundStream        = new OutboundStream();
 
     private Set<ConnectionHandler> connectedHandlers;
 
-    private ConnectionHandler(@Nullable StreamParser parser, SelectionKey key) {
+    // Runs decodeTask, while it is queued or running OP_READ is off and readBuff belongs to it
+    private final Executor decoder;
+
+    private final Runnable decodeTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                // "flip" the buffer - setting the limit to the current position and setting
+                // position to 0
+                readBuff.flip();
+                // Use parser.receiveBytes's return value as a check that it stopped reading at
+                // the right location
+                int bytesConsumed = checkNotNull(parser).receiveBytes(readBuff);
+                checkState(readBuff.position() == bytesConsumed);
+                // Now drop the bytes which were read by compacting readBuff (resetting limit and
+                // keeping relative position)
+                readBuff.compact();
+                lock.lock();
+                try {
+                    decoding = false;
+                    if (!readingPaused) {
+                        setReadOps();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } catch (Exception e) {
+                if (!(e instanceof CancelledKeyException)) {
+                    log.error("Error decoding received bytes: {}", Throwables.getRootCause(e)
+                            .getMessage());
+                }
+                closeConnection();
+            }
+        }
+    };
+
+    private ConnectionHandler(@Nullable StreamParser parser, SelectionKey key, Executor decoder) {
         this.key = key;
+        this.decoder = decoder;
         this.channel = checkNotNull(((SocketChannel) key.channel()));
         if (parser == null) {
             readBuff = null;
@@ -84,15 +141,16 @@ class ConnectionHandler implements MessageWriteTarget {
             return;
         }
         this.parser = parser;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(),
-                                                               BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        // a heap buffer, so messages are parsed from its array without another copy
+        readBuff = ByteBuffer.allocate(Math.min(Math.max(parser.getMaxMessageSize(),
+                                                         BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         parser.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
 
     public ConnectionHandler(StreamParser parser, SelectionKey key,
-                             Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(parser), key);
+                             Set<ConnectionHandler> connectedHandlers, Executor decoder) {
+        this(checkNotNull(parser), key, checkNotNull(decoder));
 
         // closeConnection() may have already happened, in which case we shouldn't add ourselves
         // to the connectedHandlers set
@@ -117,26 +175,55 @@ class ConnectionHandler implements MessageWriteTarget {
         key.selector().wakeup();
     }
 
+    @GuardedBy("lock")
+    private void setReadOps() {
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        key.selector().wakeup();
+    }
+
+    @Override
+    public void setReadingPaused(boolean paused) {
+        lock.lock();
+        try {
+            readingPaused = paused;
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else if (!decoding) {
+                setReadOps();
+            }
+        } catch (CancelledKeyException e) {
+            // the connection is closing anyway
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the
-            // OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining()) {
-                    bytesIterator.remove();
-                } else {
-                    setWriteOps();
-                    break;
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network
+            // buffer with one gathering write.
+            int buffCount = bytesToWrite.size();
+            if (buffCount > 0) {
+                if (buffsToWrite.length < buffCount) {
+                    buffsToWrite = new ByteBuffer[buffCount];
+                }
+                bytesToWrite.toArray(buffsToWrite);
+                bytesToWriteRemaining -= channel.write(buffsToWrite, 0, buffCount);
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining()) {
+                    ByteBuffer buff = bytesToWrite.poll();
+                    if (buff == lastChunk) {
+                        lastChunk = null;
+                    }
+                    recycleChunk(buff);
                 }
             }
             // If we are done writing, clear the OP_WRITE interestOps
             if (bytesToWrite.isEmpty()) {
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                setWriteOps();
             }
             // Don't bother waking up the selector here, since we're just removing an op, not adding
         } finally {
@@ -145,38 +232,148 @@ class ConnectionHandler implements MessageWriteTarget {
     }
 
     @Override
-    public void writeBytes(byte[] message) throws IOException {
+    public int writeMessage(Message message, BitcoinSerializer serializer) throws IOException {
+        IOException error;
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may
             // wish to send), and
             // thus we have to buffer outbound messages sometimes. To do this,
-            // we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either
+            // we serialize into a queue of ByteBuffers and let tryWriteBytes() either
             // send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space
             // available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT) {
-                throw new IOException("Outbound buffer overflowed");
-            }
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            int size = outboundStream.write(message, serializer);
             setWriteOps();
+            return size;
         } catch (IOException e) {
-            lock.unlock();
             log.error("Error writing message to connection, closing connection. IOException");
-            closeConnection();
-            throw e;
+            error = e;
         } catch (CancelledKeyException e) {
-            lock.unlock();
             log.error("Error writing message to connection, closing connection. CancelledKeyException");
-            closeConnection();
-            throw new IOException(e);
+            error = new IOException(e);
+        } finally {
+            lock.unlock();
+        }
+        closeConnection();
+        throw error;
+    }
+
+    /**
+     * Serializes messages at the end of the tail chunk, after room for their header. A message
+     * outgrowing it moves to a fresh chunk, one larger than a chunk (a filterload, a big tx) to a
+     * heap buffer queued as it is. Only used with the lock held.
+     */
+    private class OutboundStream extends OutputStream {
+        private ByteBuffer buff;
+        // where the message starts in buff, and the position buff is read from
+        private int        start;
+        private int        readPosition;
+
+        int write(Message message, BitcoinSerializer serializer) throws IOException {
+            buff = lastChunk;
+            if (buff == null || buff.capacity() - buff.limit() < BitcoinSerializer.HEADER_SIZE) {
+                buff = takeChunk();
+            }
+            readPosition = buff.position();
+            start = buff.limit();
+            buff.limit(buff.capacity());
+            buff.position(start + BitcoinSerializer.HEADER_SIZE);
+            boolean queued = false;
+            try {
+                message.bitcoinSerialize(this);
+                int end = buff.position();
+                int size = end - start;
+                if (bytesToWriteRemaining + size > OUTBOUND_BUFFER_BYTE_COUNT) {
+                    throw new IOException("Outbound buffer overflowed");
+                }
+                serializer.writeHeader(message, buff, start, end);
+                buff.limit(end);
+                buff.position(readPosition);
+                if (buff != lastChunk) {
+                    bytesToWrite.offer(buff);
+                    // later messages must not be appended to a chunk queued before this one
+                    lastChunk = buff.isDirect() ? buff : null;
+                }
+                bytesToWriteRemaining += size;
+                queued = true;
+                return size;
+            } finally {
+                if (!queued) {
+                    release();
+                }
+                buff = null;
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            ensureRemaining(1);
+            buff.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureRemaining(len);
+            buff.put(b, off, len);
+        }
+
+        private void ensureRemaining(int len) {
+            if (buff.remaining() >= len) {
+                return;
+            }
+            ByteBuffer written = buff.duplicate();
+            written.flip();
+            written.position(start);
+            int size = written.remaining() + len;
+            ByteBuffer next;
+            if (buff.isDirect() && size <= OUTBOUND_CHUNK_SIZE) {
+                next = takeChunk();
+                next.limit(next.capacity());
+            } else {
+                next = ByteBuffer.allocate(Math.max(size, buff.capacity() * 2));
+            }
+            next.put(written);
+            release();
+            buff = next;
+            start = 0;
+            readPosition = 0;
+        }
+
+        // Gives buff back as it was before the message, nothing of it is queued
+        private void release() {
+            if (buff == lastChunk) {
+                buff.limit(start);
+                buff.position(readPosition);
+            } else {
+                recycleChunk(buff);
+            }
+        }
+    }
+
+    // Returns an empty pooled buffer, ready to be read from
+    private static ByteBuffer takeChunk() {
+        ByteBuffer chunk;
+        synchronized (outboundChunkPool) {
+            chunk = outboundChunkPool.poll();
+        }
+        if (chunk == null) {
+            chunk = ByteBuffer.allocateDirect(OUTBOUND_CHUNK_SIZE);
+        }
+        chunk.clear();
+        chunk.limit(0);
+        return chunk;
+    }
+
+    private static void recycleChunk(ByteBuffer buff) {
+        if (!buff.isDirect() || buff.capacity() != OUTBOUND_CHUNK_SIZE) {
+            return;
+        }
+        synchronized (outboundChunkPool) {
+            if (outboundChunkPool.size() < OUTBOUND_CHUNK_POOL_SIZE) {
+                outboundChunkPool.offer(buff);
+            }
         }
-        lock.unlock();
     }
 
     @Override
@@ -230,17 +427,16 @@ class ConnectionHandler implements MessageWriteTarget {
                     handler.closeConnection();
                     return;
                 }
-                // "flip" the buffer - setting the limit to the current position and setting
-                // position to 0
-                handler.readBuff.flip();
-                // Use parser.receiveBytes's return value as a check that it stopped reading at
-                // the right location
-                int bytesConsumed = checkNotNull(handler.parser).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
-                // Now drop the bytes which were read by compacting readBuff (resetting limit and
-                // keeping relative
-                // position)
-                handler.readBuff.compact();
+                // Stop reading until the decoder is done with the bytes, so the messages of a
+                // connection are still processed one after another
+                handler.lock.lock();
+                try {
+                    handler.decoding = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                } finally {
+                    handler.lock.unlock();
+                }
+                handler.decoder.execute(handler.decodeTask);
             }
             if (key.isWritable()) {
                 handler.tryWriteBytes();
@@ -16,6 +16,9 @@
 
 package com.yjt.wallet.core.net;
 
+import com.yjt.wallet.core.message.BitcoinSerializer;
+import com.yjt.wallet.core.message.Message;
+
 import java.io.IOException;
 
 /**
@@ -23,9 +26,18 @@ import java.io.IOException;
  */
 public interface MessageWriteTarget {
     /**
-     * Writes the given bytes to the remote server.
+     * Serializes message with its header, written by serializer, straight into the outbound
+     * buffers of the remote server.
+     *
+     * @return the number of bytes queued, header included
+     */
+    int writeMessage(Message message, BitcoinSerializer serializer) throws IOException;
+
+    /**
+     * Stops or resumes reading from the remote server. Bytes already read are still handed to
+     * the {@link StreamParser}.
      */
-    void writeBytes(byte[] message) throws IOException;
+    void setReadingPaused(boolean paused);
 
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
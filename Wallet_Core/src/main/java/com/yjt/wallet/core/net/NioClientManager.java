@@ -17,6 +17,7 @@
 package com.yjt.wallet.core.net;
 
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.yjt.wallet.core.contant.BitherjSettings;
 
 import org.slf4j.LoggerFactory;
 
@@ -32,19 +33,26 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A class which manages a set of client connections. Uses Java NIO to select network events and
- * processes them in a
- * single network processing thread.
+ * A class which manages a set of client connections. Uses Java NIO to select network events on
+ * {@link BitherjSettings#NIO_SELECTOR_THREAD_COUNT} selector threads, the first of them being
+ * the service thread. The received bytes are decoded on a separate pool of threads so a slow
+ * message of one peer does not hold up reading from the others.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements
         ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
     private static NioClientManager instance;
 
-    private final Selector selector;
+    private final SelectorLoop[]  selectorLoops;
+    private final AtomicInteger   nextSelectorLoop = new AtomicInteger();
+    private final ExecutorService decoder;
 
     // SocketChannels and StreamParsers of newly-created connections which should be registered
     // with OP_CONNECT
@@ -58,9 +66,6 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         }
     }
 
-    final Queue<SocketChannelAndParser> newConnectionChannels = new
-            LinkedBlockingQueue<SocketChannelAndParser>();
-
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on
     // its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new
@@ -81,7 +86,8 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             // Create a ConnectionHandler and hook everything together
             StreamParser      parser  = (StreamParser) key.attachment();
             SocketChannel     sc      = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers);
+            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers,
+                                                              decoder);
             try {
                 if (sc.finishConnect()) {
                     log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
@@ -106,62 +112,40 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     }
 
     /**
-     * Creates a new client manager which uses Java NIO for socket management. Uses a single
-     * thread to handle all select
-     * calls.
+     * Creates a new client manager which uses Java NIO for socket management. Uses
+     * {@link BitherjSettings#NIO_SELECTOR_THREAD_COUNT} threads to handle all select calls.
      */
     private NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
+        selectorLoops = new SelectorLoop[Math.max(1, BitherjSettings.NIO_SELECTOR_THREAD_COUNT)];
+        for (int i = 0; i < selectorLoops.length; i++) {
+            selectorLoops[i] = new SelectorLoop();
         }
+        decoder = Executors.newFixedThreadPool(Math.max(1, BitherjSettings
+                .NIO_DECODER_THREAD_COUNT), new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nio decoder " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     @Override
     public void run() {
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        for (int i = 1; i < selectorLoops.length; i++) {
+            Thread thread = new Thread(selectorLoops[i], "nio selector " + i);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
         try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                SocketChannelAndParser conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn.parser);
-                    } catch (ClosedChannelException e) {
-                        log.info("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: ", e);
+            selectorLoops[0].run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler) {
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing client manager selector", e);
-            }
+            decoder.shutdown();
         }
     }
 
@@ -175,8 +159,11 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
-            selector.wakeup();
+            // Spread the connections over the selectors round robin
+            SelectorLoop loop = selectorLoops[(nextSelectorLoop.getAndIncrement() & Integer
+                    .MAX_VALUE) % selectorLoops.length];
+            loop.newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
+            loop.selector.wakeup();
         } catch (IOException e) {
             log.error("Could not connect to " + serverAddress);
             throw new RuntimeException(e); // This should only happen if we are, eg,
@@ -198,7 +185,9 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (SelectorLoop loop : selectorLoops) {
+            loop.selector.wakeup();
+        }
     }
 
     @Override
@@ -223,4 +212,66 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     public void onDestroy() {
         instance = null;
     }
+
+    // A selector and the connections registered with it, run until the service stops
+    private class SelectorLoop implements Runnable {
+        final Selector selector;
+
+        final Queue<SocketChannelAndParser> newConnectionChannels = new
+                LinkedBlockingQueue<SocketChannelAndParser>();
+
+        SelectorLoop() {
+            try {
+                selector = SelectorProvider.provider().openSelector();
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Shouldn't ever happen
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning()) {
+                    SocketChannelAndParser conn;
+                    while ((conn = newConnectionChannels.poll()) != null) {
+                        try {
+                            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+                            key.attach(conn.parser);
+                        } catch (ClosedChannelException e) {
+                            log.info("SocketChannel was closed before it could be registered");
+                        }
+                    }
+
+                    selector.select();
+
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        handleKey(key);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Error trying to open/read from connection: ", e);
+            } finally {
+                // Go through and close everything, without letting IOExceptions get in our way
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        log.error("Error closing channel", e);
+                    }
+                    key.cancel();
+                    if (key.attachment() instanceof ConnectionHandler) {
+                        ConnectionHandler.handleKey(key); // Close connection if relevant
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.error("Error closing client manager selector", e);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,166 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.yjt.wallet.core.net;
+
+import com.yjt.wallet.core.utils.LatencyHistogram;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Network counters of a peer: bytes and messages per command both ways, time spent
+ * deserializing and the latency from requesting a block to receiving it. Every record also goes
+ * to the parent, so PeerManager's metrics are the sum over all peers ever connected.
+ */
+public class PeerMetrics {
+    private final PeerMetrics parent;
+
+    private final AtomicLong                            bytesIn;
+    private final AtomicLong                            bytesOut;
+    private final ConcurrentMap<String, CommandMetrics> commands;
+    private final LatencyHistogram                      deserializeLatency;
+    private final LatencyHistogram                      blockLatency;
+
+    public PeerMetrics() {
+        this(null);
+    }
+
+    public PeerMetrics(PeerMetrics parent) {
+        this.parent = parent;
+        bytesIn = new AtomicLong();
+        bytesOut = new AtomicLong();
+        commands = new ConcurrentHashMap<String, CommandMetrics>();
+        deserializeLatency = new LatencyHistogram();
+        blockLatency = new LatencyHistogram();
+    }
+
+    void bytesReceived(int bytes) {
+        bytesIn.addAndGet(bytes);
+        if (parent != null) {
+            parent.bytesReceived(bytes);
+        }
+    }
+
+    void messageReceived(String command, int bytes, long deserializeNanos) {
+        CommandMetrics metrics = getCommandMetrics(command);
+        metrics.messagesIn.incrementAndGet();
+        metrics.bytesIn.addAndGet(bytes);
+        deserializeLatency.record(deserializeNanos);
+        if (parent != null) {
+            parent.messageReceived(command, bytes, deserializeNanos);
+        }
+    }
+
+    void messageSent(String command, int bytes) {
+        bytesOut.addAndGet(bytes);
+        CommandMetrics metrics = getCommandMetrics(command);
+        metrics.messagesOut.incrementAndGet();
+        metrics.bytesOut.addAndGet(bytes);
+        if (parent != null) {
+            parent.messageSent(command, bytes);
+        }
+    }
+
+    /**
+     * Records the time from the getdata of a block to its merkleblock or block.
+     */
+    public void blockReceived(long latencyNanos) {
+        blockLatency.record(latencyNanos);
+        if (parent != null) {
+            parent.blockReceived(latencyNanos);
+        }
+    }
+
+    private CommandMetrics getCommandMetrics(String command) {
+        CommandMetrics metrics = commands.get(command);
+        if (metrics == null) {
+            metrics = new CommandMetrics();
+            CommandMetrics existing = commands.putIfAbsent(command, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * @return the metrics of every command seen, by command name.
+     */
+    public Map<String, CommandMetrics> getCommandMetrics() {
+        return Collections.unmodifiableMap(new TreeMap<String, CommandMetrics>(commands));
+    }
+
+    public LatencyHistogram getDeserializeLatency() {
+        return deserializeLatency;
+    }
+
+    public LatencyHistogram getBlockLatency() {
+        return blockLatency;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("in ").append(getBytesIn()).append(" bytes, out ").append(getBytesOut())
+                .append(" bytes, deserialize ").append(deserializeLatency).append(", block ")
+                .append(blockLatency);
+        for (Map.Entry<String, CommandMetrics> entry : getCommandMetrics().entrySet()) {
+            builder.append(", ").append(entry.getKey()).append(" ").append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    public static class CommandMetrics {
+        private final AtomicLong messagesIn  = new AtomicLong();
+        private final AtomicLong messagesOut = new AtomicLong();
+        private final AtomicLong bytesIn     = new AtomicLong();
+        private final AtomicLong bytesOut    = new AtomicLong();
+
+        public long getMessagesIn() {
+            return messagesIn.get();
+        }
+
+        public long getMessagesOut() {
+            return messagesOut.get();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.get();
+        }
+
+        @Override
+        public String toString() {
+            return getMessagesIn() + "/" + getBytesIn() + "B in, " + getMessagesOut() + "/" +
+                    getBytesOut() + "B out";
+        }
+    }
+}
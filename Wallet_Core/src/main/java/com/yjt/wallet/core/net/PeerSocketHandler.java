@@ -27,7 +27,6 @@ import com.yjt.wallet.core.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -47,8 +46,13 @@ import static com.google.common.base.Preconditions.checkState;
 public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamParser {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
+    // A large read buffer up to this size is kept for the next large message, the headers
+    // messages of a header sync take about 160 KB each
+    private static final int MAX_POOLED_LARGE_READ_BUFFER_SIZE = 256 * 1024;
+
     private final BitcoinSerializer serializer;
     protected     PeerAddress       peerAddress;
+    protected     PeerMetrics       metrics = new PeerMetrics();
     // If we close() before we know our writeTarget, set this to true to call writeTarget
     // .closeConnection() right away.
     private boolean closePending = false;
@@ -62,7 +66,9 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small
     // transactions), but for
     // messages which are larger than the read buffer, we have to keep a temporary buffer with
-    // its bytes.
+    // its bytes. The message is parsed from it once complete, while its checksum is calculated
+    // as the bytes arrive. It is reused by the next large message, header is only set while one
+    // is being read.
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
     private BitcoinSerializer.BitcoinPacketHeader header;
@@ -95,16 +101,30 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            int size = writeTarget.writeMessage(message, serializer);
+            metrics.messageSent(BitcoinSerializer.getCommand(message), size);
         } catch (IOException e) {
             exceptionCaught(e);
         }
     }
 
+    /**
+     * Stops or resumes reading from the peer, messages already received are still processed.
+     */
+    protected void setReadingPaused(boolean paused) {
+        MessageWriteTarget target;
+        lock.lock();
+        try {
+            target = writeTarget;
+        } finally {
+            lock.unlock();
+        }
+        if (target != null) {
+            target.setReadingPaused(paused);
+        }
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as
      * soon as it opens
@@ -128,13 +148,32 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         close();
     }
 
+    public PeerMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Called every time a message is received from the network
      */
     protected abstract void processMessage(Message m) throws Exception;
 
+    /**
+     * Called after the messages of one read were processed, to flush work batched over them.
+     */
+    protected void messagesProcessed() {
+    }
+
     @Override
     public int receiveBytes(ByteBuffer buff) {
+        int consumed = deserializeBytes(buff);
+        if (consumed > 0) {
+            messagesProcessed();
+            metrics.bytesReceived(consumed);
+        }
+        return consumed;
+    }
+
+    private int deserializeBytes(ByteBuffer buff) {
         checkArgument(buff.position() == 0 && buff.capacity() >= BitcoinSerializer
                 .BitcoinPacketHeader.HEADER_LENGTH + 4);
         try {
@@ -144,20 +183,30 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                  i++) {
                 // If we are in the middle of reading a message, try to fill that one first,
                 // before we expect another
-                if (largeReadBuffer != null) {
+                if (header != null) {
                     // This can only happen in the first iteration
                     checkState(i == 0);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(),
-                            largeReadBuffer.length - largeReadBufferPos);
+                    int bytesToGet = Math.min(buff.remaining(), header.size - largeReadBufferPos);
                     buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
+                    serializer.updatePayloadChecksum(largeReadBuffer, largeReadBufferPos, bytesToGet);
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (largeReadBufferPos == header.size) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
+                        byte[] payloadBytes = largeReadBuffer;
+                        BitcoinSerializer.BitcoinPacketHeader payloadHeader = header;
                         header = null;
+                        if (payloadBytes.length > MAX_POOLED_LARGE_READ_BUFFER_SIZE) {
+                            largeReadBuffer = null;
+                        }
+                        long deserializeStart = System.nanoTime();
+                        Message message = serializer.deserializePayload(payloadHeader,
+                                payloadBytes, 0, serializer.finishPayloadChecksum());
+                        metrics.messageReceived(BitcoinSerializer.getCommand(message),
+                                BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 4 +
+                                        payloadHeader.size, System.nanoTime() - deserializeStart);
+                        processMessage(message);
                     } else // ...or just returning if we don't have enough bytes yet
                     {
                         return buff.position();
@@ -166,6 +215,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                 // Now try to deserialize any messages left in buff
                 Message message;
                 int preSerializePosition = buff.position();
+                long deserializeStart = System.nanoTime();
                 try {
                     message = serializer.deserialize(buff);
                 } catch (BufferUnderflowException e) {
@@ -180,9 +230,14 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             // Initialize the largeReadBuffer with the next message's size and
                             // fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
+                            if (largeReadBuffer == null || largeReadBuffer.length < header
+                                    .size) {
+                                largeReadBuffer = new byte[header.size];
+                            }
                             largeReadBufferPos = buff.remaining();
                             buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            serializer.resetPayloadChecksum();
+                            serializer.updatePayloadChecksum(largeReadBuffer, 0, largeReadBufferPos);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting
                             // a header, give up
@@ -202,6 +257,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     }
                     return buff.position();
                 }
+                metrics.messageReceived(BitcoinSerializer.getCommand(message), buff.position() -
+                        preSerializePosition, System.nanoTime() - deserializeStart);
                 // Process our freshly deserialized message
                 processMessage(message);
             }
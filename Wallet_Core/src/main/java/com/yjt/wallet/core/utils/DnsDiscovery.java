@@ -28,9 +28,11 @@ import org.slf4j.LoggerFactory;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
+import java.util.HashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -55,37 +57,48 @@ public class DnsDiscovery {
     }
 
     public Peer[] getPeers(long timeoutValue, TimeUnit timeoutUnit) {
+        return getPeers(Integer.MAX_VALUE, timeoutValue, timeoutUnit);
+    }
+
+    /**
+     * Resolves all seeds in parallel and returns as soon as wantedCount peers arrived, every seed
+     * answered or the timeout passed, whichever comes first.
+     */
+    public Peer[] getPeers(int wantedCount, long timeoutValue, TimeUnit timeoutUnit) {
 
         // Java doesn't have an async DNS API so we have to do all lookups in a thread pool,
         // as sometimes seeds go
         // hard down and it takes ages to give up and move on.
         ExecutorService threadPool = Executors.newFixedThreadPool(hostNames.length);
-        ArrayList<Peer> peers      = Lists.newArrayList();
+        CompletionService<InetAddress[]> completionService = new
+                ExecutorCompletionService<InetAddress[]>(threadPool);
+        final HashMap<Future<InetAddress[]>, String> seeds = new HashMap<Future<InetAddress[]>,
+                String>();
+        ArrayList<Peer> peers = Lists.newArrayList();
+        long deadline = System.nanoTime() + timeoutUnit.toNanos(timeoutValue);
         try {
-            List<Callable<InetAddress[]>> tasks = Lists.newArrayList();
             for (final String seed : hostNames) {
-                tasks.add(new Callable<InetAddress[]>() {
+                seeds.put(completionService.submit(new Callable<InetAddress[]>() {
                     @Override
                     public InetAddress[] call() throws Exception {
                         return InetAddress.getAllByName(seed);
                     }
-                });
+                }), seed);
             }
-            final List<Future<InetAddress[]>> futures = threadPool.invokeAll(tasks, timeoutValue,
-                                                                             timeoutUnit);
             for (int i = 0;
-                 i < futures.size();
+                 i < hostNames.length && peers.size() < wantedCount;
                  i++) {
-                Future<InetAddress[]> future = futures.get(i);
-                if (future.isCancelled()) {
-                    log.warn("{} timed out", hostNames[i]);
-                    continue;  // Timed out.
+                Future<InetAddress[]> future = completionService.poll(deadline - System
+                        .nanoTime(), TimeUnit.NANOSECONDS);
+                if (future == null) {
+                    log.warn("Dns seeds timed out, {} peers found", peers.size());
+                    break;
                 }
                 final InetAddress[] inetAddresses;
                 try {
                     inetAddresses = future.get();
                 } catch (ExecutionException e) {
-                    log.error("Failed to look up DNS seeds from {}: {}", hostNames[i],
+                    log.error("Failed to look up DNS seeds from {}: {}", seeds.get(future),
                               e.getMessage());
                     continue;
                 }
@@ -97,10 +110,10 @@ public class DnsDiscovery {
                 }
             }
             Collections.shuffle(peers);
-            threadPool.shutdownNow();
         } catch (InterruptedException e) {
         } finally {
-            threadPool.shutdown();
+            // seeds still resolving are not waited for
+            threadPool.shutdownNow();
         }
         return peers.toArray(new Peer[peers.size()]);
     }
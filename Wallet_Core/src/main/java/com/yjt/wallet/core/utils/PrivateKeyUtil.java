@@ -299,8 +299,8 @@ public class PrivateKeyUtil {
             if (key == null) {
                 return null;
             } else {
-                Address address = new Address(key.toAddress(), key.getPubKey(), encryptedString,
-                                              false, key.isFromXRandom());
+                // a restored key has no creation time
+                Address address = new Address(key, encryptedString);
                 key.clearPrivateKey();
                 list.add(address);
             }
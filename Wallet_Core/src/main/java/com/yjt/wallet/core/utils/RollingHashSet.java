@@ -0,0 +1,65 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.yjt.wallet.core.utils;
+
+import java.util.HashSet;
+
+/**
+ * A set remembering at least the last capacity / 2 and at most the last capacity elements added,
+ * in bounded memory. The elements live in two generations, once the current one is full the
+ * older one is dropped. Unlike a rolling bloom filter it has no false positives.
+ * <p/>
+ * Not thread safe, like {@link HashSet}.
+ */
+public class RollingHashSet<E> {
+    private final int  generationSize;
+    private HashSet<E> currentGeneration;
+    private HashSet<E> previousGeneration;
+
+    public RollingHashSet(int capacity) {
+        generationSize = Math.max(capacity / 2, 1);
+        currentGeneration = new HashSet<E>();
+        previousGeneration = new HashSet<E>();
+    }
+
+    public boolean contains(E element) {
+        return currentGeneration.contains(element) || previousGeneration.contains(element);
+    }
+
+    /**
+     * @return true if the element was not in the set.
+     */
+    public boolean add(E element) {
+        if (contains(element)) {
+            return false;
+        }
+        if (currentGeneration.size() >= generationSize) {
+            previousGeneration = currentGeneration;
+            currentGeneration = new HashSet<E>();
+        }
+        currentGeneration.add(element);
+        return true;
+    }
+
+    public int size() {
+        return currentGeneration.size() + previousGeneration.size();
+    }
+
+    public void clear() {
+        currentGeneration.clear();
+        previousGeneration.clear();
+    }
+}
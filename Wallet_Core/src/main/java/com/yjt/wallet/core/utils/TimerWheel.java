@@ -0,0 +1,145 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.yjt.wallet.core.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * A hashed timer wheel, one daemon thread serving all the timeouts of the library. Scheduling and
+ * cancelling cost O(1) however many timeouts are pending, a timeout fires up to one tick late.
+ * <p/>
+ * Tasks run on the wheel thread, so they must be short, longer work goes to an executor.
+ */
+public class TimerWheel {
+    private static final Logger log = LoggerFactory.getLogger(TimerWheel.class);
+
+    private static final long TICK_MILLIS = 100;
+    private static final int  WHEEL_SIZE  = 512;
+
+    private static final TimerWheel instance = new TimerWheel();
+
+    public static TimerWheel instance() {
+        return instance;
+    }
+
+    // bucket i holds the timeouts due at the ticks equal to i modulo WHEEL_SIZE
+    private final List<LinkedHashSet<Timeout>> wheel;
+    private final long                         startTime;
+    private       long                         tick;
+
+    private TimerWheel() {
+        wheel = new ArrayList<LinkedHashSet<Timeout>>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new LinkedHashSet<Timeout>());
+        }
+        startTime = System.currentTimeMillis();
+        tick = 0;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWheel();
+            }
+        }, "TimerWheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the wheel thread once delay ms have passed, unless the returned
+     * {@link Timeout} is cancelled before.
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        long deadline = System.currentTimeMillis() + Math.max(0, delay);
+        synchronized (this) {
+            long deadlineTick = (deadline - startTime + TICK_MILLIS - 1) / TICK_MILLIS;
+            Timeout timeout = new Timeout(task, Math.max(deadlineTick, tick + 1));
+            wheel.get((int) (timeout.deadlineTick % WHEEL_SIZE)).add(timeout);
+            return timeout;
+        }
+    }
+
+    private void runWheel() {
+        while (true) {
+            long sleepTime = startTime + (tick + 1) * TICK_MILLIS - System.currentTimeMillis();
+            if (sleepTime > 0) {
+                try {
+                    Thread.sleep(sleepTime);
+                } catch (InterruptedException e) {
+                    // the wheel lives as long as the process, keep ticking
+                }
+                continue;
+            }
+            ArrayList<Timeout> expired = new ArrayList<Timeout>();
+            synchronized (this) {
+                tick++;
+                Iterator<Timeout> iterator = wheel.get((int) (tick % WHEEL_SIZE)).iterator();
+                while (iterator.hasNext()) {
+                    Timeout timeout = iterator.next();
+                    if (timeout.deadlineTick <= tick) {
+                        iterator.remove();
+                        expired.add(timeout);
+                    }
+                }
+            }
+            for (Timeout timeout : expired) {
+                synchronized (this) {
+                    // cancelled after it was taken off the wheel but before it ran
+                    if (timeout.cancelled) {
+                        continue;
+                    }
+                }
+                try {
+                    timeout.task.run();
+                } catch (Throwable throwable) {
+                    log.warn("Exception in timer task", throwable);
+                    Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                    if (handler != null) {
+                        handler.uncaughtException(Thread.currentThread(), throwable);
+                    }
+                }
+            }
+        }
+    }
+
+    public class Timeout {
+        private final Runnable task;
+        private final long     deadlineTick;
+        // guarded by the wheel
+        private       boolean  cancelled;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Keeps the task from running unless it already started.
+         */
+        public void cancel() {
+            synchronized (TimerWheel.this) {
+                cancelled = true;
+                wheel.get((int) (deadlineTick % WHEEL_SIZE)).remove(this);
+            }
+        }
+    }
+}
@@ -40,6 +40,7 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -71,15 +72,17 @@ public class Utils {
 
 
     public static final BigInteger NEGATIVE_ONE = BigInteger.valueOf(-1);
-    private static final MessageDigest digest;
-
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
+    // one digest per thread, so hashing on the decoder and header verifier threads never contends
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
         }
-    }
+    };
 
     public static long longHash(@Nonnull final byte[] bytes) {
 
@@ -220,20 +223,30 @@ public class Utils {
      * standard procedure in Bitcoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input, offset, length);
+        byte[] first = digest.digest();
+        return digest.digest(first);
+    }
+
+    /**
+     * See {@link Utils#doubleDigest(byte[], int, int)}, hashes the remaining bytes of input and
+     * consumes them.
+     */
+    public static byte[] doubleDigest(ByteBuffer input) {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input);
+        byte[] first = digest.digest();
+        return digest.digest(first);
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input, offset, length);
+        return digest.digest();
     }
 
     /**
@@ -241,13 +254,12 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        byte[] first = digest.digest();
+        return digest.digest(first);
     }
 
     /**
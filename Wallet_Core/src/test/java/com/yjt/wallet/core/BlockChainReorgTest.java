@@ -0,0 +1,222 @@
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.contant.AbstractApp;
+import com.yjt.wallet.core.db.AbstractDb;
+import com.yjt.wallet.core.db.ITxProvider;
+import com.yjt.wallet.core.db.implement.FileBlockProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockChainReorgTest {
+    private static final int  FORK_NO = 300000;
+    private static final long BITS    = 0x1d00ffffL;
+
+    private File              file;
+    private FileBlockProvider blockProvider;
+    private List<List<Block>> reorganizedBlocks;
+    private boolean           failReorganizeTxs;
+    private boolean           failConfirmTxs;
+    private BlockChain        chain;
+
+    private Block a;
+    private Block b;
+    private Block c;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("blocks", ".dat");
+        file.delete();
+        blockProvider = new FileBlockProvider(file);
+        AbstractDb.blockProvider = blockProvider;
+        reorganizedBlocks = new ArrayList<List<Block>>();
+        AbstractDb.txProvider = txProvider();
+        AbstractApp.bitherjSetting = new TestSetting();
+
+        chain = new BlockChain();
+        a = block(FORK_NO, 0);
+        b = block(FORK_NO + 1, 0);
+        c = block(FORK_NO + 2, 0);
+        chain.addSPVBlock(a);
+        assertEquals(2, chain.relayedBlocks(Arrays.asList(b, c)));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        blockProvider.close();
+        file.delete();
+        new File(file.getPath() + ".idx").delete();
+    }
+
+    @Test
+    public void reorgOntoRelayedOrphanMakesItMain() throws Exception {
+        assertFalse(chain.relayedBlock(block(FORK_NO + 1, 1)));
+        assertFalse(blockProvider.getBlock(hash(FORK_NO + 1, 1)).isMain());
+
+        // the peer relays the branch again, the orphan included
+        List<Block> branch = Arrays.asList(block(FORK_NO + 1, 1), block(FORK_NO + 2, 1), block
+                (FORK_NO + 3, 1));
+        assertEquals(3, chain.relayedBlocks(branch));
+
+        assertArrayEquals(hash(FORK_NO + 3, 1), chain.getLastBlock().getBlockHash());
+        assertTrue(blockProvider.getBlock(hash(FORK_NO + 1, 1)).isMain());
+        assertFalse(blockProvider.getBlock(b.getBlockHash()).isMain());
+        assertFalse(blockProvider.getBlock(c.getBlockHash()).isMain());
+        assertArrayEquals(hash(FORK_NO + 3, 1), blockProvider.getLastBlock().getBlockHash());
+        assertTrue(chain.inMainChain(branch.get(0)));
+
+        assertEquals(1, reorganizedBlocks.size());
+        assertEquals(3, reorganizedBlocks.get(0).size());
+        assertEquals(1, reorganizedBlocks.get(0).get(0).getTxHashes().size());
+
+        // and it stays so after a restart
+        assertArrayEquals(hash(FORK_NO + 3, 1), new BlockChain().getLastBlock().getBlockHash());
+    }
+
+    @Test
+    public void storedSideBranchIsConfirmedInChainOrder() throws Exception {
+        assertFalse(chain.relayedBlock(block(FORK_NO + 1, 1)));
+        assertFalse(chain.relayedBlock(block(FORK_NO + 2, 1)));
+        assertTrue(chain.relayedBlock(block(FORK_NO + 3, 1)));
+
+        assertArrayEquals(hash(FORK_NO + 3, 1), chain.getLastBlock().getBlockHash());
+        List<Block> blocks = reorganizedBlocks.get(0);
+        assertEquals(3, blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            assertArrayEquals(hash(FORK_NO + 1 + i, 1), blocks.get(i).getBlockHash());
+        }
+        assertTrue(blockProvider.getBlock(hash(FORK_NO + 1, 1)).isMain());
+        assertTrue(blockProvider.getBlock(hash(FORK_NO + 2, 1)).isMain());
+        assertFalse(blockProvider.getBlock(b.getBlockHash()).isMain());
+    }
+
+    @Test
+    public void sideBlockWithoutTxHashesIsDownloadedAgain() throws Exception {
+        assertFalse(chain.relayedBlock(block(FORK_NO + 1, 1)));
+        // after a restart the orphan comes from the blocks table, without its tx hashes
+        chain = new BlockChain();
+        assertFalse(chain.relayedBlock(block(FORK_NO + 2, 1)));
+        assertFalse(chain.relayedBlock(block(FORK_NO + 3, 1)));
+
+        assertArrayEquals(c.getBlockHash(), chain.getLastBlock().getBlockHash());
+        assertEquals(0, reorganizedBlocks.size());
+        assertNull(blockProvider.getBlock(hash(FORK_NO + 1, 1)));
+
+        // the branch downloaded again from the fork point
+        assertEquals(3, chain.relayedBlocks(Arrays.asList(block(FORK_NO + 1, 1), block(FORK_NO
+                + 2, 1), block(FORK_NO + 3, 1))));
+        assertArrayEquals(hash(FORK_NO + 3, 1), chain.getLastBlock().getBlockHash());
+        assertEquals(1, reorganizedBlocks.get(0).get(0).getTxHashes().size());
+    }
+
+    @Test
+    public void reorgStoppedBeforeTheTxsIsFinishedOnRestart() throws Exception {
+        failReorganizeTxs = true;
+        try {
+            chain.relayedBlocks(Arrays.asList(block(FORK_NO + 1, 1), block(FORK_NO + 2, 1),
+                                              block(FORK_NO + 3, 1)));
+            fail("the txs are not reorganized");
+        } catch (IllegalStateException e) {
+            // the app stops here
+        }
+        failReorganizeTxs = false;
+        assertEquals(FORK_NO, AbstractApp.bitherjSetting.getBitherjPendingReorgBlockNo());
+        assertArrayEquals(hash(FORK_NO + 3, 1), blockProvider.getLastBlock().getBlockHash());
+
+        chain = new BlockChain();
+        assertEquals(-1, AbstractApp.bitherjSetting.getBitherjPendingReorgBlockNo());
+        assertEquals(1, reorganizedBlocks.size());
+        assertEquals(0, reorganizedBlocks.get(0).size());
+        // rolled back to the fork, the next sync downloads the branch with its txs again
+        assertArrayEquals(a.getBlockHash(), chain.getLastBlock().getBlockHash());
+        assertNull(blockProvider.getBlock(hash(FORK_NO + 1, 1)));
+        assertNull(blockProvider.getBlock(b.getBlockHash()));
+        assertEquals(3, chain.relayedBlocks(Arrays.asList(block(FORK_NO + 1, 1), block(FORK_NO
+                + 2, 1), block(FORK_NO + 3, 1))));
+        assertArrayEquals(hash(FORK_NO + 3, 1), chain.getLastBlock().getBlockHash());
+    }
+
+    @Test
+    public void batchStoppedBeforeTheTxsIsDownloadedAgain() throws Exception {
+        failConfirmTxs = true;
+        try {
+            chain.relayedBlocks(Arrays.asList(block(FORK_NO + 3, 0), block(FORK_NO + 4, 0)));
+            fail("the txs are not confirmed");
+        } catch (IllegalStateException e) {
+            // the app stops here
+        }
+        failConfirmTxs = false;
+        assertEquals(FORK_NO + 2, AbstractApp.bitherjSetting.getBitherjPendingReorgBlockNo());
+
+        chain = new BlockChain();
+        assertEquals(-1, AbstractApp.bitherjSetting.getBitherjPendingReorgBlockNo());
+        assertArrayEquals(c.getBlockHash(), chain.getLastBlock().getBlockHash());
+        assertNull(blockProvider.getBlock(hash(FORK_NO + 3, 0)));
+        assertEquals(2, chain.relayedBlocks(Arrays.asList(block(FORK_NO + 3, 0), block(FORK_NO
+                + 4, 0))));
+    }
+
+    // salt 0 is the first main chain, the other branches fork off at FORK_NO
+    private static Block block(int blockNo, int salt) {
+        byte[] prev = hash(blockNo - 1, blockNo - 1 == FORK_NO ? 0 : salt);
+        Block block = new Block(hash(blockNo, salt), 2, prev, hash(blockNo, 9), 1000 + blockNo,
+                                BITS, blockNo, blockNo, false);
+        List<byte[]> txHashes = new ArrayList<byte[]>();
+        if (salt != 0) {
+            txHashes.add(hash(blockNo, 7));
+        }
+        block.setTxHashes(txHashes);
+        return block;
+    }
+
+    private static byte[] hash(int blockNo, int salt) {
+        byte[] bytes = new byte[32];
+        bytes[0] = (byte) blockNo;
+        bytes[1] = (byte) (blockNo >> 8);
+        bytes[2] = (byte) (blockNo >> 16);
+        bytes[3] = (byte) salt;
+        return bytes;
+    }
+
+    private ITxProvider txProvider() {
+        return (ITxProvider) Proxy.newProxyInstance(ITxProvider.class.getClassLoader(), new
+                Class[]{ITxProvider.class}, new InvocationHandler() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("reorganizeTxs")) {
+                    if (failReorganizeTxs) {
+                        throw new IllegalStateException();
+                    }
+                    reorganizedBlocks.add(new ArrayList<Block>((List<Block>) args[1]));
+                }
+                if (method.getName().equals("confirmTxs") && failConfirmTxs) {
+                    throw new IllegalStateException();
+                }
+                Class<?> type = method.getReturnType();
+                if (type == boolean.class) {
+                    return false;
+                } else if (type == int.class) {
+                    return 0;
+                } else if (type == long.class) {
+                    return 0L;
+                } else if (List.class.equals(type)) {
+                    return Collections.emptyList();
+                }
+                return null;
+            }
+        });
+    }
+}
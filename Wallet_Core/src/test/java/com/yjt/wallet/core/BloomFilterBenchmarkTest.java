@@ -0,0 +1,189 @@
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.utils.Utils;
+import com.yjt.wallet.core.utils.VarInt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Times 100k inserts and 100k contains on {@link BloomFilter} against the byte[] backed filter it
+ * replaced, kept here as {@link ByteArrayBloomFilter}, and checks both end up with the same bits.
+ * The numbers are printed, nothing asserts on them.
+ */
+public class BloomFilterBenchmarkTest {
+    private static final int OBJECT_COUNT = 100000;
+    private static final int OBJECT_SIZE  = 20;
+    private static final int ROUNDS       = 10;
+
+    @Test
+    public void longWordsAgainstBytes() {
+        // sized for all the objects, so capped at the maximum size
+        BloomFilter empty = new BloomFilter(OBJECT_COUNT, BloomFilter.DEFAULT_BLOOM_FILTER_FP_RATE,
+                7);
+        Random random = new Random(11);
+        byte[][] objects = new byte[OBJECT_COUNT][OBJECT_SIZE];
+        byte[][] others = new byte[OBJECT_COUNT][OBJECT_SIZE];
+        for (int i = 0; i < OBJECT_COUNT; i++) {
+            random.nextBytes(objects[i]);
+            random.nextBytes(others[i]);
+        }
+        byte[] emptyPayload = empty.bitcoinSerialize();
+
+        long longInsert = Long.MAX_VALUE, longContains = Long.MAX_VALUE;
+        long byteInsert = Long.MAX_VALUE, byteContains = Long.MAX_VALUE;
+        int matches = 0;
+        BloomFilter filter = null;
+        ByteArrayBloomFilter byteFilter = null;
+        // the first rounds warm up, the best round counts
+        for (int round = 0; round < ROUNDS; round++) {
+            filter = new BloomFilter(emptyPayload);
+            long start = System.nanoTime();
+            for (byte[] object : objects) {
+                filter.insert(object);
+            }
+            longInsert = Math.min(longInsert, System.nanoTime() - start);
+            start = System.nanoTime();
+            int longMatches = 0;
+            for (byte[] other : others) {
+                if (filter.contains(other)) {
+                    longMatches++;
+                }
+            }
+            longContains = Math.min(longContains, System.nanoTime() - start);
+
+            byteFilter = new ByteArrayBloomFilter(emptyPayload);
+            start = System.nanoTime();
+            for (byte[] object : objects) {
+                byteFilter.insert(object);
+            }
+            byteInsert = Math.min(byteInsert, System.nanoTime() - start);
+            start = System.nanoTime();
+            int byteMatches = 0;
+            for (byte[] other : others) {
+                if (byteFilter.contains(other)) {
+                    byteMatches++;
+                }
+            }
+            byteContains = Math.min(byteContains, System.nanoTime() - start);
+
+            assertEquals(byteMatches, longMatches);
+            matches = longMatches;
+        }
+        assertArrayEquals(byteFilter.data, filterBytes(filter.bitcoinSerialize()));
+
+        System.out.println(String.format("%s, %d inserts, %d contains (%d false positives): " +
+                "long[] insert %.1f ns, contains %.1f ns; byte[] insert %.1f ns, contains %.1f " +
+                "ns", filter, OBJECT_COUNT, OBJECT_COUNT, matches, perObject(longInsert),
+                perObject(longContains), perObject(byteInsert), perObject(byteContains)));
+    }
+
+    private static double perObject(long nanos) {
+        return (double) nanos / OBJECT_COUNT;
+    }
+
+    private static byte[] filterBytes(byte[] payload) {
+        VarInt length = new VarInt(payload, 0);
+        byte[] data = new byte[(int) length.value];
+        System.arraycopy(payload, length.getOriginalSizeInBytes(), data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * The filter as it was before it moved to long words: a byte per 8 bits, the MurmurHash3 of
+     * the whole object and contains before insert, as PeerManager used it.
+     */
+    private static class ByteArrayBloomFilter {
+        private final byte[] data;
+        private final long   hashFuncs;
+        private final long   nTweak;
+
+        ByteArrayBloomFilter(byte[] payload) {
+            data = filterBytes(payload);
+            int cursor = new VarInt(payload, 0).getOriginalSizeInBytes() + data.length;
+            hashFuncs = Utils.readUint32(payload, cursor);
+            nTweak = Utils.readUint32(payload, cursor + 4);
+        }
+
+        boolean contains(byte[] object) {
+            for (int i = 0;
+                 i < hashFuncs;
+                 i++) {
+                if (!Utils.checkBitLE(data, hash(i, object))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void insert(byte[] object) {
+            if (contains(object)) {
+                return;
+            }
+            for (int i = 0;
+                 i < hashFuncs;
+                 i++) {
+                Utils.setBitLE(data, hash(i, object));
+            }
+        }
+
+        private int hash(int hashNum, byte[] object) {
+            int h1 = (int) (hashNum * 0xFBA4C795L + nTweak);
+            final int c1 = 0xcc9e2d51;
+            final int c2 = 0x1b873593;
+
+            int numBlocks = (object.length / 4) * 4;
+            for (int i = 0;
+                 i < numBlocks;
+                 i += 4) {
+                int k1 = (object[i] & 0xFF) |
+                        ((object[i + 1] & 0xFF) << 8) |
+                        ((object[i + 2] & 0xFF) << 16) |
+                        ((object[i + 3] & 0xFF) << 24);
+
+                k1 *= c1;
+                k1 = rotateLeft32(k1, 15);
+                k1 *= c2;
+
+                h1 ^= k1;
+                h1 = rotateLeft32(h1, 13);
+                h1 = h1 * 5 + 0xe6546b64;
+            }
+
+            int k1 = 0;
+            switch (object.length & 3) {
+                case 3:
+                    k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                    // Fall through.
+                case 2:
+                    k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                    // Fall through.
+                case 1:
+                    k1 ^= (object[numBlocks] & 0xff);
+                    k1 *= c1;
+                    k1 = rotateLeft32(k1, 15);
+                    k1 *= c2;
+                    h1 ^= k1;
+                    // Fall through.
+                default:
+                    break;
+            }
+
+            h1 ^= object.length;
+            h1 ^= h1 >>> 16;
+            h1 *= 0x85ebca6b;
+            h1 ^= h1 >>> 13;
+            h1 *= 0xc2b2ae35;
+            h1 ^= h1 >>> 16;
+
+            return (int) ((h1 & 0xFFFFFFFFL) % (data.length * 8));
+        }
+
+        private static int rotateLeft32(int x, int r) {
+            return (x << r) | (x >>> (32 - r));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.utils.Utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterTest {
+    // the BIP37 reference vectors, also used by the reference client's bloom_tests.cpp
+    private static final String[] ELEMENTS = {
+            "99108ad8ed9bb6274d3980bab5a85c048f0950c8",
+            "b5a2c786d9ef4658287ced5914b37a1b4aa32eee",
+            "b9300670b4c5366e95b2699e8b18bc75e5f729c5"};
+
+    @Test
+    public void serializesReferenceVector() {
+        BloomFilter filter = new BloomFilter(3, 0.01, 0, BloomFilter.BloomUpdate.UPDATE_ALL);
+        insertElements(filter);
+        assertTrue(filter.contains(Utils.hexStringToByteArray(ELEMENTS[0])));
+        assertFalse(filter.contains(Utils.hexStringToByteArray(
+                "19108ad8ed9bb6274d3980bab5a85c048f0950c8")));
+        assertArrayEquals(Utils.hexStringToByteArray("03614e9b050000000000000001"),
+                          filter.bitcoinSerialize());
+    }
+
+    @Test
+    public void serializesReferenceVectorWithTweak() {
+        BloomFilter filter = new BloomFilter(3, 0.01, 2147483649L,
+                                             BloomFilter.BloomUpdate.UPDATE_ALL);
+        insertElements(filter);
+        assertArrayEquals(Utils.hexStringToByteArray("03ce4299050000000100008001"),
+                          filter.bitcoinSerialize());
+    }
+
+    @Test
+    public void parsesWhatItSerializes() throws Exception {
+        Random random = new Random(7);
+        // lengths that do and do not fill the last word
+        for (int elements : new int[]{3, 50, 64, 1000}) {
+            BloomFilter filter = new BloomFilter(elements, 0.001, random.nextInt() & 0xffffffffL);
+            List<byte[]> objects = new ArrayList<byte[]>();
+            for (int i = 0; i < elements; i++) {
+                byte[] object = new byte[20 + i % 13];
+                random.nextBytes(object);
+                objects.add(object);
+            }
+            assertEquals(elements, filter.insertAll(objects));
+
+            byte[] payload = filter.bitcoinSerialize();
+            BloomFilter parsed = new BloomFilter(payload);
+            assertEquals(filter, parsed);
+            assertArrayEquals(payload, parsed.bitcoinSerialize());
+            for (byte[] object : objects) {
+                assertTrue(parsed.contains(object));
+            }
+        }
+    }
+
+    @Test
+    public void insertReportsNewObjects() {
+        BloomFilter filter = new BloomFilter(3, 0.01, 0, BloomFilter.BloomUpdate.UPDATE_ALL);
+        byte[] object = Utils.hexStringToByteArray(ELEMENTS[0]);
+        assertTrue(filter.insert(object));
+        assertFalse(filter.insert(object));
+        byte[] padded = new byte[object.length + 4];
+        System.arraycopy(object, 0, padded, 2, object.length);
+        assertTrue(filter.contains(padded, 2, object.length));
+    }
+
+    @Test
+    public void matchesAll() throws Exception {
+        BloomFilter filter = new BloomFilter(1000, 0.001, 5);
+        assertFalse(filter.matchesAll());
+        filter.merge(new BloomFilter(1000, 0.001, 5));
+        assertFalse(filter.matchesAll());
+        BloomFilter all = new BloomFilter(1, 0.5, 5);
+        all.setMatchAll();
+        assertTrue(all.matchesAll());
+        assertEquals((byte) 0xff, all.bitcoinSerialize()[1]);
+        assertTrue(new BloomFilter(all.bitcoinSerialize()).matchesAll());
+        filter.merge(all);
+        assertTrue(filter.matchesAll());
+    }
+
+    private static void insertElements(BloomFilter filter) {
+        for (String element : ELEMENTS) {
+            filter.insert(Utils.hexStringToByteArray(element));
+        }
+    }
+}
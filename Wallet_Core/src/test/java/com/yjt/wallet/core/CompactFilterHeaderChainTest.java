@@ -0,0 +1,156 @@
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.utils.Sha256Hash;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactFilterHeaderChainTest {
+    private static final int CHECKPOINT_NO = 100;
+
+    private CompactFilterHeaderChain chain;
+    private byte[]                   checkpointHeader;
+
+    @Before
+    public void setUp() {
+        chain = new CompactFilterHeaderChain();
+        checkpointHeader = hash(99);
+    }
+
+    @Test
+    public void checkpointNeedsTwoPeers() throws Exception {
+        assertTrue(chain.addCheckpointHeader(peer(1), CHECKPOINT_NO, blockHash(CHECKPOINT_NO),
+                                             checkpointHeader));
+        assertTrue(chain.addCheckpointHeader(peer(1), CHECKPOINT_NO, blockHash(CHECKPOINT_NO),
+                                             checkpointHeader));
+        assertFalse(chain.hasCheckpoint());
+        assertTrue(chain.addCheckpointHeader(peer(2), CHECKPOINT_NO, blockHash(CHECKPOINT_NO),
+                                             hash(98)));
+        assertFalse(chain.hasCheckpoint());
+
+        assertTrue(chain.addCheckpointHeader(peer(3), CHECKPOINT_NO, blockHash(CHECKPOINT_NO),
+                                             checkpointHeader));
+        assertTrue(chain.hasCheckpoint());
+        // a peer disagreeing with the checkpoint now is wrong
+        assertFalse(chain.addCheckpointHeader(peer(2), CHECKPOINT_NO, blockHash(CHECKPOINT_NO),
+                                              hash(98)));
+    }
+
+    @Test
+    public void rangesChainFromTheCheckpoint() throws Exception {
+        checkpoint();
+        assertEquals(CHECKPOINT_NO + 1, chain.getRangeStartBlockNo(CHECKPOINT_NO + 5));
+
+        byte[] filter = new byte[]{0};
+        List<byte[]> filterHashes = filterHashes(3, GolombCodedSet.getFilterHash(filter));
+        assertTrue(chain.addRange(CHECKPOINT_NO + 1, checkpointHeader, filterHashes, blockHash
+                (CHECKPOINT_NO + 3)));
+        assertTrue(chain.isVerified(CHECKPOINT_NO + 3));
+        assertFalse(chain.isVerified(CHECKPOINT_NO + 4));
+        assertTrue(chain.matchesFilter(CHECKPOINT_NO + 3, filter));
+        assertFalse(chain.matchesFilter(CHECKPOINT_NO + 2, filter));
+        assertFalse(chain.matchesFilter(CHECKPOINT_NO + 3, new byte[]{1}));
+        assertEquals(CHECKPOINT_NO + 4, chain.getRangeStartBlockNo(CHECKPOINT_NO + 5));
+    }
+
+    @Test
+    public void rangeNotChainingToTheVerifiedHeaderIsRejected() throws Exception {
+        checkpoint();
+        assertFalse(chain.addRange(CHECKPOINT_NO + 1, hash(98), filterHashes(1, null),
+                                   blockHash(CHECKPOINT_NO + 1)));
+        assertFalse(chain.isVerified(CHECKPOINT_NO + 1));
+    }
+
+    @Test
+    public void otherPeersRangeMustAgree() throws Exception {
+        checkpoint();
+        List<byte[]> filterHashes = filterHashes(2, null);
+        assertTrue(chain.addRange(CHECKPOINT_NO + 1, checkpointHeader, filterHashes, blockHash
+                (CHECKPOINT_NO + 2)));
+        assertTrue(chain.addRange(CHECKPOINT_NO + 1, checkpointHeader, filterHashes, blockHash
+                (CHECKPOINT_NO + 2)));
+
+        List<byte[]> otherHashes = filterHashes(2, hash(7));
+        assertFalse(chain.addRange(CHECKPOINT_NO + 1, checkpointHeader, otherHashes, blockHash
+                (CHECKPOINT_NO + 2)));
+    }
+
+    @Test
+    public void forkReplacesTheHeadersOfTheOldBlock() throws Exception {
+        checkpoint();
+        byte[] filter = new byte[]{0};
+        assertTrue(chain.addRange(CHECKPOINT_NO + 1, checkpointHeader, filterHashes(1, null),
+                                  blockHash(CHECKPOINT_NO + 1)));
+        // another block at the same height
+        assertTrue(chain.addRange(CHECKPOINT_NO + 1, checkpointHeader, filterHashes(1,
+                GolombCodedSet.getFilterHash(filter)), new Sha256Hash(hash(55))));
+        assertTrue(chain.matchesFilter(CHECKPOINT_NO + 1, filter));
+    }
+
+    @Test
+    public void rangeWaitsForTheCheckpoint() throws Exception {
+        byte[] filter = new byte[]{0};
+        assertTrue(chain.addRange(CHECKPOINT_NO + 2, header(CHECKPOINT_NO + 1), filterHashes(1,
+                GolombCodedSet.getFilterHash(filter)), blockHash(CHECKPOINT_NO + 2)));
+        assertTrue(chain.addRange(CHECKPOINT_NO + 1, checkpointHeader, filterHashes(1, null),
+                                  blockHash(CHECKPOINT_NO + 1)));
+        assertFalse(chain.isVerified(CHECKPOINT_NO + 2));
+
+        checkpoint();
+        assertTrue(chain.isVerified(CHECKPOINT_NO + 2));
+        assertTrue(chain.matchesFilter(CHECKPOINT_NO + 2, filter));
+    }
+
+    private void checkpoint() throws Exception {
+        chain.addCheckpointHeader(peer(1), CHECKPOINT_NO, blockHash(CHECKPOINT_NO),
+                                  checkpointHeader);
+        chain.addCheckpointHeader(peer(2), CHECKPOINT_NO, blockHash(CHECKPOINT_NO),
+                                  checkpointHeader);
+        assertTrue(chain.hasCheckpoint());
+    }
+
+    // the header of the block after the checkpoint for the filter hashes of filterHashes(n, null)
+    private byte[] header(int blockNo) {
+        byte[] header = checkpointHeader;
+        for (int i = CHECKPOINT_NO + 1; i <= blockNo; i++) {
+            header = GolombCodedSet.getFilterHeader(hash(i), header);
+        }
+        return header;
+    }
+
+    // filter hashes of the blocks from CHECKPOINT_NO + 1, the last one replaced if given
+    private static List<byte[]> filterHashes(int count, byte[] lastFilterHash) {
+        List<byte[]> filterHashes = new ArrayList<byte[]>();
+        for (int i = 1; i <= count; i++) {
+            filterHashes.add(hash(CHECKPOINT_NO + i));
+        }
+        if (lastFilterHash != null) {
+            filterHashes.set(count - 1, lastFilterHash);
+        }
+        return filterHashes;
+    }
+
+    private static Sha256Hash blockHash(int blockNo) {
+        byte[] bytes = hash(blockNo);
+        bytes[31] = 1;
+        return new Sha256Hash(bytes);
+    }
+
+    private static byte[] hash(int n) {
+        byte[] bytes = new byte[32];
+        bytes[0] = (byte) n;
+        bytes[1] = (byte) (n >> 8);
+        return bytes;
+    }
+
+    private static InetAddress peer(int n) throws Exception {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) n});
+    }
+}
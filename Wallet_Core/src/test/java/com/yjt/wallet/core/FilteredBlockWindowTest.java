@@ -0,0 +1,115 @@
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.utils.Sha256Hash;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FilteredBlockWindowTest {
+    private static final Sha256Hash B1 = hash(1);
+    private static final Sha256Hash B2 = hash(2);
+    private static final Sha256Hash T  = hash(3);
+
+    private FilteredBlockWindow window;
+
+    @Before
+    public void setUp() {
+        window = new FilteredBlockWindow();
+        window.add(B1);
+        window.add(B2);
+    }
+
+    @Test
+    public void blocksLeaveInRequestOrderOnceTheirTxsArrived() {
+        assertTrue(window.blockReceived(block(B2, T), false) > 0);
+        assertTrue(window.isWaitingForTxs());
+        assertTrue(window.takeCompleteBlocks().isEmpty());
+
+        assertTrue(window.blockReceived(block(B1), false) > 0);
+        assertEquals(Arrays.asList(B1), hashes(window.takeCompleteBlocks()));
+
+        assertTrue(window.txReceived(T));
+        assertFalse(window.isWaitingForTxs());
+        assertEquals(Arrays.asList(B2), hashes(window.takeCompleteBlocks()));
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void duplicateBlockIsDropped() {
+        assertTrue(window.blockReceived(block(B1), false) > 0);
+        assertEquals(-1, window.blockReceived(block(B1), false));
+        assertFalse(window.txReceived(T));
+    }
+
+    @Test
+    public void txMatchingOnlyTheNewFilterIsDelivered() {
+        // B2 filtered with the old filter matched nothing
+        window.blockReceived(block(B2), false);
+
+        // the filter changed, so the whole window is requested again
+        assertEquals(Arrays.asList(B1, B2), window.refetch());
+
+        // the old copy of B1 does not complete it, the one after the new filter does
+        window.blockReceived(block(B1), false);
+        assertTrue(window.takeCompleteBlocks().isEmpty());
+        assertEquals(0, window.blockReceived(block(B1), false));
+
+        // the new copy of B2 replaces the stale one and waits for T
+        assertEquals(0, window.blockReceived(block(B2, T), false));
+        List<Block> complete = window.takeCompleteBlocks();
+        assertEquals(Arrays.asList(B1), hashes(complete));
+        assertTrue(window.isWaitingForTxs());
+
+        assertTrue(window.txReceived(T));
+        complete = window.takeCompleteBlocks();
+        assertEquals(Arrays.asList(B2), hashes(complete));
+        assertEquals(1, complete.get(0).getTxHashes().size());
+        assertArrayEquals(T.getBytes(), complete.get(0).getTxHashes().get(0));
+    }
+
+    @Test
+    public void excludedBlockIsNotRefetched() {
+        assertEquals(Arrays.asList(B2), window.refetch(Collections.singleton(B1)));
+        assertTrue(window.blockReceived(block(B1), true) > 0);
+        assertEquals(Arrays.asList(B1), hashes(window.takeCompleteBlocks()));
+    }
+
+    @Test
+    public void fullBlockWaitsForNoTxs() {
+        window.blockReceived(block(B1, T), true);
+        assertFalse(window.isWaitingForTxs());
+        assertEquals(Arrays.asList(B1), hashes(window.takeCompleteBlocks()));
+    }
+
+    private static Sha256Hash hash(int n) {
+        byte[] bytes = new byte[32];
+        bytes[0] = (byte) n;
+        return new Sha256Hash(bytes);
+    }
+
+    private static Block block(Sha256Hash blockHash, Sha256Hash... txHashes) {
+        Block block = new Block(blockHash.getBytes(), 1, new byte[32], new byte[32], 0, 0, 0, 0,
+                false);
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        for (Sha256Hash txHash : txHashes) {
+            hashes.add(txHash.getBytes());
+        }
+        block.setTxHashes(hashes);
+        return block;
+    }
+
+    private static List<Sha256Hash> hashes(List<Block> blocks) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (Block block : blocks) {
+            hashes.add(new Sha256Hash(block.getBlockHash()));
+        }
+        return hashes;
+    }
+}
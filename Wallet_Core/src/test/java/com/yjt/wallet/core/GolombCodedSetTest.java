@@ -0,0 +1,65 @@
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.utils.Utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * The testnet genesis block vector of BIP 158.
+ */
+public class GolombCodedSetTest {
+    private static final byte[] BLOCK_HASH     = Utils.reverseBytes(Utils.hexStringToByteArray
+            ("000000000933ea01ad0ee984209779baaec3ced90fa3f408719526f8d77f4943"));
+    private static final byte[] FILTER         = Utils.hexStringToByteArray("019dfca8");
+    private static final byte[] FILTER_HEADER  = Utils.reverseBytes(Utils.hexStringToByteArray
+            ("21584579b7eb08997773e5aeff3a7f932700042d0ed2a6129012b7d7ae81b750"));
+    private static final byte[] GENESIS_PUBKEY = Utils.hexStringToByteArray
+            ("04678afdb0fe5548271967f1a67130b7105cd6a828e03909a67962e0ea1f61deb649f6bc3f4cef38c4f3" +
+                     "5504e51ec112de5c384df7ba0b8d578a4c702b6bf11d5f");
+
+    @Test
+    public void matchesTheCoinbaseScript() throws Exception {
+        GolombCodedSet filter = new GolombCodedSet(BLOCK_HASH, FILTER);
+        assertEquals(1, filter.getElementCount());
+        assertTrue(filter.matchAny(Collections.singletonList(payToPubkey(GENESIS_PUBKEY))));
+    }
+
+    @Test
+    public void missesOtherScripts() throws Exception {
+        GolombCodedSet filter = new GolombCodedSet(BLOCK_HASH, FILTER);
+        byte[] pubkey = GENESIS_PUBKEY.clone();
+        pubkey[1] ^= 1;
+        assertFalse(filter.matchAny(Collections.singletonList(payToPubkey(pubkey))));
+        assertFalse(filter.matchAny(Collections.<byte[]>emptyList()));
+    }
+
+    @Test
+    public void filterHeaderChainsFromZero() {
+        byte[] header = GolombCodedSet.getFilterHeader(GolombCodedSet.getFilterHash(FILTER), new
+                byte[32]);
+        assertArrayEquals(FILTER_HEADER, header);
+    }
+
+    @Test
+    public void matcherBuildsThePayToPubkeyScript() throws Exception {
+        GolombCodedSet filter = new GolombCodedSet(BLOCK_HASH, FILTER);
+        CompactFilterMatcher matcher = new CompactFilterMatcher(Arrays.asList(new byte[20],
+                                                                              GENESIS_PUBKEY));
+        assertTrue(matcher.matches(filter));
+        assertFalse(new CompactFilterMatcher(Collections.singletonList(new byte[20])).matches
+                (filter));
+    }
+
+    private static byte[] payToPubkey(byte[] pubkey) {
+        byte[] script = new byte[pubkey.length + 2];
+        script[0] = (byte) pubkey.length;
+        System.arraycopy(pubkey, 0, script, 1, pubkey.length);
+        script[script.length - 1] = (byte) 0xac;
+        return script;
+    }
+}
@@ -0,0 +1,159 @@
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.contant.BitherjSettings;
+import com.yjt.wallet.core.db.AbstractDb;
+import com.yjt.wallet.core.db.implement.FileBlockProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeaderIndexTest {
+    private static final int FIRST_NO = 300000;
+    private static final int FORK_NO  = FIRST_NO + 5;
+
+    private File              file;
+    private FileBlockProvider blockProvider;
+    private HeaderIndex       index;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("blocks", ".dat");
+        file.delete();
+        blockProvider = new FileBlockProvider(file);
+        AbstractDb.blockProvider = blockProvider;
+
+        // main chain FIRST_NO .. FORK_NO + 5, side branch FORK_NO + 1 .. FORK_NO + 3
+        List<Block> blocks = new ArrayList<Block>();
+        for (int no = FIRST_NO; no <= FORK_NO + 5; no++) {
+            blocks.add(block(no, 0, true));
+        }
+        for (int no = FORK_NO + 1; no <= FORK_NO + 3; no++) {
+            blocks.add(block(no, 1, false));
+        }
+        index = new HeaderIndex(blocks);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        blockProvider.close();
+        file.delete();
+        new File(file.getPath() + ".idx").delete();
+    }
+
+    @Test
+    public void mainChainMembership() {
+        assertTrue(index.isInMainChain(index.getBlock(hash(FORK_NO + 2, 0))));
+        assertFalse(index.isInMainChain(index.getBlock(hash(FORK_NO + 2, 1))));
+        assertNull(index.getMainChainBlock(hash(FORK_NO + 2, 1)));
+        assertNotNull(index.getMainChainBlock(hash(FORK_NO + 2, 0)));
+    }
+
+    @Test
+    public void ancestorFollowsTheBranch() {
+        Block sideTip = index.getBlock(hash(FORK_NO + 3, 1));
+        assertArrayEquals(hash(FORK_NO + 1, 1), index.getAncestor(sideTip, FORK_NO + 1)
+                .getBlockHash());
+        assertArrayEquals(hash(FORK_NO, 0), index.getAncestor(sideTip, FORK_NO).getBlockHash());
+        assertArrayEquals(hash(FIRST_NO, 0), index.getAncestor(sideTip, FIRST_NO).getBlockHash());
+        assertNull(index.getAncestor(sideTip, FIRST_NO - 1));
+        assertNull(index.getAncestor(sideTip, -1));
+    }
+
+    @Test
+    public void sameParentIsTheForkPoint() {
+        Block mainTip = index.getBlock(hash(FORK_NO + 5, 0));
+        Block sideTip = index.getBlock(hash(FORK_NO + 3, 1));
+        assertArrayEquals(hash(FORK_NO, 0), index.getSameParent(sideTip, mainTip).getBlockHash());
+        assertArrayEquals(hash(FORK_NO, 0), index.getSameParent(mainTip, sideTip).getBlockHash());
+        // a block of the same chain is its own fork point
+        Block mainBlock = index.getBlock(hash(FORK_NO + 2, 0));
+        assertArrayEquals(hash(FORK_NO + 2, 0), index.getSameParent(mainBlock, mainTip)
+                .getBlockHash());
+    }
+
+    @Test
+    public void noSameParentBelowTheStoredBlocks() {
+        Block unknownPrev = new Block(hash(FORK_NO + 2, 3), 2, hash(FORK_NO + 1, 3), hash
+                (FORK_NO + 2, 9), 0, 0, 0, FORK_NO + 2, false);
+        assertNull(index.getSameParent(unknownPrev, index.getBlock(hash(FORK_NO + 5, 0))));
+    }
+
+    @Test
+    public void switchingTheMainChain() {
+        // what BlockChain.reorganize does to the index
+        for (int no = FORK_NO + 1; no <= FORK_NO + 5; no++) {
+            index.setMain(hash(no, 0), false);
+        }
+        for (int no = FORK_NO + 1; no <= FORK_NO + 3; no++) {
+            index.setMain(hash(no, 1), true);
+        }
+        List<Block> newBlocks = new ArrayList<Block>();
+        for (int no = FORK_NO + 4; no <= FORK_NO + 6; no++) {
+            newBlocks.add(block(no, 1, true));
+        }
+        index.addBlocks(newBlocks);
+
+        assertTrue(index.isInMainChain(index.getBlock(hash(FORK_NO + 2, 1))));
+        assertFalse(index.isInMainChain(index.getBlock(hash(FORK_NO + 2, 0))));
+        assertFalse(index.isInMainChain(index.getBlock(hash(FORK_NO + 5, 0))));
+        assertNotNull(index.getMainChainBlock(hash(FORK_NO + 6, 1)));
+        assertNull(index.getMainChainBlock(hash(FORK_NO + 5, 0)));
+
+        Block newTip = index.getBlock(hash(FORK_NO + 6, 1));
+        Block oldTip = index.getBlock(hash(FORK_NO + 5, 0));
+        assertArrayEquals(hash(FORK_NO, 0), index.getSameParent(oldTip, newTip).getBlockHash());
+        assertArrayEquals(hash(FORK_NO + 1, 1), index.getAncestor(newTip, FORK_NO + 1)
+                .getBlockHash());
+    }
+
+    @Test
+    public void missingBlockIsReadFromTheBlocksTable() {
+        Block stored = block(FORK_NO + 1, 4, false);
+        blockProvider.addBlock(stored);
+        Block block = index.getBlock(hash(FORK_NO + 1, 4));
+        assertNotNull(block);
+        blockProvider.removeBlock(hash(FORK_NO + 1, 4));
+        // kept in the index once read
+        assertSame(block, index.getBlock(hash(FORK_NO + 1, 4)));
+    }
+
+    @Test
+    public void trimKeepsRetargetPoints() {
+        int retargetNo = (FIRST_NO / BitherjSettings.BLOCK_DIFFICULTY_INTERVAL + 1) *
+                BitherjSettings.BLOCK_DIFFICULTY_INTERVAL;
+        List<Block> blocks = new ArrayList<Block>();
+        int lastNo = retargetNo + BitherjSettings.HEADER_INDEX_WINDOW + BitherjSettings
+                .BLOCK_DIFFICULTY_INTERVAL * 2;
+        for (int no = FORK_NO + 6; no <= lastNo; no++) {
+            blocks.add(block(no, 0, true));
+        }
+        index.addBlocks(blocks);
+        // neither stored nor kept: only the retarget point is left of the old blocks
+        assertNull(index.getBlock(hash(retargetNo + 1, 0)));
+        assertNotNull(index.getBlock(hash(retargetNo, 0)));
+        assertNotNull(index.getBlock(hash(lastNo, 0)));
+    }
+
+    // salt 0 is the main chain, a side branch forks off at FORK_NO
+    private static Block block(int blockNo, int salt, boolean isMain) {
+        byte[] prev = hash(blockNo - 1, blockNo - 1 <= FORK_NO ? 0 : salt);
+        return new Block(hash(blockNo, salt), 2, prev, hash(blockNo, 9), 1000 + blockNo,
+                         0x1d00ffffL, blockNo, blockNo, isMain);
+    }
+
+    private static byte[] hash(int blockNo, int salt) {
+        byte[] bytes = new byte[32];
+        bytes[0] = (byte) blockNo;
+        bytes[1] = (byte) (blockNo >> 8);
+        bytes[2] = (byte) (blockNo >> 16);
+        bytes[3] = (byte) salt;
+        return bytes;
+    }
+}
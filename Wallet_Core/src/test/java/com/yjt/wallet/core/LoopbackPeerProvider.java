@@ -0,0 +1,77 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.db.IPeerProvider;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A peer provider which only knows the loopback address and forgets every peer it is told about,
+ * so PeerManager syncs from a {@link com.yjt.wallet.core.net.ReplayPeerServer} or through a
+ * {@link com.yjt.wallet.core.net.RecordingPeerProxy} only. Install it as
+ * {@link com.yjt.wallet.core.db.AbstractDb#peerProvider} before starting PeerManager.
+ */
+public class LoopbackPeerProvider implements IPeerProvider {
+    private final InetAddress loopback;
+
+    public LoopbackPeerProvider() {
+        try {
+            loopback = InetAddress.getByName("127.0.0.1");
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    @Override
+    public void addPeers(List<Peer> items) {
+    }
+
+    @Override
+    public void removePeer(InetAddress address) {
+    }
+
+    @Override
+    public void connectSucceed(InetAddress address) {
+    }
+
+    @Override
+    public void connectFail(InetAddress address) {
+    }
+
+    @Override
+    public void updatePeerScore(InetAddress address, int score) {
+    }
+
+    @Override
+    public List<Peer> getPeersWithLimit(int limit) {
+        List<Peer> peers = new ArrayList<Peer>();
+        peers.add(new Peer(loopback));
+        return peers;
+    }
+
+    @Override
+    public void cleanPeers() {
+    }
+
+    @Override
+    public void recreate() {
+    }
+}
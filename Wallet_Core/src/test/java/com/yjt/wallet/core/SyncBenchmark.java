@@ -0,0 +1,197 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.db.AbstractDb;
+import com.yjt.wallet.core.db.IBlockProvider;
+import com.yjt.wallet.core.db.IPeerProvider;
+import com.yjt.wallet.core.db.ITxProvider;
+import com.yjt.wallet.core.net.NioClientManager;
+import com.yjt.wallet.core.net.PeerMetrics;
+import com.yjt.wallet.core.net.ReplayPeerServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the sync throughput against a {@link ReplayPeerServer}, so changes to the sync path
+ * can be compared on the same recorded blocks. The app and the db providers must be set up by the
+ * caller as for a normal sync, with the wallet the capture was recorded with.
+ * <p/>
+ * Everything is read from the outside: the blocks from the chain height, the txs and bytes from
+ * the {@link PeerMetrics} PeerManager keeps anyway, the executor time from
+ * {@link PeerManager#getExecutorRunTime()}, and the db time from timing wrappers around the block
+ * and tx providers while the benchmark runs.
+ * <p/>
+ * SyncBenchmarkTest runs it on a generated chain, see
+ * {@link com.yjt.wallet.core.net.CaptureGenerator}.
+ */
+public class SyncBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(SyncBenchmark.class);
+
+    private static final long POLL_INTERVAL = 500;
+
+    /**
+     * Syncs from the capture until the height the capture announced or the timeout.
+     */
+    public static Result run(File capture, long timeoutMillis) throws IOException,
+            InterruptedException {
+        ReplayPeerServer server = new ReplayPeerServer(capture);
+        server.start();
+        if (!NioClientManager.instance().isRunning()) {
+            // the app starts it, a test has to
+            NioClientManager.instance().startAsync().awaitRunning();
+        }
+        PeerManager peerManager = PeerManager.instance();
+        IPeerProvider peerProvider = AbstractDb.peerProvider;
+        IBlockProvider blockProvider = AbstractDb.blockProvider;
+        ITxProvider txProvider = AbstractDb.txProvider;
+        AtomicLong dbNanos = new AtomicLong();
+        AbstractDb.peerProvider = new LoopbackPeerProvider();
+        AbstractDb.blockProvider = timed(IBlockProvider.class, blockProvider, dbNanos);
+        AbstractDb.txProvider = timed(ITxProvider.class, txProvider, dbNanos);
+        long startHeight = peerManager.getLastBlockHeight();
+        long startTxCount = getTxCount(peerManager.getMetrics());
+        long startBytesIn = peerManager.getMetrics().getBytesIn();
+        long startExecutorNanos = peerManager.getExecutorRunTime().getTotalNanos();
+        long startAllocatedBytes = getAllocatedBytes();
+        long startTime = System.currentTimeMillis();
+        try {
+            peerManager.start();
+            while (peerManager.getLastBlockHeight() < server.getBestHeight() && System
+                    .currentTimeMillis() - startTime < timeoutMillis) {
+                Thread.sleep(POLL_INTERVAL);
+            }
+        } finally {
+            peerManager.stop();
+            AbstractDb.peerProvider = peerProvider;
+            AbstractDb.blockProvider = blockProvider;
+            AbstractDb.txProvider = txProvider;
+            server.stop();
+        }
+        long allocatedBytes = getAllocatedBytes();
+        Result result = new Result(System.currentTimeMillis() - startTime, peerManager
+                .getLastBlockHeight() - startHeight, getTxCount(peerManager.getMetrics()) -
+                startTxCount, peerManager.getMetrics().getBytesIn() - startBytesIn,
+                startAllocatedBytes < 0 || allocatedBytes < 0 ? -1 : allocatedBytes -
+                        startAllocatedBytes, dbNanos.get() / 1000000, (peerManager
+                .getExecutorRunTime().getTotalNanos() - startExecutorNanos) / 1000000);
+        log.info("Sync benchmark: {}", result);
+        return result;
+    }
+
+    /**
+     * @return the provider adding the time of every call to nanos.
+     */
+    private static <T> T timed(Class<T> type, final T provider, final AtomicLong nanos) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, new
+                InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                long start = System.nanoTime();
+                try {
+                    return method.invoke(provider, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                } finally {
+                    nanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+        }));
+    }
+
+    private static long getTxCount(PeerMetrics metrics) {
+        PeerMetrics.CommandMetrics txMetrics = metrics.getCommandMetrics().get("tx");
+        return txMetrics == null ? 0 : txMetrics.getMessagesIn();
+    }
+
+    /**
+     * @return the bytes allocated by all live threads, -1 if the vm can not tell, as on android.
+     */
+    private static long getAllocatedBytes() {
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            Object threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            if (!beanClass.isInstance(threadBean)) {
+                return -1;
+            }
+            long[] threadIds = (long[]) beanClass.getMethod("getAllThreadIds").invoke(threadBean);
+            Method getAllocatedBytes = beanClass.getMethod("getThreadAllocatedBytes", long[].class);
+            long total = 0;
+            for (long bytes : (long[]) getAllocatedBytes.invoke(threadBean, (Object) threadIds)) {
+                total += Math.max(bytes, 0);
+            }
+            return total;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public static class Result {
+        public final long elapsedMillis;
+        public final long blockCount;
+        public final long txCount;
+        public final long bytesIn;
+        // -1 if unknown
+        public final long allocatedBytes;
+        // spent in the block and tx providers, on any thread
+        public final long dbMillis;
+        // spent running PeerManager executor tasks, the db time they took included
+        public final long executorMillis;
+
+        Result(long elapsedMillis, long blockCount, long txCount, long bytesIn, long
+                allocatedBytes, long dbMillis, long executorMillis) {
+            this.elapsedMillis = Math.max(elapsedMillis, 1);
+            this.blockCount = blockCount;
+            this.txCount = txCount;
+            this.bytesIn = bytesIn;
+            this.allocatedBytes = allocatedBytes;
+            this.dbMillis = dbMillis;
+            this.executorMillis = executorMillis;
+        }
+
+        public double getBlocksPerSecond() {
+            return blockCount * 1000.0 / elapsedMillis;
+        }
+
+        public double getTxsPerSecond() {
+            return txCount * 1000.0 / elapsedMillis;
+        }
+
+        public double getAllocatedMegabytesPerSecond() {
+            return allocatedBytes < 0 ? -1 : allocatedBytes / 1024.0 / 1024.0 * 1000.0 /
+                    elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d blocks, %d txs, %d KB in %d ms: %.1f blocks/s, %.1f txs/s, " +
+                    "%.1f MB/s allocated, %d ms in the db, %d ms on the executor", blockCount,
+                    txCount, bytesIn / 1024, elapsedMillis, getBlocksPerSecond(), getTxsPerSecond
+                            (), getAllocatedMegabytesPerSecond(), dbMillis, executorMillis);
+        }
+    }
+}
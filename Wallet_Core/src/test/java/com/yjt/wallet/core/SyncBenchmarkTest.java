@@ -0,0 +1,131 @@
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.contant.AbstractApp;
+import com.yjt.wallet.core.contant.BitherjSettings;
+import com.yjt.wallet.core.contant.NotificationService;
+import com.yjt.wallet.core.db.AbstractDb;
+import com.yjt.wallet.core.db.IAddressProvider;
+import com.yjt.wallet.core.db.IDesktopAddressProvider;
+import com.yjt.wallet.core.db.IDesktopTxProvider;
+import com.yjt.wallet.core.db.IEnterpriseHDMProvider;
+import com.yjt.wallet.core.db.IHDAccountAddressProvider;
+import com.yjt.wallet.core.db.IHDAccountProvider;
+import com.yjt.wallet.core.db.IPeerProvider;
+import com.yjt.wallet.core.db.ITxProvider;
+import com.yjt.wallet.core.db.implement.FileBlockProvider;
+import com.yjt.wallet.core.net.CaptureGenerator;
+import com.yjt.wallet.core.utils.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link SyncBenchmark} on a generated chain with an empty wallet, the blocks in a
+ * {@link FileBlockProvider} and every other provider answering nothing, so it runs without the
+ * network or a capture, as on CI.
+ */
+public class SyncBenchmarkTest {
+    // inside one difficulty interval, the generated chain never retargets
+    private static final int  START_NO      = 150 * BitherjSettings.BLOCK_DIFFICULTY_INTERVAL + 1;
+    private static final int  BLOCK_COUNT   = 1000;
+    private static final int  TXS_PER_BLOCK = 4;
+    private static final long TIMEOUT       = 60 * 1000;
+
+    private File       blocksFile;
+    private File       capture;
+    private BigInteger proofOfWorkLimit;
+
+    @Before
+    public void setUp() throws Exception {
+        proofOfWorkLimit = BitherjSettings.proofOfWorkLimit;
+        BitherjSettings.proofOfWorkLimit = Utils.decodeCompactBits(CaptureGenerator.BITS);
+        blocksFile = File.createTempFile("blocks", ".dat");
+        blocksFile.delete();
+        capture = File.createTempFile("sync", ".capture");
+
+        AbstractDb.blockProvider = new FileBlockProvider(blocksFile);
+        AbstractDb.peerProvider = stub(IPeerProvider.class);
+        AbstractDb.txProvider = stub(ITxProvider.class);
+        AbstractDb.addressProvider = stub(IAddressProvider.class);
+        AbstractDb.hdAccountAddressProvider = stub(IHDAccountAddressProvider.class);
+        AbstractDb.hdAccountProvider = stub(IHDAccountProvider.class);
+        AbstractDb.enterpriseHDMProvider = stub(IEnterpriseHDMProvider.class);
+        AbstractDb.desktopAddressProvider = stub(IDesktopAddressProvider.class);
+        AbstractDb.desktopTxProvider = stub(IDesktopTxProvider.class);
+        AbstractApp.bitherjSetting = new TestSetting();
+        AbstractApp.notificationService = stub(NotificationService.class);
+
+        CaptureGenerator generator = new CaptureGenerator(START_NO, TXS_PER_BLOCK);
+        int startTime = (int) (Utils.currentTimeSeconds() - (BLOCK_COUNT + 1) *
+                BitherjSettings.TARGET_SPACING);
+        Block start = generator.startBlock(START_NO, startTime);
+        generator.write(capture, start, BLOCK_COUNT);
+
+        // the chain is a singleton, start it over on the generated block
+        Field instance = BlockChain.class.getDeclaredField("uniqueInstance");
+        instance.setAccessible(true);
+        instance.set(null, new BlockChain());
+        BlockChain.getInstance().addSPVBlock(start);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        BitherjSettings.proofOfWorkLimit = proofOfWorkLimit;
+        ((FileBlockProvider) AbstractDb.blockProvider).close();
+        blocksFile.delete();
+        new File(blocksFile.getPath() + ".idx").delete();
+        capture.delete();
+    }
+
+    @Test
+    public void syncsTheGeneratedChain() throws Exception {
+        SyncBenchmark.Result result = SyncBenchmark.run(capture, TIMEOUT);
+
+        assertEquals(BLOCK_COUNT, result.blockCount);
+        assertEquals(START_NO + BLOCK_COUNT, BlockChain.getInstance().getLastBlock()
+                .getBlockNo());
+        assertEquals(BLOCK_COUNT * TXS_PER_BLOCK, result.txCount);
+        assertTrue(result.dbMillis >= 0 && result.executorMillis > 0);
+        System.out.println("Sync benchmark: " + result);
+    }
+
+    private static <T> T stub(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, new
+                InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                Class<?> returnType = method.getReturnType();
+                if (returnType == boolean.class) {
+                    return false;
+                } else if (returnType == int.class) {
+                    return 0;
+                } else if (returnType == long.class) {
+                    return 0L;
+                } else if (List.class.equals(returnType)) {
+                    return Collections.emptyList();
+                } else if (returnType == byte[].class) {
+                    return new byte[0];
+                } else if (Map.class.equals(returnType)) {
+                    return Collections.emptyMap();
+                } else if (args != null && args.length == 1 && returnType.isInstance(args[0])) {
+                    // updates hand back what they were given
+                    return args[0];
+                }
+                return null;
+            }
+        }));
+    }
+}
@@ -0,0 +1,88 @@
+package com.yjt.wallet.core;
+
+import com.yjt.wallet.core.contant.BitherjSettings;
+import com.yjt.wallet.core.contant.ISetting;
+import com.yjt.wallet.core.qrcode.QRCodeUtil;
+
+import org.apache.http.client.CookieStore;
+
+import java.io.File;
+
+/**
+ * Settings of an app which finished its spv sync, for tests running the chain or the peers.
+ */
+class TestSetting extends ISetting {
+    private int pendingReorgBlockNo = -1;
+
+    @Override
+    public BitherjSettings.AppMode getAppMode() {
+        return null;
+    }
+
+    @Override
+    public boolean getBitherjDoneSyncFromSpv() {
+        return true;
+    }
+
+    @Override
+    public void setBitherjDoneSyncFromSpv(boolean isDone) {
+    }
+
+    @Override
+    public int getBitherjFastCatchupBlockNo() {
+        return 0;
+    }
+
+    @Override
+    public void setBitherjFastCatchupBlockNo(int blockNo) {
+    }
+
+    @Override
+    public int getBitherjPendingReorgBlockNo() {
+        return pendingReorgBlockNo;
+    }
+
+    @Override
+    public void setBitherjPendingReorgBlockNo(int blockNo) {
+        pendingReorgBlockNo = blockNo;
+    }
+
+    @Override
+    public boolean getDownloadSpvFinish() {
+        return true;
+    }
+
+    @Override
+    public void setDownloadSpvFinish(boolean finish) {
+    }
+
+    @Override
+    public QRCodeUtil.QRQuality getQRQuality() {
+        return null;
+    }
+
+    @Override
+    public BitherjSettings.TransactionFeeMode getTransactionFeeMode() {
+        return null;
+    }
+
+    @Override
+    public BitherjSettings.ApiConfig getApiConfig() {
+        return null;
+    }
+
+    @Override
+    public File getPrivateDir(String dirName) {
+        return null;
+    }
+
+    @Override
+    public boolean isApplicationRunInForeground() {
+        return false;
+    }
+
+    @Override
+    public CookieStore getCookieStore() {
+        return null;
+    }
+}
@@ -0,0 +1,211 @@
+package com.yjt.wallet.core.db.implement;
+
+import com.yjt.wallet.core.Block;
+import com.yjt.wallet.core.contant.BitherjSettings;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FileBlockProviderTest {
+    private static final int CAPACITY = BitherjSettings.BLOCK_FILE_CAPACITY;
+    // the first main slot of the data file, see FileBlockProvider
+    private static final int RECORDS_OFFSET = 32;
+    private static final int RECORD_SIZE    = 128;
+
+    private File              file;
+    private FileBlockProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("blocks", ".dat");
+        file.delete();
+        provider = new FileBlockProvider(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        provider.close();
+        file.delete();
+        new File(file.getPath() + ".idx").delete();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Block block = block(1000, 0, true);
+        provider.addBlock(block);
+        assertSameBlock(block, provider.getBlock(hash(1000, 0)));
+        assertSameBlock(block, provider.getMainChainBlock(hash(1000, 0)));
+        assertSameBlock(block, provider.getLastBlock());
+        assertEquals(1, provider.getBlockCount());
+        assertNull(provider.getBlock(hash(1001, 0)));
+
+        provider.close();
+        provider = new FileBlockProvider(file);
+        assertSameBlock(block, provider.getBlock(hash(1000, 0)));
+        assertSameBlock(block, provider.getLastBlock());
+    }
+
+    @Test
+    public void orphans() {
+        addMainBlocks(0, 100);
+        Block orphan = block(98, 5, false);
+        provider.addBlock(orphan);
+        assertSameBlock(orphan, provider.getLastOrphanBlock());
+        assertSameBlock(orphan, provider.getOrphanBlockByPrevHash(hash(97, 5)));
+        assertNull(provider.getMainChainBlock(hash(98, 5)));
+        assertEquals(99, provider.getLastBlock().getBlockNo());
+
+        provider.removeBlock(hash(98, 5));
+        assertNull(provider.getBlock(hash(98, 5)));
+        assertEquals(100, provider.getBlockCount());
+    }
+
+    @Test
+    public void wrapsAroundTheRing() {
+        int count = CAPACITY + 1000;
+        addMainBlocks(0, count);
+        assertEquals(CAPACITY, provider.getBlockCount());
+        assertEquals(count - 1, provider.getLastBlock().getBlockNo());
+        // the oldest blocks were overwritten by the ones a ring length above them
+        assertNull(provider.getBlock(hash(999, 0)));
+        assertNotNull(provider.getBlock(hash(1000, 0)));
+        Block block = provider.getBlock(hash(count - 10, 0));
+        assertEquals(count - 10, block.getBlockNo());
+        assertArrayEquals(hash(count - 11, 0), block.getBlockPrev());
+        assertEquals(9, provider.getBlocksFrom(count - 10).size());
+        assertEquals(count - 1, provider.getLimitBlocks(5).get(0).getBlockNo());
+    }
+
+    @Test
+    public void switchesTheTip() {
+        addMainBlocks(0, 100);
+        provider.addBlock(block(99, 1, false));
+
+        provider.updateBlock(hash(99, 0), false);
+        assertEquals(98, provider.getLastBlock().getBlockNo());
+        provider.updateBlock(hash(99, 1), true);
+        assertArrayEquals(hash(99, 1), provider.getLastBlock().getBlockHash());
+        assertNotNull(provider.getBlock(hash(99, 0)));
+        assertNull(provider.getMainChainBlock(hash(99, 0)));
+    }
+
+    @Test
+    public void reorganize() throws Exception {
+        addMainBlocks(0, 100);
+        provider.addBlock(block(96, 5, false));
+        provider.addBlock(block(97, 5, false));
+        // relayed again after it was stored as an orphan
+        provider.addBlock(block(98, 5, false));
+
+        List<byte[]> oldBlockHashes = new ArrayList<byte[]>();
+        for (int no = 96; no < 100; no++) {
+            oldBlockHashes.add(hash(no, 0));
+        }
+        List<Block> newBlocks = new ArrayList<Block>();
+        for (int no = 98; no <= 100; no++) {
+            newBlocks.add(block(no, 5, true));
+        }
+        provider.reorganize(95, oldBlockHashes, Arrays.asList(hash(96, 5), hash(97, 5)),
+                            newBlocks);
+
+        assertArrayEquals(hash(100, 5), provider.getLastBlock().getBlockHash());
+        for (int no = 96; no <= 100; no++) {
+            assertNotNull(provider.getMainChainBlock(hash(no, 5)));
+        }
+        for (int no = 96; no < 100; no++) {
+            assertNull(provider.getMainChainBlock(hash(no, 0)));
+            assertNotNull(provider.getBlock(hash(no, 0)));
+        }
+        assertEquals(105, provider.getBlockCount());
+
+        provider.close();
+        provider = new FileBlockProvider(file);
+        assertArrayEquals(hash(100, 5), provider.getLastBlock().getBlockHash());
+        assertNotNull(provider.getMainChainBlock(hash(98, 5)));
+        assertEquals(105, provider.getBlockCount());
+    }
+
+    @Test
+    public void reopensWithoutClose() throws Exception {
+        addMainBlocks(0, CAPACITY + 10);
+        for (int i = 0; i < 300; i++) {
+            provider.addBlock(block(CAPACITY + i, 3, false));
+        }
+        // not closed, the hash index is rebuilt
+        FileBlockProvider reopened = new FileBlockProvider(file);
+        assertEquals(CAPACITY + 9, reopened.getLastBlock().getBlockNo());
+        assertNotNull(reopened.getBlock(hash(CAPACITY + 5, 0)));
+        assertNull(reopened.getBlock(hash(5, 0)));
+        assertNotNull(reopened.getBlock(hash(CAPACITY + 299, 3)));
+        reopened.close();
+    }
+
+    @Test
+    public void dropsTornRecords() throws Exception {
+        addMainBlocks(0, 100);
+        provider.close();
+
+        RandomAccessFile data = new RandomAccessFile(file, "rw");
+        long offset = RECORDS_OFFSET + 50L * RECORD_SIZE + 60;
+        data.seek(offset);
+        int b = data.read();
+        data.seek(offset);
+        data.write(b ^ 0xff);
+        data.close();
+
+        provider = new FileBlockProvider(file);
+        assertNull(provider.getBlock(hash(50, 0)));
+        assertNotNull(provider.getBlock(hash(49, 0)));
+        assertEquals(99, provider.getLastBlock().getBlockNo());
+    }
+
+    private void addMainBlocks(int fromNo, int toNo) {
+        List<Block> blocks = new ArrayList<Block>();
+        for (int no = fromNo; no < toNo; no++) {
+            blocks.add(block(no, 0, true));
+            if (blocks.size() == 2000) {
+                provider.addBlocks(blocks);
+                blocks.clear();
+            }
+        }
+        provider.addBlocks(blocks);
+    }
+
+    private static void assertSameBlock(Block expected, Block actual) {
+        assertNotNull(actual);
+        assertArrayEquals(expected.getBlockHash(), actual.getBlockHash());
+        assertArrayEquals(expected.getBlockPrev(), actual.getBlockPrev());
+        assertArrayEquals(expected.getBlockRoot(), actual.getBlockRoot());
+        assertEquals(expected.getBlockVer(), actual.getBlockVer());
+        assertEquals(expected.getBlockTime(), actual.getBlockTime());
+        assertEquals(expected.getBlockBits(), actual.getBlockBits());
+        assertEquals(expected.getBlockNonce(), actual.getBlockNonce());
+        assertEquals(expected.getBlockNo(), actual.getBlockNo());
+        assertEquals(expected.isMain(), actual.isMain());
+    }
+
+    private static Block block(int blockNo, int salt, boolean isMain) {
+        return new Block(hash(blockNo, salt), 2, hash(blockNo - 1, salt > 0 && blockNo > 96 ?
+                salt : 0), hash(blockNo, 9), 1000 + blockNo, 0x1d00ffffL, blockNo * 7L, blockNo,
+                         isMain);
+    }
+
+    private static byte[] hash(int blockNo, int salt) {
+        byte[] bytes = new byte[32];
+        bytes[0] = (byte) blockNo;
+        bytes[1] = (byte) (blockNo >> 8);
+        bytes[2] = (byte) (blockNo >> 16);
+        bytes[3] = (byte) salt;
+        bytes[4] = 1;
+        return bytes;
+    }
+}
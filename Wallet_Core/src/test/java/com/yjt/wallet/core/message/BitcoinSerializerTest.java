@@ -0,0 +1,72 @@
+package com.yjt.wallet.core.message;
+
+import com.yjt.wallet.core.Block;
+import com.yjt.wallet.core.exception.ProtocolException;
+import com.yjt.wallet.core.utils.InventoryItem;
+import com.yjt.wallet.core.utils.VarInt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BitcoinSerializerTest {
+    private static final String PREV = "000000000000000000000000000000000000000000000000000000000000" +
+            "0abc";
+    private static final String ROOT = "111111111111111111111111111111111111111111111111111111111111" +
+            "1def";
+
+    @Test
+    public void parsesMessagesInPlace() throws Exception {
+        BitcoinSerializer serializer = new BitcoinSerializer();
+        HeadersMessage headers = new HeadersMessage(new Block(2, PREV, ROOT, 1000, 0x1d00ffffL, 7,
+                                                              1), new Block(2, PREV, ROOT,
+                                                                            1600, 0x1d00ffffL, 8, 2));
+        InventoryMessage inv = new InventoryMessage();
+        inv.addItem(new InventoryItem(InventoryItem.Type.Transaction, new byte[32]));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(headers, out);
+        serializer.serialize(inv, out);
+        byte[] bytes = out.toByteArray();
+
+        // a heap buffer is parsed from its array, a direct one from a copy of the payload
+        ByteBuffer heap = ByteBuffer.wrap(bytes);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        for (ByteBuffer buffer : new ByteBuffer[]{heap, direct}) {
+            HeadersMessage parsedHeaders = (HeadersMessage) serializer.deserialize(buffer);
+            assertEquals(2, parsedHeaders.getBlockHeaders().size());
+            assertArrayEquals(headers.getBlockHeaders().get(1).getBlockHash(), parsedHeaders
+                    .getBlockHeaders().get(1).getBlockHash());
+            assertArrayEquals(headers.bitcoinSerialize(), parsedHeaders.bitcoinSerialize());
+            InventoryMessage parsedInv = (InventoryMessage) serializer.deserialize(buffer);
+            assertEquals(inv.getItems(), parsedInv.getItems());
+            assertEquals(bytes.length, buffer.position());
+        }
+    }
+
+    @Test
+    public void doesNotParseIntoTheNextMessage() throws Exception {
+        BitcoinSerializer serializer = new BitcoinSerializer();
+        // claims two headers but carries one
+        byte[] header = new HeadersMessage(new Block(2, PREV, ROOT, 1000, 0x1d00ffffL, 7, 1))
+                .bitcoinSerialize();
+        byte[] payload = Arrays.copyOf(header, header.length);
+        payload[0] = (byte) new VarInt(2).encode()[0];
+        InventoryMessage inv = new InventoryMessage();
+        inv.addItem(new InventoryItem(InventoryItem.Type.Transaction, new byte[32]));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize("headers", payload, out);
+        serializer.serialize(inv, out);
+
+        try {
+            serializer.deserialize(ByteBuffer.wrap(out.toByteArray()));
+            fail("parsed into the inv");
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.yjt.wallet.core.net;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AbstractTimeoutHandlerTest {
+    private static final int TIMEOUT = 100;
+
+    @Test
+    public void firesOnceTheTimeoutPassed() throws Exception {
+        CountingHandler handler = new CountingHandler(0);
+        handler.setSocketTimeout(TIMEOUT);
+        assertTrue(handler.started.await(5, TimeUnit.SECONDS));
+        Thread.sleep(3 * TIMEOUT);
+        assertEquals(1, handler.fired.get());
+    }
+
+    @Test
+    public void doesNotFireOnceDisabled() throws Exception {
+        CountingHandler handler = new CountingHandler(0);
+        handler.setSocketTimeout(TIMEOUT);
+        handler.setTimeoutEnabled(false);
+        Thread.sleep(5 * TIMEOUT);
+        assertEquals(0, handler.fired.get());
+    }
+
+    @Test
+    public void disablingWaitsForAFiringTimeout() throws Exception {
+        // the timeout is slow to handle, disabling it meanwhile returns once it is handled
+        CountingHandler handler = new CountingHandler(3 * TIMEOUT);
+        handler.setSocketTimeout(TIMEOUT);
+        assertTrue(handler.started.await(5, TimeUnit.SECONDS));
+        handler.setTimeoutEnabled(false);
+        assertEquals(1, handler.fired.get());
+    }
+
+    private static class CountingHandler extends AbstractTimeoutHandler {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final AtomicInteger  fired   = new AtomicInteger();
+        private final long           handlingMillis;
+
+        CountingHandler(long handlingMillis) {
+            this.handlingMillis = handlingMillis;
+        }
+
+        @Override
+        protected void timeoutOccurred() {
+            started.countDown();
+            try {
+                Thread.sleep(handlingMillis);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            fired.incrementAndGet();
+        }
+    }
+}
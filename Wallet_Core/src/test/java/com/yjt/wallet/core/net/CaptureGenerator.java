@@ -0,0 +1,211 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.yjt.wallet.core.net;
+
+import com.yjt.wallet.core.Block;
+import com.yjt.wallet.core.contant.BitherjSettings;
+import com.yjt.wallet.core.message.BitcoinSerializer;
+import com.yjt.wallet.core.message.VersionMessage;
+import com.yjt.wallet.core.utils.Utils;
+import com.yjt.wallet.core.utils.VarInt;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a capture in the {@link RecordingPeerProxy} format of a generated chain, for
+ * {@link ReplayPeerServer} to serve where no real capture can be recorded, as on CI. The blocks
+ * are mined at the regtest target {@link #BITS} 600 seconds apart, so they pass the header checks
+ * once {@link BitherjSettings#proofOfWorkLimit} is lowered to it, and every block comes as a
+ * merkleblock matching all of its generated pay to pubkey hash txs.
+ * <p/>
+ * Keep the chain inside one difficulty interval, the generated blocks never retarget.
+ */
+public class CaptureGenerator {
+    public static final long BITS = 0x207fffffL;
+
+    private static final int BLOCK_VERSION = 2;
+
+    private final Random random;
+    private final int    txsPerBlock;
+
+    public CaptureGenerator(long seed, int txsPerBlock) {
+        this.random = new Random(seed);
+        this.txsPerBlock = txsPerBlock;
+    }
+
+    /**
+     * @return the block the generated chain starts on, the caller stores it as the last block.
+     */
+    public Block startBlock(int blockNo, int blockTime) {
+        byte[] prev = new byte[32];
+        random.nextBytes(prev);
+        byte[] root = new byte[32];
+        random.nextBytes(root);
+        byte[] header = mine(prev, root, blockTime);
+        return new Block(Utils.doubleDigest(header), BLOCK_VERSION, prev, root, blockTime, BITS,
+                         Utils.readUint32(header, 76), blockNo, true);
+    }
+
+    /**
+     * Writes blockCount blocks on top of start, the version message announcing their height
+     * first.
+     */
+    public void write(File capture, Block start, int blockCount) throws IOException {
+        BitcoinSerializer serializer = new BitcoinSerializer();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream
+                (capture)));
+        try {
+            out.writeInt(RecordingPeerProxy.MAGIC);
+            out.writeInt(RecordingPeerProxy.VERSION);
+            VersionMessage version = new VersionMessage(start.getBlockNo() + blockCount);
+            version.localServices = VersionMessage.NODE_NETWORK;
+            writeRecord(out, serializer.serialize(version));
+
+            byte[] prev = start.getBlockHash();
+            long blockTime = start.getBlockTime();
+            for (int i = 0; i < blockCount; i++) {
+                blockTime += BitherjSettings.TARGET_SPACING;
+                List<byte[]> txs = new ArrayList<byte[]>();
+                List<byte[]> txHashes = new ArrayList<byte[]>();
+                for (int j = 0; j < txsPerBlock; j++) {
+                    byte[] tx = tx();
+                    txs.add(tx);
+                    txHashes.add(Utils.doubleDigest(tx));
+                }
+                byte[] header = mine(prev, merkleRoot(txHashes), blockTime);
+                writeRecord(out, serializer, "merkleblock", merkleBlock(header, txHashes));
+                for (byte[] tx : txs) {
+                    writeRecord(out, serializer, "tx", tx);
+                }
+                prev = Utils.doubleDigest(header);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, BitcoinSerializer serializer, String
+            command, byte[] payload) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        serializer.serialize(command, payload, message);
+        writeRecord(out, message.toByteArray());
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(0);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] mine(byte[] prev, byte[] root, long blockTime) {
+        BigInteger target = Utils.decodeCompactBits(BITS);
+        byte[] header = new byte[80];
+        Utils.uint32ToByteArrayLE(BLOCK_VERSION, header, 0);
+        System.arraycopy(prev, 0, header, 4, 32);
+        System.arraycopy(root, 0, header, 36, 32);
+        Utils.uint32ToByteArrayLE(blockTime, header, 68);
+        Utils.uint32ToByteArrayLE(BITS, header, 72);
+        for (long nonce = 0; ; nonce++) {
+            Utils.uint32ToByteArrayLE(nonce, header, 76);
+            BigInteger hash = new BigInteger(1, Utils.reverseBytes(Utils.doubleDigest(header)));
+            if (hash.compareTo(target) <= 0) {
+                return header;
+            }
+        }
+    }
+
+    /**
+     * A tx spending a random outpoint to a random pubkey hash, with a signature sized script.
+     */
+    private byte[] tx() throws IOException {
+        ByteArrayOutputStream tx = new ByteArrayOutputStream();
+        Utils.uint32ToByteStreamLE(1, tx);
+        tx.write(new VarInt(1).encode());
+        tx.write(randomBytes(32));
+        Utils.uint32ToByteStreamLE(random.nextInt(4), tx);
+        tx.write(new VarInt(1 + 72 + 1 + 33).encode());
+        tx.write(72);
+        tx.write(randomBytes(72));
+        tx.write(33);
+        tx.write(randomBytes(33));
+        Utils.uint32ToByteStreamLE(0xffffffffL, tx);
+        tx.write(new VarInt(1).encode());
+        Utils.int64ToByteStreamLE(10000 + random.nextInt(100000000), tx);
+        tx.write(new VarInt(25).encode());
+        tx.write(new byte[]{0x76, (byte) 0xa9, 0x14});
+        tx.write(randomBytes(20));
+        tx.write(new byte[]{(byte) 0x88, (byte) 0xac});
+        Utils.uint32ToByteStreamLE(0, tx);
+        return tx.toByteArray();
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] merkleRoot(List<byte[]> hashes) {
+        List<byte[]> level = hashes;
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<byte[]>();
+            for (int i = 0; i < level.size(); i += 2) {
+                byte[] right = level.get(Math.min(i + 1, level.size() - 1));
+                next.add(Utils.doubleDigestTwoBuffers(level.get(i), 0, 32, right, 0, 32));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * A merkleblock with all txs matched: every node is a parent of a match, so every flag bit is
+     * set and the hashes are exactly the tx hashes.
+     */
+    private static byte[] merkleBlock(byte[] header, List<byte[]> txHashes) throws IOException {
+        int nodeCount = 0;
+        for (int width = txHashes.size(); ; width = (width + 1) / 2) {
+            nodeCount += width;
+            if (width == 1) {
+                break;
+            }
+        }
+        byte[] flags = new byte[(nodeCount + 7) / 8];
+        for (int i = 0; i < nodeCount; i++) {
+            flags[i / 8] |= 1 << (i % 8);
+        }
+        ByteArrayOutputStream merkleBlock = new ByteArrayOutputStream();
+        merkleBlock.write(header);
+        Utils.uint32ToByteStreamLE(txHashes.size(), merkleBlock);
+        merkleBlock.write(new VarInt(txHashes.size()).encode());
+        for (byte[] hash : txHashes) {
+            merkleBlock.write(hash);
+        }
+        merkleBlock.write(new VarInt(flags.length).encode());
+        merkleBlock.write(flags);
+        return merkleBlock.toByteArray();
+    }
+}
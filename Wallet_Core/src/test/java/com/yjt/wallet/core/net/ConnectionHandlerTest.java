@@ -0,0 +1,140 @@
+package com.yjt.wallet.core.net;
+
+import com.yjt.wallet.core.message.BitcoinSerializer;
+import com.yjt.wallet.core.message.GetDataMessage;
+import com.yjt.wallet.core.message.Message;
+import com.yjt.wallet.core.message.PingMessage;
+import com.yjt.wallet.core.utils.InventoryItem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ConnectionHandlerTest {
+    private static final long TIMEOUT = 10 * 1000;
+
+    private Selector      selector;
+    private SocketChannel client;
+    private SocketChannel server;
+
+    @Before
+    public void setUp() throws Exception {
+        selector = Selector.open();
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open(listener.socket().getLocalSocketAddress());
+        server = listener.accept();
+        listener.close();
+        client.configureBlocking(false);
+        server.configureBlocking(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+        selector.close();
+    }
+
+    @Test
+    public void serializesIntoTheOutboundChunks() throws Exception {
+        SelectionKey key = client.register(selector, 0);
+        ConnectionHandler handler = new ConnectionHandler(new IdleParser(), key, new
+                HashSet<ConnectionHandler>(), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        key.attach(handler);
+
+        // pings share a chunk, a 7 KB getdata moves to a fresh one and an 11 KB one to the heap
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 100; i++) {
+            messages.add(new PingMessage(i));
+        }
+        messages.add(getData(200));
+        messages.add(new PingMessage(100));
+        // the pings after it must not go into the chunks queued before it
+        messages.add(getData(300));
+        messages.add(new PingMessage(101));
+        messages.add(getData(200));
+        for (int i = 102; i < 400; i++) {
+            messages.add(new PingMessage(i));
+        }
+
+        BitcoinSerializer serializer = new BitcoinSerializer();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (Message message : messages) {
+            int size = handler.writeMessage(message, serializer);
+            byte[] bytes = serializer.serialize(message);
+            assertEquals(bytes.length, size);
+            expected.write(bytes);
+        }
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        ByteBuffer readBuff = ByteBuffer.allocate(4096);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (received.size() < expected.size() && System.currentTimeMillis() < deadline) {
+            selector.selectNow();
+            for (SelectionKey selected : selector.selectedKeys()) {
+                ConnectionHandler.handleKey(selected);
+            }
+            selector.selectedKeys().clear();
+            readBuff.clear();
+            server.read(readBuff);
+            received.write(readBuff.array(), 0, readBuff.position());
+        }
+        assertArrayEquals(expected.toByteArray(), received.toByteArray());
+    }
+
+    private static GetDataMessage getData(int itemCount) {
+        GetDataMessage getData = new GetDataMessage();
+        for (int i = 0; i < itemCount; i++) {
+            byte[] hash = new byte[32];
+            hash[0] = (byte) i;
+            hash[1] = (byte) itemCount;
+            getData.addItem(new InventoryItem(InventoryItem.Type.Transaction, hash));
+        }
+        return getData;
+    }
+
+    private static class IdleParser implements StreamParser {
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            return 0;
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return Message.MAX_SIZE;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.yjt.wallet.core.net;
+
+import com.yjt.wallet.core.contant.BitherjSettings;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A loopback proxy to a real peer which records everything the peer sends to a capture file, for
+ * {@link ReplayPeerServer} to serve it again without the network. Sync through it by serving the
+ * loopback address from the peer provider, see {@link com.yjt.wallet.core.LoopbackPeerProvider}.
+ * <p/>
+ * The file starts with MAGIC and VERSION, followed by one record per received chunk: the
+ * connection id, the receive time in ms, the chunk length and the chunk bytes. The chunks of a
+ * connection concatenated are exactly its received stream.
+ */
+public class RecordingPeerProxy {
+    private static final Logger log = LoggerFactory.getLogger(RecordingPeerProxy.class);
+
+    public static final int MAGIC   = 0x42545243;
+    public static final int VERSION = 1;
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int BUFFER_SIZE     = 64 * 1024;
+
+    private final InetAddress      upstream;
+    private final DataOutputStream out;
+    private final AtomicInteger    connectionIds;
+    private final HashSet<Socket>  sockets;
+    private       ServerSocket     serverSocket;
+
+    public RecordingPeerProxy(InetAddress upstream, File capture) throws IOException {
+        this.upstream = upstream;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(capture)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        connectionIds = new AtomicInteger();
+        sockets = new HashSet<Socket>();
+    }
+
+    /**
+     * Listens on the loopback address at {@link BitherjSettings#port}, two threads per connection.
+     */
+    public synchronized void start() throws IOException {
+        serverSocket = new ServerSocket(BitherjSettings.port, 8, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "RecordingPeerProxy");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close recording peer proxy", e);
+        }
+        sockets.clear();
+        serverSocket = null;
+        synchronized (out) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Failed to close peer traffic capture", e);
+            }
+        }
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket client;
+            final Socket peer;
+            try {
+                ServerSocket server;
+                synchronized (this) {
+                    server = serverSocket;
+                }
+                if (server == null) {
+                    return;
+                }
+                client = server.accept();
+                peer = new Socket();
+                peer.connect(new InetSocketAddress(upstream, BitherjSettings.port), CONNECT_TIMEOUT);
+            } catch (IOException e) {
+                log.info("Recording peer proxy stopped accepting: {}", e.getMessage());
+                return;
+            }
+            synchronized (this) {
+                sockets.add(client);
+                sockets.add(peer);
+            }
+            final int connectionId = connectionIds.incrementAndGet();
+            forward(client, peer, -1);
+            forward(peer, client, connectionId);
+        }
+    }
+
+    /**
+     * Copies from one socket to the other until either closes, recording the bytes under the
+     * connection id unless it is negative.
+     */
+    private void forward(final Socket from, final Socket to, final int connectionId) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream target = to.getOutputStream();
+                    int count;
+                    while ((count = in.read(buffer)) > 0) {
+                        if (connectionId >= 0) {
+                            record(connectionId, Arrays.copyOf(buffer, count));
+                        }
+                        target.write(buffer, 0, count);
+                        target.flush();
+                    }
+                } catch (IOException e) {
+                    log.info("Proxied connection closed: {}", e.getMessage());
+                } finally {
+                    close(from);
+                    close(to);
+                }
+            }
+        }, "RecordingPeerProxy " + connectionId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void record(int connectionId, byte[] bytes) throws IOException {
+        synchronized (out) {
+            out.writeInt(connectionId);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private void close(Socket socket) {
+        synchronized (this) {
+            sockets.remove(socket);
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
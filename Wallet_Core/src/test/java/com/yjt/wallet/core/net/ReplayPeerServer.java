@@ -0,0 +1,360 @@
+/*
+* Copyright 2014 http://Bither.net
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package com.yjt.wallet.core.net;
+
+import com.yjt.wallet.core.Block;
+import com.yjt.wallet.core.Tx;
+import com.yjt.wallet.core.contant.BitherjSettings;
+import com.yjt.wallet.core.exception.ProtocolException;
+import com.yjt.wallet.core.message.BitcoinSerializer;
+import com.yjt.wallet.core.message.FilteredBlockMessage;
+import com.yjt.wallet.core.message.GetBlocksMessage;
+import com.yjt.wallet.core.message.GetDataMessage;
+import com.yjt.wallet.core.message.GetHeadersMessage;
+import com.yjt.wallet.core.message.HeadersMessage;
+import com.yjt.wallet.core.message.InventoryMessage;
+import com.yjt.wallet.core.message.Message;
+import com.yjt.wallet.core.message.PingMessage;
+import com.yjt.wallet.core.message.PongMessage;
+import com.yjt.wallet.core.message.VersionAck;
+import com.yjt.wallet.core.message.VersionMessage;
+import com.yjt.wallet.core.utils.InventoryItem;
+import com.yjt.wallet.core.utils.Sha256Hash;
+import com.yjt.wallet.core.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A local peer answering from a capture of {@link RecordingPeerProxy}, so a sync can be run
+ * again and again against the same blocks without the network. It serves the recorded version,
+ * the recorded headers and merkleblocks with their transactions, and pongs pings. Everything else
+ * is ignored, which is fine for a wallet the capture was recorded with.
+ * <p/>
+ * Serve the loopback address from the peer provider to sync from it, see
+ * {@link com.yjt.wallet.core.LoopbackPeerProvider}.
+ */
+public class ReplayPeerServer {
+    private static final Logger log = LoggerFactory.getLogger(ReplayPeerServer.class);
+
+    private static final int MAX_INV_BLOCK_COUNT = 500;
+
+    private byte[] versionMessage;
+    private long   bestHeight;
+
+    private final HashMap<Sha256Hash, Block>                 headers;
+    private final HashMap<Sha256Hash, Sha256Hash>            nextBlockHashes;
+    // merkleblock message followed by the tx messages of its matched transactions
+    private final HashMap<Sha256Hash, ByteArrayOutputStream> filteredBlocks;
+    private final HashMap<Sha256Hash, byte[]>                txs;
+
+    private final HashSet<Socket> sockets;
+    private       ServerSocket    serverSocket;
+
+    public ReplayPeerServer(File capture) throws IOException {
+        headers = new HashMap<Sha256Hash, Block>();
+        nextBlockHashes = new HashMap<Sha256Hash, Sha256Hash>();
+        filteredBlocks = new HashMap<Sha256Hash, ByteArrayOutputStream>();
+        txs = new HashMap<Sha256Hash, byte[]>();
+        sockets = new HashSet<Socket>();
+        for (byte[] stream : readStreams(capture)) {
+            index(stream);
+        }
+        if (versionMessage == null) {
+            throw new IOException("No version message in capture " + capture.getAbsolutePath());
+        }
+        log.info("Replay capture with {} headers, {} merkleblocks, {} txs, best height {}",
+                 headers.size(), filteredBlocks.size(), txs.size(), bestHeight);
+    }
+
+    public long getBestHeight() {
+        return bestHeight;
+    }
+
+    /**
+     * Listens on the loopback address at {@link BitherjSettings#port}, one thread per connection.
+     */
+    public synchronized void start() throws IOException {
+        serverSocket = new ServerSocket(BitherjSettings.port, 8, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "ReplayPeerServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close replay peer server", e);
+        }
+        sockets.clear();
+        serverSocket = null;
+    }
+
+    private List<byte[]> readStreams(File capture) throws IOException {
+        LinkedHashMap<Integer, ByteArrayOutputStream> streams = new LinkedHashMap<Integer,
+                ByteArrayOutputStream>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream
+                (capture)));
+        try {
+            if (in.readInt() != RecordingPeerProxy.MAGIC || in.readInt() != RecordingPeerProxy
+                    .VERSION) {
+                throw new IOException("Not a peer traffic capture: " + capture.getAbsolutePath());
+            }
+            while (true) {
+                int connectionId;
+                try {
+                    connectionId = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                in.readLong();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                ByteArrayOutputStream stream = streams.get(connectionId);
+                if (stream == null) {
+                    stream = new ByteArrayOutputStream();
+                    streams.put(connectionId, stream);
+                }
+                stream.write(bytes);
+            }
+        } finally {
+            in.close();
+        }
+        ArrayList<byte[]> result = new ArrayList<byte[]>();
+        for (ByteArrayOutputStream stream : streams.values()) {
+            result.add(stream.toByteArray());
+        }
+        return result;
+    }
+
+    private void index(byte[] stream) throws IOException {
+        BitcoinSerializer serializer = new BitcoinSerializer();
+        ByteBuffer buff = ByteBuffer.wrap(stream);
+        ByteArrayOutputStream filteredBlock = null;
+        HashSet<Sha256Hash> filteredBlockTxHashes = new HashSet<Sha256Hash>();
+        while (buff.hasRemaining()) {
+            int start = buff.position();
+            Message message;
+            try {
+                message = serializer.deserialize(buff);
+            } catch (BufferUnderflowException e) {
+                // the connection was cut in the middle of a message
+                break;
+            } catch (ProtocolException e) {
+                log.warn("Stop replaying a connection at a bad message", e);
+                break;
+            }
+            byte[] raw = Arrays.copyOfRange(stream, start, buff.position());
+            if (message instanceof VersionMessage) {
+                VersionMessage version = (VersionMessage) message;
+                if (versionMessage == null || version.bestHeight > bestHeight) {
+                    versionMessage = raw;
+                    bestHeight = version.bestHeight;
+                }
+            } else if (message instanceof HeadersMessage) {
+                for (Block header : ((HeadersMessage) message).getBlockHeaders()) {
+                    addHeader(header);
+                }
+            } else if (message instanceof FilteredBlockMessage) {
+                FilteredBlockMessage filteredBlockMessage = (FilteredBlockMessage) message;
+                Block block = filteredBlockMessage.getBlock();
+                addHeader(block);
+                filteredBlock = new ByteArrayOutputStream();
+                filteredBlock.write(raw);
+                filteredBlocks.put(new Sha256Hash(block.getBlockHash()), filteredBlock);
+                filteredBlockTxHashes.clear();
+                for (byte[] txHash : filteredBlockMessage.getTransactionHashes()) {
+                    filteredBlockTxHashes.add(new Sha256Hash(txHash));
+                }
+            } else if (message instanceof Tx) {
+                Sha256Hash txHash = new Sha256Hash(((Tx) message).getTxHash());
+                txs.put(txHash, raw);
+                if (filteredBlock != null && filteredBlockTxHashes.remove(txHash)) {
+                    filteredBlock.write(raw);
+                }
+            }
+        }
+    }
+
+    private void addHeader(Block header) {
+        Sha256Hash hash = new Sha256Hash(header.getBlockHash());
+        headers.put(hash, header);
+        nextBlockHashes.put(new Sha256Hash(header.getBlockPrev()), hash);
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket socket;
+            try {
+                ServerSocket server;
+                synchronized (this) {
+                    server = serverSocket;
+                }
+                if (server == null) {
+                    return;
+                }
+                socket = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (this) {
+                sockets.add(socket);
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        log.info("Replay connection closed: {}", e.getMessage());
+                    } finally {
+                        synchronized (ReplayPeerServer.this) {
+                            sockets.remove(socket);
+                        }
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // already closed
+                        }
+                    }
+                }
+            }, "ReplayPeerConnection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        // answers are flushed per request, don't let them wait for the peer's ack
+        socket.setTcpNoDelay(true);
+        BitcoinSerializer serializer = new BitcoinSerializer();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        while (true) {
+            Message message = serializer.deserialize(ByteBuffer.wrap(readMessage(in)));
+            if (message instanceof VersionMessage) {
+                out.write(versionMessage);
+                serializer.serialize(new VersionAck(), out);
+            } else if (message instanceof PingMessage) {
+                PingMessage ping = (PingMessage) message;
+                if (ping.hasNonce()) {
+                    serializer.serialize(new PongMessage(ping.getNonce()), out);
+                }
+            } else if (message instanceof GetHeadersMessage) {
+                GetHeadersMessage getHeaders = (GetHeadersMessage) message;
+                ArrayList<Block> result = new ArrayList<Block>();
+                Sha256Hash hash = locate(getHeaders.getLocator());
+                while (hash != null && result.size() < HeadersMessage.MAX_HEADERS) {
+                    hash = nextBlockHashes.get(hash);
+                    if (hash == null || headers.get(hash) == null) {
+                        break;
+                    }
+                    result.add(headers.get(hash));
+                }
+                serializer.serialize(new HeadersMessage(result.toArray(new Block[result.size()])),
+                                     out);
+            } else if (message instanceof GetBlocksMessage) {
+                GetBlocksMessage getBlocks = (GetBlocksMessage) message;
+                InventoryMessage inv = new InventoryMessage();
+                Sha256Hash hash = locate(getBlocks.getLocator());
+                while (hash != null && inv.getItems().size() < MAX_INV_BLOCK_COUNT) {
+                    hash = nextBlockHashes.get(hash);
+                    if (hash == null || !filteredBlocks.containsKey(hash)) {
+                        break;
+                    }
+                    inv.addItem(new InventoryItem(InventoryItem.Type.Block, hash.getBytes()));
+                }
+                if (inv.getItems().size() > 0) {
+                    serializer.serialize(inv, out);
+                }
+            } else if (message instanceof GetDataMessage) {
+                for (InventoryItem item : ((GetDataMessage) message).getItems()) {
+                    if (item.type == InventoryItem.Type.FilteredBlock) {
+                        ByteArrayOutputStream filteredBlock = filteredBlocks.get(new Sha256Hash
+                                (item.hash));
+                        if (filteredBlock != null) {
+                            filteredBlock.writeTo(out);
+                        }
+                    } else if (item.type == InventoryItem.Type.Transaction) {
+                        byte[] raw = txs.get(new Sha256Hash(item.hash));
+                        if (raw != null) {
+                            out.write(raw);
+                        }
+                    }
+                }
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * @return the first locator hash the capture knows, null if none.
+     */
+    private Sha256Hash locate(List<byte[]> locator) {
+        for (byte[] hash : locator) {
+            Sha256Hash locatorHash = new Sha256Hash(hash);
+            if (headers.containsKey(locatorHash) || nextBlockHashes.containsKey(locatorHash)) {
+                return locatorHash;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] readMessage(DataInputStream in) throws IOException {
+        // magic, command, payload size and checksum
+        byte[] header = new byte[4 + 12 + 4 + 4];
+        in.readFully(header);
+        long size = Utils.readUint32(header, 4 + 12);
+        if (size > Message.MAX_SIZE) {
+            throw new IOException("Bad message size " + size);
+        }
+        byte[] message = Arrays.copyOf(header, header.length + (int) size);
+        in.readFully(message, header.length, (int) size);
+        return message;
+    }
+}